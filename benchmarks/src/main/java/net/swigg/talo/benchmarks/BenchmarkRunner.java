@@ -0,0 +1,92 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Dustin Sweigart
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package net.swigg.talo.benchmarks;
+
+import com.google.common.collect.ImmutableList;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.results.format.ResultFormatFactory;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Runs the benchmarks and writes all of their results to a single file, JSON unless told otherwise, so that runs can
+ * be compared with each other. Takes the usual JMH options.
+ * <p/>
+ * Without a benchmark selection or thread count on the command line everything is run on one thread, after which the
+ * benchmarks sensitive to contention are run again at every power of two up to the number of processors.
+ *
+ * @author Dustin Sweigart <dustin@swigg.net>
+ */
+public class BenchmarkRunner {
+    static private final Logger LOGGER = LoggerFactory.getLogger(BenchmarkRunner.class);
+
+    static private final List<Class<?>> CONTENDED = ImmutableList.<Class<?>>of(CacheStoreBenchmark.class, ProxyBenchmark.class);
+
+    public static void main(String[] args) throws RunnerException, CommandLineOptionException, IOException {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        if (commandLine.shouldHelp() || commandLine.shouldList() || commandLine.shouldListProfilers() ||
+                commandLine.shouldListResultFormats()) {
+            // nothing to run, let JMH answer
+            org.openjdk.jmh.Main.main(args);
+            return;
+        }
+
+        List<RunResult> results = new ArrayList<>();
+        if (!commandLine.getIncludes().isEmpty() || commandLine.getThreads().hasValue()) {
+            results.addAll(new Runner(commandLine).run());
+        } else {
+            results.addAll(new Runner(new OptionsBuilder().parent(commandLine).threads(1).build()).run());
+            for (int threads = 2; threads <= Runtime.getRuntime().availableProcessors(); threads *= 2) {
+                OptionsBuilder options = new OptionsBuilder();
+                for (Class<?> benchmark : CONTENDED) {
+                    options.include(benchmark.getName());
+                }
+                results.addAll(new Runner(options.parent(commandLine).threads(threads).build()).run());
+            }
+        }
+
+        ResultFormatType format = commandLine.getResultFormat().hasValue() ? commandLine.getResultFormat().get() : ResultFormatType.JSON;
+        String file = commandLine.getResult().hasValue() ? commandLine.getResult().get() :
+                "jmh-result-" + new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date()) + "." + format.toString().toLowerCase();
+        try (PrintStream out = new PrintStream(new File(file))) {
+            ResultFormatFactory.getInstance(format, out).writeOut(results);
+        }
+        LOGGER.info("Wrote {} results to {}.", results.size(), file);
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Dustin Sweigart
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package net.swigg.talo.benchmarks;
+
+import com.google.common.cache.Weigher;
+import net.swigg.talo.cache.TinyLfuCacheStore;
+import net.swigg.talo.proxy.RequestIdentity;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Looking up and claiming entries in the cache map the way the servlet does, with keys drawn from a Zipf distribution
+ * over four times as many keys as fit in the cache so that claims mix hits with inserts and evictions. Run it at one
+ * thread and at as many as the machine has to see how it holds up under contention, {@link BenchmarkRunner} does so
+ * by default.
+ *
+ * @author Dustin Sweigart <dustin@swigg.net>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CacheStoreBenchmark {
+    static private final int SAMPLES = 1 << 20;
+    static private final double SKEW = 0.99;
+
+    @Param({"65536"})
+    private int maximumEntries;
+
+    private TinyLfuCacheStore<RequestIdentity, Object> cache;
+    private RequestIdentity[] keys;
+    private int[] samples;
+
+    @Setup
+    public void setUp() {
+        cache = new TinyLfuCacheStore<>(maximumEntries, maximumEntries, new Weigher<RequestIdentity, Object>() {
+            @Override
+            public int weigh(RequestIdentity key, Object value) {
+                return 1;
+            }
+        }, null);
+
+        keys = new RequestIdentity[maximumEntries * 4];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = new RequestIdentity("/objects/" + i, "", "", "");
+        }
+
+        samples = zipf(keys.length, SAMPLES, new Random(0x7a1c));
+        for (int i = 0; i < SAMPLES; i++) {
+            cache.putIfAbsent(keys[samples[i]], Boolean.TRUE);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        private int position;
+
+        @Setup
+        public void setUp() {
+            position = ThreadLocalRandom.current().nextInt(SAMPLES);
+        }
+
+        int next() {
+            position = (position + 1) & (SAMPLES - 1);
+            return position;
+        }
+    }
+
+    @Benchmark
+    public Object get(Cursor cursor) {
+        return cache.get(keys[samples[cursor.next()]]);
+    }
+
+    @Benchmark
+    public Object putIfAbsent(Cursor cursor) {
+        return cache.putIfAbsent(keys[samples[cursor.next()]], Boolean.TRUE);
+    }
+
+    /**
+     * Key indexes where index {@code i} is drawn with a probability proportional to {@code 1 / (i + 1)^skew}.
+     */
+    private static int[] zipf(int keys, int count, Random random) {
+        double[] cumulative = new double[keys];
+        double sum = 0;
+        for (int i = 0; i < keys; i++) {
+            sum += 1 / Math.pow(i + 1, SKEW);
+            cumulative[i] = sum;
+        }
+
+        int[] samples = new int[count];
+        for (int i = 0; i < count; i++) {
+            double target = random.nextDouble() * sum;
+            int low = 0;
+            int high = keys - 1;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (cumulative[middle] < target) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            samples[i] = low;
+        }
+
+        return samples;
+    }
+}
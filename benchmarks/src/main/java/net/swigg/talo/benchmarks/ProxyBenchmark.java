@@ -0,0 +1,156 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Dustin Sweigart
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package net.swigg.talo.benchmarks;
+
+import com.google.common.util.concurrent.SettableFuture;
+import net.swigg.talo.cache.HeapBodyStore;
+import net.swigg.talo.cache.TinyLfuCacheStore;
+import net.swigg.talo.proxy.RequestIdentity;
+import net.swigg.talo.proxy.ResponseHolder;
+import net.swigg.talo.proxy.ResponseHolderRemovalListener;
+import net.swigg.talo.proxy.ResponseHolderWeigher;
+import net.swigg.talo.proxy.TaloCacheServlet;
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Requests through the proxy running in process in front of a stub origin on the loopback interface, both for a
+ * response that is always in the cache and for ones that never are.
+ *
+ * @author Dustin Sweigart <dustin@swigg.net>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ProxyBenchmark {
+    @Param({"1024", "65536"})
+    private int bodySize;
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private Server origin;
+    private Server proxy;
+    private HttpClient httpClient;
+    private String proxyUri;
+
+    @Setup
+    public void setUp() throws Exception {
+        final byte[] body = new byte[bodySize];
+        Arrays.fill(body, (byte) 'x');
+
+        origin = new Server();
+        ServerConnector originConnector = new ServerConnector(origin);
+        originConnector.setHost("127.0.0.1");
+        origin.addConnector(originConnector);
+        origin.setHandler(new AbstractHandler() {
+            @Override
+            public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException {
+                response.setStatus(HttpServletResponse.SC_OK);
+                response.setHeader("Cache-Control", "max-age=3600");
+                response.setContentType("application/octet-stream");
+                response.setContentLength(body.length);
+                response.getOutputStream().write(body);
+                baseRequest.setHandled(true);
+            }
+        });
+        origin.start();
+
+        TaloCacheServlet servlet = new TaloCacheServlet(
+                new TinyLfuCacheStore<RequestIdentity, SettableFuture<ResponseHolder>>(256L * 1024 * 1024, 64L * 1024, 1024, new ResponseHolderWeigher(), new ResponseHolderRemovalListener()),
+                new HeapBodyStore(), null);
+        ServletContextHandler contextHandler = new ServletContextHandler();
+        contextHandler.setContextPath("/");
+        ServletHolder servletHolder = new ServletHolder(servlet);
+        servletHolder.setInitParameter("proxyTo", "http://127.0.0.1:" + originConnector.getLocalPort() + "/");
+        servletHolder.setInitParameter("prefix", "/");
+        contextHandler.addServlet(servletHolder, "/*");
+
+        proxy = new Server();
+        ServerConnector proxyConnector = new ServerConnector(proxy);
+        proxyConnector.setHost("127.0.0.1");
+        proxy.addConnector(proxyConnector);
+        proxy.setHandler(contextHandler);
+        proxy.start();
+        proxyUri = "http://127.0.0.1:" + proxyConnector.getLocalPort();
+
+        httpClient = new HttpClient();
+        httpClient.setMaxConnectionsPerDestination(256);
+        httpClient.setMaxRequestsQueuedPerDestination(4096);
+        httpClient.start();
+
+        // fill the cache for the hits
+        hit();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        httpClient.stop();
+        proxy.stop();
+        origin.stop();
+    }
+
+    @Benchmark
+    public int hit() throws InterruptedException, ExecutionException, TimeoutException {
+        return httpClient.GET(proxyUri + "/objects/hit").getContent().length;
+    }
+
+    /**
+     * Every request has a key of its own, so it goes to the origin and is then stored, evicting others as the cache
+     * fills up.
+     */
+    @Benchmark
+    public int miss() throws InterruptedException, ExecutionException, TimeoutException {
+        return httpClient.GET(proxyUri + "/objects/miss?n=" + misses.incrementAndGet()).getContent().length;
+    }
+}
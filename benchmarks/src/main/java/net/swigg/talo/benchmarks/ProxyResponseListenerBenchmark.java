@@ -0,0 +1,125 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Dustin Sweigart
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package net.swigg.talo.benchmarks;
+
+import com.google.common.base.Predicate;
+import com.google.common.base.Predicates;
+import com.google.common.util.concurrent.SettableFuture;
+import net.swigg.talo.cache.BodyStore;
+import net.swigg.talo.cache.CacheStore;
+import net.swigg.talo.cache.HeapBodyStore;
+import net.swigg.talo.cache.TinyLfuCacheStore;
+import net.swigg.talo.proxy.FreshnessPolicy;
+import net.swigg.talo.proxy.InFlightResponse;
+import net.swigg.talo.proxy.ProxyResponseListener;
+import net.swigg.talo.proxy.RequestIdentity;
+import net.swigg.talo.proxy.ResponseHolder;
+import net.swigg.talo.proxy.ResponseHolderRemovalListener;
+import net.swigg.talo.proxy.ResponseHolderWeigher;
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.HttpResponse;
+import org.eclipse.jetty.client.api.Response;
+import org.eclipse.jetty.http.HttpHeader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collecting a response body as the HTTP client hands it over in chunks and storing it in the cache, with and without
+ * a Content-Length to size the buffer up front.
+ *
+ * @author Dustin Sweigart <dustin@swigg.net>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProxyResponseListenerBenchmark {
+    @Param({"512", "4096", "16384", "65536"})
+    private int chunkSize;
+
+    @Param({"65536", "1048576"})
+    private int bodySize;
+
+    @Param({"true", "false"})
+    private boolean contentLength;
+
+    private final RequestIdentity key = new RequestIdentity("/objects/1", "", "", "");
+    private final BodyStore bodyStore = new HeapBodyStore();
+    private final FreshnessPolicy freshnessPolicy = new FreshnessPolicy();
+    private final Predicate<Response> saveToCache = Predicates.alwaysTrue();
+
+    private CacheStore<RequestIdentity, SettableFuture<ResponseHolder>> cache;
+    private Response response;
+    private ByteBuffer chunk;
+
+    @Setup
+    public void setUp() {
+        cache = new TinyLfuCacheStore<>(64L * 1024 * 1024, 16L * 1024, 16, new ResponseHolderWeigher(), new ResponseHolderRemovalListener());
+
+        HttpClient httpClient = new HttpClient();
+        response = new HttpResponse(httpClient.newRequest("http://localhost/objects/1"), Collections.<Response.ResponseListener>emptyList()).status(200);
+        response.getHeaders().put(HttpHeader.CACHE_CONTROL, "max-age=3600");
+        response.getHeaders().put(HttpHeader.CONTENT_TYPE, "application/octet-stream");
+        if (contentLength) {
+            response.getHeaders().put(HttpHeader.CONTENT_LENGTH, Integer.toString(bodySize));
+        }
+
+        chunk = ByteBuffer.allocate(chunkSize);
+    }
+
+    @Benchmark
+    public ResponseHolder accumulate() throws InterruptedException, ExecutionException {
+        SettableFuture<ResponseHolder> future = SettableFuture.create();
+        cache.put(key, future);
+
+        InFlightResponse inFlightResponse = new InFlightResponse(future);
+        ProxyResponseListener listener = new ProxyResponseListener(key, inFlightResponse, cache, bodyStore, freshnessPolicy, saveToCache);
+        inFlightResponse.begin(response);
+        for (int remaining = bodySize; remaining > 0; remaining -= chunkSize) {
+            ByteBuffer content = chunk.duplicate();
+            content.limit(Math.min(chunkSize, remaining));
+            listener.onContent(response, content);
+        }
+        listener.onSuccess(response);
+
+        return future.get();
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Dustin Sweigart
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package net.swigg.talo.benchmarks;
+
+import com.google.common.collect.ImmutableList;
+import net.swigg.talo.proxy.CacheKeyPolicy;
+import net.swigg.talo.proxy.RequestIdentity;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Building cache keys from requests as browsers and API clients send them, with no headers, the usual content
+ * negotiation headers or a long list of headers in the key.
+ *
+ * @author Dustin Sweigart <dustin@swigg.net>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestIdentityBenchmark {
+    @Param({"none", "negotiation", "many"})
+    private String keyHeaders;
+
+    private CacheKeyPolicy cacheKeyPolicy;
+    private BenchmarkRequest request;
+    private RequestIdentity identity;
+    private RequestIdentity sameIdentity;
+
+    @Setup
+    public void setUp() {
+        cacheKeyPolicy = new CacheKeyPolicy(keyHeaders(keyHeaders), ImmutableList.of("utm_*", "fbclid"), true);
+        request = new BenchmarkRequest("GET", "/catalog/products/1138/reviews", "page=2&sort=newest&utm_source=mail&utm_campaign=spring&lang=en")
+                .header("Host", "shop.example.com")
+                .header("User-Agent", "Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/35.0.1916.114 Safari/537.36")
+                .header("Accept", "text/html,application/xhtml+xml,application/xml;q=0.9,image/webp,*/*;q=0.8")
+                .header("Accept-Encoding", "gzip,deflate,sdch")
+                .header("Accept-Language", "en-US,en;q=0.8")
+                .header("Cache-Control", "max-age=0")
+                .header("Cookie", "session=2f1c8a6e9b; tracking=a71be0c2d4f3; prefs=compact")
+                .header("Referer", "https://shop.example.com/catalog/products/1138")
+                .header("X-Requested-With", "XMLHttpRequest")
+                .header("X-Forwarded-For", "203.0.113.7")
+                .header("X-Forwarded-Proto", "https")
+                .header("Connection", "keep-alive");
+
+        identity = cacheKeyPolicy.identify(request);
+        sameIdentity = cacheKeyPolicy.identify(request);
+    }
+
+    private static List<String> keyHeaders(String keyHeaders) {
+        switch (keyHeaders) {
+            case "negotiation":
+                return ImmutableList.of("Accept", "Accept-Language");
+            case "many":
+                return ImmutableList.of("Accept", "Accept-Encoding", "Accept-Language", "Cookie", "X-Requested-With", "X-Forwarded-Proto");
+            default:
+                return Collections.emptyList();
+        }
+    }
+
+    /**
+     * The whole key policy: canonical query string, canonical headers, fingerprint and the vary lookup.
+     */
+    @Benchmark
+    public RequestIdentity identify() {
+        return cacheKeyPolicy.identify(request);
+    }
+
+    /**
+     * Only the fingerprinting done when a key is constructed from its canonical parts.
+     */
+    @Benchmark
+    public RequestIdentity construct() {
+        return new RequestIdentity(identity.getRequestUri(), identity.getQueryString(), identity.getKeyHeaders(), identity.getVariant());
+    }
+
+    @Benchmark
+    public int hashCodeOfKey() {
+        return identity.hashCode();
+    }
+
+    /**
+     * Comparing two distinct but equal keys, as a hit in the cache map does.
+     */
+    @Benchmark
+    public boolean equalsOfEqualKey() {
+        return identity.equals(sameIdentity);
+    }
+}
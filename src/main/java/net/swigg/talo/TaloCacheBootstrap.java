@@ -24,22 +24,65 @@
 
 package net.swigg.talo;
 
+import com.google.common.base.Splitter;
+import com.google.common.util.concurrent.SettableFuture;
 import net.swigg.talo.admin.config.AdminConfig;
+import net.swigg.talo.cache.BodyStore;
+import net.swigg.talo.cache.CacheStore;
+import net.swigg.talo.cache.Doorkeeper;
+import net.swigg.talo.cache.HeapBodyStore;
+import net.swigg.talo.cache.SlabArena;
+import net.swigg.talo.cache.StorageMode;
+import net.swigg.talo.cache.TinyLfuCacheStore;
+import net.swigg.talo.cluster.Cluster;
+import net.swigg.talo.metrics.CacheMetrics;
+import net.swigg.talo.origin.OriginLimiter;
+import net.swigg.talo.origin.OriginPool;
+import net.swigg.talo.proxy.CacheKeyPolicy;
+import net.swigg.talo.proxy.CacheRules;
+import net.swigg.talo.proxy.CollapsingPolicy;
+import net.swigg.talo.proxy.Compressor;
+import net.swigg.talo.proxy.DiskTier;
+import net.swigg.talo.proxy.FreshnessPolicy;
+import net.swigg.talo.proxy.Invalidator;
+import net.swigg.talo.proxy.LargeObjectPolicy;
+import net.swigg.talo.proxy.RequestIdentity;
+import net.swigg.talo.proxy.ResponseHolder;
+import net.swigg.talo.proxy.ResponseHolderRemovalListener;
+import net.swigg.talo.proxy.ResponseHolderWeigher;
+import net.swigg.talo.proxy.SurrogateKeyIndex;
 import net.swigg.talo.proxy.TaloCacheServlet;
+import net.swigg.talo.proxy.UriIndex;
 import org.apache.commons.cli.*;
 import org.apache.commons.configuration.ConfigurationException;
 import org.eclipse.jetty.server.Handler;
 import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
 import org.eclipse.jetty.servlet.ServletContextHandler;
 import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.util.thread.ExecutorThreadPool;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
+import org.eclipse.jetty.util.thread.ThreadPool;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.springframework.beans.BeansException;
+import org.springframework.beans.factory.config.BeanFactoryPostProcessor;
+import org.springframework.beans.factory.config.ConfigurableListableBeanFactory;
 import org.springframework.web.context.ContextLoaderListener;
 import org.springframework.web.context.WebApplicationContext;
 import org.springframework.web.context.support.AnnotationConfigWebApplicationContext;
 import org.springframework.web.servlet.DispatcherServlet;
 
-import java.net.InetSocketAddress;
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
 
 /**
  * The main entry point for TALOCache that bootstraps the application.
@@ -48,16 +91,16 @@ import java.net.InetSocketAddress;
  */
 public class TaloCacheBootstrap {
     static private final Logger LOGGER = LoggerFactory.getLogger(TaloCacheBootstrap.class);
+    static private final Splitter LIST_SPLITTER = Splitter.on(',').trimResults().omitEmptyStrings();
     private BootstrapConfig config;
+    private CacheMetrics metrics;
+    private Invalidator invalidator;
     private Server adminServer;
     private Server proxyServer;
 
     public static void main(String[] args) throws ConfigurationException, ParseException {
-        Options options = new Options();
+        Options options = options();
         options.addOption("help", false, "help");
-        options.addOption("listenHost", true, "interface to listen on");
-        options.addOption("listenPort", true, "port to listen on");
-        options.addOption("targetPrefix", true, "where to proxy to");
 
         CommandLineParser parser = new BasicParser();
         CommandLine command = parser.parse( options, args);
@@ -68,19 +111,172 @@ public class TaloCacheBootstrap {
             return;
         }
 
+        TaloCacheBootstrap taloCache = new TaloCacheBootstrap(config(command));
+
+        taloCache.start();
+        taloCache.join();
+    }
+
+    /**
+     * The command line options configuring the proxy.
+     */
+    public static Options options() {
+        Options options = new Options();
+        options.addOption("listenHost", true, "interface to listen on");
+        options.addOption("listenPort", true, "port to listen on");
+        options.addOption("targetPrefix", true, "where to proxy to, comma separated to balance over several origins");
+        options.addOption("originMaximumFailures", true, "number of failed requests in a row after which an origin is ejected");
+        options.addOption("originEjectionTime", true, "milliseconds an ejected origin is left out for");
+        options.addOption("originRetries", true, "number of other origins a failed GET or HEAD is retried on");
+        options.addOption("originHealthCheckPath", true, "path to poll each origin at, none to only go by the requests sent to them");
+        options.addOption("originHealthCheckInterval", true, "milliseconds between origin health checks");
+        options.addOption("originLimit", true, "number of concurrent requests to the origin to start adapting from, 0 for no limit");
+        options.addOption("originMinimumLimit", true, "number of concurrent requests to the origin always allowed");
+        options.addOption("originMaximumLimit", true, "number of concurrent requests to the origin never exceeded");
+        options.addOption("originLatencyTolerance", true, "how many times slower than usual the origin may answer before the limit backs off");
+        options.addOption("originQueueSize", true, "number of requests that may wait for the origin limit");
+        options.addOption("originQueueTimeout", true, "milliseconds a request waits for the origin limit before it is answered with a 503");
+        options.addOption("adminPort", true, "port the administration server listens on");
+        options.addOption("adminMaxThreads", true, "maximum number of threads of the administration server, apart from the proxy's");
+        options.addOption("proxyThreadMode", true, "threads the proxy handles requests on, platform or virtual");
+        options.addOption("proxyMaxThreads", true, "maximum number of threads of the proxy server in platform mode");
+        options.addOption("proxyMinThreads", true, "number of threads the proxy server keeps around in platform mode");
+        options.addOption("proxyThreadIdleTimeout", true, "milliseconds before an idle proxy server thread above the minimum stops");
+        options.addOption("proxyAcceptors", true, "number of threads accepting connections to the proxy, -1 for Jetty's default");
+        options.addOption("proxySelectors", true, "number of threads selecting on the proxy's connections, -1 for Jetty's default");
+        options.addOption("clientMaxThreads", true, "maximum number of threads of the client talking to the origins");
+        options.addOption("clientMaxConnections", true, "maximum number of connections to each origin");
+        options.addOption("clientIdleTimeout", true, "milliseconds before an idle connection to an origin is closed");
+        options.addOption("clientRequestBufferSize", true, "size of the buffer requests to the origins are written with");
+        options.addOption("clientResponseBufferSize", true, "size of the buffer responses from the origins are read with");
+        options.addOption("cacheMaximumWeight", true, "maximum number of bytes to keep in the cache");
+        options.addOption("cacheInitialCapacity", true, "number of entries to size the cache for up front");
+        options.addOption("cacheExpectedEntries", true, "number of entries the full cache is expected to hold, which its admission sketch is sized for");
+        options.addOption("admissionThreshold", true, "number of requests for a response before it is cached, 1 to cache every response");
+        options.addOption("admissionExpectedKeys", true, "number of distinct requests the admission doorkeeper tells apart");
+        options.addOption("storageMode", true, "where to keep cached bodies, heap or offheap");
+        options.addOption("offHeapCapacity", true, "maximum number of bytes of direct memory for offheap storage");
+        options.addOption("offHeapPageSize", true, "size of the slabs offheap storage reserves; larger bodies are kept on the heap instead");
+        options.addOption("offHeapOversizedCapacity", true, "maximum number of bytes of bodies larger than an offheap slab to keep on the heap");
+        options.addOption("defaultTtl", true, "seconds to cache responses that don't specify their freshness");
+        options.addOption("diskTierDirectory", true, "directory to keep a persistent second cache tier in");
+        options.addOption("diskSegmentSize", true, "size of each disk tier segment file");
+        options.addOption("diskMaximumSegments", true, "number of disk tier segment files to keep");
+        options.addOption("keyHeaders", true, "comma separated request headers that are part of every cache key, include Cookie to cache requests with cookies instead of bypassing the cache");
+        options.addOption("ignoredQueryParameters", true, "comma separated query parameters left out of cache keys, a trailing * matches a prefix");
+        options.addOption("sortQueryParameters", true, "whether query parameter order is irrelevant to cache keys");
+        options.addOption("cacheRules", true, "XML file of rules deciding which requests bypass the cache and which responses are cached for how long");
+        options.addOption("collapsedMaximumWait", true, "milliseconds a request waits on another request's fetch before fetching itself, 0 for no limit");
+        options.addOption("collapsedMaximumRetries", true, "times a request retries through the cache when the fetch it waited on failed");
+        options.addOption("compressionEncodings", true, "comma separated content codings to store compressed responses in, gzip and deflate, empty to disable");
+        options.addOption("compressionMinimumSize", true, "smallest body in bytes worth compressing");
+        options.addOption("compressionThreads", true, "number of threads compressing responses in the background");
+        options.addOption("spillThreshold", true, "bodies larger than this many bytes are kept in a file instead of on the heap");
+        options.addOption("maximumObjectSize", true, "bodies larger than this many bytes are streamed through without being cached, less than the cache's maximum weight and the disk segment size");
+        options.addOption("clusterPeers", true, "comma separated base URLs of the cluster's proxies, empty to cache on this node alone");
+        options.addOption("clusterSelf", true, "base URL the other peers reach this proxy at, http://listenHost:listenPort by default");
+        options.addOption("clusterPeerDownTime", true, "milliseconds to skip a peer for after failing to reach it");
+        options.addOption("clusterReplicationThreshold", true, "number of requests after which a response owned by another peer is cached locally too, 0 to never replicate");
+        options.addOption("spillDirectory", true, "directory to create spill files in, the system temporary directory by default");
+
+        return options;
+    }
+
+    /**
+     * The configuration given by a command line parsed with {@link #options()}.
+     */
+    public static BootstrapConfig config(CommandLine command) {
         BootstrapConfig config = new BootstrapConfig();
 
         config.listenHost = command.getOptionValue("listenHost", config.listenHost);
         config.listenPort = Integer.parseInt(command.getOptionValue("listenPort", config.listenPort.toString()));
         config.targetPrefix = command.getOptionValue("targetPrefix", config.targetPrefix);
+        config.originMaximumFailures = Integer.parseInt(command.getOptionValue("originMaximumFailures", config.originMaximumFailures.toString()));
+        config.originEjectionTime = Long.parseLong(command.getOptionValue("originEjectionTime", config.originEjectionTime.toString()));
+        config.originRetries = Integer.parseInt(command.getOptionValue("originRetries", config.originRetries.toString()));
+        config.originHealthCheckPath = command.getOptionValue("originHealthCheckPath", config.originHealthCheckPath);
+        config.originHealthCheckInterval = Long.parseLong(command.getOptionValue("originHealthCheckInterval", config.originHealthCheckInterval.toString()));
+        config.originLimit = Integer.parseInt(command.getOptionValue("originLimit", config.originLimit.toString()));
+        config.originMinimumLimit = Integer.parseInt(command.getOptionValue("originMinimumLimit", config.originMinimumLimit.toString()));
+        config.originMaximumLimit = Integer.parseInt(command.getOptionValue("originMaximumLimit", config.originMaximumLimit.toString()));
+        config.originLatencyTolerance = Double.parseDouble(command.getOptionValue("originLatencyTolerance", config.originLatencyTolerance.toString()));
+        config.originQueueSize = Integer.parseInt(command.getOptionValue("originQueueSize", config.originQueueSize.toString()));
+        config.originQueueTimeout = Long.parseLong(command.getOptionValue("originQueueTimeout", config.originQueueTimeout.toString()));
+        config.adminPort = Integer.parseInt(command.getOptionValue("adminPort", config.adminPort.toString()));
+        config.adminMaxThreads = Integer.parseInt(command.getOptionValue("adminMaxThreads", config.adminMaxThreads.toString()));
+        config.proxyThreadMode = ThreadMode.valueOf(command.getOptionValue("proxyThreadMode", config.proxyThreadMode.name()).toUpperCase());
+        config.proxyMaxThreads = Integer.parseInt(command.getOptionValue("proxyMaxThreads", config.proxyMaxThreads.toString()));
+        config.proxyMinThreads = Integer.parseInt(command.getOptionValue("proxyMinThreads", config.proxyMinThreads.toString()));
+        config.proxyThreadIdleTimeout = Integer.parseInt(command.getOptionValue("proxyThreadIdleTimeout", config.proxyThreadIdleTimeout.toString()));
+        config.proxyAcceptors = Integer.parseInt(command.getOptionValue("proxyAcceptors", config.proxyAcceptors.toString()));
+        config.proxySelectors = Integer.parseInt(command.getOptionValue("proxySelectors", config.proxySelectors.toString()));
+        config.clientMaxThreads = Integer.parseInt(command.getOptionValue("clientMaxThreads", config.clientMaxThreads.toString()));
+        config.clientMaxConnections = Integer.parseInt(command.getOptionValue("clientMaxConnections", config.clientMaxConnections.toString()));
+        config.clientIdleTimeout = Long.parseLong(command.getOptionValue("clientIdleTimeout", config.clientIdleTimeout.toString()));
+        config.clientRequestBufferSize = Integer.parseInt(command.getOptionValue("clientRequestBufferSize", config.clientRequestBufferSize.toString()));
+        config.clientResponseBufferSize = Integer.parseInt(command.getOptionValue("clientResponseBufferSize", config.clientResponseBufferSize.toString()));
+        config.cacheMaximumWeight = Long.parseLong(command.getOptionValue("cacheMaximumWeight", config.cacheMaximumWeight.toString()));
+        config.cacheInitialCapacity = Integer.parseInt(command.getOptionValue("cacheInitialCapacity", config.cacheInitialCapacity.toString()));
+        config.cacheExpectedEntries = Long.parseLong(command.getOptionValue("cacheExpectedEntries", config.cacheExpectedEntries.toString()));
+        config.admissionThreshold = Integer.parseInt(command.getOptionValue("admissionThreshold", config.admissionThreshold.toString()));
+        config.admissionExpectedKeys = Long.parseLong(command.getOptionValue("admissionExpectedKeys", config.admissionExpectedKeys.toString()));
+        config.storageMode = StorageMode.valueOf(command.getOptionValue("storageMode", config.storageMode.name()).toUpperCase());
+        config.offHeapCapacity = Long.parseLong(command.getOptionValue("offHeapCapacity", config.offHeapCapacity.toString()));
+        config.offHeapPageSize = Integer.parseInt(command.getOptionValue("offHeapPageSize", config.offHeapPageSize.toString()));
+        config.offHeapOversizedCapacity = Long.parseLong(command.getOptionValue("offHeapOversizedCapacity", config.offHeapOversizedCapacity.toString()));
+        config.defaultTtl = Long.parseLong(command.getOptionValue("defaultTtl", config.defaultTtl.toString()));
+        config.diskTierDirectory = command.getOptionValue("diskTierDirectory", config.diskTierDirectory);
+        config.diskSegmentSize = Integer.parseInt(command.getOptionValue("diskSegmentSize", config.diskSegmentSize.toString()));
+        config.diskMaximumSegments = Integer.parseInt(command.getOptionValue("diskMaximumSegments", config.diskMaximumSegments.toString()));
+        config.keyHeaders = command.getOptionValue("keyHeaders", config.keyHeaders);
+        config.ignoredQueryParameters = command.getOptionValue("ignoredQueryParameters", config.ignoredQueryParameters);
+        config.sortQueryParameters = Boolean.parseBoolean(command.getOptionValue("sortQueryParameters", config.sortQueryParameters.toString()));
+        config.cacheRules = command.getOptionValue("cacheRules", config.cacheRules);
+        config.collapsedMaximumWait = Long.parseLong(command.getOptionValue("collapsedMaximumWait", config.collapsedMaximumWait.toString()));
+        config.collapsedMaximumRetries = Integer.parseInt(command.getOptionValue("collapsedMaximumRetries", config.collapsedMaximumRetries.toString()));
+        config.compressionEncodings = command.getOptionValue("compressionEncodings", config.compressionEncodings);
+        config.compressionMinimumSize = Integer.parseInt(command.getOptionValue("compressionMinimumSize", config.compressionMinimumSize.toString()));
+        config.compressionThreads = Integer.parseInt(command.getOptionValue("compressionThreads", config.compressionThreads.toString()));
+        config.spillThreshold = Long.parseLong(command.getOptionValue("spillThreshold", config.spillThreshold.toString()));
+        config.maximumObjectSize = Long.parseLong(command.getOptionValue("maximumObjectSize", config.maximumObjectSize.toString()));
+        config.spillDirectory = command.getOptionValue("spillDirectory", config.spillDirectory);
+        config.clusterPeers = command.getOptionValue("clusterPeers", config.clusterPeers);
+        config.clusterSelf = command.getOptionValue("clusterSelf", config.clusterSelf);
+        config.clusterPeerDownTime = Long.parseLong(command.getOptionValue("clusterPeerDownTime", config.clusterPeerDownTime.toString()));
+        config.clusterReplicationThreshold = Integer.parseInt(command.getOptionValue("clusterReplicationThreshold", config.clusterReplicationThreshold.toString()));
 
-        TaloCacheBootstrap taloCache = new TaloCacheBootstrap(config);
+        // a body that can't fit in the cache, or on disk once evicted, would only push everything else out of it
+        checkArgument(config.maximumObjectSize <= maximumWeight(config),
+                "maximumObjectSize must not exceed the cache's maximum weight of %s bytes", maximumWeight(config));
+        checkArgument(config.diskTierDirectory == null || config.maximumObjectSize < config.diskSegmentSize,
+                "maximumObjectSize must be smaller than diskSegmentSize");
 
-        taloCache.start();
+        return config;
     }
 
-    private void start() {
-        this.adminServer = new Server(6060);
+    /**
+     * The number of bytes the cache holds in the configured storage mode.
+     */
+    private static long maximumWeight(BootstrapConfig config) {
+        // offheap bodies are weighed by the chunk they occupy, so the arena's capacities bound the cache
+        return config.storageMode == StorageMode.OFFHEAP
+                ? config.offHeapCapacity + config.offHeapOversizedCapacity : config.cacheMaximumWeight;
+    }
+
+    /**
+     * Start the administration and proxy servers, returning once they are listening.
+     */
+    public void start() {
+        // the admin server reaches into the proxy's cache
+        Handler proxyHandler = createProxyHandler();
+
+        // the admin server has threads of its own so that it stays reachable however busy the proxy is
+        QueuedThreadPool adminThreadPool = new QueuedThreadPool(config.adminMaxThreads, Math.min(2, config.adminMaxThreads));
+        adminThreadPool.setName("talo-admin");
+        this.adminServer = new Server(adminThreadPool);
+        ServerConnector adminConnector = new ServerConnector(adminServer, 1, 1);
+        adminConnector.setPort(config.adminPort);
+        this.adminServer.addConnector(adminConnector);
         this.adminServer.setHandler(createAdminHandler(createAdminContext()));
 
         try {
@@ -89,31 +285,195 @@ public class TaloCacheBootstrap {
             LOGGER.error("An error occurred while starting up the administration manager.", e);
         }
 
-        InetSocketAddress proxyAddress = new InetSocketAddress(config.listenHost, config.listenPort);
-        this.proxyServer = new Server(proxyAddress);
-        this.proxyServer.setHandler(createProxyHandler());
+        this.proxyServer = new Server(createProxyThreadPool());
+        ServerConnector proxyConnector = new ServerConnector(proxyServer, config.proxyAcceptors, config.proxySelectors);
+        proxyConnector.setHost(config.listenHost);
+        proxyConnector.setPort(config.listenPort);
+        this.proxyServer.addConnector(proxyConnector);
+        this.proxyServer.setHandler(proxyHandler);
+        this.proxyServer.setStopAtShutdown(true);
 
         try {
             this.proxyServer.start();
-            this.proxyServer.join();
         } catch (Exception e) {
             LOGGER.error("An error occurred while starting.", e);
         }
     }
 
+    /**
+     * Wait for the proxy server to stop.
+     */
+    public void join() {
+        try {
+            this.proxyServer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public void stop() {
+        try {
+            this.proxyServer.stop();
+            this.adminServer.stop();
+        } catch (Exception e) {
+            LOGGER.error("An error occurred while stopping.", e);
+        }
+    }
+
+    public CacheMetrics getMetrics() {
+        return metrics;
+    }
+
+    private ThreadPool createProxyThreadPool() {
+        if (config.proxyThreadMode == ThreadMode.VIRTUAL) {
+            try {
+                // looked up at runtime, the proxy is built for JDKs that don't have virtual threads
+                ExecutorService executor = (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+                return new ExecutorThreadPool(executor);
+            } catch (ReflectiveOperationException e) {
+                LOGGER.warn("Virtual threads aren't available on this JDK, continuing with platform threads.");
+            }
+        }
+
+        QueuedThreadPool threadPool = new QueuedThreadPool(config.proxyMaxThreads, config.proxyMinThreads, config.proxyThreadIdleTimeout);
+        threadPool.setName("talo-proxy");
+        return threadPool;
+    }
+
     private Handler createProxyHandler() {
         ServletContextHandler contextHandler = new ServletContextHandler();
         contextHandler.setErrorHandler(null);
         contextHandler.setContextPath(this.config.contextPath);
 
-        ServletHolder servletHolder = new ServletHolder(new TaloCacheServlet());
+        DiskTier diskTier = createDiskTier();
+        ResponseHolderRemovalListener removalListener = new ResponseHolderRemovalListener(diskTier);
+        CacheStore<RequestIdentity, SettableFuture<ResponseHolder>> cacheStore = createCacheStore(removalListener);
+        BodyStore bodyStore = createBodyStore();
+        CacheKeyPolicy cacheKeyPolicy = new CacheKeyPolicy(LIST_SPLITTER.splitToList(config.keyHeaders),
+                LIST_SPLITTER.splitToList(config.ignoredQueryParameters), config.sortQueryParameters);
+        CacheRules cacheRules = createCacheRules();
+
+        UriIndex uriIndex = new UriIndex(cacheStore);
+        SurrogateKeyIndex surrogateKeyIndex = new SurrogateKeyIndex(cacheStore);
+        removalListener.setUriIndex(uriIndex);
+        removalListener.setSurrogateKeyIndex(surrogateKeyIndex);
+        this.invalidator = new Invalidator(cacheStore, uriIndex, surrogateKeyIndex, diskTier, cacheKeyPolicy);
+
+        TaloCacheServlet servlet = new TaloCacheServlet(cacheStore, bodyStore, diskTier);
+        servlet.setMetrics(metrics);
+        servlet.setFreshnessPolicy(new FreshnessPolicy(TimeUnit.SECONDS.toMillis(config.defaultTtl)));
+        servlet.setCacheKeyPolicy(cacheKeyPolicy);
+        servlet.setCacheRules(cacheRules);
+        servlet.setInvalidator(invalidator);
+        servlet.setCluster(createCluster());
+        servlet.setOriginPool(createOriginPool());
+        if (config.originLimit > 0) {
+            servlet.setOriginLimiter(new OriginLimiter(config.originLimit, Math.min(config.originMinimumLimit, config.originLimit),
+                    Math.max(config.originMaximumLimit, config.originLimit), config.originLatencyTolerance, config.originQueueSize),
+                    config.originQueueTimeout);
+        }
+        if (config.admissionThreshold > 1 || cacheRules.isAdmissionRequired()) {
+            // rules may ask for admission on their own, everything else is still cached on its first request then
+            servlet.setDoorkeeper(new Doorkeeper<RequestIdentity>(config.admissionExpectedKeys, Math.max(1, config.admissionThreshold)));
+        }
+        servlet.setCollapsingPolicy(new CollapsingPolicy(config.collapsedMaximumWait, config.collapsedMaximumRetries));
+        servlet.setLargeObjectPolicy(new LargeObjectPolicy(config.spillThreshold, config.maximumObjectSize,
+                config.spillDirectory == null ? null : new File(config.spillDirectory)));
+
+        List<String> compressionEncodings = LIST_SPLITTER.splitToList(config.compressionEncodings);
+        if (!compressionEncodings.isEmpty()) {
+            servlet.setCompressor(new Compressor(cacheStore, bodyStore, compressionEncodings, config.compressionMinimumSize, config.compressionThreads));
+        }
+
+        ServletHolder servletHolder = new ServletHolder(servlet);
         contextHandler.addServlet(servletHolder, "/*");
-        servletHolder.setInitParameter("proxyTo", config.targetPrefix);
+        servletHolder.setInitParameter("proxyTo", LIST_SPLITTER.splitToList(config.targetPrefix).get(0));
         servletHolder.setInitParameter("prefix", "/");
+        servletHolder.setInitParameter("maxThreads", config.clientMaxThreads.toString());
+        servletHolder.setInitParameter("maxConnections", config.clientMaxConnections.toString());
+        servletHolder.setInitParameter("idleTimeout", config.clientIdleTimeout.toString());
+        servletHolder.setInitParameter("requestBufferSize", config.clientRequestBufferSize.toString());
+        servletHolder.setInitParameter("responseBufferSize", config.clientResponseBufferSize.toString());
 
         return contextHandler;
     }
 
+    /**
+     * The rules of the {@code cacheRules} file. Starting without them would cache what they were meant to keep out
+     * of the cache, so a file that can't be read stops the proxy from starting.
+     */
+    private CacheRules createCacheRules() {
+        if (config.cacheRules == null) {
+            return new CacheRules();
+        }
+
+        try {
+            CacheRules cacheRules = CacheRules.load(new File(config.cacheRules));
+            LOGGER.info("Loaded {} cache rules from {}.", cacheRules.getRules().size(), config.cacheRules);
+            return cacheRules;
+        } catch (ConfigurationException e) {
+            throw new IllegalStateException("Could not load the cache rules from " + config.cacheRules, e);
+        }
+    }
+
+    private Cluster createCluster() {
+        List<String> peers = LIST_SPLITTER.splitToList(config.clusterPeers);
+        if (peers.isEmpty()) {
+            return null;
+        }
+
+        List<URI> peerUris = new ArrayList<>();
+        for (String peer : peers) {
+            peerUris.add(URI.create(peer));
+        }
+        URI self = URI.create(config.clusterSelf != null ? config.clusterSelf : "http://" + config.listenHost + ":" + config.listenPort);
+
+        Cluster cluster = new Cluster(self, peerUris, config.clusterPeerDownTime, config.clusterReplicationThreshold);
+        LOGGER.info("Sharing the cache with peers {} as {}.", cluster.getPeers(), cluster.getSelf());
+        return cluster;
+    }
+
+    private OriginPool createOriginPool() {
+        List<String> origins = LIST_SPLITTER.splitToList(config.targetPrefix);
+        if (origins.size() < 2) {
+            return null;
+        }
+
+        List<URI> originUris = new ArrayList<>();
+        for (String origin : origins) {
+            originUris.add(URI.create(origin));
+        }
+
+        return new OriginPool(originUris, config.originMaximumFailures, config.originEjectionTime, config.originRetries,
+                config.originHealthCheckPath, config.originHealthCheckInterval);
+    }
+
+    private DiskTier createDiskTier() {
+        if (config.diskTierDirectory == null) {
+            return null;
+        }
+
+        try {
+            return new DiskTier(new File(config.diskTierDirectory), config.diskSegmentSize, config.diskMaximumSegments);
+        } catch (IOException e) {
+            LOGGER.error("An error occurred while opening the disk tier, continuing without it.", e);
+            return null;
+        }
+    }
+
+    private CacheStore<RequestIdentity, SettableFuture<ResponseHolder>> createCacheStore(ResponseHolderRemovalListener removalListener) {
+        return new TinyLfuCacheStore<>(maximumWeight(config), config.cacheExpectedEntries, config.cacheInitialCapacity,
+                new ResponseHolderWeigher(), removalListener);
+    }
+
+    private BodyStore createBodyStore() {
+        if (config.storageMode == StorageMode.OFFHEAP) {
+            return new SlabArena(config.offHeapCapacity, config.offHeapPageSize, config.offHeapOversizedCapacity);
+        }
+
+        return new HeapBodyStore();
+    }
+
     private Handler createAdminHandler(WebApplicationContext context) {
         ServletContextHandler contextHandler = new ServletContextHandler();
         contextHandler.setErrorHandler(null);
@@ -129,6 +489,14 @@ public class TaloCacheBootstrap {
         AnnotationConfigWebApplicationContext context = new AnnotationConfigWebApplicationContext();
         context.setConfigLocation(AdminConfig.class.toString());
         context.getEnvironment().setDefaultProfiles(this.config.environment);
+        context.addBeanFactoryPostProcessor(new BeanFactoryPostProcessor() {
+            @Override
+            public void postProcessBeanFactory(ConfigurableListableBeanFactory beanFactory) throws BeansException {
+                // the proxy and the admin server report on the same metrics
+                beanFactory.registerSingleton("cacheMetrics", metrics);
+                beanFactory.registerSingleton("invalidator", invalidator);
+            }
+        });
         return context;
     }
 
@@ -138,6 +506,7 @@ public class TaloCacheBootstrap {
 
     public TaloCacheBootstrap(BootstrapConfig config) {
         this.config = config;
+        this.metrics = new CacheMetrics();
     }
 
     public static class BootstrapConfig {
@@ -149,6 +518,87 @@ public class TaloCacheBootstrap {
 
         private String targetPrefix = "http://localhost:6060/";
 
+        private Integer originMaximumFailures     = 5;
+        private Long    originEjectionTime        = 30000L;
+        private Integer originRetries             = 1;
+        private String  originHealthCheckPath     = null;
+        private Long    originHealthCheckInterval = 5000L;
+
+        private Integer originLimit            = 0;
+        private Integer originMinimumLimit     = 4;
+        private Integer originMaximumLimit     = 1000;
+        private Double  originLatencyTolerance = 2.0;
+        private Integer originQueueSize        = 1000;
+        private Long    originQueueTimeout     = 10000L;
+
+        private Integer adminPort       = 6060;
+        private Integer adminMaxThreads = 8;
+
+        private ThreadMode proxyThreadMode        = ThreadMode.PLATFORM;
+        private Integer    proxyMaxThreads        = 200;
+        private Integer    proxyMinThreads        = 8;
+        private Integer    proxyThreadIdleTimeout = 60000;
+        private Integer    proxyAcceptors         = -1;
+        private Integer    proxySelectors         = -1;
+
+        private Integer clientMaxThreads         = 256;
+        private Integer clientMaxConnections     = 256;
+        private Long    clientIdleTimeout        = 30000L;
+        private Integer clientRequestBufferSize  = 4096;
+        private Integer clientResponseBufferSize = 16384;
+
+        private Long    cacheMaximumWeight   = 256L * 1024 * 1024;
+        private Integer cacheInitialCapacity = 1024;
+        private Long    cacheExpectedEntries = 64L * 1024;
+
+        private Integer admissionThreshold    = 2;
+        private Long    admissionExpectedKeys = 256L * 1024;
+
+        private StorageMode storageMode              = StorageMode.HEAP;
+        private Long        offHeapCapacity          = 1024L * 1024 * 1024;
+        private Integer     offHeapPageSize          = 1024 * 1024;
+        private Long        offHeapOversizedCapacity = 64L * 1024 * 1024;
+
+        private Long defaultTtl = 300L;
+
+        private String  diskTierDirectory   = null;
+        private Integer diskSegmentSize     = 64 * 1024 * 1024;
+        private Integer diskMaximumSegments = 16;
+
+        private String  keyHeaders             = "";
+        private String  ignoredQueryParameters = "";
+        private Boolean sortQueryParameters    = true;
+
+        private String cacheRules = null;
+
+        private Long    collapsedMaximumWait    = 30000L;
+        private Integer collapsedMaximumRetries = 1;
+
+        private String  compressionEncodings   = "gzip";
+        private Integer compressionMinimumSize = 1024;
+        private Integer compressionThreads     = 1;
+
+        private Long   spillThreshold    = 8L * 1024 * 1024;
+        private Long   maximumObjectSize = 32L * 1024 * 1024;
+        private String spillDirectory    = null;
+
+        private String  clusterPeers                = "";
+        private String  clusterSelf                 = null;
+        private Long    clusterPeerDownTime         = 5000L;
+        private Integer clusterReplicationThreshold = 0;
+
         private String[] environment = {"development"};
+
+        public String getListenHost() {
+            return listenHost;
+        }
+
+        public Integer getListenPort() {
+            return listenPort;
+        }
+
+        public void setTargetPrefix(String targetPrefix) {
+            this.targetPrefix = targetPrefix;
+        }
     }
 }
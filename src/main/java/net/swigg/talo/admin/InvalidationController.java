@@ -0,0 +1,62 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Dustin Sweigart
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package net.swigg.talo.admin;
+
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.ResponseBody;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+
+/**
+ * Removes responses from the cache by URL, path prefix, regular expression or {@code Surrogate-Key} tag.
+ *
+ * @author Dustin Sweigart <dustin@swigg.net>
+ */
+@Controller
+public interface InvalidationController {
+    @RequestMapping(value = "/purge", method = {RequestMethod.POST, RequestMethod.DELETE}, produces = "application/json")
+    @ResponseBody
+    public String purge(@RequestParam("url") String url, HttpServletResponse response) throws IOException;
+
+    @RequestMapping(value = "/purge/tag", method = {RequestMethod.POST, RequestMethod.DELETE}, produces = "application/json")
+    @ResponseBody
+    public String purgeTag(@RequestParam("tag") String tag, HttpServletResponse response) throws IOException;
+
+    @RequestMapping(value = "/ban/prefix", method = RequestMethod.POST, produces = "application/json")
+    @ResponseBody
+    public String banPrefix(@RequestParam("prefix") String prefix, HttpServletResponse response) throws IOException;
+
+    @RequestMapping(value = "/ban/regex", method = RequestMethod.POST, produces = "application/json")
+    @ResponseBody
+    public String banRegex(@RequestParam("pattern") String pattern, HttpServletResponse response) throws IOException;
+
+    @RequestMapping(value = "/bans", method = RequestMethod.GET, produces = "application/json")
+    @ResponseBody
+    public String bans();
+}
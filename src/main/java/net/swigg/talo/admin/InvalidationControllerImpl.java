@@ -0,0 +1,130 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Dustin Sweigart
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package net.swigg.talo.admin;
+
+import net.swigg.talo.proxy.Invalidator;
+import org.springframework.stereotype.Component;
+import org.springframework.web.bind.annotation.RequestParam;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.regex.PatternSyntaxException;
+
+/**
+ * @author Dustin Sweigart <dustin@swigg.net>
+ */
+@Component
+public class InvalidationControllerImpl implements InvalidationController {
+    private final Invalidator invalidator;
+
+    public InvalidationControllerImpl(Invalidator invalidator) {
+        this.invalidator = invalidator;
+    }
+
+    /**
+     * @param url the path and query string of the URL, or the whole URL, of which only those are used
+     */
+    @Override
+    public String purge(@RequestParam("url") String url, HttpServletResponse response) throws IOException {
+        URI uri;
+        try {
+            uri = new URI(url);
+        } catch (URISyntaxException e) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getMessage());
+            return null;
+        }
+        if (uri.getRawPath() == null || !uri.getRawPath().startsWith("/")) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "URL path must start with a /");
+            return null;
+        }
+
+        return "{\"purged\":" + invalidator.purge(uri.getRawPath(), uri.getRawQuery()) + "}";
+    }
+
+    @Override
+    public String purgeTag(@RequestParam("tag") String tag, HttpServletResponse response) throws IOException {
+        if (tag.isEmpty() || tag.indexOf(' ') >= 0) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Tag must be a single word");
+            return null;
+        }
+
+        return "{\"purged\":" + invalidator.purgeTag(tag) + "}";
+    }
+
+    @Override
+    public String banPrefix(@RequestParam("prefix") String prefix, HttpServletResponse response) throws IOException {
+        if (!prefix.startsWith("/")) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, "Prefix must start with a /");
+            return null;
+        }
+
+        return "{\"purged\":" + invalidator.banPrefix(prefix) + "}";
+    }
+
+    @Override
+    public String banRegex(@RequestParam("pattern") String pattern, HttpServletResponse response) throws IOException {
+        try {
+            return toJson(invalidator.banRegex(pattern));
+        } catch (PatternSyntaxException e) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST, e.getDescription());
+            return null;
+        }
+    }
+
+    @Override
+    public String bans() {
+        StringBuilder json = new StringBuilder("[");
+        for (Invalidator.Ban ban : invalidator.getBans()) {
+            if (json.length() > 1) {
+                json.append(',');
+            }
+            json.append(toJson(ban));
+        }
+
+        return json.append(']').toString();
+    }
+
+    private static String toJson(Invalidator.Ban ban) {
+        return "{\"kind\":\"" + ban.getKind().name().toLowerCase() + "\",\"expression\":\"" + escape(ban.getExpression()) +
+                "\",\"createdAt\":" + ban.getCreatedAt() + "}";
+    }
+
+    private static String escape(String value) {
+        StringBuilder escaped = new StringBuilder(value.length());
+        for (char c : value.toCharArray()) {
+            if (c == '"' || c == '\\') {
+                escaped.append('\\').append(c);
+            } else if (c < 0x20) {
+                escaped.append(String.format("\\u%04x", (int) c));
+            } else {
+                escaped.append(c);
+            }
+        }
+
+        return escaped.toString();
+    }
+}
@@ -24,8 +24,14 @@
 
 package net.swigg.talo.admin.config;
 
+import net.swigg.talo.admin.InvalidationController;
+import net.swigg.talo.admin.InvalidationControllerImpl;
+import net.swigg.talo.admin.MetricsController;
+import net.swigg.talo.admin.MetricsControllerImpl;
 import net.swigg.talo.admin.TestController;
 import net.swigg.talo.admin.TestControllerImpl;
+import net.swigg.talo.metrics.CacheMetrics;
+import net.swigg.talo.proxy.Invalidator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.context.annotation.Bean;
@@ -44,4 +50,14 @@ public class AdminWebConfig {
     public TestController testController() {
         return new TestControllerImpl();
     }
+
+    @Bean
+    public MetricsController metricsController(CacheMetrics cacheMetrics) {
+        return new MetricsControllerImpl(cacheMetrics);
+    }
+
+    @Bean
+    public InvalidationController invalidationController(Invalidator invalidator) {
+        return new InvalidationControllerImpl(invalidator);
+    }
 }
@@ -0,0 +1,91 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Dustin Sweigart
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package net.swigg.talo.cache;
+
+import java.util.Set;
+
+/**
+ * A bounded store of cached values that the proxy uses in place of a plain map. Implementations are expected to be
+ * safe for concurrent use and to keep {@link #get(Object)} free of locks.
+ *
+ * @author Dustin Sweigart <dustin@swigg.net>
+ */
+public interface CacheStore<K, V> {
+    /**
+     * Returns the value stored for the key, or {@code null} if there is none. Counts as an access for the purposes of
+     * eviction.
+     */
+    V get(K key);
+
+    /**
+     * Stores the value if there is no value for the key yet.
+     *
+     * @return the existing value, or {@code null} if the value was stored
+     */
+    V putIfAbsent(K key, V value);
+
+    /**
+     * Stores the value, replacing any existing value for the key.
+     */
+    void put(K key, V value);
+
+    /**
+     * Replaces the value for the key only if it is currently {@code oldValue}. Replacing a value with itself is
+     * allowed and causes the entry to be weighed again.
+     */
+    boolean replace(K key, V oldValue, V newValue);
+
+    /**
+     * Removes the value for the key.
+     *
+     * @return the removed value, or {@code null} if there was none
+     */
+    V remove(K key);
+
+    /**
+     * Removes the value for the key only if it is currently {@code value}.
+     */
+    boolean remove(K key, V value);
+
+    /**
+     * A weakly consistent, unmodifiable view of the keys in the store. Iterating it does not count as an access.
+     */
+    Set<K> keySet();
+
+    /**
+     * The number of entries in the store.
+     */
+    long size();
+
+    /**
+     * The sum of the weights of all entries in the store.
+     */
+    long weightedSize();
+
+    /**
+     * The weight the store will evict entries to stay under.
+     */
+    long maximumWeight();
+}
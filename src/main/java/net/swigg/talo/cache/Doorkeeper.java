@@ -0,0 +1,119 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Dustin Sweigart
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.swigg.talo.cache;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Keeps keys that were only seen once out of the cache. Every key looked at is counted in a count-min sketch of 4-bit
+ * counters laid out like the {@link FrequencySketch}, and a key is admitted once it has been seen as often as the
+ * threshold asks. Counters are halved once enough keys have been counted so that old requests age out.
+ * <p/>
+ * Unlike the {@link FrequencySketch} this is safe for concurrent use: counters are updated with compare-and-set and
+ * nothing is allocated, so it can sit in front of every request. Updates racing an aging pass may be counted before
+ * or after it, which only makes the estimate as rough as it already is.
+ *
+ * @author Dustin Sweigart <dustin@swigg.net>
+ */
+public class Doorkeeper<E> {
+    static private final int MAXIMUM_COUNT = 15;
+
+    private final AtomicLongArray table;
+    private final int tableMask;
+    private final int sampleSize;
+    private final int threshold;
+    private final AtomicInteger size = new AtomicInteger();
+
+    /**
+     * @param expectedKeys number of distinct keys to tell apart with reasonable accuracy
+     * @param threshold    number of times a key has to be seen before it is admitted, between 1 and 15
+     */
+    public Doorkeeper(long expectedKeys, int threshold) {
+        checkArgument(threshold >= 1 && threshold <= MAXIMUM_COUNT);
+
+        int capacity = (int) Math.min(Math.max(expectedKeys, 16), FrequencySketch.MAXIMUM_CAPACITY);
+        this.table = new AtomicLongArray(FrequencySketch.ceilingPowerOfTwo(capacity));
+        this.tableMask = table.length() - 1;
+        this.sampleSize = (int) Math.min(10L * capacity, Integer.MAX_VALUE);
+        this.threshold = threshold;
+    }
+
+    /**
+     * Count the key and tell whether it has now been seen often enough to be cached.
+     */
+    public boolean admit(E e) {
+        return admit(e, threshold);
+    }
+
+    /**
+     * Count the key and tell whether it has now been seen as often as a threshold of its own asks.
+     */
+    public boolean admit(E e, int threshold) {
+        int hash = FrequencySketch.spread(e.hashCode());
+        int start = (hash & 3) << 2;
+        int frequency = MAXIMUM_COUNT;
+        boolean added = false;
+        for (int i = 0; i < 4; i++) {
+            int index = FrequencySketch.indexOf(hash, i, tableMask);
+            int offset = (start + i) << 2;
+            while (true) {
+                long value = table.get(index);
+                int count = (int) ((value >>> offset) & 0xfL);
+                if (count == MAXIMUM_COUNT) {
+                    break;
+                }
+                if (table.compareAndSet(index, value, value + (1L << offset))) {
+                    frequency = Math.min(frequency, count + 1);
+                    added = true;
+                    break;
+                }
+            }
+        }
+
+        if (added && size.incrementAndGet() == sampleSize) {
+            reset();
+        }
+        return frequency >= threshold;
+    }
+
+    /**
+     * Halve all counters, done by whichever thread counted the last key of the sample period.
+     */
+    private void reset() {
+        int count = 0;
+        for (int i = 0; i < table.length(); i++) {
+            while (true) {
+                long value = table.get(i);
+                if (table.compareAndSet(i, value, (value >>> 1) & FrequencySketch.RESET_MASK)) {
+                    count += Long.bitCount(value & FrequencySketch.ONE_MASK);
+                    break;
+                }
+            }
+        }
+        size.set((sampleSize >>> 1) - (count >>> 2));
+    }
+}
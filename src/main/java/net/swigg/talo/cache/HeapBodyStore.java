@@ -0,0 +1,74 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Dustin Sweigart
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package net.swigg.talo.cache;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Keeps bodies on the Java heap, where the garbage collector takes care of freeing them.
+ *
+ * @author Dustin Sweigart <dustin@swigg.net>
+ */
+public class HeapBodyStore implements BodyStore {
+    @Override
+    public StoredBody store(ByteBuffer body) {
+        return new HeapBody(body);
+    }
+
+    /**
+     * A body backed by a heap buffer. Reference counting is a no-op since nothing is ever reused.
+     */
+    public static class HeapBody implements StoredBody {
+        private final ByteBuffer buffer;
+
+        public HeapBody(ByteBuffer buffer) {
+            this.buffer = buffer.slice().asReadOnlyBuffer();
+        }
+
+        @Override
+        public ByteBuffer buffer() {
+            return buffer.duplicate();
+        }
+
+        @Override
+        public int length() {
+            return buffer.remaining();
+        }
+
+        @Override
+        public int footprint() {
+            return buffer.capacity();
+        }
+
+        @Override
+        public boolean retain() {
+            return true;
+        }
+
+        @Override
+        public void release() {
+        }
+    }
+}
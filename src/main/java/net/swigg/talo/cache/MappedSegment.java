@@ -0,0 +1,211 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Dustin Sweigart
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package net.swigg.talo.cache;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * A fixed size, append-only log file that is memory mapped for both reading and writing.
+ * <p>
+ * Each record is laid out as {@code magic, length, crc, type, payload} where the CRC covers the type and payload. The
+ * unused tail of the file is zero filled, so recovering a segment is a matter of walking records until one does not
+ * start with the magic number or fails its checksum.
+ *
+ * @author Dustin Sweigart <dustin@swigg.net>
+ */
+public class MappedSegment implements Closeable {
+    static public final byte TYPE_ENTRY = 1;
+    static public final byte TYPE_TOMBSTONE = 2;
+
+    static private final int MAGIC = 0x54414c4f;
+    static private final int HEADER_SIZE = 4 + 4 + 4 + 1;
+
+    private final long id;
+    private final File file;
+    private final RandomAccessFile randomAccessFile;
+    private final MappedByteBuffer buffer;
+    private int writePosition = 0;
+
+    private MappedSegment(long id, File file, RandomAccessFile randomAccessFile, MappedByteBuffer buffer) {
+        this.id = id;
+        this.file = file;
+        this.randomAccessFile = randomAccessFile;
+        this.buffer = buffer;
+    }
+
+    /**
+     * Map the file, creating it with the given size if it does not exist yet.
+     */
+    public static MappedSegment open(long id, File file, int size) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            if (randomAccessFile.length() < size) {
+                randomAccessFile.setLength(size);
+            }
+            MappedByteBuffer buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, randomAccessFile.length());
+            return new MappedSegment(id, file, randomAccessFile, buffer);
+        } catch (IOException e) {
+            randomAccessFile.close();
+            throw e;
+        }
+    }
+
+    /**
+     * The space a record with a payload of the given length takes up in a segment.
+     */
+    public static long recordSize(long payloadLength) {
+        return HEADER_SIZE + payloadLength;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Walk the valid records in the segment, leaving the segment ready to append after the last one.
+     */
+    public synchronized void recover(RecordVisitor visitor) {
+        ByteBuffer view = buffer.duplicate();
+        int offset = 0;
+        while (offset + HEADER_SIZE <= view.capacity()) {
+            ByteBuffer payload = read(offset);
+            if (payload == null || checksum(view.get(offset + 12), payload.duplicate()) != view.getInt(offset + 8)) {
+                break;
+            }
+
+            visitor.visit(offset, view.get(offset + 12), payload);
+            offset += HEADER_SIZE + payload.remaining();
+        }
+
+        writePosition = offset;
+    }
+
+    /**
+     * Append a record made up of the remaining bytes of each part.
+     *
+     * @return the offset of the record, or {@code -1} if it does not fit in what is left of the segment
+     */
+    public synchronized int append(byte type, ByteBuffer... parts) {
+        int length = 0;
+        for (ByteBuffer part : parts) {
+            length += part.remaining();
+        }
+
+        int offset = writePosition;
+        if ((long) offset + HEADER_SIZE + length > buffer.capacity()) {
+            return -1;
+        }
+
+        ByteBuffer view = buffer.duplicate();
+        view.position(offset + HEADER_SIZE);
+        for (ByteBuffer part : parts) {
+            view.put(part.duplicate());
+        }
+
+        ByteBuffer payload = buffer.duplicate();
+        payload.position(offset + HEADER_SIZE).limit(offset + HEADER_SIZE + length);
+        view.putInt(offset + 4, length);
+        view.putInt(offset + 8, checksum(type, payload));
+        view.put(offset + 12, type);
+        view.putInt(offset, MAGIC);
+
+        writePosition = offset + HEADER_SIZE + length;
+        return offset;
+    }
+
+    /**
+     * A read-only view of the payload of the record at the offset, or {@code null} if there is no record there.
+     */
+    public ByteBuffer read(int offset) {
+        ByteBuffer view = buffer.asReadOnlyBuffer();
+        if (offset < 0 || offset + HEADER_SIZE > view.capacity() || view.getInt(offset) != MAGIC) {
+            return null;
+        }
+
+        int length = view.getInt(offset + 4);
+        if (length < 0 || (long) offset + HEADER_SIZE + length > view.capacity()) {
+            return null;
+        }
+
+        view.position(offset + HEADER_SIZE).limit(offset + HEADER_SIZE + length);
+        return view.slice();
+    }
+
+    /**
+     * Flush written records to the file.
+     */
+    public void force() {
+        buffer.force();
+    }
+
+    @Override
+    public void close() throws IOException {
+        force();
+        randomAccessFile.close();
+    }
+
+    /**
+     * Close the segment and remove its file. Readers still holding views of the segment keep working until they let
+     * go of them.
+     */
+    public void delete() throws IOException {
+        randomAccessFile.close();
+        if (!file.delete()) {
+            throw new IOException("Unable to delete segment " + file);
+        }
+    }
+
+    private static int checksum(byte type, ByteBuffer payload) {
+        CRC32 crc = new CRC32();
+        crc.update(type);
+
+        byte[] chunk = new byte[Math.min(8192, Math.max(1, payload.remaining()))];
+        while (payload.hasRemaining()) {
+            int length = Math.min(chunk.length, payload.remaining());
+            payload.get(chunk, 0, length);
+            crc.update(chunk, 0, length);
+        }
+
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Receives the records of a segment as it is recovered.
+     */
+    public interface RecordVisitor {
+        void visit(int offset, byte type, ByteBuffer payload);
+    }
+}
@@ -0,0 +1,538 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Dustin Sweigart
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package net.swigg.talo.cache;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * A {@link BodyStore} that keeps bodies outside of the Java heap in slabs of direct memory.
+ * <p>
+ * Memory is reserved one page at a time, up to the configured capacity. Each page is handed to a size class and carved
+ * into equally sized chunks; a body is copied into the smallest chunk it fits in. Freed chunks go back to their page,
+ * and a page whose chunks are all free goes back to the arena for any size class to reuse, so a shift in body sizes
+ * doesn't strand memory in size classes nobody asks for any more. Reserved pages are never returned to the system, so
+ * the arena's footprint only grows up to its capacity.
+ * <p>
+ * The page size is the largest body the arena holds. Larger bodies are handed to a fallback store, a
+ * {@link HeapBodyStore} unless told otherwise, up to a capacity of their own that is separate from the arena's.
+ *
+ * @author Dustin Sweigart <dustin@swigg.net>
+ */
+public class SlabArena implements BodyStore {
+    static private final int MINIMUM_CHUNK_SIZE = 256;
+    static private final double GROWTH_FACTOR = 1.25d;
+    static private final int CHUNK_ALIGNMENT = 8;
+
+    private final long capacity;
+    private final int pageSize;
+    private final long maximumPages;
+    private final SizeClass[] sizeClasses;
+    private final Queue<Page> emptyPages = new ConcurrentLinkedQueue<>();
+
+    private final BodyStore oversizedBodies;
+    private final long oversizedCapacity;
+
+    private final AtomicLong pages = new AtomicLong();
+    private final AtomicLong requestedBytes = new AtomicLong();
+    private final AtomicLong allocationFailures = new AtomicLong();
+    private final AtomicLong oversizedBytes = new AtomicLong();
+    private final AtomicLong oversizedStores = new AtomicLong();
+
+    /**
+     * @param oversizedCapacity the number of bytes of bodies larger than a page to keep on the heap
+     */
+    public SlabArena(long capacity, int pageSize, long oversizedCapacity) {
+        this(capacity, pageSize, new HeapBodyStore(), oversizedCapacity);
+    }
+
+    /**
+     * @param oversizedBodies   where bodies larger than a page are kept
+     * @param oversizedCapacity the number of bytes of bodies larger than a page to keep in {@code oversizedBodies}
+     */
+    public SlabArena(long capacity, int pageSize, BodyStore oversizedBodies, long oversizedCapacity) {
+        checkArgument(pageSize >= MINIMUM_CHUNK_SIZE, "pageSize must be at least %s", MINIMUM_CHUNK_SIZE);
+        checkArgument(capacity >= pageSize, "capacity must be at least one page");
+        checkArgument(oversizedCapacity >= 0, "oversizedCapacity must not be negative");
+
+        this.capacity = capacity;
+        this.pageSize = pageSize;
+        this.oversizedBodies = checkNotNull(oversizedBodies);
+        this.oversizedCapacity = oversizedCapacity;
+        this.maximumPages = capacity / pageSize;
+
+        List<SizeClass> sizeClasses = new ArrayList<>();
+        int chunkSize = MINIMUM_CHUNK_SIZE;
+        while (chunkSize < pageSize / 2) {
+            sizeClasses.add(new SizeClass(chunkSize));
+            chunkSize = align((int) (chunkSize * GROWTH_FACTOR));
+        }
+        sizeClasses.add(new SizeClass(pageSize));
+        this.sizeClasses = sizeClasses.toArray(new SizeClass[sizeClasses.size()]);
+    }
+
+    @Override
+    public StoredBody store(ByteBuffer body) {
+        int length = body.remaining();
+        if (length > pageSize) {
+            return storeOversized(body, length);
+        }
+
+        SizeClass sizeClass = sizeClassFor(length);
+        SlabBody stored = sizeClass.allocate(length);
+        if (stored == null) {
+            allocationFailures.incrementAndGet();
+            return null;
+        }
+
+        stored.chunk.duplicate().put(body.duplicate());
+        requestedBytes.addAndGet(length);
+        return stored;
+    }
+
+    private StoredBody storeOversized(ByteBuffer body, int length) {
+        while (true) {
+            long current = oversizedBytes.get();
+            if (current + length > oversizedCapacity) {
+                allocationFailures.incrementAndGet();
+                return null;
+            }
+            if (oversizedBytes.compareAndSet(current, current + length)) {
+                break;
+            }
+        }
+
+        StoredBody stored = oversizedBodies.store(body);
+        if (stored == null) {
+            oversizedBytes.addAndGet(-length);
+            allocationFailures.incrementAndGet();
+            return null;
+        }
+
+        oversizedStores.incrementAndGet();
+        return new OversizedBody(stored, length);
+    }
+
+    /**
+     * The largest number of bytes the arena will reserve.
+     */
+    public long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * The largest body the arena holds itself.
+     */
+    public int getPageSize() {
+        return pageSize;
+    }
+
+    /**
+     * The number of bytes of direct memory reserved so far.
+     */
+    public long getReservedBytes() {
+        return pages.get() * pageSize;
+    }
+
+    /**
+     * The number of bytes in reserved pages that no size class is using at the moment.
+     */
+    public long getEmptyBytes() {
+        return (long) emptyPages.size() * pageSize;
+    }
+
+    /**
+     * The number of bytes in chunks currently holding a body.
+     */
+    public long getUsedBytes() {
+        long used = 0;
+        for (SizeClass sizeClass : sizeClasses) {
+            used += sizeClass.usedChunks.get() * sizeClass.chunkSize;
+        }
+        return used;
+    }
+
+    /**
+     * The number of bytes of body actually stored.
+     */
+    public long getRequestedBytes() {
+        return requestedBytes.get();
+    }
+
+    public long getAllocationFailures() {
+        return allocationFailures.get();
+    }
+
+    /**
+     * The number of bytes of bodies larger than a page held by the fallback store.
+     */
+    public long getOversizedBytes() {
+        return oversizedBytes.get();
+    }
+
+    /**
+     * The number of bodies handed to the fallback store because they were larger than a page.
+     */
+    public long getOversizedStores() {
+        return oversizedStores.get();
+    }
+
+    /**
+     * The fraction of used chunk space lost to rounding bodies up to their size class.
+     */
+    public double getInternalFragmentation() {
+        long used = getUsedBytes();
+        return used == 0 ? 0d : 1d - (double) getRequestedBytes() / used;
+    }
+
+    /**
+     * The fraction of memory in pages assigned to a size class sitting in free chunks, which is only reusable by bodies
+     * of the same size class until the whole page is free again.
+     */
+    public double getExternalFragmentation() {
+        long assigned = getReservedBytes() - getEmptyBytes();
+        return assigned <= 0 ? 0d : 1d - (double) getUsedBytes() / assigned;
+    }
+
+    public List<SizeClassStatistics> getSizeClassStatistics() {
+        List<SizeClassStatistics> statistics = new ArrayList<>(sizeClasses.length);
+        for (SizeClass sizeClass : sizeClasses) {
+            statistics.add(new SizeClassStatistics(sizeClass.chunkSize, sizeClass.pages.get(),
+                    sizeClass.usedChunks.get(), sizeClass.requestedBytes.get()));
+        }
+        return Collections.unmodifiableList(statistics);
+    }
+
+    private SizeClass sizeClassFor(int length) {
+        int low = 0;
+        int high = sizeClasses.length - 1;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (sizeClasses[middle].chunkSize < length) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return sizeClasses[low];
+    }
+
+    /**
+     * A page nobody is using, reserving a new one if the arena hasn't reached its capacity yet.
+     *
+     * @return the page, or {@code null} if the arena is full
+     */
+    private Page takePage() {
+        Page page = emptyPages.poll();
+        if (page != null) {
+            return page;
+        }
+
+        while (true) {
+            long current = pages.get();
+            if (current >= maximumPages) {
+                // a page may have been given back in the meantime
+                return emptyPages.poll();
+            }
+            if (pages.compareAndSet(current, current + 1)) {
+                return new Page(ByteBuffer.allocateDirect(pageSize));
+            }
+        }
+    }
+
+    private static int align(int size) {
+        return (size + CHUNK_ALIGNMENT - 1) & ~(CHUNK_ALIGNMENT - 1);
+    }
+
+    /**
+     * A page of direct memory, carved into the chunks of whichever size class is using it at the moment.
+     */
+    private final class Page {
+        private final ByteBuffer memory;
+        private final int[] freeChunks = new int[pageSize / MINIMUM_CHUNK_SIZE];
+        private int chunkSize;
+        private int chunks;
+        private int next;
+        private int freeCount;
+        private int used;
+
+        Page(ByteBuffer memory) {
+            this.memory = memory;
+        }
+
+        void assign(int chunkSize) {
+            this.chunkSize = chunkSize;
+            this.chunks = pageSize / chunkSize;
+            this.next = 0;
+            this.freeCount = 0;
+            this.used = 0;
+        }
+
+        boolean hasFreeChunks() {
+            return freeCount > 0 || next < chunks;
+        }
+
+        /**
+         * @return the index of the chunk taken
+         */
+        int allocate() {
+            // chunks never handed out are taken in order, only freed ones go on the free list
+            used++;
+            return freeCount > 0 ? freeChunks[--freeCount] : next++;
+        }
+
+        ByteBuffer chunk(int index) {
+            ByteBuffer chunk = memory.duplicate();
+            chunk.limit((index + 1) * chunkSize).position(index * chunkSize);
+            return chunk.slice();
+        }
+
+        /**
+         * @return whether the page is empty now
+         */
+        boolean free(int index) {
+            freeChunks[freeCount++] = index;
+            return --used == 0;
+        }
+    }
+
+    /**
+     * Chunks of a single size, carved out of the pages assigned to this class.
+     */
+    private final class SizeClass {
+        private final int chunkSize;
+        // guarded by this, the pages with at least one free chunk
+        private final Deque<Page> available = new ArrayDeque<>();
+        private final AtomicLong pages = new AtomicLong();
+        private final AtomicLong usedChunks = new AtomicLong();
+        private final AtomicLong requestedBytes = new AtomicLong();
+
+        SizeClass(int chunkSize) {
+            this.chunkSize = chunkSize;
+        }
+
+        /**
+         * @return a body of the given length in a chunk of this class, or {@code null} if the arena is full
+         */
+        SlabBody allocate(int length) {
+            Page page;
+            int index;
+            synchronized (this) {
+                page = available.peekFirst();
+                if (page == null) {
+                    page = takePage();
+                    if (page == null) {
+                        return null;
+                    }
+
+                    page.assign(chunkSize);
+                    pages.incrementAndGet();
+                    available.addFirst(page);
+                }
+
+                index = page.allocate();
+                if (!page.hasFreeChunks()) {
+                    available.removeFirst();
+                }
+            }
+
+            usedChunks.incrementAndGet();
+            requestedBytes.addAndGet(length);
+            return new SlabBody(this, page, index, length);
+        }
+
+        void free(Page page, int index, int length) {
+            usedChunks.decrementAndGet();
+            requestedBytes.addAndGet(-length);
+
+            synchronized (this) {
+                boolean wasFull = !page.hasFreeChunks();
+                if (!page.free(index)) {
+                    if (wasFull) {
+                        available.addLast(page);
+                    }
+                    return;
+                }
+
+                // hand the empty page back to the arena for any size class to use
+                if (!wasFull) {
+                    available.remove(page);
+                }
+                pages.decrementAndGet();
+            }
+            emptyPages.offer(page);
+        }
+    }
+
+    /**
+     * A body copied into a chunk of the arena. The chunk goes back to its size class when the last reference is
+     * released.
+     */
+    private final class SlabBody implements StoredBody {
+        private final SizeClass sizeClass;
+        private final Page page;
+        private final int index;
+        private final ByteBuffer chunk;
+        private final int length;
+        private final AtomicInteger references = new AtomicInteger(1);
+
+        SlabBody(SizeClass sizeClass, Page page, int index, int length) {
+            this.sizeClass = sizeClass;
+            this.page = page;
+            this.index = index;
+            this.chunk = page.chunk(index);
+            this.length = length;
+        }
+
+        @Override
+        public ByteBuffer buffer() {
+            ByteBuffer buffer = chunk.asReadOnlyBuffer();
+            buffer.position(0).limit(length);
+            return buffer;
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public int footprint() {
+            return sizeClass.chunkSize;
+        }
+
+        @Override
+        public boolean retain() {
+            return SlabArena.retain(references);
+        }
+
+        @Override
+        public void release() {
+            if (references.decrementAndGet() == 0) {
+                requestedBytes.addAndGet(-length);
+                sizeClass.free(page, index, length);
+            }
+        }
+    }
+
+    /**
+     * A body larger than a page, kept by the fallback store. Its bytes count against the oversized capacity until the
+     * last reference is released.
+     */
+    private final class OversizedBody implements StoredBody {
+        private final StoredBody body;
+        private final int length;
+        private final AtomicInteger references = new AtomicInteger(1);
+
+        OversizedBody(StoredBody body, int length) {
+            this.body = body;
+            this.length = length;
+        }
+
+        @Override
+        public ByteBuffer buffer() {
+            return body.buffer();
+        }
+
+        @Override
+        public int length() {
+            return body.length();
+        }
+
+        @Override
+        public int footprint() {
+            return body.footprint();
+        }
+
+        @Override
+        public boolean retain() {
+            return SlabArena.retain(references);
+        }
+
+        @Override
+        public void release() {
+            if (references.decrementAndGet() == 0) {
+                oversizedBytes.addAndGet(-length);
+                body.release();
+            }
+        }
+    }
+
+    private static boolean retain(AtomicInteger references) {
+        while (true) {
+            int current = references.get();
+            if (current <= 0) {
+                return false;
+            }
+            if (references.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * A snapshot of how one size class is being used.
+     */
+    public static class SizeClassStatistics {
+        private final int chunkSize;
+        private final long pages;
+        private final long usedChunks;
+        private final long requestedBytes;
+
+        public SizeClassStatistics(int chunkSize, long pages, long usedChunks, long requestedBytes) {
+            this.chunkSize = chunkSize;
+            this.pages = pages;
+            this.usedChunks = usedChunks;
+            this.requestedBytes = requestedBytes;
+        }
+
+        public int getChunkSize() {
+            return chunkSize;
+        }
+
+        public long getPages() {
+            return pages;
+        }
+
+        public long getUsedChunks() {
+            return usedChunks;
+        }
+
+        public long getRequestedBytes() {
+            return requestedBytes;
+        }
+    }
+}
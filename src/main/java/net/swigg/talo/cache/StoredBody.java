@@ -0,0 +1,63 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Dustin Sweigart
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package net.swigg.talo.cache;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The bytes of a cached response body, wherever they happen to live. Bodies are reference counted: the cache owns one
+ * reference and anybody writing the body out must {@link #retain()} it first and {@link #release()} it when done, so
+ * that memory is not reused while a write is still in flight.
+ *
+ * @author Dustin Sweigart <dustin@swigg.net>
+ */
+public interface StoredBody {
+    /**
+     * A read-only view of the body positioned at its start.
+     */
+    ByteBuffer buffer();
+
+    /**
+     * The number of bytes in the body.
+     */
+    int length();
+
+    /**
+     * The number of bytes the body actually occupies in its storage.
+     */
+    int footprint();
+
+    /**
+     * Take an additional reference to the body.
+     *
+     * @return {@code false} if the body has already been released and must not be read
+     */
+    boolean retain();
+
+    /**
+     * Give up a reference to the body, freeing its storage once the last reference is gone.
+     */
+    void release();
+}
@@ -0,0 +1,633 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Dustin Sweigart
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package net.swigg.talo.cache;
+
+import com.google.common.base.Objects;
+import com.google.common.cache.Weigher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.Collections;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+
+/**
+ * A {@link CacheStore} bounded by weight that evicts using Window TinyLFU.
+ * <p>
+ * New entries land in a small LRU window. Entries leaving the window compete with the eldest entry of the main
+ * segmented LRU and are only admitted if a {@link FrequencySketch} estimates they have been used more often, which keeps
+ * one-off scans from flushing popular content.
+ * <p>
+ * Reads never block: the entry is looked up in a {@link ConcurrentHashMap} and the access is recorded in a striped,
+ * lossy ring buffer that is replayed against the eviction policy whenever the eviction lock can be acquired without
+ * waiting. Writes are queued and applied under the same lock. Entries only leave the map while holding the lock of
+ * their node, so a successful {@link #replace} always swapped the value of an entry that is still in the store.
+ * <p>
+ * The sketch is sized once for the number of entries the store is expected to hold when full, so the frequencies it
+ * learns while the store warms up aren't thrown away as it grows.
+ *
+ * @author Dustin Sweigart <dustin@swigg.net>
+ */
+public class TinyLfuCacheStore<K, V> implements CacheStore<K, V> {
+    static private final Logger LOGGER = LoggerFactory.getLogger(TinyLfuCacheStore.class);
+
+    static private final int NCPU = Runtime.getRuntime().availableProcessors();
+    static private final int READ_BUFFER_STRIPES = ceilingPowerOfTwo(NCPU * 4);
+    static private final double WINDOW_PERCENTAGE = 0.01d;
+    static private final double PROTECTED_PERCENTAGE = 0.80d;
+
+    private final ConcurrentMap<K, Node<K, V>> data;
+    private final Weigher<? super K, ? super V> weigher;
+    private final RemovalListener<K, V> removalListener;
+
+    private final long maximumWeight;
+    private final long windowMaximum;
+    private final long protectedMaximum;
+
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    private final ReadBuffer<Node<K, V>>[] readBuffers;
+    private final Queue<WriteTask<K, V>> writeBuffer = new ConcurrentLinkedQueue<>();
+
+    // guarded by evictionLock
+    private final FrequencySketch<K> sketch = new FrequencySketch<>();
+    private final AccessQueue<K, V> window = new AccessQueue<>();
+    private final AccessQueue<K, V> probation = new AccessQueue<>();
+    private final AccessQueue<K, V> protectedQueue = new AccessQueue<>();
+    private long windowWeight = 0;
+    private long protectedWeight = 0;
+    private volatile long weightedSize = 0;
+
+    public TinyLfuCacheStore(long maximumWeight, Weigher<? super K, ? super V> weigher) {
+        this(maximumWeight, 16, weigher, null);
+    }
+
+    /**
+     * A store whose weigher counts entries, so that it holds at most {@code maximumWeight} of them.
+     */
+    public TinyLfuCacheStore(long maximumWeight, int initialCapacity, Weigher<? super K, ? super V> weigher,
+                             RemovalListener<K, V> removalListener) {
+        this(maximumWeight, maximumWeight, initialCapacity, weigher, removalListener);
+    }
+
+    /**
+     * @param expectedSize number of entries the store is expected to hold when full, which the frequency sketch is
+     *                     sized for
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public TinyLfuCacheStore(long maximumWeight, long expectedSize, int initialCapacity, Weigher<? super K, ? super V> weigher,
+                             RemovalListener<K, V> removalListener) {
+        checkArgument(maximumWeight > 0, "maximumWeight must be positive");
+        checkArgument(expectedSize > 0, "expectedSize must be positive");
+        checkArgument(initialCapacity >= 0, "initialCapacity must not be negative");
+
+        this.maximumWeight = maximumWeight;
+        this.windowMaximum = Math.max(1, (long) (maximumWeight * WINDOW_PERCENTAGE));
+        this.protectedMaximum = (long) ((maximumWeight - windowMaximum) * PROTECTED_PERCENTAGE);
+        this.weigher = checkNotNull(weigher);
+        this.removalListener = removalListener;
+        this.data = new ConcurrentHashMap<>(initialCapacity, 0.75f, NCPU * 4);
+        this.sketch.ensureCapacity(Math.max(expectedSize, initialCapacity));
+
+        this.readBuffers = new ReadBuffer[READ_BUFFER_STRIPES];
+        for (int i = 0; i < readBuffers.length; i++) {
+            readBuffers[i] = new ReadBuffer<>();
+        }
+    }
+
+    @Override
+    public V get(K key) {
+        Node<K, V> node = data.get(key);
+        if (node == null) {
+            return null;
+        }
+
+        afterRead(node);
+        return node.value;
+    }
+
+    @Override
+    public V putIfAbsent(K key, V value) {
+        checkNotNull(value);
+        Node<K, V> node = new Node<>(key, value, weigher.weigh(key, value));
+        Node<K, V> prior = data.putIfAbsent(key, node);
+        if (prior != null) {
+            afterRead(prior);
+            return prior.value;
+        }
+
+        afterWrite(new WriteTask<>(node, WriteTask.ADD));
+        return null;
+    }
+
+    @Override
+    public void put(K key, V value) {
+        checkNotNull(value);
+        Node<K, V> node = new Node<>(key, value, weigher.weigh(key, value));
+        while (true) {
+            Node<K, V> prior = data.get(key);
+            if (prior == null) {
+                if (data.putIfAbsent(key, node) == null) {
+                    afterWrite(new WriteTask<>(node, WriteTask.ADD));
+                    return;
+                }
+                continue;
+            }
+
+            V replaced;
+            synchronized (prior) {
+                if (!data.replace(key, prior, node)) {
+                    continue;
+                }
+                replaced = prior.value;
+            }
+
+            writeBuffer.add(new WriteTask<>(prior, WriteTask.REMOVE));
+            afterWrite(new WriteTask<>(node, WriteTask.ADD));
+            notifyRemoval(key, replaced, RemovalCause.REPLACED);
+            return;
+        }
+    }
+
+    @Override
+    public boolean replace(K key, V oldValue, V newValue) {
+        checkNotNull(newValue);
+        Node<K, V> node = data.get(key);
+        if (node == null) {
+            return false;
+        }
+
+        V replaced;
+        synchronized (node) {
+            replaced = node.value;
+            if (!Objects.equal(replaced, oldValue) || data.get(key) != node) {
+                // a different value, or the node was evicted or removed since it was looked up
+                return false;
+            }
+            node.value = newValue;
+            node.weight = weigher.weigh(key, newValue);
+        }
+
+        afterWrite(new WriteTask<>(node, WriteTask.UPDATE));
+        if (replaced != newValue) {
+            notifyRemoval(key, replaced, RemovalCause.REPLACED);
+        }
+        return true;
+    }
+
+    @Override
+    public V remove(K key) {
+        while (true) {
+            Node<K, V> node = data.get(key);
+            if (node == null) {
+                return null;
+            }
+
+            V removed;
+            synchronized (node) {
+                if (!data.remove(key, node)) {
+                    continue;
+                }
+                removed = node.value;
+            }
+
+            afterWrite(new WriteTask<>(node, WriteTask.REMOVE));
+            notifyRemoval(key, removed, RemovalCause.EXPLICIT);
+            return removed;
+        }
+    }
+
+    @Override
+    public boolean remove(K key, V value) {
+        Node<K, V> node = data.get(key);
+        if (node == null) {
+            return false;
+        }
+
+        V removed;
+        synchronized (node) {
+            removed = node.value;
+            if (!Objects.equal(removed, value) || !data.remove(key, node)) {
+                return false;
+            }
+        }
+
+        afterWrite(new WriteTask<>(node, WriteTask.REMOVE));
+        notifyRemoval(key, removed, RemovalCause.EXPLICIT);
+        return true;
+    }
+
+    @Override
+    public Set<K> keySet() {
+        return Collections.unmodifiableSet(data.keySet());
+    }
+
+    @Override
+    public long size() {
+        return data.size();
+    }
+
+    @Override
+    public long weightedSize() {
+        return weightedSize;
+    }
+
+    @Override
+    public long maximumWeight() {
+        return maximumWeight;
+    }
+
+    /**
+     * Records the access without blocking, draining the buffers if this stripe is filling up and nobody else is.
+     */
+    private void afterRead(Node<K, V> node) {
+        ReadBuffer<Node<K, V>> buffer = readBuffers[(int) Thread.currentThread().getId() & (READ_BUFFER_STRIPES - 1)];
+        if (buffer.offer(node) && evictionLock.tryLock()) {
+            try {
+                drainBuffers();
+            } finally {
+                evictionLock.unlock();
+            }
+        }
+    }
+
+    private void afterWrite(WriteTask<K, V> task) {
+        writeBuffer.add(task);
+        evictionLock.lock();
+        try {
+            drainBuffers();
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    // guarded by evictionLock
+    private void drainBuffers() {
+        for (ReadBuffer<Node<K, V>> buffer : readBuffers) {
+            Node<K, V> node;
+            while ((node = buffer.poll()) != null) {
+                onAccess(node);
+            }
+        }
+
+        WriteTask<K, V> task;
+        while ((task = writeBuffer.poll()) != null) {
+            switch (task.type) {
+                case WriteTask.ADD:
+                    onAdd(task.node);
+                    break;
+                case WriteTask.UPDATE:
+                    onUpdate(task.node);
+                    break;
+                default:
+                    onRemove(task.node);
+            }
+        }
+
+        evictEntries();
+    }
+
+    // guarded by evictionLock
+    private void onAdd(Node<K, V> node) {
+        if (node.queueType != Node.NEW) {
+            return;
+        }
+
+        sketch.increment(node.key);
+
+        node.policyWeight = node.weight;
+        node.queueType = Node.WINDOW;
+        window.addLast(node);
+        windowWeight += node.policyWeight;
+        weightedSize += node.policyWeight;
+
+        if (node.policyWeight > maximumWeight) {
+            evict(node);
+        }
+    }
+
+    // guarded by evictionLock
+    private void onUpdate(Node<K, V> node) {
+        if (node.queueType == Node.NEW || node.queueType == Node.DEAD) {
+            return;
+        }
+
+        int delta = node.weight - node.policyWeight;
+        node.policyWeight = node.weight;
+        weightedSize += delta;
+        if (node.queueType == Node.WINDOW) {
+            windowWeight += delta;
+        } else if (node.queueType == Node.PROTECTED) {
+            protectedWeight += delta;
+        }
+
+        if (node.policyWeight > maximumWeight) {
+            evict(node);
+        }
+    }
+
+    // guarded by evictionLock
+    private void onRemove(Node<K, V> node) {
+        unlink(node);
+    }
+
+    // guarded by evictionLock
+    private void onAccess(Node<K, V> node) {
+        switch (node.queueType) {
+            case Node.WINDOW:
+                sketch.increment(node.key);
+                window.moveToBack(node);
+                break;
+            case Node.PROBATION:
+                sketch.increment(node.key);
+                probation.remove(node);
+                node.queueType = Node.PROTECTED;
+                protectedQueue.addLast(node);
+                protectedWeight += node.policyWeight;
+                demoteFromProtected();
+                break;
+            case Node.PROTECTED:
+                sketch.increment(node.key);
+                protectedQueue.moveToBack(node);
+                break;
+            default:
+                // not yet added or already removed
+        }
+    }
+
+    // guarded by evictionLock
+    private void demoteFromProtected() {
+        while (protectedWeight > protectedMaximum) {
+            Node<K, V> demoted = protectedQueue.peekFirst();
+            if (demoted == null) {
+                return;
+            }
+
+            protectedQueue.remove(demoted);
+            protectedWeight -= demoted.policyWeight;
+            demoted.queueType = Node.PROBATION;
+            probation.addLast(demoted);
+        }
+    }
+
+    /**
+     * Moves entries that overflow the window into probation, letting each compete for admission while the store is
+     * over its maximum, and then evicts from the main space until the store fits again.
+     */
+    // guarded by evictionLock
+    private void evictEntries() {
+        while (windowWeight > windowMaximum) {
+            Node<K, V> candidate = window.peekFirst();
+            if (candidate == null) {
+                break;
+            }
+
+            window.remove(candidate);
+            windowWeight -= candidate.policyWeight;
+            candidate.queueType = Node.PROBATION;
+            probation.addLast(candidate);
+
+            if (weightedSize > maximumWeight) {
+                admit(candidate);
+            }
+        }
+
+        while (weightedSize > maximumWeight) {
+            Node<K, V> victim = probation.peekFirst();
+            if (victim == null) {
+                victim = protectedQueue.peekFirst();
+            }
+            if (victim == null) {
+                victim = window.peekFirst();
+            }
+            if (victim == null) {
+                return;
+            }
+
+            evict(victim);
+        }
+    }
+
+    // guarded by evictionLock
+    private void admit(Node<K, V> candidate) {
+        Node<K, V> victim = probation.peekFirst();
+        if (victim == null || victim == candidate) {
+            return;
+        }
+
+        if (sketch.frequency(candidate.key) > sketch.frequency(victim.key)) {
+            evict(victim);
+        } else {
+            evict(candidate);
+        }
+    }
+
+    // guarded by evictionLock
+    private void evict(Node<K, V> node) {
+        unlink(node);
+
+        V evicted;
+        synchronized (node) {
+            if (!data.remove(node.key, node)) {
+                return;
+            }
+            evicted = node.value;
+        }
+        notifyRemoval(node.key, evicted, RemovalCause.EVICTED);
+    }
+
+    private void notifyRemoval(K key, V value, RemovalCause cause) {
+        if (removalListener == null) {
+            return;
+        }
+
+        try {
+            removalListener.onRemoval(key, value, cause);
+        } catch (RuntimeException e) {
+            LOGGER.warn("Removal listener failed.", e);
+        }
+    }
+
+    // guarded by evictionLock
+    private void unlink(Node<K, V> node) {
+        switch (node.queueType) {
+            case Node.WINDOW:
+                window.remove(node);
+                windowWeight -= node.policyWeight;
+                weightedSize -= node.policyWeight;
+                break;
+            case Node.PROBATION:
+                probation.remove(node);
+                weightedSize -= node.policyWeight;
+                break;
+            case Node.PROTECTED:
+                protectedQueue.remove(node);
+                protectedWeight -= node.policyWeight;
+                weightedSize -= node.policyWeight;
+                break;
+            default:
+                // not yet added or already removed
+        }
+        node.queueType = Node.DEAD;
+    }
+
+    private static int ceilingPowerOfTwo(int x) {
+        return 1 << (32 - Integer.numberOfLeadingZeros(Math.max(1, x) - 1));
+    }
+
+    /**
+     * An entry in the store. The links and policy fields are only touched while holding the eviction lock; the value
+     * and weight are published through volatile writes so that readers never need the lock.
+     */
+    static final class Node<K, V> {
+        static final int NEW = 0;
+        static final int WINDOW = 1;
+        static final int PROBATION = 2;
+        static final int PROTECTED = 3;
+        static final int DEAD = 4;
+
+        final K key;
+        volatile V value;
+        volatile int weight;
+
+        // guarded by evictionLock
+        int policyWeight;
+        int queueType = NEW;
+        Node<K, V> prev;
+        Node<K, V> next;
+
+        Node(K key, V value, int weight) {
+            this.key = key;
+            this.value = value;
+            this.weight = weight;
+        }
+    }
+
+    /**
+     * A pending change to the eviction policy, applied when the buffers are drained.
+     */
+    static final class WriteTask<K, V> {
+        static final int ADD = 0;
+        static final int UPDATE = 1;
+        static final int REMOVE = 2;
+
+        final Node<K, V> node;
+        final int type;
+
+        WriteTask(Node<K, V> node, int type) {
+            this.node = node;
+            this.type = type;
+        }
+    }
+
+    /**
+     * An intrusive, doubly linked access order queue with a sentinel head.
+     */
+    static final class AccessQueue<K, V> {
+        private final Node<K, V> head = new Node<>(null, null, 0);
+
+        AccessQueue() {
+            head.prev = head;
+            head.next = head;
+        }
+
+        Node<K, V> peekFirst() {
+            return head.next == head ? null : head.next;
+        }
+
+        void addLast(Node<K, V> node) {
+            node.prev = head.prev;
+            node.next = head;
+            head.prev.next = node;
+            head.prev = node;
+        }
+
+        void remove(Node<K, V> node) {
+            node.prev.next = node.next;
+            node.next.prev = node.prev;
+            node.prev = null;
+            node.next = null;
+        }
+
+        void moveToBack(Node<K, V> node) {
+            remove(node);
+            addLast(node);
+        }
+    }
+
+    /**
+     * A bounded, lossy, multiple producer / single consumer ring buffer. Accesses offered while the buffer is full are
+     * dropped, which only costs a little eviction accuracy.
+     */
+    static final class ReadBuffer<E> {
+        static private final int SIZE = 16;
+        static private final int MASK = SIZE - 1;
+        static private final int DRAIN_THRESHOLD = SIZE / 2;
+
+        private final AtomicLong writeCounter = new AtomicLong();
+        private final AtomicReferenceArray<E> buffer = new AtomicReferenceArray<>(SIZE);
+        private volatile long readCounter = 0;
+
+        /**
+         * @return whether the buffer is full enough that it should be drained
+         */
+        boolean offer(E e) {
+            long head = readCounter;
+            long tail = writeCounter.get();
+            long size = tail - head;
+            if (size >= SIZE) {
+                return true;
+            }
+
+            if (writeCounter.compareAndSet(tail, tail + 1)) {
+                buffer.lazySet((int) (tail & MASK), e);
+                return size + 1 >= DRAIN_THRESHOLD;
+            }
+            return false;
+        }
+
+        // single consumer, guarded by evictionLock
+        E poll() {
+            long head = readCounter;
+            int index = (int) (head & MASK);
+            E e = buffer.get(index);
+            if (e == null) {
+                return null;
+            }
+
+            buffer.lazySet(index, null);
+            readCounter = head + 1;
+            return e;
+        }
+    }
+}
@@ -0,0 +1,156 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Dustin Sweigart
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.swigg.talo.cluster;
+
+import com.google.common.collect.ImmutableList;
+import net.swigg.talo.cache.Doorkeeper;
+import net.swigg.talo.proxy.RequestIdentity;
+
+import javax.servlet.http.HttpServletRequest;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * A static cluster of cache nodes sharing one cache. Every key is owned by one node on a {@link HashRing} of the
+ * peers: other nodes forward the request to the owner, which caches the response and coalesces the requests for it
+ * before going to the target application, so the cluster caches each response once. Requests forwarded by a peer
+ * are always handled locally so that nodes that disagree about the ring can't forward in circles.
+ * <p/>
+ * A peer that couldn't be reached is skipped for a while, its keys are then fetched and cached locally. Keys asked
+ * for often enough can optionally be replicated, cached locally as well from the owner's response.
+ *
+ * @author Dustin Sweigart <dustin@swigg.net>
+ */
+public class Cluster {
+    /**
+     * Marks requests forwarded by a peer, naming the peer.
+     */
+    static public final String PEER_HEADER = "X-Talo-Peer";
+
+    static private final int VIRTUAL_NODES = 160;
+
+    private final Peer self;
+    private final List<Peer> peers;
+    private final HashRing ring;
+    private final long downTime;
+    private final Doorkeeper<RequestIdentity> replication;
+
+    /**
+     * @param self                 the URL the other peers reach this node at
+     * @param peers                the URLs of all peers, this node is added if it isn't one of them
+     * @param downTime             milliseconds a peer that couldn't be reached is skipped for
+     * @param replicationThreshold number of requests after which a key owned by another peer is also cached locally,
+     *                             0 to never replicate
+     */
+    public Cluster(URI self, Collection<URI> peers, long downTime, int replicationThreshold) {
+        checkArgument(downTime >= 0);
+        checkArgument(replicationThreshold >= 0);
+
+        this.self = new Peer(normalize(self), true);
+        List<Peer> members = new ArrayList<>();
+        members.add(this.self);
+        for (URI uri : peers) {
+            uri = normalize(uri);
+            if (!uri.equals(this.self.getUri())) {
+                members.add(new Peer(uri, false));
+            }
+        }
+
+        this.peers = ImmutableList.copyOf(members);
+        this.ring = new HashRing(this.peers, VIRTUAL_NODES);
+        this.downTime = downTime;
+        this.replication = replicationThreshold == 0 ? null : new Doorkeeper<RequestIdentity>(64L * 1024, replicationThreshold);
+    }
+
+    public Peer getSelf() {
+        return self;
+    }
+
+    public List<Peer> getPeers() {
+        return peers;
+    }
+
+    /**
+     * The peer to fetch the key from, this node if it owns the key or its owner is down.
+     */
+    public Peer owner(RequestIdentity key) {
+        Peer owner = ring.owner(key.getFingerprintHigh());
+        if (owner.isLocal() || owner.isDown(System.currentTimeMillis())) {
+            return self;
+        }
+
+        return owner;
+    }
+
+    /**
+     * Whether the request was forwarded by a peer and has to be handled here.
+     */
+    public boolean isForwarded(HttpServletRequest request) {
+        return request.getHeader(PEER_HEADER) != null;
+    }
+
+    /**
+     * Count a request for a key owned by another peer and tell whether it is now popular enough to be cached locally
+     * as well.
+     */
+    public boolean replicates(RequestIdentity key) {
+        return replication != null && replication.admit(key);
+    }
+
+    /**
+     * Skip the peer for a while after failing to reach it.
+     */
+    public void markDown(Peer peer) {
+        peer.markDown(System.currentTimeMillis() + downTime);
+    }
+
+    /**
+     * Where to send the request to have the peer handle it.
+     */
+    public URI rewrite(Peer peer, HttpServletRequest request) {
+        StringBuilder uri = new StringBuilder(peer.getUri().toString()).append(request.getRequestURI());
+        String query = request.getQueryString();
+        if (query != null) {
+            uri.append('?').append(query);
+        }
+
+        return URI.create(uri.toString());
+    }
+
+    /**
+     * Peers are compared and hashed by their base URL without a trailing slash.
+     */
+    private static URI normalize(URI uri) {
+        String value = uri.toString();
+        while (value.endsWith("/")) {
+            value = value.substring(0, value.length() - 1);
+        }
+
+        return URI.create(value);
+    }
+}
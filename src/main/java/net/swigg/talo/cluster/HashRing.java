@@ -0,0 +1,89 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Dustin Sweigart
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.swigg.talo.cluster;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * A consistent-hash ring placing each peer at a number of points so that keys spread evenly and only the keys of a
+ * peer that joins or leaves move. Lookups are a binary search over a sorted array and allocate nothing.
+ *
+ * @author Dustin Sweigart <dustin@swigg.net>
+ */
+public class HashRing {
+    static private final HashFunction HASH = Hashing.murmur3_128();
+
+    private final long[] points;
+    private final Peer[] peers;
+
+    /**
+     * @param virtualNodes number of points each peer is placed at
+     */
+    public HashRing(Collection<Peer> peers, int virtualNodes) {
+        checkArgument(!peers.isEmpty());
+        checkArgument(virtualNodes > 0);
+
+        TreeMap<Long, Peer> ring = new TreeMap<>();
+        for (Peer peer : peers) {
+            for (int i = 0; i < virtualNodes; i++) {
+                long point = HASH.hashString(peer.getUri() + "#" + i, Charsets.UTF_8).asLong();
+                // on the rare collision the peer that sorts first keeps the point, the same on every node
+                Peer existing = ring.get(point);
+                if (existing == null || peer.getUri().compareTo(existing.getUri()) < 0) {
+                    ring.put(point, peer);
+                }
+            }
+        }
+
+        this.points = new long[ring.size()];
+        this.peers = new Peer[ring.size()];
+        int i = 0;
+        for (Map.Entry<Long, Peer> entry : ring.entrySet()) {
+            points[i] = entry.getKey();
+            this.peers[i] = entry.getValue();
+            i++;
+        }
+    }
+
+    /**
+     * The peer owning the key with the given hash: the one at the first point at or after it, wrapping around.
+     */
+    public Peer owner(long hash) {
+        int index = Arrays.binarySearch(points, hash);
+        if (index < 0) {
+            index = -index - 1;
+        }
+
+        return peers[index == points.length ? 0 : index];
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Dustin Sweigart
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.swigg.talo.cluster;
+
+import java.net.URI;
+
+/**
+ * A node of the cache cluster, addressed by the base URL other nodes reach its proxy at.
+ *
+ * @author Dustin Sweigart <dustin@swigg.net>
+ */
+public class Peer {
+    private final URI uri;
+    private final boolean local;
+    private volatile long downUntil;
+
+    public Peer(URI uri, boolean local) {
+        this.uri = uri;
+        this.local = local;
+    }
+
+    public URI getUri() {
+        return uri;
+    }
+
+    /**
+     * Whether this is the node the code runs on.
+     */
+    public boolean isLocal() {
+        return local;
+    }
+
+    /**
+     * Whether requests to the peer failed recently enough that it shouldn't be asked again yet.
+     */
+    public boolean isDown(long now) {
+        return now < downUntil;
+    }
+
+    void markDown(long until) {
+        this.downUntil = until;
+    }
+
+    @Override
+    public String toString() {
+        return uri.toString();
+    }
+}
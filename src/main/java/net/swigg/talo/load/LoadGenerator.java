@@ -0,0 +1,145 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Dustin Sweigart
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package net.swigg.talo.load;
+
+import net.swigg.talo.metrics.LatencyHistogram;
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.api.Response;
+import org.eclipse.jetty.client.api.Result;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Drives requests at a fixed rate no matter how quickly they are answered, the way independent users would. Latencies
+ * are measured from when each request was due to be sent rather than when it actually was, so that a stall on the
+ * sending side shows up in the results instead of quietly lowering the rate.
+ *
+ * @author Dustin Sweigart <dustin@swigg.net>
+ */
+public class LoadGenerator {
+    static final long REQUEST_TIMEOUT = TimeUnit.SECONDS.toMillis(30);
+
+    private final HttpClient httpClient;
+    private final String baseUri;
+    private final Workload workload;
+    private final double rate;
+
+    /**
+     * @param baseUri where to send requests to, the workload's paths are appended to it
+     * @param rate    requests per second
+     */
+    public LoadGenerator(HttpClient httpClient, String baseUri, Workload workload, double rate) {
+        checkArgument(rate > 0, "rate must be positive");
+
+        this.httpClient = httpClient;
+        this.baseUri = baseUri;
+        this.workload = workload;
+        this.rate = rate;
+    }
+
+    /**
+     * Send requests for the given time, then wait for the outstanding ones to be answered or time out.
+     */
+    public Results run(long duration, TimeUnit unit) throws InterruptedException {
+        final Results results = new Results();
+        long interval = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+        long start = System.nanoTime();
+        long end = start + unit.toNanos(duration);
+
+        for (long sent = 0; ; sent++) {
+            final long due = start + sent * interval;
+            if (due >= end) {
+                break;
+            }
+
+            long wait;
+            while ((wait = due - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(wait);
+            }
+
+            results.sent.incrementAndGet();
+            httpClient.newRequest(baseUri + workload.next())
+                    .timeout(REQUEST_TIMEOUT, TimeUnit.MILLISECONDS)
+                    .send(new Response.CompleteListener() {
+                        @Override
+                        public void onComplete(Result result) {
+                            results.latency.recordSince(due);
+                            if (result.isFailed() || result.getResponse().getStatus() >= 500) {
+                                results.failed.incrementAndGet();
+                            } else {
+                                results.succeeded.incrementAndGet();
+                            }
+                        }
+                    });
+        }
+        results.elapsed = System.nanoTime() - start;
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(REQUEST_TIMEOUT);
+        while (results.getCompleted() < results.getSent() && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+
+        return results;
+    }
+
+    public static class Results {
+        private final AtomicLong sent = new AtomicLong();
+        private final AtomicLong succeeded = new AtomicLong();
+        private final AtomicLong failed = new AtomicLong();
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private long elapsed;
+
+        public long getSent() {
+            return sent.get();
+        }
+
+        public long getSucceeded() {
+            return succeeded.get();
+        }
+
+        public long getFailed() {
+            return failed.get();
+        }
+
+        public long getCompleted() {
+            return succeeded.get() + failed.get();
+        }
+
+        /**
+         * Nanoseconds spent sending requests.
+         */
+        public long getElapsed() {
+            return elapsed;
+        }
+
+        public LatencyHistogram.Snapshot getLatency() {
+            return latency.snapshot();
+        }
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Dustin Sweigart
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package net.swigg.talo.load;
+
+import net.swigg.talo.TaloCacheBootstrap;
+import net.swigg.talo.metrics.LatencyHistogram;
+import org.apache.commons.cli.*;
+import org.eclipse.jetty.client.HttpClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A load test that runs entirely in one process: a stub target application, the proxy in front of it configured with
+ * the usual options, and a client sending requests to the proxy at a fixed rate. Prints throughput, hit ratio, the
+ * number of requests that reached the target application and latency percentiles once done.
+ *
+ * @author Dustin Sweigart <dustin@swigg.net>
+ */
+public class LoadTest {
+    static private final Logger LOGGER = LoggerFactory.getLogger(LoadTest.class);
+
+    public static void main(String[] args) throws Exception {
+        Options options = TaloCacheBootstrap.options();
+        options.addOption("help", false, "help");
+        options.addOption("rate", true, "requests per second to send");
+        options.addOption("duration", true, "seconds to send requests for");
+        options.addOption("warmup", true, "seconds to send requests for before measuring");
+        options.addOption("objects", true, "number of distinct objects requested by the zipf workload");
+        options.addOption("skew", true, "skew of the zipf workload, higher concentrates requests on fewer objects");
+        options.addOption("seed", true, "seed of the zipf workload");
+        options.addOption("trace", true, "file of paths to replay, one per line, instead of the zipf workload");
+        options.addOption("maxConnections", true, "maximum number of connections to the proxy");
+        options.addOption("originMinimumBodySize", true, "smallest body in bytes the target application responds with");
+        options.addOption("originMaximumBodySize", true, "largest body in bytes the target application responds with");
+        options.addOption("originLatency", true, "milliseconds the target application takes to respond");
+        options.addOption("originLatencyJitter", true, "up to how many milliseconds are randomly added to the target application's latency");
+        options.addOption("originMaxAge", true, "seconds the target application's responses may be cached for");
+
+        CommandLineParser parser = new BasicParser();
+        CommandLine command = parser.parse(options, args);
+
+        if (command.hasOption("help")) {
+            HelpFormatter formatter = new HelpFormatter();
+            formatter.printHelp("talocache-loadtest", options);
+            return;
+        }
+
+        double rate = Double.parseDouble(command.getOptionValue("rate", "1000"));
+        long duration = Long.parseLong(command.getOptionValue("duration", "60"));
+        long warmup = Long.parseLong(command.getOptionValue("warmup", "10"));
+
+        Workload workload;
+        if (command.hasOption("trace")) {
+            workload = new TraceWorkload(new File(command.getOptionValue("trace")));
+        } else {
+            workload = new ZipfWorkload(Integer.parseInt(command.getOptionValue("objects", "100000")),
+                    Double.parseDouble(command.getOptionValue("skew", "0.9")),
+                    Long.parseLong(command.getOptionValue("seed", "0")));
+        }
+
+        StubOrigin origin = new StubOrigin(
+                Integer.parseInt(command.getOptionValue("originMinimumBodySize", "1024")),
+                Integer.parseInt(command.getOptionValue("originMaximumBodySize", "65536")),
+                Long.parseLong(command.getOptionValue("originLatency", "20")),
+                Long.parseLong(command.getOptionValue("originLatencyJitter", "10")),
+                Long.parseLong(command.getOptionValue("originMaxAge", "3600")));
+
+        TaloCacheBootstrap.BootstrapConfig config = TaloCacheBootstrap.config(command);
+        config.setTargetPrefix(origin.start());
+        TaloCacheBootstrap taloCache = new TaloCacheBootstrap(config);
+        taloCache.start();
+
+        HttpClient httpClient = new HttpClient();
+        httpClient.setMaxConnectionsPerDestination(Integer.parseInt(command.getOptionValue("maxConnections", "256")));
+        // room for everything sent while the proxy stalls for as long as a request may take, the queue is preallocated
+        httpClient.setMaxRequestsQueuedPerDestination((int) Math.min(1 << 20, Math.max(1024, rate * TimeUnit.MILLISECONDS.toSeconds(LoadGenerator.REQUEST_TIMEOUT))));
+        httpClient.start();
+
+        try {
+            LoadGenerator loadGenerator = new LoadGenerator(httpClient,
+                    "http://" + config.getListenHost() + ":" + config.getListenPort(), workload, rate);
+            if (warmup > 0) {
+                LOGGER.info("Warming up for {} seconds.", warmup);
+                loadGenerator.run(warmup, TimeUnit.SECONDS);
+                origin.resetRequests();
+            }
+
+            LOGGER.info("Sending {} requests per second for {} seconds.", rate, duration);
+            LoadGenerator.Results results = loadGenerator.run(duration, TimeUnit.SECONDS);
+            report(results, rate, origin.getRequests());
+        } finally {
+            httpClient.stop();
+            taloCache.stop();
+            origin.stop();
+        }
+    }
+
+    private static void report(LoadGenerator.Results results, double rate, long originRequests) {
+        double seconds = results.getElapsed() / (double) TimeUnit.SECONDS.toNanos(1);
+        long completed = results.getCompleted();
+        double hitRatio = completed == 0 ? 0 : Math.max(0, 1 - originRequests / (double) completed);
+        LatencyHistogram.Snapshot latency = results.getLatency();
+
+        System.out.printf("requests         %d sent, %d succeeded, %d failed, %d unanswered%n",
+                results.getSent(), results.getSucceeded(), results.getFailed(), results.getSent() - completed);
+        System.out.printf("throughput       %.1f requests/s (target %.1f)%n", completed / seconds, rate);
+        System.out.printf("hit ratio        %.2f%%%n", hitRatio * 100);
+        System.out.printf("origin requests  %d%n", originRequests);
+        System.out.printf("latency (ms)     p50 %.3f, p99 %.3f, p99.9 %.3f, max %.3f%n",
+                millis(latency.getValueAtQuantile(0.5)), millis(latency.getValueAtQuantile(0.99)),
+                millis(latency.getValueAtQuantile(0.999)), millis(latency.getMax()));
+    }
+
+    private static double millis(long nanos) {
+        return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Dustin Sweigart
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package net.swigg.talo.load;
+
+import com.google.common.hash.Hashing;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * A target application for load tests that answers every request with a cacheable body after a delay. Each path
+ * always gets a body of the same size, picked between the minimum and maximum by hashing the path, so the cache sees
+ * a stable population of objects. Delays don't hold a thread, so slow responses don't limit how many are outstanding.
+ *
+ * @author Dustin Sweigart <dustin@swigg.net>
+ */
+public class StubOrigin {
+    static private final Logger LOGGER = LoggerFactory.getLogger(StubOrigin.class);
+
+    private final int minimumBodySize;
+    private final int maximumBodySize;
+    private final long latency;
+    private final long latencyJitter;
+    private final long maxAge;
+    private final byte[] body;
+    private final AtomicLong requests = new AtomicLong();
+
+    private Server server;
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * @param latency       milliseconds to wait before answering
+     * @param latencyJitter up to how many milliseconds are randomly added to the latency
+     * @param maxAge        seconds responses may be cached for
+     */
+    public StubOrigin(int minimumBodySize, int maximumBodySize, long latency, long latencyJitter, long maxAge) {
+        checkArgument(minimumBodySize >= 0 && maximumBodySize >= minimumBodySize, "body sizes must satisfy 0 <= minimum <= maximum");
+        checkArgument(latency >= 0 && latencyJitter >= 0, "latencies must not be negative");
+
+        this.minimumBodySize = minimumBodySize;
+        this.maximumBodySize = maximumBodySize;
+        this.latency = latency;
+        this.latencyJitter = latencyJitter;
+        this.maxAge = maxAge;
+        this.body = new byte[maximumBodySize];
+        Arrays.fill(this.body, (byte) 'x');
+    }
+
+    /**
+     * Start listening on an ephemeral port of the loopback interface.
+     *
+     * @return the URI to proxy to
+     */
+    public String start() throws Exception {
+        scheduler = Executors.newScheduledThreadPool(Runtime.getRuntime().availableProcessors(),
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("talo-stub-origin-%d").build());
+
+        server = new Server();
+        ServerConnector connector = new ServerConnector(server);
+        connector.setHost("127.0.0.1");
+        server.addConnector(connector);
+        server.setHandler(new AbstractHandler() {
+            @Override
+            public void handle(String target, Request baseRequest, HttpServletRequest request, HttpServletResponse response) throws IOException {
+                baseRequest.setHandled(true);
+                requests.incrementAndGet();
+
+                long delay = latency + (latencyJitter > 0 ? ThreadLocalRandom.current().nextLong(latencyJitter + 1) : 0);
+                if (delay == 0) {
+                    respond(request.getRequestURI(), response);
+                    return;
+                }
+
+                final String uri = request.getRequestURI();
+                final HttpServletResponse asyncResponse = response;
+                final AsyncContext asyncContext = request.startAsync();
+                asyncContext.setTimeout(0);
+                scheduler.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            respond(uri, asyncResponse);
+                        } catch (IOException e) {
+                            LOGGER.debug("Responding to {} failed.", uri, e);
+                        } finally {
+                            asyncContext.complete();
+                        }
+                    }
+                }, delay, TimeUnit.MILLISECONDS);
+            }
+        });
+        server.start();
+
+        return "http://127.0.0.1:" + connector.getLocalPort() + "/";
+    }
+
+    public void stop() throws Exception {
+        server.stop();
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * The number of requests that reached the origin since it started or was last reset.
+     */
+    public long getRequests() {
+        return requests.get();
+    }
+
+    public void resetRequests() {
+        requests.set(0);
+    }
+
+    private void respond(String uri, HttpServletResponse response) throws IOException {
+        int length = minimumBodySize;
+        if (maximumBodySize > minimumBodySize) {
+            int hash = Hashing.murmur3_32().hashString(uri, StandardCharsets.UTF_8).asInt();
+            length += (hash & Integer.MAX_VALUE) % (maximumBodySize - minimumBodySize + 1);
+        }
+
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setHeader("Cache-Control", "max-age=" + maxAge);
+        response.setContentType("text/plain");
+        response.setContentLength(length);
+        response.getOutputStream().write(body, 0, length);
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Dustin Sweigart
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package net.swigg.talo.load;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Files;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Replays the paths in a trace file, one per line, starting over once it reaches the end. Blank lines and lines
+ * starting with {@code #} are skipped, as is anything after the first whitespace so that access logs cut down to
+ * {@code path ...} columns can be used as they are.
+ *
+ * @author Dustin Sweigart <dustin@swigg.net>
+ */
+public class TraceWorkload implements Workload {
+    private final List<String> paths;
+    private int position;
+
+    public TraceWorkload(File trace) throws IOException {
+        ImmutableList.Builder<String> paths = ImmutableList.builder();
+        for (String line : Files.readLines(trace, StandardCharsets.UTF_8)) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+
+            String[] columns = line.split("\\s+", 2);
+            paths.add(columns[0].startsWith("/") ? columns[0] : "/" + columns[0]);
+        }
+
+        this.paths = paths.build();
+        checkArgument(!this.paths.isEmpty(), "trace %s has no requests", trace);
+    }
+
+    @Override
+    public String next() {
+        String path = paths.get(position);
+        position = (position + 1) % paths.size();
+        return path;
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Dustin Sweigart
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package net.swigg.talo.metrics;
+
+import com.google.common.collect.ImmutableMap;
+import net.swigg.talo.cache.CacheStore;
+import net.swigg.talo.origin.OriginLimiter;
+
+import java.util.Map;
+
+/**
+ * The counters and latency histograms the proxy keeps about itself. Everything is cheap enough to update on every
+ * request; reading happens when the admin server is asked for the metrics.
+ *
+ * @author Dustin Sweigart <dustin@swigg.net>
+ */
+public class CacheMetrics {
+    /**
+     * Requests that went through the cache.
+     */
+    public final StripedCounter requests = new StripedCounter();
+    /**
+     * Requests passed straight to the target application.
+     */
+    public final StripedCounter bypassed = new StripedCounter();
+    /**
+     * Requests passed straight to the target application because the doorkeeper didn't admit them yet.
+     */
+    public final StripedCounter notAdmitted = new StripedCounter();
+    public final StripedCounter hits = new StripedCounter();
+    /**
+     * Hits served stale while revalidating or because the target application failed.
+     */
+    public final StripedCounter staleHits = new StripedCounter();
+    /**
+     * Stale hits served without refreshing them because the origin limiter was saturated.
+     */
+    public final StripedCounter shieldedStaleHits = new StripedCounter();
+    public final StripedCounter diskHits = new StripedCounter();
+    public final StripedCounter misses = new StripedCounter();
+    /**
+     * Requests that waited on a fetch somebody else started.
+     */
+    public final StripedCounter coalesced = new StripedCounter();
+    /**
+     * Requests passed to the peer owning the response without caching it here.
+     */
+    public final StripedCounter peerForwards = new StripedCounter();
+    /**
+     * Requests to peers that couldn't be reached.
+     */
+    public final StripedCounter peerFailures = new StripedCounter();
+    /**
+     * Expired responses revalidated before being served.
+     */
+    public final StripedCounter revalidated = new StripedCounter();
+    public final StripedCounter notModified = new StripedCounter();
+    public final StripedCounter originFetches = new StripedCounter();
+    public final StripedCounter originFailures = new StripedCounter();
+    /**
+     * Requests sent to another origin after the first one failed.
+     */
+    public final StripedCounter originRetries = new StripedCounter();
+    /**
+     * Requests that had to wait for the origin limiter, and those that gave up waiting.
+     */
+    public final StripedCounter originQueued = new StripedCounter();
+    public final StripedCounter originRejected = new StripedCounter();
+    public final StripedCounter originBytes = new StripedCounter();
+    public final StripedCounter servedBytes = new StripedCounter();
+    /**
+     * Responses whose body was kept in a spill file instead of on the heap.
+     */
+    public final StripedCounter spilled = new StripedCounter();
+    /**
+     * Responses too large to be cached.
+     */
+    public final StripedCounter tooLarge = new StripedCounter();
+
+    /**
+     * Time to build the key and find or claim the cache entry.
+     */
+    public final LatencyHistogram lookup = new LatencyHistogram();
+    /**
+     * Time from sending a request to the target application until its response headers arrived.
+     */
+    public final LatencyHistogram originFirstByte = new LatencyHistogram();
+    /**
+     * Time from starting to write a response until it was completed.
+     */
+    public final LatencyHistogram write = new LatencyHistogram();
+    /**
+     * Time a request waited on a fetch somebody else started.
+     */
+    public final LatencyHistogram coalescingWait = new LatencyHistogram();
+
+    private volatile CacheStore<?, ?> cacheStore;
+    private volatile OriginLimiter originLimiter;
+
+    /**
+     * The cache to report the size of.
+     */
+    public void setCacheStore(CacheStore<?, ?> cacheStore) {
+        this.cacheStore = cacheStore;
+    }
+
+    /**
+     * The origin limiter to report the state of, or {@code null} if there is none.
+     */
+    public void setOriginLimiter(OriginLimiter originLimiter) {
+        this.originLimiter = originLimiter;
+    }
+
+    /**
+     * The counters by name, in a stable order.
+     */
+    public Map<String, Long> counters() {
+        return ImmutableMap.<String, Long>builder()
+                .put("requests", requests.sum())
+                .put("bypassed", bypassed.sum())
+                .put("not_admitted", notAdmitted.sum())
+                .put("hits", hits.sum())
+                .put("stale_hits", staleHits.sum())
+                .put("shielded_stale_hits", shieldedStaleHits.sum())
+                .put("disk_hits", diskHits.sum())
+                .put("misses", misses.sum())
+                .put("coalesced", coalesced.sum())
+                .put("peer_forwards", peerForwards.sum())
+                .put("peer_failures", peerFailures.sum())
+                .put("revalidated", revalidated.sum())
+                .put("not_modified", notModified.sum())
+                .put("origin_fetches", originFetches.sum())
+                .put("origin_failures", originFailures.sum())
+                .put("origin_retries", originRetries.sum())
+                .put("origin_queued", originQueued.sum())
+                .put("origin_rejected", originRejected.sum())
+                .put("origin_bytes", originBytes.sum())
+                .put("served_bytes", servedBytes.sum())
+                .put("spilled", spilled.sum())
+                .put("too_large", tooLarge.sum())
+                .build();
+    }
+
+    /**
+     * The current size of the cache and state of the origin limiter by name, leaving out whichever there is none of.
+     */
+    public Map<String, Long> gauges() {
+        ImmutableMap.Builder<String, Long> gauges = ImmutableMap.builder();
+        CacheStore<?, ?> cacheStore = this.cacheStore;
+        if (cacheStore != null) {
+            gauges.put("cache_entries", cacheStore.size())
+                    .put("cache_weighted_size", cacheStore.weightedSize())
+                    .put("cache_maximum_weight", cacheStore.maximumWeight());
+        }
+
+        OriginLimiter originLimiter = this.originLimiter;
+        if (originLimiter != null) {
+            gauges.put("origin_limit", (long) originLimiter.getLimit())
+                    .put("origin_in_flight", (long) originLimiter.getInFlight())
+                    .put("origin_queue", (long) originLimiter.getQueued());
+        }
+
+        return gauges.build();
+    }
+
+    /**
+     * Snapshots of the histograms by name, in a stable order.
+     */
+    public Map<String, LatencyHistogram.Snapshot> histograms() {
+        return ImmutableMap.<String, LatencyHistogram.Snapshot>builder()
+                .put("lookup", lookup.snapshot())
+                .put("origin_first_byte", originFirstByte.snapshot())
+                .put("write", write.snapshot())
+                .put("coalescing_wait", coalescingWait.snapshot())
+                .build();
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Dustin Sweigart
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package net.swigg.talo.metrics;
+
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Renders {@link CacheMetrics} as JSON or in the Prometheus text exposition format. Durations are reported in seconds.
+ *
+ * @author Dustin Sweigart <dustin@swigg.net>
+ */
+public final class MetricsFormatter {
+    static private final String PREFIX = "talo_";
+    static private final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+    static private final String[] QUANTILE_NAMES = {"p50", "p90", "p99", "p999"};
+
+    private MetricsFormatter() {
+    }
+
+    public static String toJson(CacheMetrics metrics) {
+        StringBuilder json = new StringBuilder("{\"counters\":{");
+        appendJsonValues(json, metrics.counters());
+        json.append("},\"gauges\":{");
+        appendJsonValues(json, metrics.gauges());
+        json.append("},\"histograms\":{");
+
+        boolean first = true;
+        for (Map.Entry<String, LatencyHistogram.Snapshot> histogram : metrics.histograms().entrySet()) {
+            LatencyHistogram.Snapshot snapshot = histogram.getValue();
+            json.append(first ? "" : ",").append('"').append(histogram.getKey()).append("\":{")
+                    .append("\"count\":").append(snapshot.getCount())
+                    .append(",\"mean\":").append(format(seconds(snapshot.getMean())))
+                    .append(",\"max\":").append(format(seconds(snapshot.getMax())));
+            for (int i = 0; i < QUANTILES.length; i++) {
+                json.append(",\"").append(QUANTILE_NAMES[i]).append("\":")
+                        .append(format(seconds(snapshot.getValueAtQuantile(QUANTILES[i]))));
+            }
+            json.append('}');
+            first = false;
+        }
+
+        return json.append("}}").toString();
+    }
+
+    public static String toPrometheus(CacheMetrics metrics) {
+        StringBuilder text = new StringBuilder();
+        for (Map.Entry<String, Long> counter : metrics.counters().entrySet()) {
+            String name = PREFIX + counter.getKey() + "_total";
+            text.append("# TYPE ").append(name).append(" counter\n")
+                    .append(name).append(' ').append(counter.getValue()).append('\n');
+        }
+
+        for (Map.Entry<String, Long> gauge : metrics.gauges().entrySet()) {
+            String name = PREFIX + gauge.getKey();
+            text.append("# TYPE ").append(name).append(" gauge\n")
+                    .append(name).append(' ').append(gauge.getValue()).append('\n');
+        }
+
+        for (Map.Entry<String, LatencyHistogram.Snapshot> histogram : metrics.histograms().entrySet()) {
+            String name = PREFIX + histogram.getKey() + "_seconds";
+            LatencyHistogram.Snapshot snapshot = histogram.getValue();
+            text.append("# TYPE ").append(name).append(" summary\n");
+            for (double quantile : QUANTILES) {
+                text.append(name).append("{quantile=\"").append(quantile).append("\"} ")
+                        .append(format(seconds(snapshot.getValueAtQuantile(quantile)))).append('\n');
+            }
+            text.append(name).append("_sum ").append(format(seconds(snapshot.getSum()))).append('\n')
+                    .append(name).append("_count ").append(snapshot.getCount()).append('\n');
+        }
+
+        return text.toString();
+    }
+
+    private static void appendJsonValues(StringBuilder json, Map<String, Long> values) {
+        boolean first = true;
+        for (Map.Entry<String, Long> value : values.entrySet()) {
+            json.append(first ? "" : ",").append('"').append(value.getKey()).append("\":").append(value.getValue());
+            first = false;
+        }
+    }
+
+    private static double seconds(double nanos) {
+        return nanos / TimeUnit.SECONDS.toNanos(1);
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.ENGLISH, "%.9f", value);
+    }
+}
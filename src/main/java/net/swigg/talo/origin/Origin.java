@@ -0,0 +1,119 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Dustin Sweigart
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.swigg.talo.origin;
+
+import java.net.URI;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One of the target applications in an {@link OriginPool}, with the statistics the pool balances and ejects by.
+ * Latency and failure counts are updated without locks; updates racing each other may be lost, which only makes the
+ * statistics as rough as they already are.
+ *
+ * @author Dustin Sweigart <dustin@swigg.net>
+ */
+public class Origin {
+    /**
+     * Weight of the latest latency in the moving average.
+     */
+    static private final double ALPHA = 0.3;
+
+    private final URI uri;
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private final AtomicInteger failures = new AtomicInteger();
+    private volatile long latency;
+    private volatile boolean healthy = true;
+    private volatile long ejectedUntil;
+
+    public Origin(URI uri) {
+        this.uri = uri;
+    }
+
+    public URI getUri() {
+        return uri;
+    }
+
+    /**
+     * The number of requests sent to the origin that haven't completed yet.
+     */
+    public int getOutstanding() {
+        return outstanding.get();
+    }
+
+    /**
+     * The exponentially weighted moving average of the time requests took, in nanoseconds.
+     */
+    public long getLatency() {
+        return latency;
+    }
+
+    /**
+     * Whether the origin passed its last health check.
+     */
+    public boolean isHealthy() {
+        return healthy;
+    }
+
+    /**
+     * Whether requests may be sent to the origin: it passed its last health check and isn't ejected.
+     */
+    public boolean isAvailable(long now) {
+        return healthy && now >= ejectedUntil;
+    }
+
+    void begin() {
+        outstanding.incrementAndGet();
+    }
+
+    /**
+     * Count a completed request.
+     *
+     * @return the number of consecutive failures, 0 if the request succeeded
+     */
+    int end(long nanos, boolean failed) {
+        outstanding.decrementAndGet();
+        long latency = this.latency;
+        this.latency = latency == 0 ? nanos : (long) (ALPHA * nanos + (1 - ALPHA) * latency);
+
+        if (!failed) {
+            failures.set(0);
+            return 0;
+        }
+        return failures.incrementAndGet();
+    }
+
+    void eject(long until) {
+        ejectedUntil = until;
+        failures.set(0);
+    }
+
+    void setHealthy(boolean healthy) {
+        this.healthy = healthy;
+    }
+
+    @Override
+    public String toString() {
+        return uri.toString();
+    }
+}
@@ -0,0 +1,224 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Dustin Sweigart
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.swigg.talo.origin;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Shields the target application by bounding how many requests are sent to it at once. The limit adapts to the
+ * latency it measures, additively growing while requests complete about as fast as the fastest recently seen and
+ * backing off multiplicatively once they slow down or fail, so the origin is kept just short of the point where it
+ * starts queueing. Requests over the limit wait in a bounded queue, the ones filling the cache ahead of the ones that
+ * are only passed through.
+ *
+ * @author Dustin Sweigart <dustin@swigg.net>
+ */
+public class OriginLimiter {
+    /**
+     * How much the limit is multiplied by when the origin slows down.
+     */
+    static private final double BACKOFF = 0.9;
+
+    /**
+     * How quickly the baseline latency drifts up towards slower requests, so that an origin that became slower for
+     * good is eventually judged by its new speed.
+     */
+    static private final int BASELINE_DRIFT = 1024;
+
+    public enum Priority {
+        /**
+         * Misses filling the cache, that other requests may be waiting on.
+         */
+        HIGH,
+        /**
+         * Requests passed through without being cached.
+         */
+        LOW
+    }
+
+    /**
+     * A request waiting for its turn.
+     */
+    public interface Waiter {
+        /**
+         * Hand the waiter a permit.
+         *
+         * @return {@code false} if the waiter gave up meanwhile and the permit has to go to somebody else
+         */
+        boolean grant();
+    }
+
+    private final int minimumLimit;
+    private final int maximumLimit;
+    private final double tolerance;
+    private final int queueSize;
+    private final Deque<Waiter> high = new ArrayDeque<>();
+    private final Deque<Waiter> low = new ArrayDeque<>();
+
+    private double limit;
+    private int inFlight;
+    private long baseline = Long.MAX_VALUE;
+
+    /**
+     * @param initialLimit number of concurrent requests to start out with
+     * @param minimumLimit number of concurrent requests always allowed
+     * @param maximumLimit number of concurrent requests never exceeded
+     * @param tolerance    how many times slower than the baseline a request may be before the limit backs off
+     * @param queueSize    number of requests that may wait for a permit
+     */
+    public OriginLimiter(int initialLimit, int minimumLimit, int maximumLimit, double tolerance, int queueSize) {
+        checkArgument(minimumLimit > 0 && minimumLimit <= initialLimit && initialLimit <= maximumLimit);
+        checkArgument(tolerance >= 1);
+        checkArgument(queueSize >= 0);
+
+        this.limit = initialLimit;
+        this.minimumLimit = minimumLimit;
+        this.maximumLimit = maximumLimit;
+        this.tolerance = tolerance;
+        this.queueSize = queueSize;
+    }
+
+    /**
+     * Take a permit if the limit allows another request right now.
+     */
+    public synchronized boolean tryAcquire() {
+        if (inFlight >= (int) limit || !high.isEmpty() || !low.isEmpty()) {
+            return false;
+        }
+
+        inFlight++;
+        return true;
+    }
+
+    /**
+     * Whether requests would have to wait for a permit.
+     */
+    public synchronized boolean isSaturated() {
+        return inFlight >= (int) limit;
+    }
+
+    /**
+     * Queue the waiter to be granted a permit once one frees up.
+     *
+     * @return {@code false} if the queue is full
+     */
+    public boolean enqueue(Waiter waiter, Priority priority) {
+        synchronized (this) {
+            if (high.size() + low.size() >= queueSize) {
+                return false;
+            }
+
+            (priority == Priority.HIGH ? high : low).add(waiter);
+        }
+
+        // a permit may have freed up while the caller was deciding to wait
+        grantWaiting();
+        return true;
+    }
+
+    /**
+     * Take the waiter out of the queue once it gave up.
+     */
+    public synchronized void remove(Waiter waiter) {
+        if (!high.remove(waiter)) {
+            low.remove(waiter);
+        }
+    }
+
+    /**
+     * Give back a permit whose request completed, adjusting the limit by how long it took.
+     */
+    public void release(long nanos, boolean failed) {
+        synchronized (this) {
+            // the request counts as in flight for whether the limit is being used
+            int used = inFlight--;
+            if (!failed && nanos < baseline) {
+                baseline = nanos;
+            } else if (!failed) {
+                baseline += (nanos - baseline) / BASELINE_DRIFT;
+            }
+
+            if (failed || nanos > baseline * tolerance) {
+                limit = Math.max(minimumLimit, limit * BACKOFF);
+            } else if (used * 2 >= limit) {
+                // only grow while the limit is actually being used
+                limit = Math.min(maximumLimit, limit + 1 / limit);
+            }
+        }
+
+        grantWaiting();
+    }
+
+    /**
+     * Give back a permit that wasn't used to send a request.
+     */
+    public void release() {
+        synchronized (this) {
+            inFlight--;
+        }
+
+        grantWaiting();
+    }
+
+    private void grantWaiting() {
+        while (true) {
+            Waiter waiter;
+            synchronized (this) {
+                if (inFlight >= (int) limit) {
+                    return;
+                }
+
+                waiter = high.poll();
+                if (waiter == null) {
+                    waiter = low.poll();
+                }
+                if (waiter == null) {
+                    return;
+                }
+                inFlight++;
+            }
+
+            if (!waiter.grant()) {
+                synchronized (this) {
+                    inFlight--;
+                }
+            }
+        }
+    }
+
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    public synchronized int getInFlight() {
+        return inFlight;
+    }
+
+    public synchronized int getQueued() {
+        return high.size() + low.size();
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Dustin Sweigart
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.swigg.talo.origin;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.api.Response;
+import org.eclipse.jetty.client.api.Result;
+import org.eclipse.jetty.http.HttpMethod;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.http.HttpServletRequest;
+import java.net.URI;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Several target applications serving the same content. Each request goes to the available origin with the fewest
+ * outstanding requests, the one that has been answering faster on a tie. An origin failing too many requests in a row
+ * is ejected for a while, and with a health check path configured origins are also polled and left out while their
+ * checks fail. Idempotent requests that failed before anything was sent to the client may be retried on another
+ * origin.
+ *
+ * @author Dustin Sweigart <dustin@swigg.net>
+ */
+public class OriginPool {
+    static private final Logger LOGGER = LoggerFactory.getLogger(OriginPool.class);
+
+    static private final String RETRIES_ATTRIBUTE = "originRetries";
+
+    private final List<Origin> origins;
+    private final int maximumFailures;
+    private final long ejectionTime;
+    private final int maximumRetries;
+    private final String healthCheckPath;
+    private final long healthCheckInterval;
+    private final ScheduledThreadPoolExecutor scheduler;
+
+    /**
+     * @param uris                base URLs of the origins
+     * @param maximumFailures     number of failures in a row after which an origin is ejected
+     * @param ejectionTime        milliseconds an ejected origin is left out for
+     * @param maximumRetries      number of other origins a failed GET or HEAD is retried on
+     * @param healthCheckPath     path to poll each origin at, or {@code null} to only go by the requests sent to them
+     * @param healthCheckInterval milliseconds between health checks
+     */
+    public OriginPool(Collection<URI> uris, int maximumFailures, long ejectionTime, int maximumRetries,
+                      String healthCheckPath, long healthCheckInterval) {
+        checkArgument(!uris.isEmpty());
+        checkArgument(maximumFailures > 0);
+        checkArgument(ejectionTime >= 0);
+        checkArgument(maximumRetries >= 0);
+        checkArgument(healthCheckPath == null || healthCheckInterval > 0);
+
+        ImmutableList.Builder<Origin> origins = ImmutableList.builder();
+        for (URI uri : uris) {
+            String value = uri.toString();
+            origins.add(new Origin(URI.create(value.endsWith("/") ? value.substring(0, value.length() - 1) : value)));
+        }
+
+        this.origins = origins.build();
+        this.maximumFailures = maximumFailures;
+        this.ejectionTime = ejectionTime;
+        this.maximumRetries = maximumRetries;
+        this.healthCheckPath = healthCheckPath;
+        this.healthCheckInterval = healthCheckInterval;
+        this.scheduler = new ScheduledThreadPoolExecutor(1,
+                new ThreadFactoryBuilder().setNameFormat("talo-health-check-%d").setDaemon(true).build());
+    }
+
+    public List<Origin> getOrigins() {
+        return origins;
+    }
+
+    /**
+     * Start polling the origins, if there is a health check path.
+     */
+    public void start(final HttpClient httpClient) {
+        if (healthCheckPath == null) {
+            return;
+        }
+
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                for (Origin origin : origins) {
+                    check(httpClient, origin);
+                }
+            }
+        }, 0, healthCheckInterval, TimeUnit.MILLISECONDS);
+    }
+
+    private void check(HttpClient httpClient, final Origin origin) {
+        httpClient.newRequest(origin.getUri() + healthCheckPath)
+                .method(HttpMethod.GET)
+                .timeout(healthCheckInterval, TimeUnit.MILLISECONDS)
+                .send(new Response.CompleteListener() {
+                    @Override
+                    public void onComplete(Result result) {
+                        boolean healthy = !result.isFailed() && result.getResponse().getStatus() < 500;
+                        if (healthy != origin.isHealthy()) {
+                            LOGGER.warn("Origin {} is {}.", origin, healthy ? "healthy again" : "failing its health check");
+                        }
+                        origin.setHealthy(healthy);
+                    }
+                });
+    }
+
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    /**
+     * The origin to send the next request to, starting the scan at a random origin so that ties are spread out.
+     * When every origin is left out, the least busy one is tried anyway rather than failing outright.
+     *
+     * @param excluded an origin not to pick unless it is the only one, or {@code null}
+     */
+    public Origin pick(Origin excluded) {
+        long now = System.currentTimeMillis();
+        int size = origins.size();
+        int start = size == 1 ? 0 : ThreadLocalRandom.current().nextInt(size);
+
+        Origin best = null;
+        Origin fallback = null;
+        for (int i = 0; i < size; i++) {
+            Origin origin = origins.get((start + i) % size);
+            if (origin == excluded) {
+                continue;
+            }
+            if (fallback == null || isLessBusy(origin, fallback)) {
+                fallback = origin;
+            }
+            if (origin.isAvailable(now) && (best == null || isLessBusy(origin, best))) {
+                best = origin;
+            }
+        }
+
+        if (best != null) {
+            return best;
+        }
+        return fallback != null ? fallback : excluded;
+    }
+
+    private static boolean isLessBusy(Origin origin, Origin other) {
+        int outstanding = origin.getOutstanding() - other.getOutstanding();
+        return outstanding < 0 || (outstanding == 0 && origin.getLatency() < other.getLatency());
+    }
+
+    /**
+     * Count a request about to be sent to the origin.
+     */
+    public void begin(Origin origin) {
+        origin.begin();
+    }
+
+    /**
+     * Count a completed request, ejecting the origin once it failed too many in a row.
+     *
+     * @param start when the request was sent, in {@link System#nanoTime()}
+     */
+    public void end(Origin origin, long start, boolean failed) {
+        if (origin.end(System.nanoTime() - start, failed) >= maximumFailures) {
+            LOGGER.warn("Ejecting origin {} for {}ms after {} failures in a row.", origin, ejectionTime, maximumFailures);
+            origin.eject(System.currentTimeMillis() + ejectionTime);
+        }
+    }
+
+    /**
+     * Whether a request whose origin failed may be sent to another one, counting the attempt. Only requests that
+     * can safely be repeated are.
+     */
+    public boolean retry(HttpServletRequest request) {
+        if (origins.size() < 2 || !(request.getMethod().equals("GET") || request.getMethod().equals("HEAD"))) {
+            return false;
+        }
+
+        Integer retries = (Integer) request.getAttribute(RETRIES_ATTRIBUTE);
+        int attempt = retries == null ? 1 : retries + 1;
+        if (attempt > maximumRetries) {
+            return false;
+        }
+
+        request.setAttribute(RETRIES_ATTRIBUTE, attempt);
+        return true;
+    }
+
+    /**
+     * Where to send the request to have the origin handle it.
+     */
+    public URI rewrite(Origin origin, HttpServletRequest request) {
+        StringBuilder uri = new StringBuilder(origin.getUri().toString()).append(request.getRequestURI());
+        String query = request.getQueryString();
+        if (query != null) {
+            uri.append('?').append(query);
+        }
+
+        return URI.create(uri.toString());
+    }
+}
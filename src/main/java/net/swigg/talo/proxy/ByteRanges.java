@@ -0,0 +1,263 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Dustin Sweigart
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package net.swigg.talo.proxy;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import org.eclipse.jetty.client.api.Request;
+import org.eclipse.jetty.http.HttpFields;
+import org.eclipse.jetty.http.HttpHeader;
+
+import javax.servlet.http.HttpServletRequest;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Helpers for answering {@code Range} requests from complete cached responses, either with a single part or as
+ * {@code multipart/byteranges}. The parts are slices of the cached body, nothing is copied.
+ *
+ * @author Dustin Sweigart <dustin@swigg.net>
+ */
+public final class ByteRanges {
+    static private final String BYTES_UNIT = "bytes=";
+
+    /**
+     * More ranges than this are answered with the whole response rather than risk sending parts of it over and over.
+     */
+    static private final int MAXIMUM_RANGES = 16;
+
+    private ByteRanges() {
+    }
+
+    /**
+     * An inclusive range of byte positions.
+     */
+    public static final class Range {
+        private final long first;
+        private final long last;
+
+        Range(long first, long last) {
+            this.first = first;
+            this.last = last;
+        }
+
+        public long getFirst() {
+            return first;
+        }
+
+        public long getLast() {
+            return last;
+        }
+
+        public long getLength() {
+            return last - first + 1;
+        }
+
+        /**
+         * The value of the {@code Content-Range} header for this range of a response of the given length.
+         */
+        public String contentRange(long completeLength) {
+            return "bytes " + first + "-" + last + "/" + completeLength;
+        }
+    }
+
+    /**
+     * Whether the client asks for part of the response. Only {@code GET} requests can.
+     */
+    public static boolean isRangeRequest(HttpServletRequest request) {
+        return request.getMethod().equals("GET") && request.getHeader(HttpHeader.RANGE.asString()) != null;
+    }
+
+    /**
+     * Drop the client's range headers so the target application answers with the whole response, which is what gets
+     * cached.
+     */
+    public static void removeRangeHeaders(Request proxyRequest) {
+        proxyRequest.getHeaders().remove(HttpHeader.RANGE);
+        proxyRequest.getHeaders().remove(HttpHeader.IF_RANGE);
+    }
+
+    /**
+     * The ranges of the response to send in its place, sorted with overlapping and adjacent ones merged.
+     *
+     * @return {@code null} if the whole response should be sent: the request has no {@code Range} header or one that
+     * can't be parsed, asks for too many ranges or has an {@code If-Range} the response doesn't match, or the response
+     * isn't a 200; an empty list if none of the ranges is within the response
+     */
+    public static List<Range> satisfiable(HttpServletRequest request, int status, HttpFields headers, long length) {
+        String rangeHeader = request.getHeader(HttpHeader.RANGE.asString());
+        if (status != 200 || !isRangeRequest(request) || !rangeHeader.startsWith(BYTES_UNIT) || !matchesIfRange(request, headers)) {
+            return null;
+        }
+
+        List<Range> ranges = new ArrayList<>();
+        String[] specs = rangeHeader.substring(BYTES_UNIT.length()).split(",");
+        if (specs.length > MAXIMUM_RANGES) {
+            return null;
+        }
+
+        for (String spec : specs) {
+            spec = spec.trim();
+            int dash = spec.indexOf('-');
+            if (dash < 0) {
+                return null;
+            }
+
+            try {
+                if (dash == 0) {
+                    // the last n bytes
+                    long suffix = Long.parseLong(spec.substring(1));
+                    if (suffix > 0 && length > 0) {
+                        ranges.add(new Range(Math.max(0, length - suffix), length - 1));
+                    }
+                    continue;
+                }
+
+                long first = Long.parseLong(spec.substring(0, dash));
+                long last = dash == spec.length() - 1 ? Long.MAX_VALUE : Long.parseLong(spec.substring(dash + 1));
+                if (first < 0 || last < first) {
+                    return null;
+                }
+                if (first < length) {
+                    ranges.add(new Range(first, Math.min(last, length - 1)));
+                }
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        return merge(ranges);
+    }
+
+    /**
+     * A random boundary for a {@code multipart/byteranges} body.
+     */
+    public static String boundary() {
+        return Long.toHexString(ThreadLocalRandom.current().nextLong()) + Long.toHexString(ThreadLocalRandom.current().nextLong());
+    }
+
+    /**
+     * The part of the body in the range, sharing its content.
+     */
+    public static ByteBuffer slice(ByteBuffer body, Range range) {
+        ByteBuffer slice = body.duplicate();
+        slice.position(body.position() + (int) range.getFirst());
+        slice.limit(body.position() + (int) range.getLast() + 1);
+        return slice.slice();
+    }
+
+    /**
+     * The {@code multipart/byteranges} body for the ranges, as part headers interleaved with slices of the body.
+     */
+    public static List<ByteBuffer> multipart(ByteBuffer body, List<Range> ranges, String contentType, String boundary) {
+        ImmutableList.Builder<ByteBuffer> parts = ImmutableList.builder();
+        boolean first = true;
+        for (Range range : ranges) {
+            StringBuilder partHeaders = new StringBuilder();
+            if (!first) {
+                partHeaders.append("\r\n");
+            }
+            partHeaders.append("--").append(boundary).append("\r\n");
+            if (contentType != null) {
+                partHeaders.append("Content-Type: ").append(contentType).append("\r\n");
+            }
+            partHeaders.append("Content-Range: ").append(range.contentRange(body.remaining())).append("\r\n\r\n");
+
+            parts.add(ByteBuffer.wrap(partHeaders.toString().getBytes(Charsets.ISO_8859_1)));
+            parts.add(slice(body, range));
+            first = false;
+        }
+        parts.add(ByteBuffer.wrap(("\r\n--" + boundary + "--\r\n").getBytes(Charsets.ISO_8859_1)));
+
+        return parts.build();
+    }
+
+    /**
+     * The combined length of the buffers.
+     */
+    public static int length(List<ByteBuffer> buffers) {
+        int length = 0;
+        for (ByteBuffer buffer : buffers) {
+            length += buffer.remaining();
+        }
+
+        return length;
+    }
+
+    /**
+     * Whether the {@code If-Range} validator, if any, matches the response: an entity tag has to be strong and equal to
+     * its {@code ETag}, a date has to be its {@code Last-Modified} exactly.
+     */
+    private static boolean matchesIfRange(HttpServletRequest request, HttpFields headers) {
+        String ifRange = request.getHeader(HttpHeader.IF_RANGE.asString());
+        if (ifRange == null) {
+            return true;
+        }
+
+        ifRange = ifRange.trim();
+        if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+            String etag = headers.get(HttpHeader.ETAG);
+            return !ifRange.startsWith("W/") && etag != null && etag.equals(ifRange);
+        }
+
+        long lastModified = headers.getDateField(HttpHeader.LAST_MODIFIED.asString());
+        try {
+            return lastModified >= 0 && lastModified == request.getDateHeader(HttpHeader.IF_RANGE.asString());
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    private static List<Range> merge(List<Range> ranges) {
+        if (ranges.size() < 2) {
+            return ranges;
+        }
+
+        Collections.sort(ranges, new Comparator<Range>() {
+            @Override
+            public int compare(Range a, Range b) {
+                return Long.compare(a.getFirst(), b.getFirst());
+            }
+        });
+
+        List<Range> merged = new ArrayList<>();
+        Range current = ranges.get(0);
+        for (Range range : ranges.subList(1, ranges.size())) {
+            if (range.getFirst() <= current.getLast() + 1) {
+                current = new Range(current.getFirst(), Math.max(current.getLast(), range.getLast()));
+            } else {
+                merged.add(current);
+                current = range;
+            }
+        }
+        merged.add(current);
+
+        return merged;
+    }
+}
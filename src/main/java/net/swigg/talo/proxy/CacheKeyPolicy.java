@@ -0,0 +1,277 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Dustin Sweigart
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package net.swigg.talo.proxy;
+
+import com.google.common.base.Function;
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.collect.Ordering;
+import com.google.common.collect.Sets;
+import net.swigg.talo.cache.CacheStore;
+import net.swigg.talo.cache.TinyLfuCacheStore;
+import org.eclipse.jetty.http.HttpFields;
+import org.eclipse.jetty.http.HttpHeader;
+
+import javax.servlet.http.HttpServletRequest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.SortedSet;
+
+/**
+ * Builds the {@link RequestIdentity} a request is cached under. Only the path, the canonical query string and a
+ * whitelist of headers make up the key of a resource; everything else the client sends is ignored. When a response
+ * says it varies on request headers, the names are remembered and later requests for the resource get a secondary key
+ * that also holds their values of those headers.
+ *
+ * @author Dustin Sweigart <dustin@swigg.net>
+ */
+public class CacheKeyPolicy {
+    static private final int MAXIMUM_VARIED_RESOURCES = 64 * 1024;
+    static private final Splitter QUERY_SPLITTER = Splitter.on('&').omitEmptyStrings();
+    static private final Splitter VARY_SPLITTER = Splitter.on(',').trimResults().omitEmptyStrings();
+    static private final Joiner QUERY_JOINER = Joiner.on('&');
+
+    /**
+     * Orders query parameters by name only so that repeated parameters keep their relative order.
+     */
+    static private final Ordering<String> PARAMETER_ORDER = Ordering.natural().onResultOf(new Function<String, String>() {
+        @Override
+        public String apply(String parameter) {
+            int separator = parameter.indexOf('=');
+            return separator < 0 ? parameter : parameter.substring(0, separator);
+        }
+    });
+
+    /**
+     * Range requests are answered from the whole cached response, so they never get keys of their own.
+     */
+    static private final Set<String> RANGE_HEADERS = ImmutableSet.of("range", "if-range");
+    static private final String COOKIE = "cookie";
+
+    private final SortedSet<String> keyHeaders;
+    private final List<String> ignoredQueryParameters;
+    private final boolean sortQueryParameters;
+
+    private final CacheStore<RequestIdentity, SortedSet<String>> variedResources = new TinyLfuCacheStore<>(
+            MAXIMUM_VARIED_RESOURCES, new Weigher<RequestIdentity, SortedSet<String>>() {
+        @Override
+        public int weigh(RequestIdentity key, SortedSet<String> value) {
+            return 1;
+        }
+    });
+
+    /**
+     * A policy keying on the path and sorted query string alone.
+     */
+    public CacheKeyPolicy() {
+        this(Collections.<String>emptySet(), Collections.<String>emptySet(), true);
+    }
+
+    /**
+     * @param keyHeaders             names of the request headers that are part of every key
+     * @param ignoredQueryParameters names of the query parameters left out of keys, a trailing {@code *} matches any
+     *                               parameter starting with the rest of the name
+     * @param sortQueryParameters    whether the order of query parameters is irrelevant to the target application
+     */
+    public CacheKeyPolicy(Collection<String> keyHeaders, Collection<String> ignoredQueryParameters, boolean sortQueryParameters) {
+        this.keyHeaders = keyHeaders(keyHeaders);
+        this.ignoredQueryParameters = ImmutableList.copyOf(ignoredQueryParameters);
+        this.sortQueryParameters = sortQueryParameters;
+    }
+
+    /**
+     * The key the response to the request is cached under.
+     */
+    public RequestIdentity identify(HttpServletRequest request) {
+        return identify(request, ImmutableSortedSet.<String>of());
+    }
+
+    /**
+     * The key the response to the request is cached under, with the values of more headers than every key has, such
+     * as those a {@link CacheRule} adds.
+     */
+    public RequestIdentity identify(HttpServletRequest request, SortedSet<String> additionalKeyHeaders) {
+        String headers = canonicalHeaders(request, keyHeaders);
+        if (!additionalKeyHeaders.isEmpty()) {
+            headers += canonicalHeaders(request, additionalKeyHeaders);
+        }
+
+        RequestIdentity primary = new RequestIdentity(request.getRequestURI(), canonicalQueryString(request.getQueryString()),
+                headers, "");
+
+        SortedSet<String> varyHeaders = variedResources.get(primary);
+        if (varyHeaders == null) {
+            return primary;
+        }
+
+        return primary.withVariant(canonicalHeaders(request, varyHeaders));
+    }
+
+    /**
+     * Whether the request carries cookies that aren't part of its key. Its response may be personalized by them, so
+     * it bypasses the cache unless {@code Cookie} is one of the key headers.
+     */
+    public boolean hasUnkeyedCookies(HttpServletRequest request, SortedSet<String> additionalKeyHeaders) {
+        return request.getHeader(HttpHeader.COOKIE.asString()) != null &&
+                !keyHeaders.contains(COOKIE) && !additionalKeyHeaders.contains(COOKIE);
+    }
+
+    /**
+     * The key of a request only known by its URI and query string, such as one read from an access log. Key headers
+     * are taken to be absent and responses aren't told apart by what they vary on.
+     */
+    public RequestIdentity identify(String requestUri, String queryString) {
+        return new RequestIdentity(requestUri, canonicalQueryString(queryString), canonicalHeaders(null, keyHeaders), "");
+    }
+
+    /**
+     * Remember which request headers the response to the key varies on.
+     *
+     * @return {@code true} if the response was stored under the primary key and so won't be found again by requests
+     * that get a secondary key from now on
+     */
+    public boolean learnVary(RequestIdentity key, HttpFields responseHeaders) {
+        SortedSet<String> varyHeaders = varyHeaders(responseHeaders);
+        RequestIdentity primary = key.primary();
+        if (varyHeaders.isEmpty()) {
+            if (key.isPrimary()) {
+                variedResources.remove(primary);
+            }
+
+            return false;
+        }
+
+        if (!varyHeaders.equals(variedResources.get(primary))) {
+            variedResources.put(primary, varyHeaders);
+        }
+
+        return key.isPrimary();
+    }
+
+    /**
+     * Whether a response varies on something no request can match, such as {@code Vary: *}.
+     */
+    public static boolean variesOnEverything(HttpFields responseHeaders) {
+        return varyHeaders(responseHeaders).contains("*");
+    }
+
+    private static SortedSet<String> varyHeaders(HttpFields responseHeaders) {
+        List<String> names = new ArrayList<>();
+        for (String value : responseHeaders.getValuesList(HttpHeader.VARY.asString())) {
+            names.addAll(VARY_SPLITTER.splitToList(value));
+        }
+
+        return lowerCase(names);
+    }
+
+    private String canonicalQueryString(String queryString) {
+        if (queryString == null || queryString.isEmpty()) {
+            return "";
+        }
+
+        List<String> parameters = new ArrayList<>();
+        for (String parameter : QUERY_SPLITTER.split(queryString)) {
+            if (!isIgnored(parameter)) {
+                parameters.add(parameter);
+            }
+        }
+
+        if (sortQueryParameters) {
+            // a stable sort, repeated parameters keep their order
+            Collections.sort(parameters, PARAMETER_ORDER);
+        }
+
+        return QUERY_JOINER.join(parameters);
+    }
+
+    private boolean isIgnored(String parameter) {
+        int separator = parameter.indexOf('=');
+        String name = separator < 0 ? parameter : parameter.substring(0, separator);
+        for (String ignored : ignoredQueryParameters) {
+            if (ignored.endsWith("*") ? name.startsWith(ignored.substring(0, ignored.length() - 1)) : name.equals(ignored)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * The values of the headers as {@code name:value,value\n} lines in the order of the names, missing headers having
+     * no values. Without a request all of them are missing.
+     */
+    private static String canonicalHeaders(HttpServletRequest request, SortedSet<String> names) {
+        if (names.isEmpty()) {
+            return "";
+        }
+
+        StringBuilder builder = new StringBuilder();
+        for (String name : names) {
+            builder.append(name).append(':');
+            Enumeration<String> values = request == null ? null : request.getHeaders(name);
+            if (values == null) {
+                builder.append('\n');
+                continue;
+            }
+
+            boolean first = true;
+            while (values.hasMoreElements()) {
+                if (!first) {
+                    builder.append(',');
+                }
+                builder.append(values.nextElement().trim());
+                first = false;
+            }
+            builder.append('\n');
+        }
+
+        return builder.toString();
+    }
+
+    /**
+     * The lower case names of headers to key on, leaving out the range headers.
+     */
+    static SortedSet<String> keyHeaders(Collection<String> names) {
+        return ImmutableSortedSet.copyOf(Sets.difference(lowerCase(names), RANGE_HEADERS));
+    }
+
+    private static SortedSet<String> lowerCase(Collection<String> names) {
+        ImmutableSortedSet.Builder<String> builder = ImmutableSortedSet.naturalOrder();
+        for (String name : names) {
+            builder.add(name.trim().toLowerCase(Locale.ENGLISH));
+        }
+
+        return builder.build();
+    }
+}
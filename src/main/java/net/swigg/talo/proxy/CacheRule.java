@@ -0,0 +1,207 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Dustin Sweigart
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.swigg.talo.proxy;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableSet;
+
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.SortedSet;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * One rule of the {@link CacheRules}. A rule matches requests by method and path pattern, and responses further by
+ * status and content type, and may decide any of the following about what it matches: whether requests bypass the
+ * cache, the request headers added to their keys, how often they have to be asked for before their responses are
+ * admitted, whether responses are cached and for how long.
+ * <p/>
+ * Bypassing, key headers and admission are decided before there is a response, so rules deciding them can't match on
+ * status or content type.
+ *
+ * @author Dustin Sweigart <dustin@swigg.net>
+ */
+public class CacheRule {
+    static private final Splitter RANGE_SPLITTER = Splitter.on('-').trimResults().limit(2);
+    static private final int MAXIMUM_ADMISSION = 15;
+
+    private final Set<String> methods;
+    private final String path;
+    private final BitSet statuses;
+    private final String contentType;
+    private final Boolean cached;
+    private final long ttl;
+    private final Boolean bypassed;
+    private final SortedSet<String> keyHeaders;
+    private final int admission;
+
+    /**
+     * @param methods     request methods the rule matches, empty for any
+     * @param path        path pattern the rule matches, either an exact path or a prefix followed by {@code *};
+     *                    {@code null} or {@code *} for any
+     * @param statuses    response statuses the rule matches, single ones or ranges such as {@code 200-299}; empty for
+     *                    any
+     * @param contentType content type the rule matches, a trailing {@code *} matches any starting with the rest;
+     *                    {@code null} for any
+     * @param cached      whether matching responses are cached, or {@code null} to leave it to the next rule
+     * @param ttl         milliseconds matching responses are fresh for whatever their headers say, implying they are
+     *                    cached, or negative to leave it to the next rule
+     * @param bypassed    whether matching requests bypass the cache, or {@code null} to leave it to the next rule
+     * @param keyHeaders  request headers added to the keys of matching requests, empty to leave it to the next rule
+     * @param admission   number of times a matching request has to be seen before its response is cached, between
+     *                    1 and 15, or negative to leave it to the next rule
+     */
+    public CacheRule(Collection<String> methods, String path, Collection<String> statuses, String contentType,
+                     Boolean cached, long ttl, Boolean bypassed, Collection<String> keyHeaders, int admission) {
+        String pattern = path == null ? "*" : path.trim();
+        checkArgument(pattern.startsWith("/") || pattern.equals("*"), "Path pattern %s doesn't start with /", pattern);
+        checkArgument(pattern.indexOf('*') < 0 || pattern.indexOf('*') == pattern.length() - 1,
+                "Path pattern %s may only end with *", pattern);
+        checkArgument(ttl < 0 || !Boolean.FALSE.equals(cached), "A rule that doesn't cache responses can't give them a TTL");
+        checkArgument(admission < 0 || (admission >= 1 && admission <= MAXIMUM_ADMISSION),
+                "Admission has to be between 1 and %s", MAXIMUM_ADMISSION);
+
+        ImmutableSet.Builder<String> methodsBuilder = ImmutableSet.builder();
+        for (String method : methods) {
+            methodsBuilder.add(method.trim().toUpperCase(Locale.ENGLISH));
+        }
+        this.methods = methodsBuilder.build();
+        this.path = pattern;
+        this.statuses = statuses.isEmpty() ? null : parseStatuses(statuses);
+        this.contentType = contentType == null || contentType.trim().isEmpty() ? null : contentType.trim();
+        this.cached = cached;
+        this.ttl = ttl;
+        this.bypassed = bypassed;
+        this.keyHeaders = keyHeaders.isEmpty() ? null : CacheKeyPolicy.keyHeaders(keyHeaders);
+        this.admission = admission;
+
+        checkArgument(isDecidingResponses() || this.bypassed != null || this.keyHeaders != null || admission >= 0,
+                "Rule for %s doesn't decide anything", pattern);
+        checkArgument((this.bypassed == null && this.keyHeaders == null && admission < 0) ||
+                (this.statuses == null && this.contentType == null),
+                "Rule for %s decides about requests, so it can't match on status or content type", pattern);
+    }
+
+    private static BitSet parseStatuses(Collection<String> statuses) {
+        BitSet bits = new BitSet(600);
+        for (String status : statuses) {
+            List<String> range = RANGE_SPLITTER.splitToList(status);
+            int from = Integer.parseInt(range.get(0));
+            int to = range.size() < 2 ? from : Integer.parseInt(range.get(1));
+            checkArgument(from >= 100 && from <= to && to <= 599, "Invalid status %s", status);
+            bits.set(from, to + 1);
+        }
+
+        return bits;
+    }
+
+    /**
+     * The path pattern, {@code *} for any path.
+     */
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * Whether the pattern matches paths starting with it rather than only the path itself.
+     */
+    boolean isPrefix() {
+        return path.endsWith("*");
+    }
+
+    /**
+     * The pattern without its trailing {@code *}.
+     */
+    String getPathPrefix() {
+        return isPrefix() ? path.substring(0, path.length() - 1) : path;
+    }
+
+    Set<String> getMethods() {
+        return methods;
+    }
+
+    boolean matchesMethod(String method) {
+        return methods.isEmpty() || methods.contains(method);
+    }
+
+    /**
+     * Whether the status and the media type of the {@code Content-Type} header, if any, match.
+     */
+    boolean matchesResponse(int status, String contentType) {
+        if (statuses != null && !statuses.get(status)) {
+            return false;
+        }
+        if (this.contentType == null) {
+            return true;
+        }
+        if (contentType == null) {
+            return false;
+        }
+
+        if (this.contentType.endsWith("*")) {
+            return contentType.regionMatches(true, 0, this.contentType, 0, this.contentType.length() - 1);
+        }
+
+        // the media type is followed by nothing, parameters or whitespace
+        int length = this.contentType.length();
+        return contentType.regionMatches(true, 0, this.contentType, 0, length) &&
+                (contentType.length() == length || contentType.charAt(length) == ';' || contentType.charAt(length) == ' ');
+    }
+
+    boolean isDecidingResponses() {
+        return cached != null || ttl >= 0;
+    }
+
+    /**
+     * Whether matching responses are cached, or {@code null} if the rule leaves it to the next one.
+     */
+    Boolean getCached() {
+        return cached != null ? cached : (ttl >= 0 ? Boolean.TRUE : null);
+    }
+
+    long getTtl() {
+        return ttl;
+    }
+
+    Boolean getBypassed() {
+        return bypassed;
+    }
+
+    SortedSet<String> getKeyHeaders() {
+        return keyHeaders;
+    }
+
+    int getAdmission() {
+        return admission;
+    }
+
+    @Override
+    public String toString() {
+        return (methods.isEmpty() ? "*" : methods.toString()) + " " + path;
+    }
+}
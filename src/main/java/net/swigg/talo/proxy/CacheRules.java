@@ -0,0 +1,411 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Dustin Sweigart
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.swigg.talo.proxy;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSortedSet;
+import org.apache.commons.configuration.ConfigurationException;
+import org.apache.commons.configuration.HierarchicalConfiguration;
+import org.apache.commons.configuration.XMLConfiguration;
+import org.eclipse.jetty.client.api.Request;
+import org.eclipse.jetty.client.api.Response;
+import org.eclipse.jetty.http.HttpFields;
+import org.eclipse.jetty.http.HttpHeader;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rules deciding how requests and responses are cached, in place of the default of caching successful responses to
+ * GET and HEAD requests for as long as their headers say. Of all rules matching a request the first one in order that
+ * decides something decides it, so specific rules go before general ones.
+ * <p/>
+ * The rules are compiled into a trie of their path patterns that holds, at every node and for every request method,
+ * what the rules matching there decide. Matching a request walks its path once, so it costs the same no matter how
+ * many rules there are. Only the rules that matched the request are looked at again for its response.
+ * <p/>
+ * Rules are read from an XML file such as:
+ * <pre>
+ * &lt;rules&gt;
+ *     &lt;rule&gt;&lt;path&gt;/api/*&lt;/path&gt;&lt;bypass&gt;true&lt;/bypass&gt;&lt;/rule&gt;
+ *     &lt;rule&gt;&lt;path&gt;/products/*&lt;/path&gt;&lt;status&gt;404,410&lt;/status&gt;&lt;ttl&gt;30&lt;/ttl&gt;&lt;/rule&gt;
+ *     &lt;rule&gt;&lt;path&gt;/search&lt;/path&gt;&lt;keyHeader&gt;Accept-Language&lt;/keyHeader&gt;&lt;admission&gt;3&lt;/admission&gt;&lt;/rule&gt;
+ *     &lt;rule&gt;&lt;method&gt;GET&lt;/method&gt;&lt;contentType&gt;image/*&lt;/contentType&gt;&lt;ttl&gt;86400&lt;/ttl&gt;&lt;/rule&gt;
+ * &lt;/rules&gt;
+ * </pre>
+ * Lists are comma separated and TTLs are in seconds.
+ *
+ * @author Dustin Sweigart <dustin@swigg.net>
+ */
+public class CacheRules {
+    /**
+     * The attribute holding the {@link Match} of a request, set on proxy requests so that their responses are
+     * decided by the rules matching the client's request.
+     */
+    static public final String MATCH = "talo.cacheRules";
+    static private final Splitter LIST_SPLITTER = Splitter.on(',').trimResults().omitEmptyStrings();
+
+    private final List<CacheRule> rules;
+    private final Map<String, Integer> methodSlots;
+    private final Node root;
+
+    /**
+     * No rules, so every request gets the default.
+     */
+    public CacheRules() {
+        this(Collections.<CacheRule>emptyList());
+    }
+
+    /**
+     * @param rules the rules in the order they are applied in
+     */
+    public CacheRules(List<CacheRule> rules) {
+        this.rules = ImmutableList.copyOf(rules);
+
+        // every method named by a rule gets a slot, the last one is for all the others
+        Set<String> methods = new LinkedHashSet<>();
+        for (CacheRule rule : rules) {
+            methods.addAll(rule.getMethods());
+        }
+        ImmutableMap.Builder<String, Integer> methodSlots = ImmutableMap.builder();
+        List<String> slotMethods = new ArrayList<>(methods);
+        for (int i = 0; i < slotMethods.size(); i++) {
+            methodSlots.put(slotMethods.get(i), i);
+        }
+        slotMethods.add(null);
+        this.methodSlots = methodSlots.build();
+
+        TrieBuilder trie = new TrieBuilder();
+        for (int i = 0; i < rules.size(); i++) {
+            trie.insert(rules.get(i).getPathPrefix(), rules.get(i).isPrefix(), i);
+        }
+        this.root = trie.compile(new BitSet(), slotMethods, new HashMap<BitSet, Match>());
+    }
+
+    /**
+     * Read the rules of an XML file.
+     */
+    public static CacheRules load(File file) throws ConfigurationException {
+        // lists are split here, splitting them while loading loses the elements following them
+        XMLConfiguration configuration = new XMLConfiguration();
+        configuration.setDelimiterParsingDisabled(true);
+        configuration.load(file);
+
+        List<CacheRule> rules = new ArrayList<>();
+        for (HierarchicalConfiguration rule : configuration.configurationsAt("rule")) {
+            long ttl = rule.getLong("ttl", -1L);
+            try {
+                rules.add(new CacheRule(list(rule, "method"), rule.getString("path"), list(rule, "status"),
+                        rule.getString("contentType"), rule.getBoolean("cache", null),
+                        ttl < 0 ? -1 : TimeUnit.SECONDS.toMillis(ttl), rule.getBoolean("bypass", null),
+                        list(rule, "keyHeader"), rule.getInt("admission", -1)));
+            } catch (IllegalArgumentException e) {
+                throw new ConfigurationException("Rule " + (rules.size() + 1) + " of " + file + " is invalid: " + e.getMessage(), e);
+            }
+        }
+
+        return new CacheRules(rules);
+    }
+
+    /**
+     * The values of every element with the name, each a comma separated list.
+     */
+    private static List<String> list(HierarchicalConfiguration rule, String name) {
+        List<String> values = new ArrayList<>();
+        for (String value : rule.getStringArray(name)) {
+            values.addAll(LIST_SPLITTER.splitToList(value));
+        }
+
+        return values;
+    }
+
+    public List<CacheRule> getRules() {
+        return rules;
+    }
+
+    /**
+     * Whether some rule asks for responses to be requested more than once before they are cached.
+     */
+    public boolean isAdmissionRequired() {
+        for (CacheRule rule : rules) {
+            if (rule.getAdmission() > 1) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * What the rules decide for a request.
+     *
+     * @param path the path of the request, without its query string
+     */
+    public Match match(String method, String path) {
+        Integer methodSlot = methodSlots.get(method);
+        int slot = methodSlot == null ? methodSlots.size() : methodSlot;
+
+        Node node = root;
+        Match[] matches = root.prefixMatches;
+        for (int i = 0; i < path.length(); i++) {
+            node = node.child(path.charAt(i));
+            if (node == null) {
+                return matches[slot];
+            }
+            matches = node.prefixMatches;
+        }
+
+        return node.exactMatches[slot];
+    }
+
+    /**
+     * What the rules matching the client's request decide for the response to a proxy request.
+     */
+    static Match matchOf(Request proxyRequest) {
+        Match match = (Match) proxyRequest.getAttributes().get(MATCH);
+        return match == null ? Match.DEFAULT : match;
+    }
+
+    /**
+     * Whether the response to a proxy request may be cached as far as the rules are concerned.
+     */
+    public static boolean isCached(Response response) {
+        return matchOf(response.getRequest()).isCached(response.getStatus(), response.getHeaders().get(HttpHeader.CONTENT_TYPE));
+    }
+
+    /**
+     * Milliseconds the rules keep a response to a proxy request fresh for, or {@code -1} if its headers decide.
+     */
+    public static long ttl(Response response) {
+        return ttl(response.getRequest(), response.getStatus(), response.getHeaders());
+    }
+
+    /**
+     * Milliseconds the rules keep a response with the status and headers fresh for, or {@code -1} if its headers
+     * decide, such as after a {@code 304} refreshed the headers of the stored response.
+     */
+    public static long ttl(Request proxyRequest, int status, HttpFields headers) {
+        return matchOf(proxyRequest).ttl(status, headers.get(HttpHeader.CONTENT_TYPE));
+    }
+
+    /**
+     * What the rules matching a request decide. Instances are shared by every request matching the same rules.
+     */
+    public static class Match {
+        static final Match DEFAULT = new Match(Collections.<CacheRule>emptyList());
+
+        private final boolean bypassed;
+        private final SortedSet<String> keyHeaders;
+        private final int admission;
+        private final CacheRule[] responseRules;
+
+        Match(List<CacheRule> rules) {
+            Boolean bypassed = null;
+            SortedSet<String> keyHeaders = null;
+            int admission = -1;
+            List<CacheRule> responseRules = new ArrayList<>();
+            for (CacheRule rule : rules) {
+                if (bypassed == null) {
+                    bypassed = rule.getBypassed();
+                }
+                if (keyHeaders == null) {
+                    keyHeaders = rule.getKeyHeaders();
+                }
+                if (admission < 0) {
+                    admission = rule.getAdmission();
+                }
+                if (rule.isDecidingResponses()) {
+                    responseRules.add(rule);
+                }
+            }
+
+            this.bypassed = bypassed != null && bypassed;
+            this.keyHeaders = keyHeaders != null ? keyHeaders : ImmutableSortedSet.<String>of();
+            this.admission = admission;
+            this.responseRules = responseRules.toArray(new CacheRule[responseRules.size()]);
+        }
+
+        /**
+         * Whether the request goes straight to the target application.
+         */
+        public boolean isBypassed() {
+            return bypassed;
+        }
+
+        /**
+         * Request headers that are part of the key on top of the ones every key has.
+         */
+        public SortedSet<String> getKeyHeaders() {
+            return keyHeaders;
+        }
+
+        /**
+         * Number of times the request has to be seen before its response is cached, or {@code -1} for the default.
+         */
+        public int getAdmission() {
+            return admission;
+        }
+
+        /**
+         * Whether a response with the status and {@code Content-Type} is cached. Without a rule deciding, successful
+         * responses are. A {@code 304} is only ever an answer to a conditional request and never cached.
+         */
+        public boolean isCached(int status, String contentType) {
+            if (status == 304) {
+                return false;
+            }
+            for (CacheRule rule : responseRules) {
+                Boolean cached = rule.getCached();
+                if (cached != null && rule.matchesResponse(status, contentType)) {
+                    return cached;
+                }
+            }
+
+            return status >= 200 && status <= 399;
+        }
+
+        /**
+         * Milliseconds a response with the status and {@code Content-Type} is fresh for, or {@code -1} if its
+         * headers decide.
+         */
+        public long ttl(int status, String contentType) {
+            for (CacheRule rule : responseRules) {
+                if (rule.getTtl() >= 0 && rule.matchesResponse(status, contentType)) {
+                    return rule.getTtl();
+                }
+            }
+
+            return -1;
+        }
+    }
+
+    /**
+     * A node of the compiled trie. What the rules decide is kept per method slot, for paths continuing past the node
+     * and for paths ending at it.
+     */
+    private static class Node {
+        private final char[] labels;
+        private final Node[] children;
+        private final Match[] prefixMatches;
+        private final Match[] exactMatches;
+
+        Node(char[] labels, Node[] children, Match[] prefixMatches, Match[] exactMatches) {
+            this.labels = labels;
+            this.children = children;
+            this.prefixMatches = prefixMatches;
+            this.exactMatches = exactMatches;
+        }
+
+        Node child(char c) {
+            int index = Arrays.binarySearch(labels, c);
+            return index < 0 ? null : children[index];
+        }
+    }
+
+    /**
+     * The trie while the rules are added to it.
+     */
+    private class TrieBuilder {
+        private final TreeMap<Character, TrieBuilder> children = new TreeMap<>();
+        private final BitSet prefixRules = new BitSet();
+        private final BitSet exactRules = new BitSet();
+
+        void insert(String path, boolean prefix, int rule) {
+            TrieBuilder node = this;
+            for (int i = 0; i < path.length(); i++) {
+                TrieBuilder child = node.children.get(path.charAt(i));
+                if (child == null) {
+                    child = new TrieBuilder();
+                    node.children.put(path.charAt(i), child);
+                }
+                node = child;
+            }
+
+            (prefix ? node.prefixRules : node.exactRules).set(rule);
+        }
+
+        /**
+         * @param inherited the prefix rules of the nodes above, which match everything below them too
+         * @param matches   matches already built for a set of rules, so that nodes matching the same rules share them
+         */
+        Node compile(BitSet inherited, List<String> slotMethods, Map<BitSet, Match> matches) {
+            BitSet prefix = (BitSet) inherited.clone();
+            prefix.or(prefixRules);
+            BitSet exact = (BitSet) prefix.clone();
+            exact.or(exactRules);
+
+            char[] labels = new char[children.size()];
+            Node[] nodes = new Node[children.size()];
+            int i = 0;
+            for (Map.Entry<Character, TrieBuilder> child : children.entrySet()) {
+                labels[i] = child.getKey();
+                nodes[i] = child.getValue().compile(prefix, slotMethods, matches);
+                i++;
+            }
+
+            return new Node(labels, nodes, matches(prefix, slotMethods, matches), matches(exact, slotMethods, matches));
+        }
+
+        private Match[] matches(BitSet candidates, List<String> slotMethods, Map<BitSet, Match> matches) {
+            Match[] slots = new Match[slotMethods.size()];
+            for (int slot = 0; slot < slots.length; slot++) {
+                // the slot of all other methods only matches rules that don't name any
+                String method = slotMethods.get(slot);
+                BitSet matching = new BitSet();
+                for (int rule = candidates.nextSetBit(0); rule >= 0; rule = candidates.nextSetBit(rule + 1)) {
+                    CacheRule cacheRule = rules.get(rule);
+                    if (method == null ? cacheRule.getMethods().isEmpty() : cacheRule.matchesMethod(method)) {
+                        matching.set(rule);
+                    }
+                }
+
+                Match match = matches.get(matching);
+                if (match == null) {
+                    List<CacheRule> matchingRules = new ArrayList<>();
+                    for (int rule = matching.nextSetBit(0); rule >= 0; rule = matching.nextSetBit(rule + 1)) {
+                        matchingRules.add(rules.get(rule));
+                    }
+                    match = matchingRules.isEmpty() ? Match.DEFAULT : new Match(matchingRules);
+                    matches.put(matching, match);
+                }
+                slots[slot] = match;
+            }
+
+            return slots;
+        }
+    }
+}
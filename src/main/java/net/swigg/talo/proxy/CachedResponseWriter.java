@@ -0,0 +1,387 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Dustin Sweigart
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package net.swigg.talo.proxy;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import net.swigg.talo.metrics.CacheMetrics;
+import org.eclipse.jetty.http.HttpField;
+import org.eclipse.jetty.http.HttpHeader;
+import org.eclipse.jetty.server.HttpOutput;
+import org.eclipse.jetty.util.Callback;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Writes a cached response to the client once its future completes. Nothing blocks: the request is suspended while
+ * the future is pending, the write starts from the thread completing the future and the body is handed to Jetty
+ * asynchronously, so waiting clients don't hold on to threads. How long a client waits and what happens when the fetch
+ * it waits on fails is up to the {@link CollapsingPolicy}.
+ *
+ * @author Dustin Sweigart <dustin@swigg.net>
+ */
+class CachedResponseWriter implements Runnable, Callback, WriteListener, AsyncListener {
+    static private final Logger LOGGER = LoggerFactory.getLogger(CachedResponseWriter.class);
+
+    static private final int WAITING = 0;
+    static private final int WRITING = 1;
+    static private final int DONE    = 2;
+
+    static private final int CHUNK_SIZE = 8 * 1024;
+
+    private final ListenableFuture<ResponseHolder> future;
+    private final HttpServletRequest request;
+    private final HttpServletResponse response;
+    private final AsyncContext asyncContext;
+    private final CollapsingPolicy collapsingPolicy;
+    private final CacheMetrics metrics;
+    private final AtomicInteger state = new AtomicInteger(WAITING);
+
+    private volatile ScheduledFuture<?> giveUp;
+
+    private ResponseHolder responseHolder;
+    private ServletOutputStream outputStream;
+    private Queue<ByteBuffer> remaining;
+    private long waitStart;
+    private long writeStart;
+    private int served;
+
+    CachedResponseWriter(ListenableFuture<ResponseHolder> future, HttpServletRequest request, HttpServletResponse response,
+                         CollapsingPolicy collapsingPolicy, CacheMetrics metrics) {
+        this(future, request, response, request.startAsync(), collapsingPolicy, metrics);
+
+        // waits are bounded by the collapsing policy and writes by the connection's idle timeout
+        asyncContext.setTimeout(0);
+    }
+
+    /**
+     * Take over a request that was already suspended by somebody else.
+     */
+    CachedResponseWriter(ListenableFuture<ResponseHolder> future, HttpServletRequest request, HttpServletResponse response,
+                         AsyncContext asyncContext, CollapsingPolicy collapsingPolicy, CacheMetrics metrics) {
+        this.future = future;
+        this.request = request;
+        this.response = response;
+        this.asyncContext = asyncContext;
+        this.collapsingPolicy = collapsingPolicy;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Suspend the request until the future completes. Returns right away, the response is written from whichever
+     * thread completes the future, or from this one if it already has.
+     */
+    void start() {
+        asyncContext.addListener(this);
+        if (!future.isDone()) {
+            waitStart = System.nanoTime();
+            giveUp = collapsingPolicy.scheduleGiveUp(new Runnable() {
+                @Override
+                public void run() {
+                    if (state.compareAndSet(WAITING, DONE)) {
+                        // waited long enough, go to the target application without the cache
+                        collapsingPolicy.bypass(request);
+                        asyncContext.dispatch();
+                    }
+                }
+            });
+        }
+        future.addListener(this, MoreExecutors.sameThreadExecutor());
+    }
+
+    @Override
+    public void run() {
+        if (!state.compareAndSet(WAITING, WRITING)) {
+            // the request gave up or the client went away while waiting
+            return;
+        }
+
+        ScheduledFuture<?> giveUp = this.giveUp;
+        if (giveUp != null) {
+            giveUp.cancel(false);
+        }
+        if (waitStart != 0) {
+            metrics.coalescingWait.recordSince(waitStart);
+        }
+        writeStart = System.nanoTime();
+
+        try {
+            responseHolder = future.get();
+        } catch (InterruptedException | ExecutionException e) {
+            LOGGER.debug("Fetching {} failed.", request.getRequestURI(), e.getCause());
+            if (e.getCause() instanceof UncachedResponseException) {
+                // the response is streamed to whoever fetched it but not kept, go to the target application directly
+                collapsingPolicy.bypass(request);
+                if (state.compareAndSet(WRITING, DONE)) {
+                    asyncContext.dispatch();
+                }
+                return;
+            }
+            if (collapsingPolicy.promote(request)) {
+                // go through the cache again, the first to get there fetches for everybody else
+                if (state.compareAndSet(WRITING, DONE)) {
+                    asyncContext.dispatch();
+                }
+                return;
+            }
+
+            response.setStatus(HttpServletResponse.SC_BAD_GATEWAY);
+            finish();
+            return;
+        }
+
+        if (!responseHolder.retain()) {
+            // the body was freed after we found the entry, go through the cache again
+            responseHolder = null;
+            if (state.compareAndSet(WRITING, DONE)) {
+                asyncContext.dispatch();
+            }
+            return;
+        }
+
+        try {
+            write();
+        } catch (IOException | RuntimeException e) {
+            LOGGER.error("Error writing cached response.", e);
+            finish();
+        }
+    }
+
+    private void write() throws IOException {
+        String age = Long.toString(responseHolder.getFreshness().ageAt(System.currentTimeMillis()));
+        if (ConditionalRequests.isNotModified(request, responseHolder)) {
+            // the client's copy is current, only send what it needs to update it
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            for (HttpField httpField : responseHolder.getHeaders()) {
+                if (ConditionalRequests.isNotModifiedHeader(httpField)) {
+                    response.addHeader(httpField.getName(), httpField.getValue());
+                }
+            }
+            response.setHeader(HttpHeader.AGE.asString(), age);
+            metrics.notModified.increment();
+            finish();
+            return;
+        }
+
+        // ranges are of the body as received, otherwise pick a stored encoding the client accepts
+        List<ByteRanges.Range> ranges = ByteRanges.satisfiable(request, responseHolder.getStatus(),
+                responseHolder.getHeaders(), responseHolder.getContentLength());
+        if (ranges != null) {
+            writeRanges(ranges, age);
+            return;
+        }
+
+        Set<String> encodings = responseHolder.getEncodings();
+        String encoding = Compressor.negotiate(request.getHeader(HttpHeader.ACCEPT_ENCODING.asString()), encodings);
+
+        response.setStatus(responseHolder.getStatus());
+        addHeaders(encoding, false);
+        response.setContentLength(responseHolder.getContentLength(encoding));
+        response.setHeader(HttpHeader.AGE.asString(), age);
+
+        if (request.getMethod().equals("HEAD")) {
+            finish();
+            return;
+        }
+
+        served = responseHolder.getContentLength(encoding);
+        send(Collections.singletonList(responseHolder.getBody(encoding)));
+    }
+
+    /**
+     * Write a 206 with the single range or a {@code multipart/byteranges} body with each of them, or a 416 if there
+     * are none.
+     */
+    private void writeRanges(List<ByteRanges.Range> ranges, String age) throws IOException {
+        int length = responseHolder.getContentLength();
+        if (ranges.isEmpty()) {
+            response.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+            response.setHeader(HttpHeader.CONTENT_RANGE.asString(), "bytes */" + length);
+            response.setContentLength(0);
+            finish();
+            return;
+        }
+
+        response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        List<ByteBuffer> body;
+        if (ranges.size() == 1) {
+            addHeaders(null, false);
+            response.setHeader(HttpHeader.CONTENT_RANGE.asString(), ranges.get(0).contentRange(length));
+            body = Collections.singletonList(ByteRanges.slice(responseHolder.getBody(), ranges.get(0)));
+        } else {
+            addHeaders(null, true);
+            String boundary = ByteRanges.boundary();
+            body = ByteRanges.multipart(responseHolder.getBody(), ranges,
+                    responseHolder.getHeaders().get(HttpHeader.CONTENT_TYPE), boundary);
+            response.setHeader(HttpHeader.CONTENT_TYPE.asString(), "multipart/byteranges; boundary=" + boundary);
+        }
+        served = ByteRanges.length(body);
+        response.setContentLength(served);
+        response.setHeader(HttpHeader.AGE.asString(), age);
+
+        send(body);
+    }
+
+    /**
+     * Copy the stored headers to the response, adjusted for the encoding the body is sent in.
+     *
+     * @param multipart whether the body is made of parts with their own content type
+     */
+    private void addHeaders(String encoding, boolean multipart) {
+        Set<String> encodings = responseHolder.getEncodings();
+        boolean varied = false;
+        for (HttpField httpField : responseHolder.getHeaders()) {
+            String value = httpField.getValue();
+            if (httpField.getHeader() == HttpHeader.VARY && !encodings.isEmpty()) {
+                varied = true;
+                if (!value.toLowerCase(Locale.ENGLISH).contains("accept-encoding")) {
+                    value = value + ", Accept-Encoding";
+                }
+            } else if (httpField.getHeader() == HttpHeader.ETAG && encoding != null && !value.startsWith("W/")) {
+                // the encoded body is a different representation, it can't share a strong validator
+                value = "W/" + value;
+            } else if (httpField.getHeader() == HttpHeader.CONTENT_TYPE && multipart) {
+                continue;
+            }
+
+            response.addHeader(httpField.getName(), value);
+        }
+        if (!encodings.isEmpty() && !varied) {
+            response.addHeader(HttpHeader.VARY.asString(), HttpHeader.ACCEPT_ENCODING.asString());
+        }
+        if (encoding != null) {
+            response.setHeader(HttpHeader.CONTENT_ENCODING.asString(), encoding);
+        }
+        if (responseHolder.getStatus() == 200 && !responseHolder.getHeaders().containsKey(HttpHeader.ACCEPT_RANGES.asString())) {
+            response.setHeader(HttpHeader.ACCEPT_RANGES.asString(), "bytes");
+        }
+    }
+
+    private void send(List<ByteBuffer> body) throws IOException {
+        outputStream = response.getOutputStream();
+        if (outputStream instanceof HttpOutput && body.size() == 1) {
+            // straight to the socket without copying or encoding, calling back once written; this ends the response,
+            // so bodies made of parts are written as the client takes them instead
+            ((HttpOutput) outputStream).sendContent(body.get(0), this);
+            return;
+        }
+
+        remaining = new ArrayDeque<>(body);
+        outputStream.setWriteListener(this);
+    }
+
+    /**
+     * Finish the response and give up the body, at most once.
+     */
+    private void finish() {
+        if (!state.compareAndSet(WRITING, DONE)) {
+            return;
+        }
+
+        if (responseHolder != null) {
+            responseHolder.release();
+        }
+        metrics.servedBytes.add(served);
+        metrics.write.recordSince(writeStart);
+        asyncContext.complete();
+    }
+
+    @Override
+    public void succeeded() {
+        finish();
+    }
+
+    @Override
+    public void failed(Throwable x) {
+        LOGGER.debug("Writing cached response for {} failed.", request.getRequestURI(), x);
+        finish();
+    }
+
+    @Override
+    public void onWritePossible() throws IOException {
+        byte[] chunk = new byte[Math.min(CHUNK_SIZE, served)];
+        while (outputStream.isReady()) {
+            ByteBuffer buffer = remaining.peek();
+            if (buffer == null) {
+                finish();
+                return;
+            }
+            if (!buffer.hasRemaining()) {
+                remaining.poll();
+                continue;
+            }
+
+            int length = Math.min(chunk.length, buffer.remaining());
+            buffer.get(chunk, 0, length);
+            outputStream.write(chunk, 0, length);
+        }
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        failed(t);
+    }
+
+    @Override
+    public void onTimeout(AsyncEvent event) throws IOException {
+        if (state.compareAndSet(WAITING, DONE)) {
+            response.setStatus(HttpServletResponse.SC_GATEWAY_TIMEOUT);
+            asyncContext.complete();
+        }
+    }
+
+    @Override
+    public void onError(AsyncEvent event) throws IOException {
+        // nothing to write to any more, a pending write fails on its own
+        state.compareAndSet(WAITING, DONE);
+    }
+
+    @Override
+    public void onComplete(AsyncEvent event) throws IOException {
+    }
+
+    @Override
+    public void onStartAsync(AsyncEvent event) throws IOException {
+    }
+}
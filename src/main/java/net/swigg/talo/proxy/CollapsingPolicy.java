@@ -0,0 +1,115 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Dustin Sweigart
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package net.swigg.talo.proxy;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import javax.servlet.http.HttpServletRequest;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * How requests collapsed onto a fetch that is already running behave when it takes too long or fails. A waiter gives
+ * up after a maximum wait and goes to the target application on its own. When the fetch fails, waiters go through the
+ * cache again so that the first of them becomes the new fetcher and the rest wait on it; a waiter that already did so
+ * as often as allowed gets the failure instead.
+ *
+ * @author Dustin Sweigart <dustin@swigg.net>
+ */
+public class CollapsingPolicy {
+    static private final long DEFAULT_MAXIMUM_WAIT = TimeUnit.SECONDS.toMillis(30);
+    static private final int DEFAULT_MAXIMUM_RETRIES = 1;
+
+    static private final String RETRIES_ATTRIBUTE = "collapsedRetries";
+    static private final String BYPASS_ATTRIBUTE = "collapsedBypass";
+
+    private final long maximumWait;
+    private final int maximumRetries;
+    private final ScheduledThreadPoolExecutor scheduler;
+
+    public CollapsingPolicy() {
+        this(DEFAULT_MAXIMUM_WAIT, DEFAULT_MAXIMUM_RETRIES);
+    }
+
+    /**
+     * @param maximumWait    milliseconds a request waits on somebody else's fetch, 0 to wait as long as it takes
+     * @param maximumRetries number of times a request whose fetch failed goes through the cache again
+     */
+    public CollapsingPolicy(long maximumWait, int maximumRetries) {
+        checkArgument(maximumWait >= 0);
+        checkArgument(maximumRetries >= 0);
+
+        this.maximumWait = maximumWait;
+        this.maximumRetries = maximumRetries;
+        this.scheduler = new ScheduledThreadPoolExecutor(1,
+                new ThreadFactoryBuilder().setNameFormat("talo-collapsing-%d").setDaemon(true).build());
+        this.scheduler.setRemoveOnCancelPolicy(true);
+    }
+
+    /**
+     * Run the task once a waiter waited as long as it may.
+     *
+     * @return the scheduled task, to be cancelled once the wait is over, or {@code null} if waits are unbounded
+     */
+    public ScheduledFuture<?> scheduleGiveUp(Runnable task) {
+        if (maximumWait == 0) {
+            return null;
+        }
+
+        return scheduler.schedule(task, maximumWait, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Whether a waiter whose fetch failed may go through the cache again, counting the attempt.
+     */
+    public boolean promote(HttpServletRequest request) {
+        Integer retries = (Integer) request.getAttribute(RETRIES_ATTRIBUTE);
+        int attempt = retries == null ? 1 : retries + 1;
+        if (attempt > maximumRetries) {
+            return false;
+        }
+
+        request.setAttribute(RETRIES_ATTRIBUTE, attempt);
+        return true;
+    }
+
+    /**
+     * Have the request skip the cache when it is dispatched again.
+     */
+    public void bypass(HttpServletRequest request) {
+        request.setAttribute(BYPASS_ATTRIBUTE, Boolean.TRUE);
+    }
+
+    public boolean isBypassed(HttpServletRequest request) {
+        return request.getAttribute(BYPASS_ATTRIBUTE) != null;
+    }
+
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+}
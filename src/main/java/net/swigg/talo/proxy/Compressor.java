@@ -0,0 +1,262 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Dustin Sweigart
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package net.swigg.talo.proxy;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import net.swigg.talo.cache.BodyStore;
+import net.swigg.talo.cache.CacheStore;
+import net.swigg.talo.cache.StoredBody;
+import org.eclipse.jetty.http.HttpHeader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Compresses cacheable text responses once, in the background, and stores each content coding next to the body as
+ * received so hits can be served compressed without compressing on the fly. Work that doesn't fit the bounded queue
+ * is skipped; the response is then simply served as received.
+ *
+ * @author Dustin Sweigart <dustin@swigg.net>
+ */
+public class Compressor {
+    static private final Logger LOGGER = LoggerFactory.getLogger(Compressor.class);
+
+    static public final String GZIP = "gzip";
+    static public final String DEFLATE = "deflate";
+
+    static private final int QUEUE_SIZE = 1024;
+    static private final int COPY_BUFFER_SIZE = 8 * 1024;
+    static private final Splitter LIST_SPLITTER = Splitter.on(',').trimResults().omitEmptyStrings();
+    static private final Splitter PARAMETER_SPLITTER = Splitter.on(';').trimResults();
+
+    static private final List<String> COMPRESSIBLE_TYPES = ImmutableList.of(
+            "text/", "application/json", "application/javascript", "application/x-javascript", "application/xml",
+            "application/xhtml+xml", "application/rss+xml", "application/atom+xml", "image/svg+xml");
+
+    private final CacheStore<RequestIdentity, SettableFuture<ResponseHolder>> cache;
+    private final BodyStore bodyStore;
+    private final List<String> encodings;
+    private final int minimumSize;
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * @param encodings   content codings to store, in order of preference, out of {@code gzip} and {@code deflate}
+     * @param minimumSize bodies smaller than this many bytes are not worth compressing
+     * @param threads     number of threads to compress with
+     */
+    public Compressor(CacheStore<RequestIdentity, SettableFuture<ResponseHolder>> cache, BodyStore bodyStore,
+                      Collection<String> encodings, int minimumSize, int threads) {
+        checkArgument(threads > 0);
+        for (String encoding : encodings) {
+            checkArgument(encoding.equals(GZIP) || encoding.equals(DEFLATE), "Unsupported content coding %s", encoding);
+        }
+
+        this.cache = cache;
+        this.bodyStore = bodyStore;
+        this.encodings = ImmutableList.copyOf(encodings);
+        this.minimumSize = minimumSize;
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(QUEUE_SIZE),
+                new ThreadFactoryBuilder().setNameFormat("talo-compressor-%d").setDaemon(true).build());
+    }
+
+    /**
+     * Queue the response the entry completed with to be compressed, if it is worth it.
+     */
+    public void compress(final RequestIdentity key, final SettableFuture<ResponseHolder> entry) {
+        final ResponseHolder responseHolder = completedResponse(entry);
+        if (responseHolder == null || !isCompressible(responseHolder) || !responseHolder.retain()) {
+            return;
+        }
+
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        encode(responseHolder);
+
+                        // weigh the entry again with its encodings, they go with the holder if it was dropped meanwhile
+                        cache.replace(key, entry, entry);
+                    } finally {
+                        responseHolder.release();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            responseHolder.release();
+        }
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    private void encode(ResponseHolder responseHolder) {
+        for (String encoding : encodings) {
+            if (responseHolder.getEncodings().contains(encoding)) {
+                continue;
+            }
+
+            try {
+                byte[] encoded = encode(responseHolder.getBody(), encoding);
+                if (encoded.length >= responseHolder.getContentLength()) {
+                    // incompressible, the other codings won't do any better
+                    return;
+                }
+
+                StoredBody stored = bodyStore.store(ByteBuffer.wrap(encoded));
+                if (stored != null && !responseHolder.addEncoding(encoding, stored)) {
+                    stored.release();
+                }
+            } catch (IOException | RuntimeException e) {
+                LOGGER.debug("Unable to compress response with {}.", encoding, e);
+            }
+        }
+    }
+
+    private static byte[] encode(ByteBuffer body, String encoding) throws IOException {
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream(Math.max(64, body.remaining() / 4));
+        OutputStream outputStream = encoding.equals(GZIP) ? new GZIPOutputStream(encoded) : new DeflaterOutputStream(encoded);
+        byte[] buffer = new byte[COPY_BUFFER_SIZE];
+        while (body.hasRemaining()) {
+            int length = Math.min(buffer.length, body.remaining());
+            body.get(buffer, 0, length);
+            outputStream.write(buffer, 0, length);
+        }
+        outputStream.close();
+
+        return encoded.toByteArray();
+    }
+
+    private boolean isCompressible(ResponseHolder responseHolder) {
+        if (responseHolder.getStatus() != 200 || responseHolder.getContentLength() < minimumSize) {
+            return false;
+        }
+
+        String contentEncoding = responseHolder.getHeaders().get(HttpHeader.CONTENT_ENCODING);
+        if (contentEncoding != null && !contentEncoding.equalsIgnoreCase("identity")) {
+            return false;
+        }
+
+        // no-transform may be in any of the Cache-Control fields
+        for (String cacheControl : responseHolder.getHeaders().getValuesList(HttpHeader.CACHE_CONTROL.asString())) {
+            if (cacheControl.toLowerCase(Locale.ENGLISH).contains("no-transform")) {
+                return false;
+            }
+        }
+
+        String contentType = responseHolder.getHeaders().get(HttpHeader.CONTENT_TYPE);
+        if (contentType == null) {
+            return false;
+        }
+
+        contentType = contentType.toLowerCase(Locale.ENGLISH);
+        for (String compressibleType : COMPRESSIBLE_TYPES) {
+            if (contentType.startsWith(compressibleType)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Pick the content coding to answer with out of those available, following the client's {@code Accept-Encoding}.
+     *
+     * @return the coding, or {@code null} to send the body as received
+     */
+    public static String negotiate(String acceptEncoding, Set<String> available) {
+        if (acceptEncoding == null || available.isEmpty()) {
+            return null;
+        }
+
+        String chosen = null;
+        float chosenQuality = 0;
+        float wildcardQuality = -1;
+        for (String coding : LIST_SPLITTER.split(acceptEncoding)) {
+            List<String> parts = PARAMETER_SPLITTER.splitToList(coding);
+            String name = parts.get(0).toLowerCase(Locale.ENGLISH);
+            float quality = quality(parts);
+            if (name.equals("*")) {
+                wildcardQuality = quality;
+            } else if (available.contains(name) && quality > chosenQuality) {
+                chosen = name;
+                chosenQuality = quality;
+            }
+        }
+
+        if (chosen == null && wildcardQuality > 0) {
+            chosen = available.iterator().next();
+        }
+
+        return chosen;
+    }
+
+    private static float quality(List<String> parameters) {
+        for (String parameter : parameters.subList(1, parameters.size())) {
+            if (parameter.startsWith("q=") || parameter.startsWith("Q=")) {
+                try {
+                    return Float.parseFloat(parameter.substring(2));
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
+        }
+
+        return 1;
+    }
+
+    private static ResponseHolder completedResponse(SettableFuture<ResponseHolder> entry) {
+        if (!entry.isDone() || entry.isCancelled()) {
+            return null;
+        }
+
+        try {
+            return entry.get();
+        } catch (InterruptedException | ExecutionException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Dustin Sweigart
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package net.swigg.talo.proxy;
+
+import com.google.common.collect.ImmutableSet;
+import org.eclipse.jetty.client.api.Request;
+import org.eclipse.jetty.http.HttpField;
+import org.eclipse.jetty.http.HttpFields;
+import org.eclipse.jetty.http.HttpHeader;
+
+import javax.servlet.http.HttpServletRequest;
+import java.util.Set;
+
+/**
+ * Helpers for conditional requests, both the ones the cache makes to revalidate stale responses and the ones clients
+ * make against the cache.
+ *
+ * @author Dustin Sweigart <dustin@swigg.net>
+ */
+public final class ConditionalRequests {
+    /**
+     * Headers that make a request conditional on the state of the client's own copy.
+     */
+    static public final Set<HttpHeader> CONDITIONAL_HEADERS = ImmutableSet.of(
+            HttpHeader.IF_NONE_MATCH, HttpHeader.IF_MODIFIED_SINCE, HttpHeader.IF_MATCH, HttpHeader.IF_UNMODIFIED_SINCE);
+
+    /**
+     * Headers sent along with a 304 so the client can update its copy.
+     */
+    static private final Set<HttpHeader> NOT_MODIFIED_HEADERS = ImmutableSet.of(
+            HttpHeader.CACHE_CONTROL, HttpHeader.CONTENT_LOCATION, HttpHeader.DATE, HttpHeader.ETAG,
+            HttpHeader.EXPIRES, HttpHeader.LAST_MODIFIED, HttpHeader.VARY);
+
+    /**
+     * Headers of a 304 that must not replace the stored ones.
+     */
+    static private final Set<HttpHeader> FRAMING_HEADERS = ImmutableSet.of(
+            HttpHeader.CONTENT_LENGTH, HttpHeader.TRANSFER_ENCODING, HttpHeader.CONTENT_ENCODING,
+            HttpHeader.CONNECTION, HttpHeader.KEEP_ALIVE, HttpHeader.AGE);
+
+    private ConditionalRequests() {
+    }
+
+    /**
+     * Whether the stored response has an {@code ETag} or {@code Last-Modified} to revalidate with.
+     */
+    public static boolean hasValidators(ResponseHolder responseHolder) {
+        HttpFields headers = responseHolder.getHeaders();
+        return headers.containsKey(HttpHeader.ETAG.asString()) || headers.containsKey(HttpHeader.LAST_MODIFIED.asString());
+    }
+
+    /**
+     * Make the request to the target application conditional on the stored response's validators.
+     */
+    public static void addValidators(Request proxyRequest, ResponseHolder responseHolder) {
+        String etag = responseHolder.getHeaders().get(HttpHeader.ETAG);
+        if (etag != null) {
+            proxyRequest.header(HttpHeader.IF_NONE_MATCH, etag);
+        }
+
+        String lastModified = responseHolder.getHeaders().get(HttpHeader.LAST_MODIFIED);
+        if (lastModified != null) {
+            proxyRequest.header(HttpHeader.IF_MODIFIED_SINCE, lastModified);
+        }
+    }
+
+    /**
+     * Drop the client's conditional headers so the target application answers with the full response.
+     */
+    public static void removeConditionalHeaders(Request proxyRequest) {
+        for (HttpHeader header : CONDITIONAL_HEADERS) {
+            proxyRequest.getHeaders().remove(header);
+        }
+    }
+
+    /**
+     * The stored headers updated with the ones from a 304 response, as required when a revalidation succeeds.
+     */
+    public static HttpFields mergeHeaders(HttpFields stored, HttpFields notModified) {
+        HttpFields merged = new HttpFields();
+        for (HttpField httpField : stored) {
+            if (!notModified.containsKey(httpField.getName()) || FRAMING_HEADERS.contains(httpField.getHeader())) {
+                merged.add(httpField);
+            }
+        }
+
+        for (HttpField httpField : notModified) {
+            if (!FRAMING_HEADERS.contains(httpField.getHeader())) {
+                merged.add(httpField);
+            }
+        }
+
+        return merged;
+    }
+
+    /**
+     * Whether the client's copy matches the cached response, so that a 304 can be sent instead of the body.
+     * {@code If-None-Match} takes precedence over {@code If-Modified-Since}.
+     */
+    public static boolean isNotModified(HttpServletRequest request, ResponseHolder responseHolder) {
+        if (responseHolder.getStatus() != 200) {
+            return false;
+        }
+
+        HttpFields headers = responseHolder.getHeaders();
+        String ifNoneMatch = request.getHeader(HttpHeader.IF_NONE_MATCH.asString());
+        if (ifNoneMatch != null) {
+            String etag = headers.get(HttpHeader.ETAG);
+            if (etag == null) {
+                return false;
+            }
+
+            for (String candidate : ifNoneMatch.split(",")) {
+                candidate = candidate.trim();
+                if (candidate.equals("*") || weakTag(candidate).equals(weakTag(etag))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        long ifModifiedSince;
+        try {
+            ifModifiedSince = request.getDateHeader(HttpHeader.IF_MODIFIED_SINCE.asString());
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+
+        long lastModified = headers.getDateField(HttpHeader.LAST_MODIFIED.asString());
+        return ifModifiedSince >= 0 && lastModified >= 0 && lastModified <= ifModifiedSince;
+    }
+
+    /**
+     * Whether the stored header should be sent along with a 304.
+     */
+    public static boolean isNotModifiedHeader(HttpField httpField) {
+        return NOT_MODIFIED_HEADERS.contains(httpField.getHeader());
+    }
+
+    private static String weakTag(String etag) {
+        return etag.startsWith("W/") ? etag.substring(2) : etag;
+    }
+}
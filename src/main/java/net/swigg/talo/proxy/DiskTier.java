@@ -0,0 +1,488 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Dustin Sweigart
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package net.swigg.talo.proxy;
+
+import com.google.common.io.ByteArrayDataInput;
+import com.google.common.io.ByteArrayDataOutput;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import net.swigg.talo.cache.BodyStore;
+import net.swigg.talo.cache.MappedSegment;
+import net.swigg.talo.cache.StoredBody;
+import org.eclipse.jetty.http.HttpField;
+import org.eclipse.jetty.http.HttpFields;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * A second cache tier on local disk that survives restarts.
+ * <p>
+ * Responses are appended to a log of {@link MappedSegment}s and located through an in-memory index from
+ * {@link RequestIdentity} to segment and offset. Removals are recorded as tombstones so the index can be rebuilt by
+ * replaying the segments in order when the tier is opened. Once the log grows past its maximum number of segments the
+ * oldest segment is dropped along with everything in it. Responses too large to fit in a single segment are not
+ * stored.
+ * <p>
+ * Tombstones are written by the same background thread that writes demoted responses, so removing a response never
+ * waits on a write in progress.
+ *
+ * @author Dustin Sweigart <dustin@swigg.net>
+ */
+public class DiskTier implements Closeable {
+    static private final Logger LOGGER = LoggerFactory.getLogger(DiskTier.class);
+
+    static private final String SEGMENT_PREFIX = "segment-";
+    static private final String SEGMENT_SUFFIX = ".log";
+    static private final byte FORMAT_VERSION = 4;
+    static private final int WRITE_QUEUE_SIZE = 1024;
+    static private final int MAXIMUM_UTF_LENGTH = 65535;
+
+    private final File directory;
+    private final int segmentSize;
+    private final int maximumSegments;
+
+    private final ConcurrentMap<RequestIdentity, Location> index = new ConcurrentHashMap<>();
+    private final ConcurrentNavigableMap<Long, MappedSegment> segments = new ConcurrentSkipListMap<>();
+    private final ExecutorService writer;
+    private final Queue<RequestIdentity> tombstones = new ConcurrentLinkedQueue<>();
+    private final Runnable tombstoneWriter = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (DiskTier.this) {
+                writeTombstones();
+            }
+        }
+    };
+
+    // guarded by this
+    private MappedSegment active;
+    // guarded by this, the keys of the entries written to each segment
+    private final Map<Long, List<RequestIdentity>> segmentKeys = new HashMap<>();
+    private volatile RequestIdentity writing;
+
+    public DiskTier(File directory, int segmentSize, int maximumSegments) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        this.maximumSegments = maximumSegments;
+        this.writer = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(WRITE_QUEUE_SIZE),
+                new ThreadFactoryBuilder().setNameFormat("talo-disk-tier-%d").setDaemon(true).build());
+
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create disk tier directory " + directory);
+        }
+
+        load();
+    }
+
+    /**
+     * Rebuild the index by replaying every segment in the directory from oldest to newest.
+     */
+    private synchronized void load() throws IOException {
+        File[] files = directory.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+
+        long[] ids = new long[files == null ? 0 : files.length];
+        for (int i = 0; i < ids.length; i++) {
+            String name = files[i].getName();
+            ids[i] = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+        }
+        Arrays.sort(ids);
+
+        for (final long id : ids) {
+            MappedSegment segment = MappedSegment.open(id, segmentFile(id), segmentSize);
+            segments.put(id, segment);
+            final List<RequestIdentity> keys = new ArrayList<>();
+            segmentKeys.put(id, keys);
+            segment.recover(new MappedSegment.RecordVisitor() {
+                @Override
+                public void visit(int offset, byte type, ByteBuffer payload) {
+                    RequestIdentity key = readKey(payload);
+                    if (key == null) {
+                        return;
+                    }
+
+                    if (type == MappedSegment.TYPE_TOMBSTONE) {
+                        index.remove(key);
+                    } else {
+                        index.put(key, new Location(id, offset));
+                        keys.add(key);
+                    }
+                }
+            });
+            active = segment;
+        }
+
+        if (active == null) {
+            roll();
+        }
+
+        LOGGER.info("Loaded {} cached responses from {} disk segments in {}.", index.size(), segments.size(), directory);
+    }
+
+    /**
+     * Read the response stored for the key, copying its body into the body store.
+     *
+     * @return the response, or {@code null} if it is not on disk or there is no room for its body
+     */
+    public ResponseHolder read(RequestIdentity key, BodyStore bodyStore) {
+        Location location = index.get(key);
+        if (location == null) {
+            return null;
+        }
+
+        MappedSegment segment = segments.get(location.segment);
+        ByteBuffer payload = segment == null ? null : segment.read(location.offset);
+        if (payload == null) {
+            index.remove(key, location);
+            return null;
+        }
+
+        ByteArrayDataInput input = ByteStreams.newDataInput(metadata(payload));
+        if (input.readByte() != FORMAT_VERSION || !key.equals(readKey(input))) {
+            index.remove(key, location);
+            return null;
+        }
+
+        long storedAt = input.readLong();
+        Freshness freshness = new Freshness(input.readLong(), input.readLong(), input.readLong(), input.readLong());
+        int status = input.readInt();
+        HttpFields headers = readHeaders(input);
+
+        ByteBuffer bodySlice = payload.duplicate();
+        bodySlice.position(4 + payload.getInt(0));
+        byte[] bodyBytes = new byte[bodySlice.remaining()];
+        bodySlice.get(bodyBytes);
+
+        StoredBody body = bodyStore.store(ByteBuffer.wrap(bodyBytes));
+        return body == null ? null : new ResponseHolder(status, headers, body, freshness, storedAt);
+    }
+
+    /**
+     * Read only the headers stored for the key.
+     *
+     * @return the headers, or {@code null} if the response is not on disk
+     */
+    public HttpFields readHeaders(RequestIdentity key) {
+        Location location = index.get(key);
+        MappedSegment segment = location == null ? null : segments.get(location.segment);
+        ByteBuffer payload = segment == null ? null : segment.read(location.offset);
+        if (payload == null) {
+            return null;
+        }
+
+        ByteArrayDataInput input = ByteStreams.newDataInput(metadata(payload));
+        if (input.readByte() != FORMAT_VERSION || !key.equals(readKey(input))) {
+            return null;
+        }
+
+        // skip the stored time, freshness and status
+        input.skipBytes(5 * 8 + 4);
+        return readHeaders(input);
+    }
+
+    public boolean contains(RequestIdentity key) {
+        return index.containsKey(key);
+    }
+
+    /**
+     * Write the response to disk in the background unless it is already there. The body is retained until written.
+     */
+    public void demote(final RequestIdentity key, final ResponseHolder responseHolder) {
+        if (index.containsKey(key) || !responseHolder.retain()) {
+            return;
+        }
+
+        try {
+            writer.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        write(key, responseHolder);
+                    } finally {
+                        responseHolder.release();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            responseHolder.release();
+        }
+    }
+
+    /**
+     * Write the response to disk, replacing whatever was stored for the key before. Responses too large to fit in a
+     * segment are skipped.
+     */
+    public synchronized void write(RequestIdentity key, ResponseHolder responseHolder) {
+        // removals that happened before this write have to land in the log before it
+        writeTombstones();
+
+        ByteArrayDataOutput output = ByteStreams.newDataOutput();
+        try {
+            output.writeByte(FORMAT_VERSION);
+            writeKey(output, key);
+            output.writeLong(responseHolder.getStoredAt());
+            Freshness freshness = responseHolder.getFreshness();
+            output.writeLong(freshness.getStoredAt());
+            output.writeLong(freshness.getFreshUntil());
+            output.writeLong(freshness.getStaleWhileRevalidateUntil());
+            output.writeLong(freshness.getStaleIfErrorUntil());
+            output.writeInt(responseHolder.getStatus());
+            output.writeInt(responseHolder.getHeaders().size());
+            for (HttpField httpField : responseHolder.getHeaders()) {
+                writeUTF(output, httpField.getName());
+                writeUTF(output, httpField.getValue());
+            }
+        } catch (IllegalArgumentException e) {
+            LOGGER.debug("Unable to write {} to disk.", key.getRequestUri(), e);
+            return;
+        }
+
+        byte[] metadata = output.toByteArray();
+        ByteBuffer body = responseHolder.getBody();
+        if (MappedSegment.recordSize(4L + metadata.length + body.remaining()) > segmentSize) {
+            // rolling over to a new segment wouldn't make room for it, it would only drop the oldest one
+            LOGGER.debug("Response for {} is too large for a disk segment.", key.getRequestUri());
+            return;
+        }
+
+        writing = key;
+        try {
+            Location location = append(MappedSegment.TYPE_ENTRY, metadata, body);
+            if (location != null) {
+                index.put(key, location);
+                segmentKeys.get(location.segment).add(key);
+            }
+        } finally {
+            writing = null;
+        }
+    }
+
+    /**
+     * Forget the response stored for the key, if any. The tombstone is written in the background, so this never waits
+     * on a write in progress.
+     */
+    public void remove(RequestIdentity key) {
+        if (index.remove(key) == null && !key.equals(writing)) {
+            return;
+        }
+
+        tombstones.offer(key);
+        try {
+            writer.execute(tombstoneWriter);
+        } catch (RejectedExecutionException e) {
+            // the tombstone is written before the next response, or when the tier is closed
+        }
+    }
+
+    public int size() {
+        return index.size();
+    }
+
+    /**
+     * The keys of the responses stored on disk, as they change.
+     */
+    public Set<RequestIdentity> keys() {
+        return Collections.unmodifiableSet(index.keySet());
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        writer.shutdown();
+        try {
+            writer.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        writeTombstones();
+        for (MappedSegment segment : segments.values()) {
+            segment.close();
+        }
+    }
+
+    // guarded by this
+    private void writeTombstones() {
+        RequestIdentity key;
+        while ((key = tombstones.poll()) != null) {
+            // a write that was in progress when the key was removed may have indexed it again
+            index.remove(key);
+
+            ByteArrayDataOutput output = ByteStreams.newDataOutput();
+            output.writeByte(FORMAT_VERSION);
+            try {
+                writeKey(output, key);
+            } catch (IllegalArgumentException e) {
+                // never written either
+                continue;
+            }
+            append(MappedSegment.TYPE_TOMBSTONE, output.toByteArray(), ByteBuffer.allocate(0));
+        }
+    }
+
+    // guarded by this
+    private Location append(byte type, byte[] metadata, ByteBuffer body) {
+        ByteBuffer header = ByteBuffer.allocate(4 + metadata.length);
+        header.putInt(metadata.length).put(metadata).flip();
+
+        try {
+            int offset = active.append(type, header, body);
+            if (offset < 0) {
+                roll();
+                offset = active.append(type, header, body);
+            }
+            return offset < 0 ? null : new Location(active.getId(), offset);
+        } catch (IOException e) {
+            LOGGER.error("Unable to start a new disk segment.", e);
+            return null;
+        }
+    }
+
+    // guarded by this
+    private void roll() throws IOException {
+        long id = active == null ? 1 : active.getId() + 1;
+        MappedSegment segment = MappedSegment.open(id, segmentFile(id), segmentSize);
+        segments.put(id, segment);
+        segmentKeys.put(id, new ArrayList<RequestIdentity>());
+        if (active != null) {
+            active.force();
+        }
+        active = segment;
+
+        while (segments.size() > maximumSegments) {
+            Map.Entry<Long, MappedSegment> oldest = segments.pollFirstEntry();
+            for (RequestIdentity key : segmentKeys.remove(oldest.getKey())) {
+                Location location = index.get(key);
+                if (location != null && location.segment == oldest.getKey()) {
+                    index.remove(key, location);
+                }
+            }
+
+            oldest.getValue().delete();
+        }
+    }
+
+    private File segmentFile(long id) {
+        return new File(directory, String.format("%s%012d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX));
+    }
+
+    private static byte[] metadata(ByteBuffer payload) {
+        byte[] metadata = new byte[payload.getInt(0)];
+        ByteBuffer view = payload.duplicate();
+        view.position(4);
+        view.get(metadata);
+        return metadata;
+    }
+
+    private static HttpFields readHeaders(ByteArrayDataInput input) {
+        HttpFields headers = new HttpFields();
+        int headerCount = input.readInt();
+        for (int i = 0; i < headerCount; i++) {
+            headers.add(input.readUTF(), input.readUTF());
+        }
+
+        return headers;
+    }
+
+    private static RequestIdentity readKey(ByteBuffer payload) {
+        try {
+            ByteArrayDataInput input = ByteStreams.newDataInput(metadata(payload));
+            return input.readByte() == FORMAT_VERSION ? readKey(input) : null;
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static RequestIdentity readKey(ByteArrayDataInput input) {
+        return new RequestIdentity(input.readUTF(), input.readUTF(), input.readUTF(), input.readUTF());
+    }
+
+    private static void writeKey(ByteArrayDataOutput output, RequestIdentity key) {
+        writeUTF(output, key.getRequestUri());
+        writeUTF(output, key.getQueryString());
+        writeUTF(output, key.getKeyHeaders());
+        writeUTF(output, key.getVariant());
+    }
+
+    /**
+     * Where a record lives on disk.
+     */
+    private static final class Location {
+        private final long segment;
+        private final int offset;
+
+        Location(long segment, int offset) {
+            this.segment = segment;
+            this.offset = offset;
+        }
+    }
+
+    /**
+     * Write the string the way {@link java.io.DataOutput#writeUTF(String)} does, which can only encode up to 64KB.
+     * Longer strings, such as long URIs or header values, are rejected up front since Guava turns the failure into an
+     * {@link AssertionError}.
+     *
+     * @throws IllegalArgumentException if the string is too long to be written
+     */
+    private static void writeUTF(ByteArrayDataOutput output, String value) {
+        long length = 0;
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            length += c >= 0x0001 && c <= 0x007f ? 1 : (c <= 0x07ff ? 2 : 3);
+        }
+        checkArgument(length <= MAXIMUM_UTF_LENGTH, "String of %s encoded bytes is too long to write", length);
+
+        output.writeUTF(value);
+    }
+}
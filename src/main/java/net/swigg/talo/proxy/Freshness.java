@@ -0,0 +1,103 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Dustin Sweigart
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package net.swigg.talo.proxy;
+
+/**
+ * When a cached response stops being fresh and how long it may be served stale afterwards. All times are in
+ * milliseconds since the epoch.
+ *
+ * @author Dustin Sweigart <dustin@swigg.net>
+ */
+public class Freshness {
+    private final long storedAt;
+    private final long freshUntil;
+    private final long staleWhileRevalidateUntil;
+    private final long staleIfErrorUntil;
+
+    public Freshness(long storedAt, long freshUntil, long staleWhileRevalidateUntil, long staleIfErrorUntil) {
+        this.storedAt = storedAt;
+        this.freshUntil = freshUntil;
+        this.staleWhileRevalidateUntil = Math.max(freshUntil, staleWhileRevalidateUntil);
+        this.staleIfErrorUntil = Math.max(freshUntil, staleIfErrorUntil);
+    }
+
+    public State stateAt(long now) {
+        if (now < freshUntil) {
+            return State.FRESH;
+        }
+        if (now < staleWhileRevalidateUntil) {
+            return State.STALE_WHILE_REVALIDATE;
+        }
+        if (now < staleIfErrorUntil) {
+            return State.STALE_IF_ERROR;
+        }
+        return State.EXPIRED;
+    }
+
+    /**
+     * The number of whole seconds since the response was generated, including time spent in caches upstream.
+     */
+    public long ageAt(long now) {
+        return Math.max(0, (now - storedAt) / 1000);
+    }
+
+    public long getStoredAt() {
+        return storedAt;
+    }
+
+    public long getFreshUntil() {
+        return freshUntil;
+    }
+
+    public long getStaleWhileRevalidateUntil() {
+        return staleWhileRevalidateUntil;
+    }
+
+    public long getStaleIfErrorUntil() {
+        return staleIfErrorUntil;
+    }
+
+    public enum State {
+        /**
+         * Serve from the cache.
+         */
+        FRESH,
+
+        /**
+         * Serve from the cache and refresh in the background.
+         */
+        STALE_WHILE_REVALIDATE,
+
+        /**
+         * Refresh before serving, but serve from the cache if the refresh fails.
+         */
+        STALE_IF_ERROR,
+
+        /**
+         * No longer usable.
+         */
+        EXPIRED
+    }
+}
@@ -0,0 +1,244 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Dustin Sweigart
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package net.swigg.talo.proxy;
+
+import com.google.common.base.Joiner;
+import org.eclipse.jetty.http.HttpFields;
+import org.eclipse.jetty.http.HttpHeader;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Works out the {@link Freshness} of responses from their {@code Cache-Control}, {@code Expires}, {@code Date} and
+ * {@code Age} headers, following the rules for a shared cache: {@code s-maxage} wins over {@code max-age}, which wins
+ * over {@code Expires}. Responses without any of these are kept for a configurable default time.
+ *
+ * @author Dustin Sweigart <dustin@swigg.net>
+ */
+public class FreshnessPolicy {
+    static private final long DEFAULT_TTL = TimeUnit.MINUTES.toMillis(5);
+
+    private final long defaultTtl;
+
+    public FreshnessPolicy() {
+        this(DEFAULT_TTL);
+    }
+
+    /**
+     * @param defaultTtl milliseconds to keep responses that don't say how long they are fresh for
+     */
+    public FreshnessPolicy(long defaultTtl) {
+        this.defaultTtl = defaultTtl;
+    }
+
+    /**
+     * Whether a shared cache is allowed to store the response at all.
+     */
+    public boolean isStorable(HttpFields headers) {
+        return isStorable(headers, false);
+    }
+
+    /**
+     * Whether a shared cache is allowed to store the response to a request that did or didn't carry an
+     * {@code Authorization} header. Responses to authorized requests are only stored when they say they may be shared,
+     * by being {@code public}, having an {@code s-maxage} or {@code must-revalidate}, see RFC 7234 section 3.2.
+     */
+    public boolean isStorable(HttpFields headers, boolean authorized) {
+        CacheControl cacheControl = CacheControl.parse(headers);
+        if (cacheControl.noStore || cacheControl.privateResponse) {
+            return false;
+        }
+
+        return !authorized || cacheControl.publicResponse || cacheControl.sharedMaxAge >= 0 || cacheControl.mustRevalidate;
+    }
+
+    public Freshness freshness(HttpFields headers, long now) {
+        return freshness(headers, now, -1);
+    }
+
+    /**
+     * @param ruleTtl milliseconds the response is fresh for whatever its headers say, or negative to go by them
+     */
+    public Freshness freshness(HttpFields headers, long now, long ruleTtl) {
+        CacheControl cacheControl = CacheControl.parse(headers);
+
+        long ttl;
+        if (ruleTtl >= 0) {
+            ttl = ruleTtl;
+        } else if (cacheControl.noCache) {
+            ttl = 0;
+        } else if (cacheControl.sharedMaxAge >= 0) {
+            ttl = TimeUnit.SECONDS.toMillis(cacheControl.sharedMaxAge);
+        } else if (cacheControl.maxAge >= 0) {
+            ttl = TimeUnit.SECONDS.toMillis(cacheControl.maxAge);
+        } else if (headers.containsKey(HttpHeader.EXPIRES.asString())) {
+            ttl = expiresTtl(headers, now);
+        } else {
+            ttl = defaultTtl;
+        }
+
+        // the response may already have spent time in caches further upstream
+        long age = TimeUnit.SECONDS.toMillis(age(headers));
+        long freshUntil = now + Math.max(0, ttl - age);
+
+        boolean mayServeStale = mayServeStale(cacheControl);
+        long staleWhileRevalidate = mayServeStale ? TimeUnit.SECONDS.toMillis(Math.max(0, cacheControl.staleWhileRevalidate)) : 0;
+        long staleIfError = mayServeStale ? TimeUnit.SECONDS.toMillis(Math.max(0, cacheControl.staleIfError)) : 0;
+
+        return new Freshness(now - age, freshUntil, freshUntil + staleWhileRevalidate, freshUntil + staleIfError);
+    }
+
+    /**
+     * Whether the response may be served after it expired at all.
+     */
+    public boolean mayServeStale(HttpFields headers) {
+        return mayServeStale(CacheControl.parse(headers));
+    }
+
+    /**
+     * Responses that must always be revalidated may not be served stale.
+     */
+    private static boolean mayServeStale(CacheControl cacheControl) {
+        return !cacheControl.noCache && !cacheControl.mustRevalidate && !cacheControl.proxyRevalidate;
+    }
+
+    private long expiresTtl(HttpFields headers, long now) {
+        long expires = dateField(headers, HttpHeader.EXPIRES);
+        if (expires < 0) {
+            // invalid dates, such as "0", mean already expired
+            return 0;
+        }
+
+        long date = dateField(headers, HttpHeader.DATE);
+        return expires - (date < 0 ? now : date);
+    }
+
+    private static long dateField(HttpFields headers, HttpHeader header) {
+        try {
+            return headers.getDateField(header.asString());
+        } catch (IllegalArgumentException e) {
+            return -1;
+        }
+    }
+
+    private static long age(HttpFields headers) {
+        try {
+            return Math.max(0, headers.getLongField(HttpHeader.AGE.asString()));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * The directives of a {@code Cache-Control} header that matter to a shared cache.
+     */
+    static class CacheControl {
+        boolean noStore = false;
+        boolean noCache = false;
+        boolean privateResponse = false;
+        boolean publicResponse = false;
+        boolean mustRevalidate = false;
+        boolean proxyRevalidate = false;
+        long maxAge = -1;
+        long sharedMaxAge = -1;
+        long staleWhileRevalidate = -1;
+        long staleIfError = -1;
+
+        /**
+         * Parse every {@code Cache-Control} field of the headers, since the directives may be spread over several.
+         */
+        static CacheControl parse(HttpFields headers) {
+            return parse(Joiner.on(',').join(headers.getValuesList(HttpHeader.CACHE_CONTROL.asString())));
+        }
+
+        static CacheControl parse(String value) {
+            CacheControl cacheControl = new CacheControl();
+            if (value == null) {
+                return cacheControl;
+            }
+
+            for (String directive : value.split(",")) {
+                String name = directive.trim().toLowerCase();
+                String argument = null;
+                int equals = name.indexOf('=');
+                if (equals >= 0) {
+                    argument = name.substring(equals + 1).trim().replace("\"", "");
+                    name = name.substring(0, equals).trim();
+                }
+
+                switch (name) {
+                    case "no-store":
+                        cacheControl.noStore = true;
+                        break;
+                    case "no-cache":
+                        // no-cache with a list of fields only restricts those fields
+                        cacheControl.noCache |= argument == null;
+                        break;
+                    case "private":
+                        cacheControl.privateResponse |= argument == null;
+                        break;
+                    case "public":
+                        cacheControl.publicResponse = true;
+                        break;
+                    case "must-revalidate":
+                        cacheControl.mustRevalidate = true;
+                        break;
+                    case "proxy-revalidate":
+                        cacheControl.proxyRevalidate = true;
+                        break;
+                    case "max-age":
+                        cacheControl.maxAge = seconds(argument);
+                        break;
+                    case "s-maxage":
+                        cacheControl.sharedMaxAge = seconds(argument);
+                        break;
+                    case "stale-while-revalidate":
+                        cacheControl.staleWhileRevalidate = seconds(argument);
+                        break;
+                    case "stale-if-error":
+                        cacheControl.staleIfError = seconds(argument);
+                        break;
+                    default:
+                        // not relevant to caching decisions
+                }
+            }
+
+            return cacheControl;
+        }
+
+        private static long seconds(String argument) {
+            if (argument == null) {
+                return 0;
+            }
+
+            try {
+                return Long.parseLong(argument);
+            } catch (NumberFormatException e) {
+                // malformed ages are treated as stale
+                return 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,393 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Dustin Sweigart
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package net.swigg.talo.proxy;
+
+import com.google.common.util.concurrent.SettableFuture;
+import org.eclipse.jetty.client.api.Response;
+import org.eclipse.jetty.http.HttpFields;
+import org.eclipse.jetty.http.HttpHeader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A response that is still arriving from the target application. The body is appended to a growing buffer that
+ * becomes the cached body once complete, and clients waiting on the same response stream from it as it lands instead
+ * of waiting for the whole body.
+ * <p/>
+ * Bytes are only ever appended, so a slice handed out by {@link #read(int, int)} never changes even if the buffer is
+ * grown afterwards.
+ * <p/>
+ * Bodies larger than the {@link LargeObjectPolicy} keeps on the heap are spilled to a temporary file as they arrive and
+ * become a memory mapping of it once complete, so clients streaming them only ever hold a chunk on the heap. Bodies
+ * too large to be cached are discarded, unless clients are already streaming them; those keep streaming from the
+ * spill file but the response isn't kept.
+ *
+ * @author Dustin Sweigart <dustin@swigg.net>
+ */
+public class InFlightResponse {
+    static private final Logger LOGGER = LoggerFactory.getLogger(InFlightResponse.class);
+
+    enum State {
+        /**
+         * Waiting on the headers.
+         */
+        PENDING,
+        /**
+         * Body arriving, may be streamed.
+         */
+        STREAMING,
+        /**
+         * The response won't be cached, its body is not collected and clients have to wait on the future.
+         */
+        ABANDONED,
+        COMPLETE,
+        FAILED
+    }
+
+    static private final int DEFAULT_BUFFER_SIZE = 4096;
+
+    private final SettableFuture<ResponseHolder> future;
+    private final LargeObjectPolicy largeObjectPolicy;
+    private final List<Runnable> subscribers = new CopyOnWriteArrayList<>();
+
+    private State state = State.PENDING;
+    private int status;
+    private HttpFields headers;
+    private long contentLength = -1;
+    private byte[] buffer;
+    private FileChannel spill;
+    private ByteBuffer mapped;
+    private boolean spilled;
+    private boolean tooLarge;
+    private boolean discarded;
+    private int count;
+
+    public InFlightResponse(SettableFuture<ResponseHolder> future) {
+        this(future, null);
+    }
+
+    /**
+     * @param largeObjectPolicy when to spill the body to disk or give up on it, or {@code null} to keep any body on
+     *                          the heap
+     */
+    public InFlightResponse(SettableFuture<ResponseHolder> future, LargeObjectPolicy largeObjectPolicy) {
+        this.future = future;
+        this.largeObjectPolicy = largeObjectPolicy;
+    }
+
+    /**
+     * The cache entry this response fills.
+     */
+    public SettableFuture<ResponseHolder> getFuture() {
+        return future;
+    }
+
+    /**
+     * Start streaming once the headers arrived, sizing the buffer from the Content-Length when there is one. A
+     * Content-Length too large to be cached abandons the response without collecting any of its body.
+     */
+    public void begin(Response response) {
+        synchronized (this) {
+            if (state != State.PENDING) {
+                return;
+            }
+
+            status = response.getStatus();
+            headers = ResponseHolder.copyHeaders(response.getHeaders());
+            try {
+                contentLength = response.getHeaders().getLongField(HttpHeader.CONTENT_LENGTH.asString());
+            } catch (NumberFormatException e) {
+                contentLength = -1;
+            }
+            if (largeObjectPolicy != null && largeObjectPolicy.isTooLarge(contentLength)) {
+                tooLarge = true;
+                discard();
+                state = State.ABANDONED;
+            } else {
+                if (buffer == null && spill == null && !spills(contentLength)) {
+                    buffer = new byte[contentLength > 0 && contentLength < Integer.MAX_VALUE ? (int) contentLength : DEFAULT_BUFFER_SIZE];
+                }
+                state = State.STREAMING;
+            }
+        }
+
+        notifySubscribers();
+    }
+
+    /**
+     * Give up on the response, freeing whatever of its body was collected and ignoring the rest. Clients get whatever
+     * the future is completed with.
+     */
+    public void abandon() {
+        transition(State.ABANDONED);
+    }
+
+    public void complete() {
+        transition(State.COMPLETE);
+    }
+
+    public void fail() {
+        transition(State.FAILED);
+    }
+
+    /**
+     * Append the next chunk of the body.
+     */
+    public void append(ByteBuffer content) {
+        boolean failed = false;
+        synchronized (this) {
+            if (discarded || state == State.ABANDONED) {
+                return;
+            }
+
+            int length = content.remaining();
+            long size = (long) count + length;
+            if (largeObjectPolicy != null && largeObjectPolicy.isTooLarge(size)) {
+                tooLarge = true;
+                if (state != State.STREAMING || size > Integer.MAX_VALUE) {
+                    // nobody is reading the body as it arrives, or it grew past what can be addressed
+                    failed = state == State.STREAMING;
+                    discard();
+                }
+            }
+
+            if (!discarded) {
+                try {
+                    store(content, length);
+                    count += length;
+                } catch (IOException e) {
+                    LOGGER.warn("Unable to spill response body to disk.", e);
+                    failed = state == State.STREAMING;
+                    discard();
+                }
+            }
+        }
+
+        if (failed) {
+            // clients streaming the body can't get the rest of it
+            fail();
+        } else {
+            notifySubscribers();
+        }
+    }
+
+    private void store(ByteBuffer content, int length) throws IOException {
+        if (spill == null && spills((long) count + length)) {
+            spill = largeObjectPolicy.createSpillFile();
+            spilled = true;
+            if (buffer != null) {
+                write(spill, ByteBuffer.wrap(buffer, 0, count), 0);
+                buffer = null;
+            }
+        }
+
+        if (spill != null) {
+            write(spill, content.duplicate(), count);
+            return;
+        }
+
+        if (buffer == null) {
+            buffer = new byte[Math.max(DEFAULT_BUFFER_SIZE, length)];
+        } else if (buffer.length - count < length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, count + length));
+        }
+
+        content.duplicate().get(buffer, count, length);
+    }
+
+    private static void write(FileChannel channel, ByteBuffer source, long position) throws IOException {
+        while (source.hasRemaining()) {
+            position += channel.write(source, position);
+        }
+    }
+
+    private boolean spills(long length) {
+        return largeObjectPolicy != null && largeObjectPolicy.isSpilled(length);
+    }
+
+    /**
+     * Give up on the body, freeing whatever holds it.
+     */
+    private void discard() {
+        discarded = true;
+        buffer = null;
+        mapped = null;
+        if (spill != null) {
+            try {
+                spill.close();
+            } catch (IOException e) {
+                LOGGER.debug("Unable to close spill file.", e);
+            }
+            spill = null;
+        }
+    }
+
+    /**
+     * The whole body, without copying when the buffer was sized exactly. A spilled body is mapped from its file
+     * rather than read onto the heap.
+     *
+     * @return the body, or {@code null} if it was discarded
+     */
+    public synchronized ByteBuffer toByteBuffer() {
+        if (discarded) {
+            return null;
+        }
+        if (spill != null) {
+            try {
+                mapped = spill.map(FileChannel.MapMode.READ_ONLY, 0, count);
+            } catch (IOException e) {
+                LOGGER.warn("Unable to map spilled response body.", e);
+                discard();
+                return null;
+            }
+
+            // the mapping outlives the channel, closing it deletes the file once nothing maps it any more
+            FileChannel spill = this.spill;
+            this.spill = null;
+            try {
+                spill.close();
+            } catch (IOException e) {
+                LOGGER.debug("Unable to close spill file.", e);
+            }
+        }
+        if (mapped != null) {
+            return mapped.duplicate();
+        }
+        if (buffer == null) {
+            return ByteBuffer.allocate(0);
+        }
+
+        return ByteBuffer.wrap(count == buffer.length ? buffer : Arrays.copyOf(buffer, count));
+    }
+
+    /**
+     * Up to {@code maximumLength} bytes of the body starting at {@code position}, empty if none arrived yet or the
+     * body was discarded. A spilled body is copied out a chunk at a time.
+     */
+    public synchronized ByteBuffer read(int position, int maximumLength) throws IOException {
+        if (discarded || position >= count) {
+            return ByteBuffer.allocate(0);
+        }
+
+        int length = Math.min(count - position, maximumLength);
+        if (mapped != null) {
+            ByteBuffer source = mapped.duplicate();
+            source.position(position);
+            source.limit(position + length);
+            ByteBuffer chunk = ByteBuffer.allocate(length);
+            chunk.put(source);
+            chunk.flip();
+            return chunk;
+        }
+        if (spill != null) {
+            ByteBuffer chunk = ByteBuffer.allocate(length);
+            while (chunk.hasRemaining()) {
+                if (spill.read(chunk, position + chunk.position()) < 0) {
+                    throw new EOFException("Spill file ended before the body did");
+                }
+            }
+            chunk.flip();
+            return chunk;
+        }
+
+        return ByteBuffer.wrap(buffer, position, length);
+    }
+
+    /**
+     * Run the subscriber whenever the response makes progress, and once now to catch up with what already happened.
+     */
+    public void subscribe(Runnable subscriber) {
+        subscribers.add(subscriber);
+        subscriber.run();
+    }
+
+    public void unsubscribe(Runnable subscriber) {
+        subscribers.remove(subscriber);
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public synchronized int getStatus() {
+        return status;
+    }
+
+    public synchronized HttpFields getHeaders() {
+        return headers;
+    }
+
+    /**
+     * The length the target application announced, or -1 if the body is sent without one.
+     */
+    public synchronized long getContentLength() {
+        return contentLength;
+    }
+
+    /**
+     * Whether the body grew too large to keep on the heap and went to a spill file.
+     */
+    public synchronized boolean isSpilled() {
+        return spilled;
+    }
+
+    /**
+     * Whether the body is too large to be cached, even if clients streaming it still get all of it.
+     */
+    public synchronized boolean isTooLarge() {
+        return tooLarge;
+    }
+
+    private void transition(State terminal) {
+        synchronized (this) {
+            if (state == State.COMPLETE || state == State.FAILED || state == terminal) {
+                return;
+            }
+            state = terminal;
+            if (terminal == State.FAILED || terminal == State.ABANDONED) {
+                discard();
+            }
+        }
+
+        notifySubscribers();
+        if (terminal != State.ABANDONED) {
+            subscribers.clear();
+        }
+    }
+
+    private void notifySubscribers() {
+        for (Runnable subscriber : subscribers) {
+            subscriber.run();
+        }
+    }
+}
@@ -0,0 +1,330 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Dustin Sweigart
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package net.swigg.talo.proxy;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import net.swigg.talo.cache.CacheStore;
+import org.eclipse.jetty.http.HttpFields;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Pattern;
+
+/**
+ * Removes responses from the cache on request: a single URL, every URL under a path prefix, every URL matching a
+ * regular expression or every response tagged alike by its {@code Surrogate-Key} header.
+ * <p/>
+ * URLs and prefixes are looked up in the {@link UriIndex} and tags in the {@link SurrogateKeyIndex}, so purging them
+ * costs only as much as the number of responses removed. Regular expressions can't be looked up, so they become bans instead: responses stored before the
+ * ban that match it are treated as missing when requested, and a background sweep removes them from the cache in the
+ * meantime. Responses on the {@link DiskTier} aren't indexed, so every purge is also banned until the sweep has gone
+ * through the disk tier too.
+ *
+ * @author Dustin Sweigart <dustin@swigg.net>
+ */
+public class Invalidator {
+    static private final Logger LOGGER = LoggerFactory.getLogger(Invalidator.class);
+
+    private final CacheStore<RequestIdentity, SettableFuture<ResponseHolder>> cache;
+    private final UriIndex uriIndex;
+    private final SurrogateKeyIndex surrogateKeyIndex;
+    private final DiskTier diskTier;
+    private final CacheKeyPolicy cacheKeyPolicy;
+
+    private final List<Ban> bans = new CopyOnWriteArrayList<>();
+    private final AtomicBoolean sweepScheduled = new AtomicBoolean();
+    private final ExecutorService sweeper = Executors.newSingleThreadExecutor(
+            new ThreadFactoryBuilder().setNameFormat("talo-ban-sweeper-%d").setDaemon(true).build());
+
+    /**
+     * @param diskTier the disk tier to purge as well, or {@code null} if there is none
+     */
+    public Invalidator(CacheStore<RequestIdentity, SettableFuture<ResponseHolder>> cache, UriIndex uriIndex,
+                       SurrogateKeyIndex surrogateKeyIndex, DiskTier diskTier, CacheKeyPolicy cacheKeyPolicy) {
+        this.cache = cache;
+        this.uriIndex = uriIndex;
+        this.surrogateKeyIndex = surrogateKeyIndex;
+        this.diskTier = diskTier;
+        this.cacheKeyPolicy = cacheKeyPolicy;
+    }
+
+    public UriIndex getUriIndex() {
+        return uriIndex;
+    }
+
+    public SurrogateKeyIndex getSurrogateKeyIndex() {
+        return surrogateKeyIndex;
+    }
+
+    /**
+     * Remove every variant of the response for the URL.
+     *
+     * @param queryString the query string, normalized the way cache keys are, or {@code null} for none
+     * @return the number of responses removed from memory
+     */
+    public int purge(String requestUri, String queryString) {
+        Preconditions.checkArgument(requestUri.startsWith("/"), "URL path must start with a /");
+
+        String canonicalQuery = cacheKeyPolicy.identify(requestUri, queryString).getQueryString();
+        List<RequestIdentity> keys = new ArrayList<>();
+        for (RequestIdentity key : uriIndex.get(requestUri)) {
+            if (key.getQueryString().equals(canonicalQuery)) {
+                keys.add(key);
+            }
+        }
+
+        if (diskTier != null) {
+            ban(new Ban(Ban.Kind.URL, canonicalQuery.isEmpty() ? requestUri : requestUri + "?" + canonicalQuery));
+        }
+
+        return remove(keys);
+    }
+
+    /**
+     * Remove every response for a URL whose path starts with the prefix.
+     *
+     * @return the number of responses removed from memory
+     */
+    public int banPrefix(String prefix) {
+        Preconditions.checkArgument(prefix.startsWith("/"), "Prefix must start with a /");
+
+        if (diskTier != null) {
+            ban(new Ban(Ban.Kind.PREFIX, prefix));
+        }
+
+        return remove(uriIndex.withPrefix(prefix));
+    }
+
+    /**
+     * Remove every response listing the tag in its {@code Surrogate-Key} header.
+     *
+     * @return the number of responses removed from memory
+     */
+    public int purgeTag(String tag) {
+        Preconditions.checkArgument(!tag.isEmpty() && tag.indexOf(' ') < 0, "Tag must be a single word");
+
+        if (diskTier != null) {
+            ban(new Ban(Ban.Kind.TAG, tag));
+        }
+
+        return remove(surrogateKeyIndex.get(tag));
+    }
+
+    /**
+     * Ban every response for a URL, path and query string, matching the regular expression anywhere.
+     */
+    public Ban banRegex(String regex) {
+        Ban ban = new Ban(Ban.Kind.REGEX, regex);
+        ban(ban);
+        return ban;
+    }
+
+    /**
+     * If the response was stored by this proxy before a ban matching it. The local store time is used rather than the
+     * response's age, so that a response fetched after the ban isn't banned for having aged in a cache upstream.
+     */
+    public boolean isBanned(RequestIdentity key, ResponseHolder responseHolder) {
+        if (bans.isEmpty()) {
+            return false;
+        }
+
+        long storedAt = responseHolder.getStoredAt();
+        for (Ban ban : bans) {
+            if (storedAt <= ban.getCreatedAt() && ban.matches(key, responseHolder.getHeaders())) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Index a key just added to the cache.
+     */
+    public void onInsert(RequestIdentity key) {
+        uriIndex.sync(key);
+    }
+
+    /**
+     * The bans the sweep hasn't finished with.
+     */
+    public List<Ban> getBans() {
+        return ImmutableList.copyOf(bans);
+    }
+
+    public void shutdown() {
+        sweeper.shutdownNow();
+    }
+
+    private int remove(List<RequestIdentity> keys) {
+        int removed = 0;
+        for (RequestIdentity key : keys) {
+            if (cache.remove(key) != null) {
+                removed++;
+            }
+        }
+
+        return removed;
+    }
+
+    private void ban(Ban ban) {
+        bans.add(ban);
+        if (!sweepScheduled.compareAndSet(false, true)) {
+            return;
+        }
+
+        try {
+            sweeper.execute(new Runnable() {
+                @Override
+                public void run() {
+                    sweepScheduled.set(false);
+                    sweep();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            sweepScheduled.set(false);
+        }
+    }
+
+    /**
+     * Remove everything the current bans match from memory and disk, then retire them. Bans added during the sweep
+     * are left for the next one.
+     */
+    private void sweep() {
+        List<Ban> sweeping = ImmutableList.copyOf(bans);
+        List<Ban> regexBans = new ArrayList<>();
+        for (Ban ban : sweeping) {
+            if (ban.getKind() == Ban.Kind.REGEX) {
+                regexBans.add(ban);
+            }
+        }
+
+        int removed = 0;
+        if (!regexBans.isEmpty()) {
+            // the other bans were already purged from memory when they were made; the store's keys are walked rather than
+            // copied out of the index, which would hold up every insert and eviction syncing it in the meantime
+            for (RequestIdentity key : cache.keySet()) {
+                if (matchesAny(regexBans, key, null) && cache.remove(key) != null) {
+                    removed++;
+                }
+            }
+        }
+
+        if (diskTier != null) {
+            boolean tagBans = false;
+            for (Ban ban : sweeping) {
+                tagBans |= ban.getKind() == Ban.Kind.TAG;
+            }
+
+            for (RequestIdentity key : diskTier.keys()) {
+                // only read the stored headers when there are tags to look for
+                if (matchesAny(sweeping, key, null) || (tagBans && matchesAny(sweeping, key, diskTier.readHeaders(key)))) {
+                    diskTier.remove(key);
+                    removed++;
+                }
+            }
+        }
+
+        bans.removeAll(sweeping);
+        LOGGER.info("Swept {} cached responses for {} bans.", removed, sweeping.size());
+    }
+
+    private static boolean matchesAny(List<Ban> bans, RequestIdentity key, HttpFields headers) {
+        for (Ban ban : bans) {
+            if (ban.matches(key, headers)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Responses for URLs matching an expression, or carrying a tag, stored before a point in time.
+     */
+    public static class Ban {
+        public enum Kind {
+            URL,
+            PREFIX,
+            REGEX,
+            TAG
+        }
+
+        private final Kind kind;
+        private final String expression;
+        private final Pattern pattern;
+        private final long createdAt;
+
+        Ban(Kind kind, String expression) {
+            this.kind = kind;
+            this.expression = expression;
+            this.pattern = kind == Kind.REGEX ? Pattern.compile(expression) : null;
+            this.createdAt = System.currentTimeMillis();
+        }
+
+        public Kind getKind() {
+            return kind;
+        }
+
+        public String getExpression() {
+            return expression;
+        }
+
+        public long getCreatedAt() {
+            return createdAt;
+        }
+
+        /**
+         * @param headers the headers of the response stored for the key, or {@code null} if they aren't at hand, in
+         *                which case tags never match
+         */
+        boolean matches(RequestIdentity key, HttpFields headers) {
+            switch (kind) {
+                case URL:
+                    return expression.equals(url(key));
+                case PREFIX:
+                    return key.getRequestUri().startsWith(expression);
+                case TAG:
+                    return headers != null && SurrogateKeyIndex.tags(headers).contains(expression);
+                default:
+                    return pattern.matcher(url(key)).find();
+            }
+        }
+
+        private static String url(RequestIdentity key) {
+            return key.getQueryString().isEmpty() ? key.getRequestUri() : key.getRequestUri() + "?" + key.getQueryString();
+        }
+    }
+}
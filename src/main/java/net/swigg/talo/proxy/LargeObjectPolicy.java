@@ -0,0 +1,98 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Dustin Sweigart
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.swigg.talo.proxy;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * How large responses are handled so that the heap used per request stays bounded no matter the size of the body.
+ * Bodies above the spill threshold are written to a temporary file instead of the heap while they arrive and are
+ * cached from a memory mapping of it. Bodies above the maximum size aren't cached at all: clients waiting on them go
+ * to the target application on their own and the response streams straight through.
+ *
+ * @author Dustin Sweigart <dustin@swigg.net>
+ */
+public class LargeObjectPolicy {
+    static private final long DEFAULT_SPILL_THRESHOLD = 8L * 1024 * 1024;
+    static private final long DEFAULT_MAXIMUM_SIZE = 32L * 1024 * 1024;
+
+    private final long spillThreshold;
+    private final long maximumSize;
+    private final File spillDirectory;
+
+    public LargeObjectPolicy() {
+        this(DEFAULT_SPILL_THRESHOLD, DEFAULT_MAXIMUM_SIZE, null);
+    }
+
+    /**
+     * @param spillThreshold bodies larger than this many bytes are kept in a file instead of on the heap
+     * @param maximumSize    bodies larger than this many bytes aren't cached, at most {@link Integer#MAX_VALUE}
+     * @param spillDirectory where to create spill files, or {@code null} for the default temporary directory
+     */
+    public LargeObjectPolicy(long spillThreshold, long maximumSize, File spillDirectory) {
+        checkArgument(spillThreshold >= 0);
+        checkArgument(maximumSize >= spillThreshold && maximumSize <= Integer.MAX_VALUE);
+
+        this.spillThreshold = spillThreshold;
+        this.maximumSize = maximumSize;
+        this.spillDirectory = spillDirectory;
+    }
+
+    /**
+     * Whether a body of the given length is too large to keep on the heap.
+     */
+    public boolean isSpilled(long length) {
+        return length > spillThreshold;
+    }
+
+    /**
+     * Whether a body of the given length is too large to be cached at all.
+     */
+    public boolean isTooLarge(long length) {
+        return length > maximumSize;
+    }
+
+    /**
+     * Create an empty file to spill a body to, deleted once the channel is closed.
+     */
+    public FileChannel createSpillFile() throws IOException {
+        Path path = spillDirectory == null
+                ? Files.createTempFile("talo-spill-", ".tmp")
+                : Files.createTempFile(spillDirectory.toPath(), "talo-spill-", ".tmp");
+
+        try {
+            return FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+        } catch (IOException e) {
+            Files.deleteIfExists(path);
+            throw e;
+        }
+    }
+}
@@ -24,58 +24,95 @@
 
 package net.swigg.talo.proxy;
 
-import com.google.common.base.Charsets;
+import com.google.common.base.Predicate;
 import com.google.common.util.concurrent.SettableFuture;
+import net.swigg.talo.cache.BodyStore;
+import net.swigg.talo.cache.CacheStore;
+import net.swigg.talo.cache.HeapBodyStore;
+import net.swigg.talo.cache.StoredBody;
 import org.eclipse.jetty.client.api.Response;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.concurrent.ConcurrentMap;
 
 /**
- * Response listener for storing the response.
+ * Response listener for storing the response. The body is collected in the {@link InFlightResponse} that clients
+ * waiting on the same response stream from.
  *
  * @author Dustin Sweigart <dustin@swigg.net>
  */
 public class ProxyResponseListener implements Response.SuccessListener, Response.ContentListener {
     private final RequestIdentity requestIdentity;
-    private final ConcurrentMap<RequestIdentity, SettableFuture<ResponseHolder>> cache;
-    private final ByteArrayOutputStream outputStream;
+    private final SettableFuture<ResponseHolder> settableFuture;
+    private final InFlightResponse inFlightResponse;
+    private final CacheStore<RequestIdentity, SettableFuture<ResponseHolder>> cache;
+    private final BodyStore bodyStore;
+    private final FreshnessPolicy freshnessPolicy;
+    private final Predicate<Response> saveToCache;
+    private SurrogateKeyIndex surrogateKeyIndex;
 
-    public ProxyResponseListener(final RequestIdentity requestIdentity, final ConcurrentMap<RequestIdentity, SettableFuture<ResponseHolder>> cache) {
+    public ProxyResponseListener(final RequestIdentity requestIdentity, final InFlightResponse inFlightResponse, final CacheStore<RequestIdentity, SettableFuture<ResponseHolder>> cache, final BodyStore bodyStore, final FreshnessPolicy freshnessPolicy, final Predicate<Response> saveToCache) {
         this.requestIdentity = requestIdentity;
+        this.settableFuture = inFlightResponse.getFuture();
+        this.inFlightResponse = inFlightResponse;
         this.cache = cache;
-        this.outputStream = new ByteArrayOutputStream();
+        this.bodyStore = bodyStore;
+        this.freshnessPolicy = freshnessPolicy;
+        this.saveToCache = saveToCache;
+    }
+
+    /**
+     * @param surrogateKeyIndex the index to add the response to once stored, or {@code null} if tags aren't indexed
+     */
+    public void setSurrogateKeyIndex(SurrogateKeyIndex surrogateKeyIndex) {
+        this.surrogateKeyIndex = surrogateKeyIndex;
     }
 
     @Override
     public void onContent(Response response, ByteBuffer content) {
-        byte[] buffer;
-        int offset;
-        int length = content.remaining();
-        if (content.hasArray())
-        {
-            buffer = content.array();
-            offset = content.arrayOffset();
+        inFlightResponse.append(content);
+    }
+
+    @Override
+    public void onSuccess(Response response) {
+        ByteBuffer buffer = inFlightResponse.toByteBuffer();
+        if (buffer == null) {
+            // the body was discarded, anybody still streaming it can't get the rest
+            inFlightResponse.fail();
+        } else {
+            inFlightResponse.complete();
+        }
+        if (!saveToCache.apply(response)) {
+            // not to be shared, so the body wasn't collected; have anybody waiting on it fetch a response of their own
+            // from the target application
+            cache.remove(requestIdentity, settableFuture);
+            settableFuture.setException(new UncachedResponseException("Response may not be shared"));
+            return;
         }
-        else
-        {
-            buffer = new byte[length];
-            content.get(buffer);
-            offset = 0;
+        if (buffer == null || inFlightResponse.isTooLarge()) {
+            // too large to keep, have anybody waiting on it fetch it from the target application themselves
+            cache.remove(requestIdentity, settableFuture);
+            settableFuture.setException(new UncachedResponseException("Response body was not kept"));
+            return;
         }
 
-        try {
-            outputStream.write(buffer);
-        } catch (IOException e) {
-            e.printStackTrace();
+        Freshness freshness = freshnessPolicy.freshness(response.getHeaders(), System.currentTimeMillis(), CacheRules.ttl(response));
+
+        StoredBody body = bodyStore.store(buffer);
+        if (body == null) {
+            // no room in the body store, hand the response to anybody waiting on it but don't keep it
+            settableFuture.set(new ResponseHolder(response, new HeapBodyStore.HeapBody(buffer), freshness));
+            cache.remove(requestIdentity, settableFuture);
+            return;
         }
-    }
 
-    @Override
-    public void onSuccess(Response response) {
-        ResponseHolder responseHolder = new ResponseHolder(response, new String(outputStream.toByteArray(), Charsets.UTF_8));
-        cache.get(requestIdentity).set(responseHolder);
+        ResponseHolder responseHolder = new ResponseHolder(response, body, freshness);
+        settableFuture.set(responseHolder);
+
+        // weigh the entry again now that the body is known, giving up the body if the entry was already dropped
+        if (!cache.replace(requestIdentity, settableFuture, settableFuture)) {
+            responseHolder.release();
+        } else if (surrogateKeyIndex != null) {
+            surrogateKeyIndex.index(requestIdentity, responseHolder);
+        }
     }
 }
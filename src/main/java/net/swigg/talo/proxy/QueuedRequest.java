@@ -0,0 +1,121 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Dustin Sweigart
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.swigg.talo.proxy;
+
+import net.swigg.talo.origin.OriginLimiter;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A request suspended until the {@link OriginLimiter} lets it go to the target application. Once granted a permit it
+ * is dispatched again holding it; if it waits too long it is answered with a 503 instead.
+ *
+ * @author Dustin Sweigart <dustin@swigg.net>
+ */
+class QueuedRequest implements OriginLimiter.Waiter, AsyncListener {
+    private final OriginLimiter originLimiter;
+    private final HttpServletRequest request;
+    private final HttpServletResponse response;
+    private final String permitAttribute;
+    private final Runnable onGiveUp;
+    private final AtomicBoolean done = new AtomicBoolean();
+
+    private AsyncContext asyncContext;
+
+    /**
+     * @param permitAttribute the request attribute marking that the request holds a permit
+     * @param onGiveUp        what to do when the request stops waiting without a permit
+     */
+    QueuedRequest(OriginLimiter originLimiter, HttpServletRequest request, HttpServletResponse response,
+                  String permitAttribute, Runnable onGiveUp) {
+        this.originLimiter = originLimiter;
+        this.request = request;
+        this.response = response;
+        this.permitAttribute = permitAttribute;
+        this.onGiveUp = onGiveUp;
+    }
+
+    /**
+     * Suspend the request and queue it, or turn it down right away if the queue is full.
+     *
+     * @param timeout milliseconds to wait for a permit
+     */
+    void start(OriginLimiter.Priority priority, long timeout) {
+        asyncContext = request.startAsync();
+        asyncContext.setTimeout(timeout);
+        asyncContext.addListener(this);
+        if (!originLimiter.enqueue(this, priority)) {
+            giveUp();
+        }
+    }
+
+    @Override
+    public boolean grant() {
+        if (!done.compareAndSet(false, true)) {
+            return false;
+        }
+
+        request.setAttribute(permitAttribute, Boolean.TRUE);
+        asyncContext.dispatch();
+        return true;
+    }
+
+    private void giveUp() {
+        if (!done.compareAndSet(false, true)) {
+            return;
+        }
+
+        originLimiter.remove(this);
+        onGiveUp.run();
+        response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+        asyncContext.complete();
+    }
+
+    @Override
+    public void onTimeout(AsyncEvent event) throws IOException {
+        giveUp();
+    }
+
+    @Override
+    public void onError(AsyncEvent event) throws IOException {
+        if (done.compareAndSet(false, true)) {
+            originLimiter.remove(this);
+            onGiveUp.run();
+        }
+    }
+
+    @Override
+    public void onComplete(AsyncEvent event) throws IOException {
+    }
+
+    @Override
+    public void onStartAsync(AsyncEvent event) throws IOException {
+    }
+}
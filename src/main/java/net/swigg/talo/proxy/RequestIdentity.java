@@ -24,52 +24,105 @@
 
 package net.swigg.talo.proxy;
 
-import com.google.common.base.Objects;
-import com.google.common.collect.Ordering;
+import com.google.common.base.Charsets;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
 
-import javax.servlet.http.HttpServletRequest;
-import java.util.Arrays;
-import java.util.Collections;
-import java.util.List;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
-import static com.google.common.base.Preconditions.checkState;
+import static com.google.common.base.Preconditions.checkNotNull;
 
 /**
- * Identity for requests that provides basic normalization
+ * Identity of a cached response, made of the already normalized parts of the request built by
+ * {@link CacheKeyPolicy}. A 128-bit fingerprint of the parts is used for hashing and to tell identities apart quickly;
+ * identities with the same fingerprint still compare their parts so that a collision can never serve the wrong
+ * response.
  *
  * @author Dustin Sweigart <dustin@swigg.net>
  */
 public class RequestIdentity {
-    private HttpServletRequest request;
+    static private final HashFunction FINGERPRINT = Hashing.murmur3_128();
 
     private final String requestUri;
-    private int headersHash     = 0;
-    private int queryStringHash = 0;
+    private final String queryString;
+    private final String keyHeaders;
+    private final String variant;
+    private final long fingerprintHigh;
+    private final long fingerprintLow;
 
-    public RequestIdentity(HttpServletRequest request) {
-        this.request = request;
-        this.requestUri = request.getRequestURI();
-        this.headersHash = this.computeHeaderHash();
+    /**
+     * @param requestUri  the path of the request
+     * @param queryString the canonical query string, empty if there is none
+     * @param keyHeaders  the canonical values of the headers that are part of every key
+     * @param variant     the canonical values of the headers the response varies on, empty for the primary key
+     */
+    public RequestIdentity(String requestUri, String queryString, String keyHeaders, String variant) {
+        this.requestUri = checkNotNull(requestUri);
+        this.queryString = checkNotNull(queryString);
+        this.keyHeaders = checkNotNull(keyHeaders);
+        this.variant = checkNotNull(variant);
+
+        HashCode hashCode = FINGERPRINT.newHasher()
+                .putString(requestUri, Charsets.UTF_8).putByte((byte) 0)
+                .putString(queryString, Charsets.UTF_8).putByte((byte) 0)
+                .putString(keyHeaders, Charsets.UTF_8).putByte((byte) 0)
+                .putString(variant, Charsets.UTF_8)
+                .hash();
+        ByteBuffer bytes = ByteBuffer.wrap(hashCode.asBytes()).order(ByteOrder.LITTLE_ENDIAN);
+        this.fingerprintLow = bytes.getLong(0);
+        this.fingerprintHigh = bytes.getLong(8);
     }
 
-    private int computeHeaderHash() {
-        checkState(request != null);
+    public String getRequestUri() {
+        return requestUri;
+    }
 
-        Ordering order = Ordering.natural().nullsFirst();
-        List<String> headerNames = order.sortedCopy(Collections.list(request.getHeaderNames()));
-        String[] headers = new String[headerNames.size()*2];
+    public String getQueryString() {
+        return queryString;
+    }
 
-        for (int i=0; i < headerNames.size(); i++) {
-            headers[i*2] = headerNames.get(i);
-            headers[i*2+1] = request.getHeader(headerNames.get(i));
-        }
+    public String getKeyHeaders() {
+        return keyHeaders;
+    }
+
+    public String getVariant() {
+        return variant;
+    }
+
+    public long getFingerprintHigh() {
+        return fingerprintHigh;
+    }
 
-        return Arrays.hashCode(headers);
+    public long getFingerprintLow() {
+        return fingerprintLow;
+    }
+
+    /**
+     * Whether this is the key of a resource rather than one of its variants.
+     */
+    public boolean isPrimary() {
+        return variant.isEmpty();
+    }
+
+    /**
+     * The key of the resource this identity is a variant of.
+     */
+    public RequestIdentity primary() {
+        return isPrimary() ? this : new RequestIdentity(requestUri, queryString, keyHeaders, "");
+    }
+
+    /**
+     * The key of one variant of this resource.
+     */
+    public RequestIdentity withVariant(String variant) {
+        return new RequestIdentity(requestUri, queryString, keyHeaders, variant);
     }
 
     @Override
     public int hashCode() {
-        return Objects.hashCode(requestUri, headersHash, queryStringHash);
+        return (int) fingerprintLow;
     }
 
     @Override
@@ -81,8 +134,16 @@ public class RequestIdentity {
             return false;
         }
         final RequestIdentity other = (RequestIdentity) obj;
-        return Objects.equal(this.requestUri, other.requestUri) &&
-                Objects.equal(this.headersHash, other.headersHash) &&
-                Objects.equal(this.queryStringHash, other.queryStringHash);
+        return this.fingerprintLow == other.fingerprintLow &&
+                this.fingerprintHigh == other.fingerprintHigh &&
+                this.requestUri.equals(other.requestUri) &&
+                this.queryString.equals(other.queryString) &&
+                this.keyHeaders.equals(other.keyHeaders) &&
+                this.variant.equals(other.variant);
+    }
+
+    @Override
+    public String toString() {
+        return queryString.isEmpty() ? requestUri : requestUri + "?" + queryString;
     }
 }
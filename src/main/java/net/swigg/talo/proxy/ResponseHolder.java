@@ -24,28 +24,224 @@
 
 package net.swigg.talo.proxy;
 
+import com.google.common.collect.ImmutableMap;
+import net.swigg.talo.cache.StoredBody;
 import org.eclipse.jetty.client.api.Response;
+import org.eclipse.jetty.http.HttpField;
+import org.eclipse.jetty.http.HttpFields;
+import org.eclipse.jetty.http.HttpHeader;
+
+import java.nio.ByteBuffer;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * Container for storing the responses from the target application.
+ * Container for storing the responses from the target application. The body is kept as the exact bytes received so
+ * that binary and compressed content survives untouched, in whatever {@link StoredBody} the configured storage
+ * provides. Only the status and headers are guaranteed to be on the heap.
+ * <p/>
+ * Compressed copies of the body can be added as encodings after the fact. The holder is reference counted and owns
+ * the body and all of its encodings, which are given up together once the last reference is released.
  *
  * @author Dustin Sweigart <dustin@swigg.net>
  */
 public class ResponseHolder {
-    private Response response;
+    private final int status;
+
+    private final HttpFields headers;
+
+    private final StoredBody body;
+
+    private final Freshness freshness;
+
+    private final long storedAt;
+
+    private final AtomicInteger references = new AtomicInteger(1);
 
-    private String body;
+    private volatile Map<String, StoredBody> encodings;
+
+    public ResponseHolder(Response response, StoredBody body, Freshness freshness) {
+        this(response.getStatus(), copyHeaders(response.getHeaders()), body, freshness);
+    }
+
+    public ResponseHolder(int status, HttpFields headers, StoredBody body, Freshness freshness) {
+        this(status, headers, body, freshness, System.currentTimeMillis());
+    }
+
+    /**
+     * @param storedAt when this proxy stored the response, in milliseconds since the epoch
+     */
+    public ResponseHolder(int status, HttpFields headers, StoredBody body, Freshness freshness, long storedAt) {
+        this(status, headers, body, freshness, storedAt, ImmutableMap.<String, StoredBody>of());
+    }
 
-    public ResponseHolder(Response response, String body) {
-        this.response = response;
+    private ResponseHolder(int status, HttpFields headers, StoredBody body, Freshness freshness, long storedAt, Map<String, StoredBody> encodings) {
+        this.status = status;
+        this.headers = headers;
         this.body = body;
+        this.freshness = freshness;
+        this.storedAt = storedAt;
+        this.encodings = encodings;
     }
 
-    public Response getResponse() {
-        return response;
+    public int getStatus() {
+        return status;
     }
 
-    public String getBody() {
-        return body;
+    public HttpFields getHeaders() {
+        return headers;
+    }
+
+    public Freshness getFreshness() {
+        return freshness;
+    }
+
+    /**
+     * When this proxy stored or last revalidated the response, in milliseconds since the epoch. Unlike the freshness'
+     * stored time it doesn't account for the time the response spent in caches upstream.
+     */
+    public long getStoredAt() {
+        return storedAt;
+    }
+
+    /**
+     * A read-only view of the body positioned at its start. Each call returns an independent view of the same bytes
+     * so concurrent writers do not interfere with each other.
+     */
+    public ByteBuffer getBody() {
+        return body.buffer();
+    }
+
+    public int getContentLength() {
+        return body.length();
+    }
+
+    /**
+     * The content codings the body is also available in.
+     */
+    public Set<String> getEncodings() {
+        return encodings.keySet();
+    }
+
+    /**
+     * A read-only view of the body in the given content coding, or of the body as received if it isn't available in
+     * that coding.
+     */
+    public ByteBuffer getBody(String encoding) {
+        StoredBody encoded = encoding == null ? null : encodings.get(encoding);
+        return encoded == null ? body.buffer() : encoded.buffer();
+    }
+
+    public int getContentLength(String encoding) {
+        StoredBody encoded = encoding == null ? null : encodings.get(encoding);
+        return encoded == null ? body.length() : encoded.length();
+    }
+
+    /**
+     * Add a copy of the body in another content coding, handing ownership of it to this holder.
+     *
+     * @return {@code false} if the holder was already released or has the coding, in which case the caller keeps
+     * ownership of the copy
+     */
+    public synchronized boolean addEncoding(String encoding, StoredBody encoded) {
+        if (references.get() <= 0 || encodings.containsKey(encoding)) {
+            return false;
+        }
+
+        encodings = ImmutableMap.<String, StoredBody>builder().putAll(encodings).put(encoding, encoded).build();
+        return true;
+    }
+
+    /**
+     * Take a reference to the holder before writing it out.
+     *
+     * @return {@code false} if the holder has been released, in which case it must not be served
+     */
+    public boolean retain() {
+        while (true) {
+            int current = references.get();
+            if (current <= 0) {
+                return false;
+            }
+            if (references.compareAndSet(current, current + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Give up a reference, freeing the body and its encodings with the last one.
+     *
+     * @see StoredBody#release()
+     */
+    public void release() {
+        if (references.decrementAndGet() != 0) {
+            return;
+        }
+
+        synchronized (this) {
+            body.release();
+            for (StoredBody encoded : encodings.values()) {
+                encoded.release();
+            }
+        }
+    }
+
+    /**
+     * A copy of this response with refreshed headers and freshness, as produced by a successful revalidation. The
+     * copy shares the body and its encodings and holds its own references to them.
+     *
+     * @return {@code null} if the body has already been freed
+     */
+    public synchronized ResponseHolder revalidated(HttpFields headers, Freshness freshness) {
+        if (references.get() <= 0 || !body.retain()) {
+            return null;
+        }
+
+        ImmutableMap.Builder<String, StoredBody> shared = ImmutableMap.builder();
+        for (Map.Entry<String, StoredBody> encoded : encodings.entrySet()) {
+            if (encoded.getValue().retain()) {
+                shared.put(encoded.getKey(), encoded.getValue());
+            }
+        }
+
+        return new ResponseHolder(status, copyHeaders(headers), body, freshness, System.currentTimeMillis(), shared.build());
+    }
+
+    /**
+     * An estimate of the number of bytes this response occupies, counting the body, its encodings and headers.
+     */
+    public int getWeight() {
+        int weight = body.footprint();
+        for (StoredBody encoded : encodings.values()) {
+            weight += encoded.footprint();
+        }
+        for (HttpField httpField : headers) {
+            weight += (httpField.getName().length() + httpField.getValue().length()) * 2;
+        }
+
+        return weight;
+    }
+
+    /**
+     * Copy the headers worth replaying to clients, leaving out the framing headers that are recomputed from the
+     * stored body, the age which is recomputed from the {@link Freshness}, and cookies meant for the client the
+     * response was fetched for alone.
+     */
+    static HttpFields copyHeaders(HttpFields source) {
+        HttpFields headers = new HttpFields();
+        for (HttpField httpField : source) {
+            HttpHeader header = httpField.getHeader();
+            if (header == HttpHeader.CONTENT_LENGTH || header == HttpHeader.TRANSFER_ENCODING ||
+                    header == HttpHeader.CONNECTION || header == HttpHeader.KEEP_ALIVE || header == HttpHeader.AGE ||
+                    header == HttpHeader.SET_COOKIE || header == HttpHeader.SET_COOKIE2) {
+                continue;
+            }
+
+            headers.add(httpField);
+        }
+
+        return headers;
     }
 }
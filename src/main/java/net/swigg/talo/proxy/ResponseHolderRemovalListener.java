@@ -0,0 +1,94 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Dustin Sweigart
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package net.swigg.talo.proxy;
+
+import com.google.common.util.concurrent.SettableFuture;
+import net.swigg.talo.cache.RemovalCause;
+import net.swigg.talo.cache.RemovalListener;
+
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Gives up the cache's reference to a response body once its entry leaves the cache, so that bodies kept outside of
+ * the heap are freed as soon as the last in-flight write finishes. When there is a {@link DiskTier}, evicted responses
+ * are demoted to it and responses removed for any other reason are dropped from it. The {@link UriIndex}, if any, is
+ * told about every response that left the cache without being replaced, as is the {@link SurrogateKeyIndex}.
+ *
+ * @author Dustin Sweigart <dustin@swigg.net>
+ */
+public class ResponseHolderRemovalListener implements RemovalListener<RequestIdentity, SettableFuture<ResponseHolder>> {
+    private final DiskTier diskTier;
+    private UriIndex uriIndex;
+    private SurrogateKeyIndex surrogateKeyIndex;
+
+    public ResponseHolderRemovalListener() {
+        this(null);
+    }
+
+    public ResponseHolderRemovalListener(DiskTier diskTier) {
+        this.diskTier = diskTier;
+    }
+
+    public void setUriIndex(UriIndex uriIndex) {
+        this.uriIndex = uriIndex;
+    }
+
+    public void setSurrogateKeyIndex(SurrogateKeyIndex surrogateKeyIndex) {
+        this.surrogateKeyIndex = surrogateKeyIndex;
+    }
+
+    @Override
+    public void onRemoval(RequestIdentity key, SettableFuture<ResponseHolder> value, RemovalCause cause) {
+        if (cause != RemovalCause.REPLACED) {
+            if (uriIndex != null) {
+                // the store may be holding its eviction lock, leave the index's work to the next thread using it
+                uriIndex.syncLater(key);
+            }
+            if (surrogateKeyIndex != null) {
+                surrogateKeyIndex.sync(key);
+            }
+        }
+        if (diskTier != null && cause != RemovalCause.EVICTED) {
+            diskTier.remove(key);
+        }
+
+        if (!value.isDone() || value.isCancelled()) {
+            return;
+        }
+
+        ResponseHolder responseHolder;
+        try {
+            responseHolder = value.get();
+        } catch (InterruptedException | ExecutionException e) {
+            // the request failed, there is no body to release
+            return;
+        }
+
+        if (diskTier != null && cause == RemovalCause.EVICTED) {
+            diskTier.demote(key, responseHolder);
+        }
+        responseHolder.release();
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Dustin Sweigart
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package net.swigg.talo.proxy;
+
+import com.google.common.cache.Weigher;
+import com.google.common.util.concurrent.SettableFuture;
+
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Weighs cache entries by the size of the stored response. Entries still waiting on the target application only
+ * account for their bookkeeping and are weighed again once the response arrives.
+ *
+ * @author Dustin Sweigart <dustin@swigg.net>
+ */
+public class ResponseHolderWeigher implements Weigher<RequestIdentity, SettableFuture<ResponseHolder>> {
+    static private final int ENTRY_OVERHEAD = 128;
+
+    @Override
+    public int weigh(RequestIdentity key, SettableFuture<ResponseHolder> value) {
+        if (!value.isDone() || value.isCancelled()) {
+            return ENTRY_OVERHEAD;
+        }
+
+        try {
+            return ENTRY_OVERHEAD + value.get().getWeight();
+        } catch (InterruptedException | ExecutionException e) {
+            return ENTRY_OVERHEAD;
+        }
+    }
+}
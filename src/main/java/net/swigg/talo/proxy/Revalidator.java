@@ -0,0 +1,296 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Dustin Sweigart
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package net.swigg.talo.proxy;
+
+import com.google.common.base.Predicate;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import net.swigg.talo.cache.BodyStore;
+import net.swigg.talo.cache.CacheStore;
+import net.swigg.talo.cache.HeapBodyStore;
+import net.swigg.talo.cache.StoredBody;
+import net.swigg.talo.metrics.CacheMetrics;
+import org.eclipse.jetty.client.HttpClient;
+import org.eclipse.jetty.client.api.Request;
+import org.eclipse.jetty.client.api.Response;
+import org.eclipse.jetty.client.api.Result;
+import org.eclipse.jetty.http.HttpFields;
+import org.eclipse.jetty.http.HttpMethod;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.http.HttpServletRequest;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Refreshes stale cache entries from the target application in the background. At most one refresh runs per entry;
+ * everybody asking for the same entry while it runs shares its result.
+ *
+ * @author Dustin Sweigart <dustin@swigg.net>
+ */
+public class Revalidator {
+    static private final Logger LOGGER = LoggerFactory.getLogger(Revalidator.class);
+
+    static private final Set<String> SKIPPED_HEADERS = ImmutableSet.of(
+            "connection", "keep-alive", "proxy-authorization", "proxy-authenticate", "proxy-connection", "te",
+            "trailer", "transfer-encoding", "upgrade", "host", "range", "if-range");
+
+    private final HttpClient httpClient;
+    private final Upstream upstream;
+    private final CacheStore<RequestIdentity, SettableFuture<ResponseHolder>> cache;
+    private final BodyStore bodyStore;
+    private final FreshnessPolicy freshnessPolicy;
+    private final Predicate<Response> saveToCache;
+    private final Compressor compressor;
+    private final CacheMetrics metrics;
+    private LargeObjectPolicy largeObjectPolicy = new LargeObjectPolicy();
+    private SurrogateKeyIndex surrogateKeyIndex;
+
+    private final ConcurrentMap<RequestIdentity, SettableFuture<ResponseHolder>> inFlight = new ConcurrentHashMap<>();
+
+    public Revalidator(HttpClient httpClient, Upstream upstream, CacheStore<RequestIdentity, SettableFuture<ResponseHolder>> cache,
+                       BodyStore bodyStore, FreshnessPolicy freshnessPolicy, Predicate<Response> saveToCache,
+                       Compressor compressor, CacheMetrics metrics) {
+        this.httpClient = httpClient;
+        this.upstream = upstream;
+        this.cache = cache;
+        this.bodyStore = bodyStore;
+        this.freshnessPolicy = freshnessPolicy;
+        this.saveToCache = saveToCache;
+        this.compressor = compressor;
+        this.metrics = metrics;
+    }
+
+    /**
+     * @param largeObjectPolicy when to spill refreshed bodies to disk or give up on them, like fetched ones
+     */
+    public void setLargeObjectPolicy(LargeObjectPolicy largeObjectPolicy) {
+        this.largeObjectPolicy = largeObjectPolicy;
+    }
+
+    /**
+     * @param surrogateKeyIndex the index to add refreshed responses to under their new tags
+     */
+    public void setSurrogateKeyIndex(SurrogateKeyIndex surrogateKeyIndex) {
+        this.surrogateKeyIndex = surrogateKeyIndex;
+    }
+
+    /**
+     * Fetch a new copy of the response for the key and swap it into the cache in place of {@code current}. When the
+     * stale response carries an {@code ETag} or {@code Last-Modified} the request is made conditional, and a 304 only
+     * refreshes the stored headers and freshness while keeping the stored body.
+     *
+     * @return the new response, failing if there was no room at the target application, it could not be reached or it
+     * answered with a server error, in which case {@code current} stays in the cache
+     */
+    public ListenableFuture<ResponseHolder> revalidate(RequestIdentity key, SettableFuture<ResponseHolder> current,
+                                                       ResponseHolder stale, HttpServletRequest request) {
+        SettableFuture<ResponseHolder> refreshed = SettableFuture.create();
+        SettableFuture<ResponseHolder> existing = inFlight.putIfAbsent(key, refreshed);
+        if (existing != null) {
+            return existing;
+        }
+
+        Route route = upstream.route(request);
+        if (route == null) {
+            inFlight.remove(key, refreshed);
+            refreshed.setException(new IOException("No room at the target application to refresh the response"));
+            return refreshed;
+        }
+
+        Request proxyRequest = httpClient.newRequest(route.getTarget()).method(HttpMethod.GET);
+        for (String headerName : Collections.list(request.getHeaderNames())) {
+            if (SKIPPED_HEADERS.contains(headerName.toLowerCase())) {
+                continue;
+            }
+
+            for (String headerValue : Collections.list(request.getHeaders(headerName))) {
+                proxyRequest.header(headerName, headerValue);
+            }
+        }
+
+        // the refreshed response is decided by the same rules as the stale one
+        Object cacheRules = request.getAttribute(CacheRules.MATCH);
+        if (cacheRules != null) {
+            proxyRequest.attribute(CacheRules.MATCH, cacheRules);
+        }
+
+        // the client's validators are for its own copy, not ours
+        ConditionalRequests.removeConditionalHeaders(proxyRequest);
+        ConditionalRequests.addValidators(proxyRequest, stale);
+
+        metrics.originFetches.increment();
+        route.follow(proxyRequest);
+        proxyRequest.send(new RevalidationListener(key, current, stale, refreshed));
+        return refreshed;
+    }
+
+    private void complete(RequestIdentity key, SettableFuture<ResponseHolder> current, ResponseHolder stale,
+                          SettableFuture<ResponseHolder> refreshed, Response response, InFlightResponse content) {
+        if (response.getStatus() >= 500) {
+            refreshed.setException(new IOException("Target application responded with " + response.getStatus()));
+            return;
+        }
+
+        if (response.getStatus() == 304) {
+            HttpFields headers = ConditionalRequests.mergeHeaders(stale.getHeaders(), response.getHeaders());
+            ResponseHolder responseHolder = stale.revalidated(headers,
+                    freshnessPolicy.freshness(headers, System.currentTimeMillis(), CacheRules.ttl(response.getRequest(), stale.getStatus(), headers)));
+            if (responseHolder == null) {
+                cache.remove(key, current);
+                refreshed.setException(new IOException("Stored body was freed before it could be revalidated"));
+                return;
+            }
+
+            swap(key, current, refreshed, responseHolder);
+            return;
+        }
+
+        if (!saveToCache.apply(response)) {
+            // the new response may not be shared, so nobody gets it or the stale one from the cache any more
+            cache.remove(key, current);
+            refreshed.setException(new UncachedResponseException("Response may not be shared"));
+            return;
+        }
+
+        if (content.isSpilled()) {
+            metrics.spilled.increment();
+        }
+        ByteBuffer buffer = content.toByteBuffer();
+        if (buffer == null || content.isTooLarge()) {
+            // too large to keep, whoever wants it fetches it from the target application themselves
+            metrics.tooLarge.increment();
+            cache.remove(key, current);
+            refreshed.setException(new UncachedResponseException("Refreshed response body was not kept"));
+            return;
+        }
+
+        Freshness freshness = freshnessPolicy.freshness(response.getHeaders(), System.currentTimeMillis(), CacheRules.ttl(response));
+        StoredBody body = bodyStore.store(buffer);
+        if (body == null) {
+            // no room for the new response, so the stale one can't be kept either
+            cache.remove(key, current);
+            refreshed.set(new ResponseHolder(response, new HeapBodyStore.HeapBody(buffer), freshness));
+            return;
+        }
+
+        swap(key, current, refreshed, new ResponseHolder(response, body, freshness));
+    }
+
+    private void swap(RequestIdentity key, SettableFuture<ResponseHolder> current, SettableFuture<ResponseHolder> refreshed,
+                      ResponseHolder responseHolder) {
+        SettableFuture<ResponseHolder> entry = SettableFuture.create();
+        entry.set(responseHolder);
+        if (!cache.replace(key, current, entry)) {
+            // somebody else already replaced the stale response, or it was purged and mustn't come back
+            responseHolder.release();
+        } else {
+            if (surrogateKeyIndex != null) {
+                surrogateKeyIndex.index(key, responseHolder);
+            }
+            if (compressor != null) {
+                compressor.compress(key, entry);
+            }
+        }
+
+        refreshed.set(responseHolder);
+    }
+
+    /**
+     * Decides where refreshes are sent, so that they are routed and accounted for like the requests the servlet
+     * proxies.
+     */
+    public interface Upstream {
+        /**
+         * Pick where to send the refresh of the client's request, claiming whatever it needs to be sent.
+         *
+         * @return the route, or {@code null} if the refresh can't be sent right now
+         */
+        Route route(HttpServletRequest request);
+    }
+
+    /**
+     * Where a refresh is sent.
+     */
+    public interface Route {
+        URI getTarget();
+
+        /**
+         * Called just before the refresh is sent, to keep track of it and give back what was claimed for it once it
+         * completes.
+         */
+        void follow(Request proxyRequest);
+    }
+
+    /**
+     * Collects the refreshed body the way fills do, spilling it to disk or giving up on it as the
+     * {@link LargeObjectPolicy} says. Nobody streams it while it arrives.
+     */
+    private class RevalidationListener extends Response.Listener.Adapter {
+        private final RequestIdentity key;
+        private final SettableFuture<ResponseHolder> current;
+        private final ResponseHolder stale;
+        private final SettableFuture<ResponseHolder> refreshed;
+        private final InFlightResponse content;
+
+        RevalidationListener(RequestIdentity key, SettableFuture<ResponseHolder> current, ResponseHolder stale,
+                             SettableFuture<ResponseHolder> refreshed) {
+            this.key = key;
+            this.current = current;
+            this.stale = stale;
+            this.refreshed = refreshed;
+            this.content = new InFlightResponse(refreshed, largeObjectPolicy);
+        }
+
+        @Override
+        public void onContent(Response response, ByteBuffer content) {
+            this.content.append(content);
+        }
+
+        @Override
+        public void onComplete(Result result) {
+            try {
+                if (result.isFailed()) {
+                    metrics.originFailures.increment();
+                    LOGGER.debug("Revalidating {} failed.", key.getRequestUri(), result.getFailure());
+                    refreshed.setException(result.getFailure());
+                } else {
+                    complete(key, current, stale, refreshed, result.getResponse(), content);
+                }
+            } catch (RuntimeException e) {
+                refreshed.setException(e);
+            } finally {
+                inFlight.remove(key, refreshed);
+            }
+        }
+    }
+}
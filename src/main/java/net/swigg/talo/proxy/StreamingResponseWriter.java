@@ -0,0 +1,315 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Dustin Sweigart
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package net.swigg.talo.proxy;
+
+import net.swigg.talo.metrics.CacheMetrics;
+import org.eclipse.jetty.http.HttpField;
+import org.eclipse.jetty.http.HttpHeader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * Streams a response that is still arriving from the target application to a client that asked for the same thing,
+ * writing each chunk as soon as it lands in the {@link InFlightResponse}. Like {@link CachedResponseWriter} nothing
+ * blocks; progress is driven by the in-flight response and by the container once the client can take more bytes.
+ * A single byte range is streamed the same way as soon as its bytes arrive, other range requests wait for the whole
+ * response.
+ *
+ * @author Dustin Sweigart <dustin@swigg.net>
+ */
+class StreamingResponseWriter implements Runnable, WriteListener, AsyncListener {
+    static private final Logger LOGGER = LoggerFactory.getLogger(StreamingResponseWriter.class);
+
+    static private final int CHUNK_SIZE = 64 * 1024;
+
+    private enum State {
+        WAITING, WRITING, HANDED_OFF, DONE
+    }
+
+    private final InFlightResponse inFlightResponse;
+    private final HttpServletRequest request;
+    private final HttpServletResponse response;
+    private final AsyncContext asyncContext;
+    private final CollapsingPolicy collapsingPolicy;
+    private final CacheMetrics metrics;
+    private final long waitStart = System.nanoTime();
+
+    private State state = State.WAITING;
+    private ScheduledFuture<?> giveUp;
+    private ServletOutputStream outputStream;
+    private boolean writePending;
+    private int start;
+    private int position;
+    private long end = Long.MAX_VALUE;
+    private long writeStart;
+
+    StreamingResponseWriter(InFlightResponse inFlightResponse, HttpServletRequest request, HttpServletResponse response,
+                            CollapsingPolicy collapsingPolicy, CacheMetrics metrics) {
+        this(inFlightResponse, request, response, request.startAsync(), collapsingPolicy, metrics);
+
+        // waits are bounded by the collapsing policy and writes by the connection's idle timeout
+        this.asyncContext.setTimeout(0);
+    }
+
+    /**
+     * Take over a request that was already suspended by somebody else.
+     */
+    StreamingResponseWriter(InFlightResponse inFlightResponse, HttpServletRequest request, HttpServletResponse response,
+                            AsyncContext asyncContext, CollapsingPolicy collapsingPolicy, CacheMetrics metrics) {
+        this.inFlightResponse = inFlightResponse;
+        this.request = request;
+        this.response = response;
+        this.asyncContext = asyncContext;
+        this.collapsingPolicy = collapsingPolicy;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Suspend the request and follow the in-flight response, giving up on it if the headers take longer to arrive
+     * than the collapsing policy allows.
+     */
+    void start() {
+        asyncContext.addListener(this);
+        synchronized (this) {
+            giveUp = collapsingPolicy.scheduleGiveUp(new Runnable() {
+                @Override
+                public void run() {
+                    giveUp();
+                }
+            });
+        }
+        inFlightResponse.subscribe(this);
+    }
+
+    private synchronized void giveUp() {
+        if (state == State.WAITING) {
+            // waited long enough, go to the target application without the cache
+            state = State.DONE;
+            inFlightResponse.unsubscribe(this);
+            collapsingPolicy.bypass(request);
+            asyncContext.dispatch();
+        }
+    }
+    /**
+     * Called whenever the in-flight response makes progress.
+     */
+    @Override
+    public synchronized void run() {
+        try {
+            switch (state) {
+                case WAITING:
+                    begin();
+                    break;
+                case WRITING:
+                    // with a write pending the container calls onWritePossible, writing now would race it
+                    if (outputStream != null && !writePending) {
+                        pump();
+                    }
+                    break;
+                default:
+                    break;
+            }
+        } catch (IOException | RuntimeException e) {
+            LOGGER.debug("Streaming {} failed.", request.getRequestURI(), e);
+            finish();
+        }
+    }
+
+    private void begin() throws IOException {
+        switch (inFlightResponse.getState()) {
+            case PENDING:
+                return;
+            case ABANDONED:
+            case FAILED:
+                // nothing to stream, wait for whatever the fetch completes the entry with
+                handOff();
+                return;
+            default:
+                break;
+        }
+
+        int status = inFlightResponse.getStatus();
+        long contentLength = inFlightResponse.getContentLength();
+        List<ByteRanges.Range> ranges = null;
+        if (ByteRanges.isRangeRequest(request)) {
+            ranges = contentLength < 0 ? null : ByteRanges.satisfiable(request, status, inFlightResponse.getHeaders(), contentLength);
+            if (ranges == null ? contentLength < 0 && status == 200 : ranges.size() != 1) {
+                // only a single range of known length can be streamed, the rest is sliced from the whole response
+                handOff();
+                return;
+            }
+        }
+
+        cancelGiveUp();
+        metrics.coalescingWait.recordSince(waitStart);
+        writeStart = System.nanoTime();
+        state = State.WRITING;
+        response.setStatus(ranges == null ? status : HttpServletResponse.SC_PARTIAL_CONTENT);
+        for (HttpField httpField : inFlightResponse.getHeaders()) {
+            response.addHeader(httpField.getName(), httpField.getValue());
+        }
+        if (status == 200 && !inFlightResponse.getHeaders().containsKey(HttpHeader.ACCEPT_RANGES.asString())) {
+            response.setHeader(HttpHeader.ACCEPT_RANGES.asString(), "bytes");
+        }
+        if (ranges != null) {
+            ByteRanges.Range range = ranges.get(0);
+            start = (int) range.getFirst();
+            position = start;
+            end = range.getLast() + 1;
+            response.setHeader(HttpHeader.CONTENT_RANGE.asString(), range.contentRange(contentLength));
+            response.setHeader(HttpHeader.CONTENT_LENGTH.asString(), Long.toString(range.getLength()));
+        } else if (contentLength >= 0) {
+            response.setHeader(HttpHeader.CONTENT_LENGTH.asString(), Long.toString(contentLength));
+        }
+        response.setHeader(HttpHeader.AGE.asString(), "0");
+
+        if (request.getMethod().equals("HEAD")) {
+            finish();
+            return;
+        }
+
+        // the container calls onWritePossible once the stream can be written to
+        outputStream = response.getOutputStream();
+        writePending = true;
+        outputStream.setWriteListener(this);
+    }
+
+    /**
+     * Leave the request to a {@link CachedResponseWriter} waiting for the whole response.
+     */
+    private void handOff() {
+        state = State.HANDED_OFF;
+        cancelGiveUp();
+        inFlightResponse.unsubscribe(this);
+        new CachedResponseWriter(inFlightResponse.getFuture(), request, response, asyncContext, collapsingPolicy, metrics).start();
+    }
+
+    /**
+     * Write whatever arrived since the last call for as long as the client can take it.
+     */
+    private void pump() throws IOException {
+        while (state == State.WRITING) {
+            if (position >= end) {
+                finish();
+                return;
+            }
+            if (!outputStream.isReady()) {
+                writePending = true;
+                return;
+            }
+
+            ByteBuffer chunk = inFlightResponse.read(position, (int) Math.min(CHUNK_SIZE, end - position));
+            if (chunk.hasRemaining()) {
+                position += chunk.remaining();
+                outputStream.write(chunk.array(), chunk.arrayOffset() + chunk.position(), chunk.remaining());
+                continue;
+            }
+
+            switch (inFlightResponse.getState()) {
+                case COMPLETE:
+                    finish();
+                    return;
+                case FAILED:
+                    // the response is already committed, all we can do is cut it short
+                    LOGGER.debug("Target application failed while streaming {}.", request.getRequestURI());
+                    finish();
+                    return;
+                default:
+                    // wait for more of the body
+                    return;
+            }
+        }
+    }
+
+    private void cancelGiveUp() {
+        if (giveUp != null) {
+            giveUp.cancel(false);
+            giveUp = null;
+        }
+    }
+
+    private void finish() {
+        if (state == State.DONE || state == State.HANDED_OFF) {
+            return;
+        }
+
+        state = State.DONE;
+        cancelGiveUp();
+        inFlightResponse.unsubscribe(this);
+        if (writeStart != 0) {
+            metrics.servedBytes.add(position - start);
+            metrics.write.recordSince(writeStart);
+        }
+        asyncContext.complete();
+    }
+
+    @Override
+    public synchronized void onWritePossible() throws IOException {
+        writePending = false;
+        pump();
+    }
+
+    @Override
+    public synchronized void onError(Throwable t) {
+        LOGGER.debug("Streaming {} failed.", request.getRequestURI(), t);
+        finish();
+    }
+
+    @Override
+    public synchronized void onTimeout(AsyncEvent event) throws IOException {
+        if (state == State.WAITING) {
+            response.setStatus(HttpServletResponse.SC_GATEWAY_TIMEOUT);
+            finish();
+        }
+    }
+
+    @Override
+    public synchronized void onError(AsyncEvent event) throws IOException {
+        if (state == State.WAITING || state == State.WRITING) {
+            state = State.DONE;
+            inFlightResponse.unsubscribe(this);
+        }
+    }
+
+    @Override
+    public void onComplete(AsyncEvent event) throws IOException {
+    }
+
+    @Override
+    public void onStartAsync(AsyncEvent event) throws IOException {
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Dustin Sweigart
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package net.swigg.talo.proxy;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.Striped;
+import net.swigg.talo.cache.CacheStore;
+import org.eclipse.jetty.http.HttpFields;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * An inverted index from the tags the target application lists in a response's {@code Surrogate-Key} header to the
+ * keys of the cached responses carrying them, so that everything tagged alike can be purged at once.
+ * <p/>
+ * Like the {@link UriIndex} it is told about responses as they are stored and removed and checks the cache before
+ * changing anything, so that a response is only indexed while it is in the cache.
+ *
+ * @author Dustin Sweigart <dustin@swigg.net>
+ */
+public class SurrogateKeyIndex {
+    static public final String SURROGATE_KEY = "Surrogate-Key";
+    static private final Splitter TAG_SPLITTER = Splitter.on(' ').trimResults().omitEmptyStrings();
+
+    private final CacheStore<RequestIdentity, ?> cache;
+
+    private final ConcurrentMap<String, Set<RequestIdentity>> keysByTag = new ConcurrentHashMap<>();
+    private final ConcurrentMap<RequestIdentity, Set<String>> tagsByKey = new ConcurrentHashMap<>();
+    private final Striped<Lock> locks = Striped.lock(64);
+
+    public SurrogateKeyIndex(CacheStore<RequestIdentity, ?> cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * The tags listed in the headers, separated by spaces.
+     */
+    public static Set<String> tags(HttpFields headers) {
+        String surrogateKey = headers.getStringField(SURROGATE_KEY);
+        return surrogateKey == null ? Collections.<String>emptySet() : ImmutableSet.copyOf(TAG_SPLITTER.split(surrogateKey));
+    }
+
+    /**
+     * Index the response just stored for the key under its tags, in place of whatever was stored for it before.
+     */
+    public void index(RequestIdentity key, ResponseHolder responseHolder) {
+        Set<String> tags = tags(responseHolder.getHeaders());
+        Lock lock = locks.get(key);
+        lock.lock();
+        try {
+            if (!cache.keySet().contains(key)) {
+                unindex(key);
+                return;
+            }
+
+            Set<String> previous = tags.isEmpty() ? tagsByKey.remove(key) : tagsByKey.put(key, tags);
+            if (previous != null) {
+                for (String tag : previous) {
+                    if (!tags.contains(tag)) {
+                        removeFromTag(tag, key);
+                    }
+                }
+            }
+            for (String tag : tags) {
+                addToTag(tag, key);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Forget the key if its response is no longer in the cache.
+     */
+    public void sync(RequestIdentity key) {
+        Lock lock = locks.get(key);
+        lock.lock();
+        try {
+            if (!cache.keySet().contains(key)) {
+                unindex(key);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The keys of the responses carrying the tag.
+     */
+    public ImmutableList<RequestIdentity> get(String tag) {
+        Set<RequestIdentity> keys = keysByTag.get(tag);
+        return keys == null ? ImmutableList.<RequestIdentity>of() : ImmutableList.copyOf(keys);
+    }
+
+    /**
+     * The number of distinct tags in the index.
+     */
+    public int size() {
+        return keysByTag.size();
+    }
+
+    // guarded by the key's lock
+    private void unindex(RequestIdentity key) {
+        Set<String> tags = tagsByKey.remove(key);
+        if (tags != null) {
+            for (String tag : tags) {
+                removeFromTag(tag, key);
+            }
+        }
+    }
+
+    private void addToTag(String tag, RequestIdentity key) {
+        while (true) {
+            Set<RequestIdentity> keys = keysByTag.get(tag);
+            if (keys == null) {
+                Set<RequestIdentity> created = Collections.newSetFromMap(new ConcurrentHashMap<RequestIdentity, Boolean>());
+                keys = keysByTag.putIfAbsent(tag, created);
+                if (keys == null) {
+                    keys = created;
+                }
+            }
+
+            keys.add(key);
+            if (keysByTag.get(tag) == keys) {
+                return;
+            }
+            // the set was dropped for being empty while the key was added, add it to the new one
+        }
+    }
+
+    private void removeFromTag(String tag, RequestIdentity key) {
+        Set<RequestIdentity> keys = keysByTag.get(tag);
+        if (keys == null || !keys.remove(key) || !keys.isEmpty() || !keysByTag.remove(tag, keys)) {
+            return;
+        }
+
+        // keep the keys added to the set while it was being dropped
+        for (RequestIdentity added : keys) {
+            Set<String> tags = tagsByKey.get(added);
+            if (tags != null && tags.contains(tag)) {
+                addToTag(tag, added);
+            }
+        }
+    }
+}
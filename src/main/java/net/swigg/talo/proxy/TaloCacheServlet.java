@@ -26,11 +26,27 @@ package net.swigg.talo.proxy;
 
 import com.google.common.base.Predicate;
 import com.google.common.base.Predicates;
+import com.google.common.util.concurrent.FutureFallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.SettableFuture;
+import net.swigg.talo.cache.BodyStore;
+import net.swigg.talo.cache.CacheStore;
+import net.swigg.talo.cache.Doorkeeper;
+import net.swigg.talo.cache.HeapBodyStore;
+import net.swigg.talo.cache.TinyLfuCacheStore;
+import net.swigg.talo.cluster.Cluster;
+import net.swigg.talo.cluster.Peer;
+import net.swigg.talo.metrics.CacheMetrics;
+import net.swigg.talo.origin.Origin;
+import net.swigg.talo.origin.OriginLimiter;
+import net.swigg.talo.origin.OriginPool;
+import org.eclipse.jetty.client.HttpClient;
 import org.eclipse.jetty.client.api.Request;
 import org.eclipse.jetty.client.api.Response;
 import org.eclipse.jetty.client.api.Result;
-import org.eclipse.jetty.http.HttpField;
+import org.eclipse.jetty.http.HttpHeader;
+import org.eclipse.jetty.http.HttpMethod;
 import org.eclipse.jetty.proxy.ProxyServlet;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -40,6 +56,8 @@ import javax.servlet.ServletException;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
@@ -52,33 +70,561 @@ import java.util.concurrent.ExecutionException;
 public class TaloCacheServlet extends ProxyServlet.Transparent {
     static private final Logger LOGGER = LoggerFactory.getLogger(TaloCacheServlet.class);
 
-    private final ConcurrentMap<RequestIdentity, SettableFuture<ResponseHolder>> cache = new ConcurrentHashMap<>(8, 0.9f, 1);
+    static private final long DEFAULT_MAXIMUM_WEIGHT = 256L * 1024 * 1024;
+    static private final long DEFAULT_EXPECTED_SIZE = 64L * 1024;
+
+    /**
+     * Marks fetches made for a range or HEAD request, whose client is answered from the in-flight response instead.
+     */
+    static private final String PARTIAL_FILL = "talo.partialFill";
+
+    /**
+     * The peer owning the response, when the request is sent there instead of to the target application.
+     */
+    static private final String PEER = "talo.peer";
+
+    /**
+     * The origin the request is sent to, and the one it failed on before being retried.
+     */
+    static private final String ORIGIN = "talo.origin";
+    static private final String FAILED_ORIGIN = "talo.failedOrigin";
+
+    /**
+     * Marks requests holding a permit of the origin limiter, and the fetch a request holds on to while it waits for
+     * one.
+     */
+    static private final String ORIGIN_PERMIT = "talo.originPermit";
+    static private final String QUEUED_IDENTITY = "talo.queuedIdentity";
+    static private final String QUEUED_FUTURE = "talo.queuedFuture";
+
+    private final CacheStore<RequestIdentity, SettableFuture<ResponseHolder>> cache;
+    private final BodyStore bodyStore;
+    private final DiskTier diskTier;
+    private FreshnessPolicy freshnessPolicy = new FreshnessPolicy();
+    private CacheKeyPolicy cacheKeyPolicy = new CacheKeyPolicy();
+    private CacheRules cacheRules = new CacheRules();
+    private CollapsingPolicy collapsingPolicy = new CollapsingPolicy();
+    private LargeObjectPolicy largeObjectPolicy = new LargeObjectPolicy();
+    private Doorkeeper<RequestIdentity> doorkeeper;
+    private Cluster cluster;
+    private OriginPool originPool;
+    private OriginLimiter originLimiter;
+    private long originQueueTimeout;
+    private Compressor compressor;
+    private Invalidator invalidator;
+    private CacheMetrics metrics = new CacheMetrics();
+    private Revalidator revalidator;
+
+    private final ConcurrentMap<RequestIdentity, InFlightResponse> inFlight = new ConcurrentHashMap<>();
 
     private Predicate<HttpServletRequest> serveFromCache;
     private Predicate<Response> saveToCache;
 
+    public TaloCacheServlet() {
+        this(new TinyLfuCacheStore<>(DEFAULT_MAXIMUM_WEIGHT, DEFAULT_EXPECTED_SIZE, 16, new ResponseHolderWeigher(), new ResponseHolderRemovalListener()), new HeapBodyStore(), null);
+    }
+
+    /**
+     * @param diskTier the tier to promote responses from on a miss, or {@code null} to only cache in memory
+     */
+    public TaloCacheServlet(CacheStore<RequestIdentity, SettableFuture<ResponseHolder>> cache, BodyStore bodyStore, DiskTier diskTier) {
+        this.cache = cache;
+        this.bodyStore = bodyStore;
+        this.diskTier = diskTier;
+        this.metrics.setCacheStore(cache);
+    }
+
+    public void setFreshnessPolicy(FreshnessPolicy freshnessPolicy) {
+        this.freshnessPolicy = freshnessPolicy;
+    }
+
+    public void setCacheKeyPolicy(CacheKeyPolicy cacheKeyPolicy) {
+        this.cacheKeyPolicy = cacheKeyPolicy;
+    }
+
+    public void setCacheRules(CacheRules cacheRules) {
+        this.cacheRules = cacheRules;
+    }
+
+    public void setMetrics(CacheMetrics metrics) {
+        this.metrics = metrics;
+        this.metrics.setCacheStore(cache);
+        this.metrics.setOriginLimiter(originLimiter);
+    }
+
+    public void setCollapsingPolicy(CollapsingPolicy collapsingPolicy) {
+        this.collapsingPolicy = collapsingPolicy;
+    }
+
+    public void setLargeObjectPolicy(LargeObjectPolicy largeObjectPolicy) {
+        this.largeObjectPolicy = largeObjectPolicy;
+    }
+
+    /**
+     * @param doorkeeper keeps responses out of the cache until they were asked for often enough, or {@code null} to
+     *                   cache every response on its first request
+     */
+    public void setDoorkeeper(Doorkeeper<RequestIdentity> doorkeeper) {
+        this.doorkeeper = doorkeeper;
+    }
+
+    /**
+     * @param cluster the peers sharing the cache, or {@code null} if this node caches on its own
+     */
+    public void setCluster(Cluster cluster) {
+        this.cluster = cluster;
+    }
+
+    /**
+     * @param originPool the target applications to balance requests over, or {@code null} to send every request to
+     *                   the {@code proxyTo} one
+     */
+    public void setOriginPool(OriginPool originPool) {
+        this.originPool = originPool;
+    }
+
+    /**
+     * @param originLimiter bounds the requests sent to the target application at once, or {@code null} to send them
+     *                      all right away
+     * @param queueTimeout  milliseconds a request waits for the limiter before it is answered with a 503
+     */
+    public void setOriginLimiter(OriginLimiter originLimiter, long queueTimeout) {
+        this.originLimiter = originLimiter;
+        this.originQueueTimeout = queueTimeout;
+        this.metrics.setOriginLimiter(originLimiter);
+    }
+
+    /**
+     * @param compressor compresses responses as they are cached, or {@code null} to only cache them as received
+     */
+    public void setCompressor(Compressor compressor) {
+        this.compressor = compressor;
+    }
+
+    /**
+     * @param invalidator keeps track of the cached URLs and tags for purging, or {@code null} if nothing is purged
+     */
+    public void setInvalidator(Invalidator invalidator) {
+        this.invalidator = invalidator;
+    }
+
+    @Override
+    protected HttpClient createHttpClient() throws ServletException {
+        HttpClient httpClient = super.createHttpClient();
+        this.revalidator = new Revalidator(httpClient, new RevalidationUpstream(), cache, bodyStore, freshnessPolicy, saveToCachePredicate(), compressor, metrics);
+        this.revalidator.setLargeObjectPolicy(largeObjectPolicy);
+        if (invalidator != null) {
+            this.revalidator.setSurrogateKeyIndex(invalidator.getSurrogateKeyIndex());
+        }
+        if (originPool != null) {
+            originPool.start(httpClient);
+        }
+        return httpClient;
+    }
+
     protected void service(final HttpServletRequest request, final HttpServletResponse response) throws ServletException, IOException {
+        try {
+            this.serviceRequest(request, response);
+        } finally {
+            // a permit the request was granted but didn't send anything with goes back to the limiter
+            if (request.getAttribute(ORIGIN_PERMIT) != null) {
+                request.removeAttribute(ORIGIN_PERMIT);
+                originLimiter.release();
+            }
+        }
+    }
+
+    private void serviceRequest(final HttpServletRequest request, final HttpServletResponse response) throws ServletException, IOException {
+        // forget about any fetch this request was part of before being dispatched again
+        request.removeAttribute("requestIdentity");
+        request.removeAttribute("responseHolderFuture");
+        request.removeAttribute("inFlightResponse");
+        request.removeAttribute(PEER);
+        request.removeAttribute(ORIGIN);
+
+        // what the rules decide for the request, and for its response once it is sent on
+        CacheRules.Match rules = cacheRules.match(request.getMethod(), request.getRequestURI());
+        request.setAttribute(CacheRules.MATCH, rules);
+
+        RequestIdentity queuedIdentity = (RequestIdentity) request.getAttribute(QUEUED_IDENTITY);
+        if (queuedIdentity != null) {
+            // the fetch waited for the origin limiter, the entry others may be waiting on is still ours to fill
+            @SuppressWarnings("unchecked")
+            SettableFuture<ResponseHolder> queuedFuture = (SettableFuture<ResponseHolder>) request.getAttribute(QUEUED_FUTURE);
+            request.removeAttribute(QUEUED_IDENTITY);
+            request.removeAttribute(QUEUED_FUTURE);
+            this.fetch(queuedIdentity, queuedFuture, request, response);
+            return;
+        }
+
         // check if we should even try and serve from the cache
         Predicate<HttpServletRequest> serveFromCache = this.serveFromCachePredicate();
-        if (!serveFromCache.apply(request)) {
-            super.service(request, response);
+        if (!serveFromCache.apply(request) || rules.isBypassed() || collapsingPolicy.isBypassed(request) ||
+                cacheKeyPolicy.hasUnkeyedCookies(request, rules.getKeyHeaders())) {
+            metrics.bypassed.increment();
+            if (this.acquireOrigin(request, response, OriginLimiter.Priority.LOW, null, null)) {
+                super.service(request, response);
+            }
+            return;
+        }
+
+        metrics.requests.increment();
+        long lookupStart = System.nanoTime();
+        RequestIdentity requestIdentity = cacheKeyPolicy.identify(request, rules.getKeyHeaders());
+        if (cluster != null && !cluster.isForwarded(request)) {
+            Peer owner = cluster.owner(requestIdentity);
+            if (!owner.isLocal()) {
+                request.setAttribute(PEER, owner);
+                if (!cluster.replicates(requestIdentity) && cache.get(requestIdentity) == null) {
+                    // the owner caches and coalesces the response for the whole cluster
+                    metrics.lookup.recordSince(lookupStart);
+                    metrics.peerForwards.increment();
+                    super.service(request, response);
+                    return;
+                }
+            }
+        }
+        if (!this.isAdmitted(requestIdentity, rules.getAdmission())) {
+            // not asked for often enough to be worth an entry, fetch it for this client only
+            metrics.lookup.recordSince(lookupStart);
+            metrics.notAdmitted.increment();
+            if (this.acquireOrigin(request, response, OriginLimiter.Priority.LOW, null, null)) {
+                super.service(request, response);
+            }
             return;
         }
 
-        RequestIdentity requestIdentity = new RequestIdentity(request);
         SettableFuture<ResponseHolder> settableFuture = null;
         SettableFuture<ResponseHolder> responseHolderSettableFuture = SettableFuture.create();
 
         // add a cache entry for this request if one doesn't already exists
         settableFuture = cache.putIfAbsent(requestIdentity, responseHolderSettableFuture);
+        metrics.lookup.recordSince(lookupStart);
+        if (settableFuture == null && invalidator != null) {
+            invalidator.onInsert(requestIdentity);
+        }
         if (settableFuture != null) {
-            this.writeCachedResponse(settableFuture, request, response);
-            return;
+            if (this.serveCachedResponse(requestIdentity, settableFuture, request, response)) {
+                return;
+            }
+
+            // the cached response expired, take its place or start over if somebody beat us to it
+            if (!cache.replace(requestIdentity, settableFuture, responseHolderSettableFuture)) {
+                this.service(request, response);
+                return;
+            }
+        } else {
+            // promote the response from disk if it was stored there
+            switch (this.promoteFromDisk(requestIdentity, responseHolderSettableFuture)) {
+                case PROMOTED:
+                    metrics.diskHits.increment();
+                    this.serveCachedResponse(requestIdentity, responseHolderSettableFuture, request, response);
+                    return;
+                case LOST:
+                    // the entry was taken from us meanwhile, start over with a new one
+                    this.service(request, response);
+                    return;
+                default:
+                    // not on disk, fetch it into the entry
+            }
         }
 
-        // service the request
+        // service the request, unless it has to wait for the origin; peers shield their own origins
+        if (request.getAttribute(PEER) != null ||
+                this.acquireOrigin(request, response, OriginLimiter.Priority.HIGH, requestIdentity, responseHolderSettableFuture)) {
+            this.fetch(requestIdentity, responseHolderSettableFuture, request, response);
+        }
+    }
+
+    /**
+     * Send the request to the target application to fill the entry.
+     */
+    private void fetch(RequestIdentity requestIdentity, SettableFuture<ResponseHolder> responseHolderSettableFuture,
+                       HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+        metrics.misses.increment();
         request.setAttribute("requestIdentity", requestIdentity);
+        request.setAttribute("responseHolderFuture", responseHolderSettableFuture);
         super.service(request, response);
+
+        InFlightResponse inFlightResponse = (InFlightResponse) request.getAttribute("inFlightResponse");
+        if (inFlightResponse == null) {
+            // the request was turned down without going to the target application, don't leave anybody waiting on it
+            cache.remove(requestIdentity, responseHolderSettableFuture);
+            responseHolderSettableFuture.setException(new IOException("Request was not sent to the target application"));
+        } else if (isPartialRequest(request)) {
+            // the whole response is being fetched for the cache, answer with the range or the headers as soon as they
+            // arrive
+            AsyncContext asyncContext = (AsyncContext) request.getAttribute(ASYNC_CONTEXT);
+            new StreamingResponseWriter(inFlightResponse, request, response, asyncContext, collapsingPolicy, metrics).start();
+        }
+    }
+
+    /**
+     * Take a permit of the origin limiter for the request, or suspend it until one frees up.
+     *
+     * @param requestIdentity the entry the request fills, or {@code null} if it isn't cached
+     * @param settableFuture  the future of the entry, failed if the request gives up waiting
+     * @return {@code false} if the request is waiting and mustn't be sent yet
+     */
+    private boolean acquireOrigin(HttpServletRequest request, HttpServletResponse response, OriginLimiter.Priority priority,
+                                  final RequestIdentity requestIdentity, final SettableFuture<ResponseHolder> settableFuture) {
+        if (originLimiter == null || request.getAttribute(ORIGIN_PERMIT) != null) {
+            return true;
+        }
+        if (originLimiter.tryAcquire()) {
+            request.setAttribute(ORIGIN_PERMIT, Boolean.TRUE);
+            return true;
+        }
+
+        metrics.originQueued.increment();
+        if (settableFuture != null) {
+            request.setAttribute(QUEUED_IDENTITY, requestIdentity);
+            request.setAttribute(QUEUED_FUTURE, settableFuture);
+        }
+        new QueuedRequest(originLimiter, request, response, ORIGIN_PERMIT, new Runnable() {
+            @Override
+            public void run() {
+                metrics.originRejected.increment();
+                if (settableFuture != null) {
+                    // nobody is going to fill the entry, let anybody waiting on it retry or fail
+                    cache.remove(requestIdentity, settableFuture);
+                    settableFuture.setException(new IOException("Gave up waiting for the target application"));
+                }
+            }
+        }).start(priority, originQueueTimeout);
+        return false;
+    }
+
+    /**
+     * Whether requests to the target application currently have to wait, in which case stale responses are served
+     * rather than adding to its load.
+     */
+    private boolean isOriginSaturated() {
+        return originLimiter != null && originLimiter.isSaturated();
+    }
+
+    /**
+     * Whether the response may be cached, either because it was asked for often enough or because it already is.
+     *
+     * @param admission the number of requests the rules ask for, or negative for the doorkeeper's own threshold
+     */
+    private boolean isAdmitted(RequestIdentity requestIdentity, int admission) {
+        if (doorkeeper == null || (admission < 0 ? doorkeeper.admit(requestIdentity) : doorkeeper.admit(requestIdentity, admission))) {
+            return true;
+        }
+
+        // popularity ages out of the doorkeeper faster than cached responses do
+        return cache.get(requestIdentity) != null || (diskTier != null && diskTier.contains(requestIdentity));
+    }
+
+    /**
+     * Fill the new entry with the response stored on the disk tier, if there is a usable one.
+     */
+    private Promotion promoteFromDisk(RequestIdentity requestIdentity, SettableFuture<ResponseHolder> settableFuture) {
+        if (diskTier == null) {
+            return Promotion.MISSING;
+        }
+
+        ResponseHolder responseHolder = diskTier.read(requestIdentity, bodyStore);
+        if (responseHolder == null) {
+            return Promotion.MISSING;
+        }
+        if (responseHolder.getFreshness().stateAt(System.currentTimeMillis()) == Freshness.State.EXPIRED ||
+                (invalidator != null && invalidator.isBanned(requestIdentity, responseHolder))) {
+            responseHolder.release();
+            diskTier.remove(requestIdentity);
+            return Promotion.MISSING;
+        }
+
+        // make sure the entry is still ours before anybody gets the response
+        if (!cache.replace(requestIdentity, settableFuture, settableFuture)) {
+            responseHolder.release();
+            // nobody is going to fill the entry, let anybody waiting on it retry
+            settableFuture.setException(new IOException("Entry was removed while promoting it from disk"));
+            return Promotion.LOST;
+        }
+
+        // weigh the entry again now that the body is known, like a fill does; waiters find a released response
+        // unusable and go through the cache again
+        settableFuture.set(responseHolder);
+        if (!cache.replace(requestIdentity, settableFuture, settableFuture)) {
+            responseHolder.release();
+            return Promotion.LOST;
+        }
+        if (invalidator != null) {
+            invalidator.getSurrogateKeyIndex().index(requestIdentity, responseHolder);
+        }
+
+        return Promotion.PROMOTED;
+    }
+
+    private enum Promotion {
+        /**
+         * The response was promoted into the entry.
+         */
+        PROMOTED,
+
+        /**
+         * There is no usable response on disk.
+         */
+        MISSING,
+
+        /**
+         * The entry was removed or replaced before the response could be promoted into it.
+         */
+        LOST
+    }
+
+    /**
+     * Serve the cached response according to its freshness: as is while fresh, right away while a refresh runs in
+     * the background during its stale-while-revalidate window, and from a refresh that falls back to it during its
+     * stale-if-error window. Expired responses with an {@code ETag} or {@code Last-Modified} are revalidated with a
+     * conditional request before being served. Requests for responses still being fetched wait for them.
+     *
+     * @return {@code false} if the response expired or was banned and has to be fetched again
+     */
+    private boolean serveCachedResponse(final RequestIdentity requestIdentity, final SettableFuture<ResponseHolder> settableFuture,
+                                        HttpServletRequest request, HttpServletResponse response) throws IOException {
+        ResponseHolder responseHolder = completedResponse(settableFuture);
+        if (responseHolder == null) {
+            // stream the response as it arrives if it is the one being fetched
+            metrics.coalesced.increment();
+            InFlightResponse inFlightResponse = inFlight.get(requestIdentity);
+            if (inFlightResponse != null && inFlightResponse.getFuture() == settableFuture) {
+                new StreamingResponseWriter(inFlightResponse, request, response, collapsingPolicy, metrics).start();
+            } else {
+                this.writeCachedResponse(settableFuture, request, response);
+            }
+            return true;
+        }
+        if (invalidator != null && invalidator.isBanned(requestIdentity, responseHolder)) {
+            return false;
+        }
+
+        switch (responseHolder.getFreshness().stateAt(System.currentTimeMillis())) {
+            case FRESH:
+                metrics.hits.increment();
+                this.writeCachedResponse(settableFuture, request, response);
+                return true;
+            case STALE_WHILE_REVALIDATE:
+                metrics.staleHits.increment();
+                if (this.isOriginSaturated()) {
+                    metrics.shieldedStaleHits.increment();
+                } else {
+                    revalidator.revalidate(requestIdentity, settableFuture, responseHolder, request);
+                }
+                this.writeCachedResponse(settableFuture, request, response);
+                return true;
+            case STALE_IF_ERROR:
+                metrics.staleHits.increment();
+                if (this.isOriginSaturated()) {
+                    metrics.shieldedStaleHits.increment();
+                    this.writeCachedResponse(settableFuture, request, response);
+                    return true;
+                }
+                ListenableFuture<ResponseHolder> refreshed = revalidator.revalidate(requestIdentity, settableFuture, responseHolder, request);
+                this.writeCachedResponse(Futures.withFallback(refreshed, new FutureFallback<ResponseHolder>() {
+                    @Override
+                    public ListenableFuture<ResponseHolder> create(Throwable t) {
+                        // a response that may not be shared isn't an error to hide with the stale one
+                        if (t instanceof UncachedResponseException) {
+                            return Futures.immediateFailedFuture(t);
+                        }
+                        return settableFuture;
+                    }
+                }), request, response);
+                return true;
+            default:
+                if (this.isOriginSaturated() && freshnessPolicy.mayServeStale(responseHolder.getHeaders())) {
+                    // better a stale response now than adding to the load of a target application falling behind
+                    metrics.staleHits.increment();
+                    metrics.shieldedStaleHits.increment();
+                    this.writeCachedResponse(settableFuture, request, response);
+                    return true;
+                }
+                if (!ConditionalRequests.hasValidators(responseHolder) || this.isOriginSaturated()) {
+                    // fetched again like a miss, which waits its turn at the origin limiter
+                    return false;
+                }
+
+                metrics.revalidated.increment();
+                ListenableFuture<ResponseHolder> revalidated = revalidator.revalidate(requestIdentity, settableFuture, responseHolder, request);
+                this.writeCachedResponse(Futures.withFallback(revalidated, new FutureFallback<ResponseHolder>() {
+                    @Override
+                    public ListenableFuture<ResponseHolder> create(Throwable t) {
+                        // the expired response can't be served, drop it so that the request goes through the cache
+                        // again and fetches a new one instead of failing
+                        cache.remove(requestIdentity, settableFuture);
+                        return Futures.immediateFailedFuture(t);
+                    }
+                }), request, response);
+                return true;
+        }
+    }
+
+    /**
+     * The response the future completed with, or {@code null} if it is still pending or failed.
+     */
+    private static ResponseHolder completedResponse(SettableFuture<ResponseHolder> settableFuture) {
+        if (!settableFuture.isDone()) {
+            return null;
+        }
+
+        try {
+            return settableFuture.get();
+        } catch (InterruptedException | ExecutionException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Write everything still in memory to the disk tier so that the next start begins with a warm cache.
+     */
+    @Override
+    public void destroy() {
+        super.destroy();
+        collapsingPolicy.shutdown();
+        if (compressor != null) {
+            compressor.shutdown();
+        }
+        if (invalidator != null) {
+            invalidator.shutdown();
+        }
+        if (originPool != null) {
+            originPool.shutdown();
+        }
+        if (diskTier == null) {
+            return;
+        }
+
+        int persisted = 0;
+        for (RequestIdentity requestIdentity : cache.keySet()) {
+            SettableFuture<ResponseHolder> settableFuture = cache.get(requestIdentity);
+            if (settableFuture == null || !settableFuture.isDone() || diskTier.contains(requestIdentity)) {
+                continue;
+            }
+
+            try {
+                ResponseHolder responseHolder = settableFuture.get();
+                if (responseHolder.retain()) {
+                    try {
+                        diskTier.write(requestIdentity, responseHolder);
+                        persisted++;
+                    } finally {
+                        responseHolder.release();
+                    }
+                }
+            } catch (InterruptedException | ExecutionException e) {
+                // nothing to persist for failed requests
+            }
+        }
+
+        try {
+            diskTier.close();
+        } catch (IOException e) {
+            LOGGER.error("Error closing the disk tier.", e);
+        }
+        LOGGER.info("Persisted {} cached responses to disk.", persisted);
     }
 
     /**
@@ -116,59 +662,331 @@ public class TaloCacheServlet extends ProxyServlet.Transparent {
             return saveToCache;
         }
 
-        Predicate<Response> successPredicate = new Predicate<Response>() {
+        Predicate<Response> rulesPredicate = new Predicate<Response>() {
+            @Override
+            public boolean apply(Response response) {
+                return CacheRules.isCached(response);
+            }
+        };
+
+        Predicate<Response> storablePredicate = new Predicate<Response>() {
             @Override
             public boolean apply(Response response) {
-                return response.getStatus() >= 200 && response.getStatus() <= 399;
+                boolean authorized = response.getRequest().getHeaders().containsKey(HttpHeader.AUTHORIZATION.asString());
+                return freshnessPolicy.isStorable(response.getHeaders(), authorized) && !CacheKeyPolicy.variesOnEverything(response.getHeaders());
             }
         };
 
-        this.saveToCache = successPredicate;
+        this.saveToCache = Predicates.and(rulesPredicate, storablePredicate);
         return saveToCachePredicate();
     }
 
-    private void writeCachedResponse(final SettableFuture<ResponseHolder> settableFuture, final HttpServletRequest request, final HttpServletResponse response) throws IOException {
-        final AsyncContext asyncContext = request.startAsync();
-        asyncContext.start(new Runnable() {
-            @Override
-            public void run() {
-                Response originalResponse = null;
-                try {
-                    originalResponse = settableFuture.get().getResponse();
-                    response.setStatus(originalResponse.getStatus());
+    /**
+     * Write the response once the future completes, without holding on to a thread while waiting or writing.
+     */
+    private void writeCachedResponse(ListenableFuture<ResponseHolder> future, HttpServletRequest request, HttpServletResponse response) {
+        new CachedResponseWriter(future, request, response, collapsingPolicy, metrics).start();
+    }
 
-                    for (HttpField httpField : originalResponse.getHeaders()) {
-                        response.setHeader(httpField.getName(), httpField.getValue());
-                    }
+    /**
+     * Send requests for responses owned by another peer to that peer, and the rest to the least busy origin.
+     */
+    @Override
+    protected URI rewriteURI(HttpServletRequest request) {
+        Peer peer = (Peer) request.getAttribute(PEER);
+        if (peer != null) {
+            return cluster.rewrite(peer, request);
+        }
+        if (originPool != null) {
+            Origin origin = originPool.pick((Origin) request.getAttribute(FAILED_ORIGIN));
+            request.setAttribute(ORIGIN, origin);
+            return originPool.rewrite(origin, request);
+        }
 
-                    response.getWriter().write(settableFuture.get().getBody());
-                    response.getWriter().flush();
-                    response.getWriter().close();
-                } catch (InterruptedException | ExecutionException | IOException e) {
-                    LOGGER.error("Error writing cached response.", e);
-                }
+        return super.rewriteURI(request);
+    }
+
+    /**
+     * Give the permit the request was sent with back once the response completed, adapting the limit to how long it
+     * took.
+     */
+    private void holdPermit(Request proxyRequest) {
+        PermitListener permitListener = new PermitListener(originLimiter);
+        proxyRequest.onResponseHeaders(permitListener);
+        proxyRequest.onComplete(permitListener);
+    }
 
-                asyncContext.complete();
+    /**
+     * Have the pool balance by the requests still outstanding at the origin, and eject it if it keeps failing.
+     */
+    private void trackOrigin(final Origin origin, Request proxyRequest) {
+        final OriginPool originPool = this.originPool;
+        final long start = System.nanoTime();
+        originPool.begin(origin);
+        proxyRequest.onComplete(new Response.CompleteListener() {
+            @Override
+            public void onComplete(Result result) {
+                originPool.end(origin, start, result.isFailed() || result.getResponse().getStatus() >= 500);
             }
         });
     }
 
     @Override
     protected void customizeProxyRequest(final Request proxyRequest, final HttpServletRequest request) {
+        final Peer peer = (Peer) request.getAttribute(PEER);
+        if (peer != null) {
+            // have the owner handle the request itself, and leave it alone for a while if it can't be reached
+            proxyRequest.header(Cluster.PEER_HEADER, cluster.getSelf().toString());
+            final Cluster cluster = this.cluster;
+            final CacheMetrics metrics = this.metrics;
+            proxyRequest.onComplete(new Response.CompleteListener() {
+                @Override
+                public void onComplete(Result result) {
+                    if (result.isFailed()) {
+                        metrics.peerFailures.increment();
+                        cluster.markDown(peer);
+                    }
+                }
+            });
+        }
+
+        if (peer == null && request.getAttribute(ORIGIN_PERMIT) != null) {
+            request.removeAttribute(ORIGIN_PERMIT);
+            this.holdPermit(proxyRequest);
+        }
+
+        Origin origin = (Origin) request.getAttribute(ORIGIN);
+        if (origin != null) {
+            this.trackOrigin(origin, proxyRequest);
+        }
+
         final RequestIdentity requestIdentity = (RequestIdentity) request.getAttribute("requestIdentity");
-        ProxyResponseListener proxyResponseListener = new ProxyResponseListener(requestIdentity, cache);
+        @SuppressWarnings("unchecked")
+        final SettableFuture<ResponseHolder> settableFuture = (SettableFuture<ResponseHolder>) request.getAttribute("responseHolderFuture");
+        if (requestIdentity == null || settableFuture == null) {
+            // not a request that is served from the cache
+            return;
+        }
+
+        // the response is cached the way the rules matching the client's request decide
+        proxyRequest.attribute(CacheRules.MATCH, request.getAttribute(CacheRules.MATCH));
+
+        // the response is fetched for every client, so it has to be the full one
+        ConditionalRequests.removeConditionalHeaders(proxyRequest);
+        ByteRanges.removeRangeHeaders(proxyRequest);
+        if (HttpMethod.HEAD.is(request.getMethod())) {
+            // HEAD and GET requests share the entry, which needs the body
+            proxyRequest.method(HttpMethod.GET);
+        }
+        if (isPartialRequest(request)) {
+            proxyRequest.attribute(PARTIAL_FILL, Boolean.TRUE);
+        }
+
+        // let clients asking for the same response stream it while it arrives
+        final InFlightResponse inFlightResponse = new InFlightResponse(settableFuture, largeObjectPolicy);
+        inFlight.put(requestIdentity, inFlightResponse);
+        request.setAttribute("inFlightResponse", inFlightResponse);
+
+        final CacheMetrics metrics = this.metrics;
+        final long fetchStart = System.nanoTime();
+        metrics.originFetches.increment();
+
+        final Predicate<Response> saveToCache = this.saveToCachePredicate();
+        proxyRequest.onResponseHeaders(new Response.HeadersListener() {
+            @Override
+            public void onHeaders(Response response) {
+                metrics.originFirstByte.recordSince(fetchStart);
+                if (saveToCache.apply(response)) {
+                    inFlightResponse.begin(response);
+                } else {
+                    inFlightResponse.abandon();
+                }
+            }
+        });
+
+        ProxyResponseListener proxyResponseListener = new ProxyResponseListener(requestIdentity, inFlightResponse, cache, bodyStore, freshnessPolicy, saveToCache);
+        if (invalidator != null) {
+            proxyResponseListener.setSurrogateKeyIndex(invalidator.getSurrogateKeyIndex());
+        }
         proxyRequest.onResponseContent(proxyResponseListener);
+        proxyRequest.onResponseContent(new Response.ContentListener() {
+            @Override
+            public void onContent(Response response, ByteBuffer content) {
+                metrics.originBytes.add(content.remaining());
+            }
+        });
         proxyRequest.onResponseSuccess(proxyResponseListener);
 
-        // remove from cache if invalid to be served from in the future
-        final Predicate<Response> saveToCache = this.saveToCachePredicate();
+        // remove from cache if invalid to be served from in the future, or if it is a variant stored under the key
+        // of its resource that requests will no longer look for
+        final CacheKeyPolicy cacheKeyPolicy = this.cacheKeyPolicy;
+        final Compressor compressor = this.compressor;
         proxyRequest.onComplete(new Response.CompleteListener() {
             @Override
             public void onComplete(Result result) {
-                if (result.isFailed() || !saveToCache.apply(result.getResponse())) {
-                    cache.remove(requestIdentity);
+                inFlight.remove(requestIdentity, inFlightResponse);
+                if (result.isFailed()) {
+                    metrics.originFailures.increment();
+                    // waiters that didn't get a response yet retry or fail, see CollapsingPolicy
+                    cache.remove(requestIdentity, settableFuture);
+                    inFlightResponse.fail();
+                    settableFuture.setException(result.getFailure());
+                    return;
+                }
+
+                if (inFlightResponse.isSpilled()) {
+                    metrics.spilled.increment();
+                }
+                if (inFlightResponse.isTooLarge()) {
+                    metrics.tooLarge.increment();
+                }
+
+                // anybody already waiting still gets the response, even when it won't be kept; spilled bodies are
+                // left uncompressed since compressing them would bring them back onto the heap
+                if (!saveToCache.apply(result.getResponse()) ||
+                        cacheKeyPolicy.learnVary(requestIdentity, result.getResponse().getHeaders())) {
+                    cache.remove(requestIdentity, settableFuture);
+                } else if (compressor != null && !inFlightResponse.isSpilled()) {
+                    compressor.compress(requestIdentity, settableFuture);
                 }
             }
         });
     }
+
+    /**
+     * Routes refreshes the way proxied requests are: to the peer owning the response, or to the least busy origin,
+     * which is told when the refresh starts and ends. Refreshes sent to an origin take a permit of the origin limiter
+     * like misses do, but never wait for one. Unlike {@link #rewriteURI(HttpServletRequest)} it leaves the client's
+     * request alone, since that isn't the one being sent.
+     */
+    private class RevalidationUpstream implements Revalidator.Upstream {
+        @Override
+        public Revalidator.Route route(HttpServletRequest request) {
+            Peer peer = (Peer) request.getAttribute(PEER);
+            if (peer != null) {
+                // peers shield their own origins
+                return new RevalidationRoute(cluster.rewrite(peer, request), null, false);
+            }
+            if (originLimiter != null && !originLimiter.tryAcquire()) {
+                return null;
+            }
+
+            boolean permit = originLimiter != null;
+            if (originPool == null) {
+                return new RevalidationRoute(TaloCacheServlet.super.rewriteURI(request), null, permit);
+            }
+
+            Origin origin = originPool.pick(null);
+            return new RevalidationRoute(originPool.rewrite(origin, request), origin, permit);
+        }
+    }
+
+    private class RevalidationRoute implements Revalidator.Route {
+        private final URI target;
+        private final Origin origin;
+        private final boolean permit;
+
+        RevalidationRoute(URI target, Origin origin, boolean permit) {
+            this.target = target;
+            this.origin = origin;
+            this.permit = permit;
+        }
+
+        @Override
+        public URI getTarget() {
+            return target;
+        }
+
+        @Override
+        public void follow(Request proxyRequest) {
+            if (permit) {
+                holdPermit(proxyRequest);
+            }
+            if (origin != null) {
+                trackOrigin(origin, proxyRequest);
+            }
+        }
+    }
+
+    /**
+     * Gives back a permit of the origin limiter once the response completed. The limit is adapted by the time until
+     * the headers arrived, so that large bodies taking long to transfer aren't mistaken for a slow origin.
+     */
+    private static class PermitListener implements Response.HeadersListener, Response.CompleteListener {
+        private final OriginLimiter originLimiter;
+        private final long start = System.nanoTime();
+        private volatile long latency = -1;
+
+        PermitListener(OriginLimiter originLimiter) {
+            this.originLimiter = originLimiter;
+        }
+
+        @Override
+        public void onHeaders(Response response) {
+            latency = System.nanoTime() - start;
+        }
+
+        @Override
+        public void onComplete(Result result) {
+            long latency = this.latency;
+            boolean failed = result.isFailed() || result.getResponse().getStatus() >= 500;
+            originLimiter.release(latency < 0 ? System.nanoTime() - start : latency, failed);
+        }
+    }
+
+    /**
+     * Whether the client doesn't want the whole response that is fetched for the cache, only a range or the headers.
+     */
+    private static boolean isPartialRequest(HttpServletRequest request) {
+        return ByteRanges.isRangeRequest(request) || HttpMethod.HEAD.is(request.getMethod());
+    }
+
+    /**
+     * Whether the response is to a fetch made for a range or HEAD request, whose client isn't sent the whole response.
+     */
+    private static boolean isPartialFill(Response proxyResponse) {
+        return proxyResponse.getRequest().getAttributes().containsKey(PARTIAL_FILL);
+    }
+
+    @Override
+    protected void onResponseHeaders(HttpServletRequest request, HttpServletResponse response, Response proxyResponse) {
+        if (!isPartialFill(proxyResponse)) {
+            super.onResponseHeaders(request, response, proxyResponse);
+        }
+    }
+
+    @Override
+    protected void onResponseContent(HttpServletRequest request, HttpServletResponse response, Response proxyResponse,
+                                     byte[] buffer, int offset, int length) throws IOException {
+        if (!isPartialFill(proxyResponse)) {
+            super.onResponseContent(request, response, proxyResponse, buffer, offset, length);
+        }
+    }
+
+    @Override
+    protected void onResponseSuccess(HttpServletRequest request, HttpServletResponse response, Response proxyResponse) {
+        if (!isPartialFill(proxyResponse)) {
+            super.onResponseSuccess(request, response, proxyResponse);
+        }
+    }
+
+    @Override
+    protected void onResponseFailure(HttpServletRequest request, HttpServletResponse response, Response proxyResponse, Throwable failure) {
+        if (isPartialFill(proxyResponse)) {
+            return;
+        }
+
+        Origin origin = (Origin) request.getAttribute(ORIGIN);
+        if (origin != null && !response.isCommitted() && originPool.retry(request)) {
+            // nothing reached the client yet, go through the cache again and try another origin
+            LOGGER.debug("Retrying {} after origin {} failed.", request.getRequestURI(), origin, failure);
+            metrics.originRetries.increment();
+            request.setAttribute(FAILED_ORIGIN, origin);
+            response.reset();
+            ((AsyncContext) request.getAttribute(ASYNC_CONTEXT)).dispatch();
+            return;
+        }
+
+        super.onResponseFailure(request, response, proxyResponse, failure);
+    }
 }
@@ -0,0 +1,311 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Dustin Sweigart
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package net.swigg.talo.proxy;
+
+import com.google.common.collect.ImmutableSet;
+import net.swigg.talo.cache.CacheStore;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * An index of the keys in the cache by request URI, kept in a radix trie so that every key under a path prefix can be
+ * found in time proportional to the length of the prefix and the number of keys found, however large the cache is.
+ * <p/>
+ * The index is told about keys as they are added to and removed from the cache and checks which it is, so that the
+ * notifications for one key arriving out of order still leave the index agreeing with the cache. Notifications are
+ * queued and applied by whichever thread gets hold of the index next, so adding to the cache or evicting from it never
+ * waits on a lookup walking a large part of the trie.
+ *
+ * @author Dustin Sweigart <dustin@swigg.net>
+ */
+public class UriIndex {
+    private final CacheStore<RequestIdentity, ?> cache;
+    private final Queue<RequestIdentity> pending = new ConcurrentLinkedQueue<>();
+    private final ReentrantLock lock = new ReentrantLock();
+
+    // guarded by lock
+    private final Node root = new Node("");
+    private int size;
+
+    public UriIndex(CacheStore<RequestIdentity, ?> cache) {
+        this.cache = cache;
+    }
+
+    /**
+     * Add the key if it is in the cache, remove it if it isn't. The index is brought up to date right away unless
+     * somebody else is using it, in which case it is left to them.
+     */
+    public void sync(RequestIdentity key) {
+        pending.offer(key);
+        while (!pending.isEmpty() && lock.tryLock()) {
+            try {
+                applyPending();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Like {@link #sync(RequestIdentity)}, but always left to the next thread using the index. For callers that must
+     * not do the index's work themselves, such as removal listeners running under the cache's eviction lock.
+     */
+    public void syncLater(RequestIdentity key) {
+        pending.offer(key);
+    }
+
+    /**
+     * The keys of every variant of every query string of the URI.
+     */
+    public Set<RequestIdentity> get(String requestUri) {
+        lock.lock();
+        try {
+            applyPending();
+            Node node = find(requestUri);
+            return node == null || node.keys == null ? ImmutableSet.<RequestIdentity>of() : ImmutableSet.copyOf(node.keys);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The keys of every URI starting with the prefix.
+     */
+    public List<RequestIdentity> withPrefix(String prefix) {
+        lock.lock();
+        try {
+            applyPending();
+            return collect(prefix);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The number of keys in the index.
+     */
+    public int size() {
+        lock.lock();
+        try {
+            applyPending();
+            return size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // guarded by lock
+    private void applyPending() {
+        RequestIdentity key;
+        while ((key = pending.poll()) != null) {
+            if (cache.keySet().contains(key)) {
+                add(key);
+            } else {
+                remove(key);
+            }
+        }
+    }
+
+    // guarded by lock
+    private List<RequestIdentity> collect(String prefix) {
+        List<RequestIdentity> keys = new ArrayList<>();
+        Node node = root;
+        int position = 0;
+        while (position < prefix.length()) {
+            Node child = node.child(prefix.charAt(position));
+            if (child == null) {
+                return keys;
+            }
+
+            int common = commonPrefixLength(child.label, prefix, position);
+            if (position + common == prefix.length()) {
+                // the rest of the prefix ends within this edge
+                node = child;
+                break;
+            }
+            if (common < child.label.length()) {
+                return keys;
+            }
+
+            node = child;
+            position += common;
+        }
+
+        Deque<Node> pending = new ArrayDeque<>();
+        pending.push(node);
+        while (!pending.isEmpty()) {
+            Node next = pending.pop();
+            if (next.keys != null) {
+                keys.addAll(next.keys);
+            }
+            if (next.children != null) {
+                for (Node child : next.children.values()) {
+                    pending.push(child);
+                }
+            }
+        }
+
+        return keys;
+    }
+
+    // guarded by lock
+    private void add(RequestIdentity key) {
+        String uri = key.getRequestUri();
+        Node node = root;
+        int position = 0;
+        while (position < uri.length()) {
+            char next = uri.charAt(position);
+            Node child = node.child(next);
+            if (child == null) {
+                child = new Node(uri.substring(position));
+                node.put(child);
+                node = child;
+                break;
+            }
+
+            int common = commonPrefixLength(child.label, uri, position);
+            if (common < child.label.length()) {
+                // split the edge where the URIs diverge
+                Node split = new Node(child.label.substring(0, common));
+                child.label = child.label.substring(common);
+                split.put(child);
+                node.put(split);
+                child = split;
+            }
+
+            node = child;
+            position += common;
+        }
+
+        if (node.keys == null) {
+            node.keys = new HashSet<>(2);
+        }
+        if (node.keys.add(key)) {
+            size++;
+        }
+    }
+
+    // guarded by lock
+    private void remove(RequestIdentity key) {
+        String uri = key.getRequestUri();
+        Deque<Node> path = new ArrayDeque<>();
+        Node node = root;
+        int position = 0;
+        while (position < uri.length()) {
+            Node child = node.child(uri.charAt(position));
+            if (child == null || !uri.startsWith(child.label, position)) {
+                return;
+            }
+
+            path.push(node);
+            node = child;
+            position += child.label.length();
+        }
+
+        if (node.keys == null || !node.keys.remove(key)) {
+            return;
+        }
+        size--;
+        if (!node.keys.isEmpty()) {
+            return;
+        }
+        node.keys = null;
+
+        // drop nodes left without keys or children and merge those left with a single child into it
+        while (node != root && node.keys == null) {
+            Node parent = path.pop();
+            int children = node.children == null ? 0 : node.children.size();
+            if (children == 0) {
+                parent.children.remove(node.label.charAt(0));
+            } else if (children == 1) {
+                Node child = node.children.values().iterator().next();
+                child.label = node.label + child.label;
+                parent.put(child);
+                break;
+            } else {
+                break;
+            }
+            node = parent;
+        }
+    }
+
+    // guarded by lock
+    private Node find(String uri) {
+        Node node = root;
+        int position = 0;
+        while (position < uri.length()) {
+            Node child = node.child(uri.charAt(position));
+            if (child == null || !uri.startsWith(child.label, position)) {
+                return null;
+            }
+
+            node = child;
+            position += child.label.length();
+        }
+
+        return node;
+    }
+
+    private static int commonPrefixLength(String label, String uri, int offset) {
+        int length = Math.min(label.length(), uri.length() - offset);
+        int common = 0;
+        while (common < length && label.charAt(common) == uri.charAt(offset + common)) {
+            common++;
+        }
+
+        return common;
+    }
+
+    private static final class Node {
+        private String label;
+        private Map<Character, Node> children;
+        private Set<RequestIdentity> keys;
+
+        Node(String label) {
+            this.label = label;
+        }
+
+        Node child(char first) {
+            return children == null ? null : children.get(first);
+        }
+
+        void put(Node child) {
+            if (children == null) {
+                children = new HashMap<>(4);
+            }
+            children.put(child.label.charAt(0), child);
+        }
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Dustin Sweigart
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package net.swigg.talo.simulation;
+
+import net.swigg.talo.proxy.CacheKeyPolicy;
+import net.swigg.talo.proxy.RequestIdentity;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Reads access logs into a {@link Trace}, telling requests apart by the same keys the proxy would give them. Lines may
+ * be in the common or combined log format, or simply a path optionally followed by the size of the response, in which
+ * case every request is taken to be a cacheable GET. Gzipped files are read as they are.
+ * <p/>
+ * Only GET and HEAD requests answered with a 2xx or 3xx status are cacheable, the same as the proxy. The size of an
+ * object is the largest body sent for it, since 304s and HEADs don't carry one.
+ *
+ * @author Dustin Sweigart <dustin@swigg.net>
+ */
+public class AccessLogReader {
+    static private final Logger LOGGER = LoggerFactory.getLogger(AccessLogReader.class);
+
+    static private final Pattern COMMON_LOG = Pattern.compile("^\\S+ \\S+ \\S+ \\[([^\\]]+)\\] \"(\\S+) (\\S+)[^\"]*\" (\\d{3}) (\\S+)");
+    static private final String TIMESTAMP_FORMAT = "dd/MMM/yyyy:HH:mm:ss Z";
+
+    private final CacheKeyPolicy cacheKeyPolicy;
+
+    public AccessLogReader(CacheKeyPolicy cacheKeyPolicy) {
+        this.cacheKeyPolicy = cacheKeyPolicy;
+    }
+
+    public Trace read(File file) throws IOException {
+        Trace.Builder builder = new Trace.Builder();
+        Map<RequestIdentity, Integer> objects = new HashMap<>();
+        SimpleDateFormat timestampFormat = new SimpleDateFormat(TIMESTAMP_FORMAT, Locale.ENGLISH);
+        long first = Long.MAX_VALUE;
+        long last = Long.MIN_VALUE;
+        int skipped = 0;
+
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(open(file), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+
+                String method = "GET";
+                String target;
+                int status = 200;
+                int size = 0;
+
+                Matcher matcher = COMMON_LOG.matcher(line);
+                if (matcher.find()) {
+                    try {
+                        long timestamp = timestampFormat.parse(matcher.group(1)).getTime();
+                        first = Math.min(first, timestamp);
+                        last = Math.max(last, timestamp);
+                    } catch (ParseException e) {
+                        LOGGER.debug("Unreadable timestamp in '{}'.", line);
+                    }
+                    method = matcher.group(2);
+                    target = matcher.group(3);
+                    status = Integer.parseInt(matcher.group(4));
+                    size = parseSize(matcher.group(5));
+                } else if (!line.contains("\"")) {
+                    String[] columns = line.split("\\s+");
+                    target = columns[0];
+                    size = columns.length > 1 ? parseSize(columns[1]) : 0;
+                } else {
+                    skipped++;
+                    continue;
+                }
+
+                int separator = target.indexOf('?');
+                String requestUri = separator < 0 ? target : target.substring(0, separator);
+                String queryString = separator < 0 ? null : target.substring(separator + 1);
+                RequestIdentity key = cacheKeyPolicy.identify(requestUri, queryString);
+
+                Integer object = objects.get(key);
+                if (object == null) {
+                    object = objects.size();
+                    objects.put(key, object);
+                }
+                builder.size(object, size);
+
+                boolean cacheable = (method.equals("GET") || method.equals("HEAD")) && status >= 200 && status < 400;
+                builder.add(object, cacheable);
+            }
+        }
+
+        if (skipped > 0) {
+            LOGGER.warn("Skipped {} unreadable lines of {}.", skipped, file);
+        }
+
+        return builder.build(first <= last ? last - first : 0);
+    }
+
+    private static InputStream open(File file) throws IOException {
+        InputStream in = new FileInputStream(file);
+        return file.getName().endsWith(".gz") ? new GZIPInputStream(in) : in;
+    }
+
+    private static int parseSize(String size) {
+        try {
+            return Integer.parseInt(size);
+        } catch (NumberFormatException e) {
+            // "-" when nothing was sent
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Dustin Sweigart
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package net.swigg.talo.simulation;
+
+import com.google.common.cache.Weigher;
+import net.swigg.talo.cache.TinyLfuCacheStore;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The policies a trace can be simulated with. {@link #TINYLFU} is the one the proxy uses, the others are baselines
+ * to compare it against.
+ *
+ * @author Dustin Sweigart <dustin@swigg.net>
+ */
+public enum PolicyType {
+    /**
+     * Window TinyLFU, by way of the proxy's own {@link TinyLfuCacheStore}.
+     */
+    TINYLFU {
+        @Override
+        public Policy create(long capacity, long expectedSize) {
+            final TinyLfuCacheStore<Integer, Integer> cache = new TinyLfuCacheStore<>(capacity, expectedSize, 1024, new Weigher<Integer, Integer>() {
+                @Override
+                public int weigh(Integer object, Integer size) {
+                    return size;
+                }
+            }, null);
+
+            return new Policy() {
+                @Override
+                public boolean access(int object, int size) {
+                    return cache.putIfAbsent(object, weight(size)) != null;
+                }
+            };
+        }
+    },
+
+    /**
+     * Evicts the least recently used objects, admitting everything.
+     */
+    LRU {
+        @Override
+        public Policy create(long capacity, long expectedSize) {
+            return new LinkedHashMapPolicy(capacity, true);
+        }
+    },
+
+    /**
+     * Evicts the objects that were added first, admitting everything.
+     */
+    FIFO {
+        @Override
+        public Policy create(long capacity, long expectedSize) {
+            return new LinkedHashMapPolicy(capacity, false);
+        }
+    };
+
+    /**
+     * A new, empty cache of the given capacity in bytes.
+     *
+     * @param expectedSize number of objects the full cache is expected to hold
+     */
+    public abstract Policy create(long capacity, long expectedSize);
+
+    /**
+     * Objects take up at least a byte, as the proxy also stores their headers.
+     */
+    static private int weight(int size) {
+        return Math.max(1, size);
+    }
+
+    static private class LinkedHashMapPolicy implements Policy {
+        private final long capacity;
+        private final LinkedHashMap<Integer, Integer> entries;
+        private long weight;
+
+        LinkedHashMapPolicy(long capacity, boolean accessOrder) {
+            this.capacity = capacity;
+            this.entries = new LinkedHashMap<>(1024, 0.75f, accessOrder);
+        }
+
+        @Override
+        public boolean access(int object, int size) {
+            if (entries.get(object) != null) {
+                return true;
+            }
+
+            int objectWeight = weight(size);
+            if (objectWeight > capacity) {
+                return false;
+            }
+
+            entries.put(object, objectWeight);
+            weight += objectWeight;
+            Iterator<Map.Entry<Integer, Integer>> eldest = entries.entrySet().iterator();
+            while (weight > capacity) {
+                weight -= eldest.next().getValue();
+                eldest.remove();
+            }
+
+            return false;
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Dustin Sweigart
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package net.swigg.talo.simulation;
+
+import java.util.concurrent.Callable;
+
+/**
+ * Replays a trace through one policy at one capacity.
+ *
+ * @author Dustin Sweigart <dustin@swigg.net>
+ */
+public class Simulation implements Callable<Simulation.Result> {
+    private final Trace trace;
+    private final PolicyType policyType;
+    private final long capacity;
+
+    public Simulation(Trace trace, PolicyType policyType, long capacity) {
+        this.trace = trace;
+        this.policyType = policyType;
+        this.capacity = capacity;
+    }
+
+    @Override
+    public Result call() {
+        long averageSize = Math.max(1, trace.getFootprint() / Math.max(1, trace.getObjects()));
+        Policy policy = policyType.create(capacity, Math.max(1, capacity / averageSize));
+        Result result = new Result(policyType, capacity, trace.getDuration());
+        for (int request = 0; request < trace.getRequests(); request++) {
+            int object = trace.getObject(request);
+            int size = trace.getSize(object);
+            result.requests++;
+            result.bytes += size;
+
+            if (trace.isCacheable(request) && policy.access(object, size)) {
+                result.hits++;
+                result.hitBytes += size;
+            }
+        }
+
+        return result;
+    }
+
+    public static class Result {
+        private final PolicyType policyType;
+        private final long capacity;
+        private final long duration;
+        private long requests;
+        private long hits;
+        private long bytes;
+        private long hitBytes;
+
+        Result(PolicyType policyType, long capacity, long duration) {
+            this.policyType = policyType;
+            this.capacity = capacity;
+            this.duration = duration;
+        }
+
+        public PolicyType getPolicyType() {
+            return policyType;
+        }
+
+        public long getCapacity() {
+            return capacity;
+        }
+
+        public double getHitRatio() {
+            return requests == 0 ? 0 : hits / (double) requests;
+        }
+
+        public double getByteHitRatio() {
+            return bytes == 0 ? 0 : hitBytes / (double) bytes;
+        }
+
+        /**
+         * Requests that would have gone to the target application, misses and uncacheable requests alike.
+         */
+        public long getOriginRequests() {
+            return requests - hits;
+        }
+
+        public long getOriginBytes() {
+            return bytes - hitBytes;
+        }
+
+        /**
+         * Requests per second the target application would have seen on average, or -1 if the trace has no times.
+         */
+        public double getOriginRate() {
+            return duration == 0 ? -1 : getOriginRequests() * 1000d / duration;
+        }
+    }
+}
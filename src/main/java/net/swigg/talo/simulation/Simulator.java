@@ -0,0 +1,130 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Dustin Sweigart
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package net.swigg.talo.simulation;
+
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import net.swigg.talo.proxy.CacheKeyPolicy;
+import org.apache.commons.cli.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Replays access logs offline through every cache policy at several capacities, in parallel, and reports the hit
+ * ratio, byte hit ratio and load on the target application each would have given. Requests are keyed the same way
+ * the proxy keys them, so the key options should match the proxy's.
+ *
+ * @author Dustin Sweigart <dustin@swigg.net>
+ */
+public class Simulator {
+    static private final Logger LOGGER = LoggerFactory.getLogger(Simulator.class);
+    static private final Splitter LIST_SPLITTER = Splitter.on(',').trimResults().omitEmptyStrings();
+
+    public static void main(String[] args) throws Exception {
+        Options options = new Options();
+        options.addOption("help", false, "help");
+        options.addOption("trace", true, "access log to replay, in common or combined log format or one path per line");
+        options.addOption("capacities", true, "comma separated cache sizes in bytes to simulate, with an optional k, m or g suffix");
+        options.addOption("policies", true, "comma separated policies to simulate: " + ImmutableList.copyOf(PolicyType.values()).toString().toLowerCase(Locale.ENGLISH));
+        options.addOption("threads", true, "number of simulations to run at the same time");
+        options.addOption("ignoredQueryParameters", true, "comma separated query parameters left out of cache keys, a trailing * matches a prefix");
+        options.addOption("sortQueryParameters", true, "whether query parameter order is irrelevant to cache keys");
+
+        CommandLineParser parser = new BasicParser();
+        CommandLine command = parser.parse(options, args);
+
+        if (command.hasOption("help") || !command.hasOption("trace")) {
+            HelpFormatter formatter = new HelpFormatter();
+            formatter.printHelp("talocache-simulator", options);
+            return;
+        }
+
+        CacheKeyPolicy cacheKeyPolicy = new CacheKeyPolicy(ImmutableList.<String>of(),
+                LIST_SPLITTER.splitToList(command.getOptionValue("ignoredQueryParameters", "")),
+                Boolean.parseBoolean(command.getOptionValue("sortQueryParameters", "true")));
+        Trace trace = new AccessLogReader(cacheKeyPolicy).read(new File(command.getOptionValue("trace")));
+        LOGGER.info("Read {}, {} bytes of distinct objects.", trace, trace.getFootprint());
+
+        List<PolicyType> policyTypes = new ArrayList<>();
+        for (String policy : LIST_SPLITTER.split(command.getOptionValue("policies", "tinylfu,lru,fifo"))) {
+            policyTypes.add(PolicyType.valueOf(policy.toUpperCase(Locale.ENGLISH)));
+        }
+        List<Long> capacities = new ArrayList<>();
+        for (String capacity : LIST_SPLITTER.split(command.getOptionValue("capacities", "64m,256m,1g,4g"))) {
+            capacities.add(parseBytes(capacity));
+        }
+
+        int threads = Integer.parseInt(command.getOptionValue("threads", Integer.toString(Runtime.getRuntime().availableProcessors())));
+        ExecutorService executor = Executors.newFixedThreadPool(threads,
+                new ThreadFactoryBuilder().setDaemon(true).setNameFormat("talo-simulator-%d").build());
+        List<Future<Simulation.Result>> results = new ArrayList<>();
+        for (long capacity : capacities) {
+            for (PolicyType policyType : policyTypes) {
+                results.add(executor.submit(new Simulation(trace, policyType, capacity)));
+            }
+        }
+
+        System.out.printf("%-8s %14s %9s %9s %16s %12s %16s%n",
+                "policy", "capacity", "hits", "byte hits", "origin requests", "origin rps", "origin bytes");
+        for (Future<Simulation.Result> future : results) {
+            Simulation.Result result = future.get();
+            System.out.printf("%-8s %14d %8.2f%% %8.2f%% %16d %12s %16d%n",
+                    result.getPolicyType().name().toLowerCase(Locale.ENGLISH), result.getCapacity(),
+                    result.getHitRatio() * 100, result.getByteHitRatio() * 100, result.getOriginRequests(),
+                    result.getOriginRate() < 0 ? "-" : String.format("%.1f", result.getOriginRate()),
+                    result.getOriginBytes());
+        }
+        executor.shutdown();
+    }
+
+    private static long parseBytes(String bytes) {
+        String value = bytes.toLowerCase(Locale.ENGLISH);
+        long multiplier = 1;
+        switch (value.charAt(value.length() - 1)) {
+            case 'k':
+                multiplier = 1024L;
+                break;
+            case 'm':
+                multiplier = 1024L * 1024;
+                break;
+            case 'g':
+                multiplier = 1024L * 1024 * 1024;
+                break;
+            default:
+                return Long.parseLong(value);
+        }
+
+        return Long.parseLong(value.substring(0, value.length() - 1)) * multiplier;
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Dustin Sweigart
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package net.swigg.talo.simulation;
+
+import java.util.Arrays;
+
+/**
+ * The requests of an access log reduced to what a cache simulation needs: which object each request was for, whether
+ * its response could have been cached and how large each object is. Objects are numbered densely from zero.
+ *
+ * @author Dustin Sweigart <dustin@swigg.net>
+ */
+public class Trace {
+    private final int[] objects;
+    private final boolean[] cacheable;
+    private final int[] sizes;
+    private final long duration;
+
+    /**
+     * @param objects   the object of each request
+     * @param cacheable whether the response to each request could have been cached
+     * @param sizes     the size in bytes of each object
+     * @param duration  milliseconds between the first and last request, 0 if unknown
+     */
+    public Trace(int[] objects, boolean[] cacheable, int[] sizes, long duration) {
+        this.objects = objects;
+        this.cacheable = cacheable;
+        this.sizes = sizes;
+        this.duration = duration;
+    }
+
+    public int getRequests() {
+        return objects.length;
+    }
+
+    public int getObject(int request) {
+        return objects[request];
+    }
+
+    public boolean isCacheable(int request) {
+        return cacheable[request];
+    }
+
+    public int getObjects() {
+        return sizes.length;
+    }
+
+    public int getSize(int object) {
+        return sizes[object];
+    }
+
+    public long getDuration() {
+        return duration;
+    }
+
+    /**
+     * The combined size of every object, the capacity at which nothing cacheable needs to be evicted.
+     */
+    public long getFootprint() {
+        long footprint = 0;
+        for (int size : sizes) {
+            footprint += size;
+        }
+
+        return footprint;
+    }
+
+    @Override
+    public String toString() {
+        return "Trace{requests=" + objects.length + ", objects=" + sizes.length + ", duration=" + duration + "}";
+    }
+
+    /**
+     * Collects requests one at a time.
+     */
+    static class Builder {
+        private int[] objects = new int[1024];
+        private boolean[] cacheable = new boolean[1024];
+        private int[] sizes = new int[1024];
+        private int requests;
+        private int objectCount;
+
+        void add(int object, boolean isCacheable) {
+            if (requests == objects.length) {
+                objects = Arrays.copyOf(objects, requests * 2);
+                cacheable = Arrays.copyOf(cacheable, requests * 2);
+            }
+            objects[requests] = object;
+            cacheable[requests] = isCacheable;
+            requests++;
+        }
+
+        /**
+         * Record a body sent for an object, which is as large as the largest body seen for it.
+         */
+        void size(int object, int size) {
+            if (object >= sizes.length) {
+                sizes = Arrays.copyOf(sizes, Math.max(sizes.length * 2, object + 1));
+            }
+            sizes[object] = Math.max(sizes[object], size);
+            objectCount = Math.max(objectCount, object + 1);
+        }
+
+        Trace build(long duration) {
+            return new Trace(Arrays.copyOf(objects, requests), Arrays.copyOf(cacheable, requests),
+                    Arrays.copyOf(sizes, objectCount), duration);
+        }
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Dustin Sweigart
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.swigg.talo.cache;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Dustin Sweigart <dustin@swigg.net>
+ */
+public class DoorkeeperTest {
+    @Test
+    public void admitsKeysSeenOftenEnough() {
+        Doorkeeper<String> doorkeeper = new Doorkeeper<>(1024, 3);
+
+        assertFalse(doorkeeper.admit("/a"));
+        assertFalse(doorkeeper.admit("/a"));
+        assertTrue(doorkeeper.admit("/a"));
+        assertTrue(doorkeeper.admit("/a"));
+    }
+
+    @Test
+    public void thresholdOfOneAdmitsEverything() {
+        Doorkeeper<String> doorkeeper = new Doorkeeper<>(1024, 1);
+
+        assertTrue(doorkeeper.admit("/a"));
+        assertTrue(doorkeeper.admit("/b"));
+    }
+
+    @Test
+    public void keysAreCountedApart() {
+        Doorkeeper<Integer> doorkeeper = new Doorkeeper<>(1024, 2);
+        for (int i = 0; i < 100; i++) {
+            assertFalse(doorkeeper.admit(i));
+        }
+        for (int i = 0; i < 100; i++) {
+            assertTrue(doorkeeper.admit(i));
+        }
+    }
+
+    @Test
+    public void thresholdsOfTheirOwn() {
+        Doorkeeper<String> doorkeeper = new Doorkeeper<>(1024, 2);
+
+        assertTrue(doorkeeper.admit("/a", 1));
+        assertFalse(doorkeeper.admit("/a", 3));
+        assertTrue(doorkeeper.admit("/a", 3));
+        assertTrue(doorkeeper.admit("/a"));
+    }
+
+    @Test
+    public void countsSaturate() {
+        Doorkeeper<String> doorkeeper = new Doorkeeper<>(1024, 15);
+        for (int i = 0; i < 100; i++) {
+            doorkeeper.admit("/a");
+        }
+
+        assertTrue(doorkeeper.admit("/a"));
+    }
+
+    /**
+     * Counters are updated with compare-and-set, so none of the concurrent sightings of a key are lost.
+     */
+    @Test
+    public void concurrentSightingsAreAllCounted() throws Exception {
+        final Doorkeeper<String> doorkeeper = new Doorkeeper<>(1024, 15);
+        ExecutorService executor = Executors.newFixedThreadPool(7);
+        try {
+            List<Future<Boolean>> futures = new ArrayList<>();
+            for (int i = 0; i < 14; i++) {
+                futures.add(executor.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() {
+                        return doorkeeper.admit("/a");
+                    }
+                }));
+            }
+            for (Future<Boolean> future : futures) {
+                future.get(1, TimeUnit.MINUTES);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertTrue(doorkeeper.admit("/a"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void thresholdHasToFitTheCounters() {
+        new Doorkeeper<String>(1024, 16);
+    }
+}
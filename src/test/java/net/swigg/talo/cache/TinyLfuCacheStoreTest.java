@@ -0,0 +1,257 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Dustin Sweigart
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.swigg.talo.cache;
+
+import com.google.common.cache.Weigher;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Dustin Sweigart <dustin@swigg.net>
+ */
+public class TinyLfuCacheStoreTest {
+    static private final int THREADS = 8;
+
+    /**
+     * Values weigh as much as their value says.
+     */
+    static private final Weigher<Integer, Integer> VALUE_WEIGHER = new Weigher<Integer, Integer>() {
+        @Override
+        public int weigh(Integer key, Integer value) {
+            return value;
+        }
+    };
+
+    @Test
+    public void weightedSizeStaysWithinMaximum() {
+        TinyLfuCacheStore<Integer, Integer> store = new TinyLfuCacheStore<>(1000, VALUE_WEIGHER);
+        Random random = new Random(42);
+        for (int i = 0; i < 10000; i++) {
+            store.put(random.nextInt(500), 1 + random.nextInt(50));
+            assertTrue(store.weightedSize() <= store.maximumWeight());
+        }
+
+        assertEquals(weightOf(store, 500), store.weightedSize());
+    }
+
+    @Test
+    public void entryHeavierThanTheStoreIsNotKept() {
+        TinyLfuCacheStore<Integer, Integer> store = new TinyLfuCacheStore<>(100, VALUE_WEIGHER);
+        store.put(1, 10);
+        store.put(2, 101);
+
+        assertNull(store.get(2));
+        assertEquals(Integer.valueOf(10), store.get(1));
+        assertEquals(10, store.weightedSize());
+    }
+
+    @Test
+    public void replaceReweighsTheEntry() {
+        TinyLfuCacheStore<Integer, Integer> store = new TinyLfuCacheStore<>(100, VALUE_WEIGHER);
+        store.put(1, 10);
+
+        assertTrue(store.replace(1, 10, 30));
+        assertEquals(30, store.weightedSize());
+        assertFalse(store.replace(1, 10, 40));
+        assertEquals(Integer.valueOf(30), store.get(1));
+    }
+
+    @Test
+    public void replaceFailsOnceTheEntryWasEvicted() {
+        final ConcurrentMap<Integer, Integer> evicted = new ConcurrentHashMap<>();
+        TinyLfuCacheStore<Integer, Integer> store = new TinyLfuCacheStore<>(100, 100, 16, VALUE_WEIGHER,
+                new RemovalListener<Integer, Integer>() {
+                    @Override
+                    public void onRemoval(Integer key, Integer value, RemovalCause cause) {
+                        if (cause == RemovalCause.EVICTED) {
+                            evicted.put(key, value);
+                        }
+                    }
+                });
+
+        store.put(0, 10);
+        for (int i = 1; !evicted.containsKey(0); i++) {
+            store.put(i, 10);
+        }
+
+        assertFalse(store.replace(0, 10, 20));
+        assertNull(store.get(0));
+        assertTrue(store.weightedSize() <= store.maximumWeight());
+    }
+
+    @Test
+    public void removalListenerIsToldWhy() {
+        final List<RemovalCause> causes = new ArrayList<>();
+        TinyLfuCacheStore<Integer, Integer> store = new TinyLfuCacheStore<>(100, 100, 16, VALUE_WEIGHER,
+                new RemovalListener<Integer, Integer>() {
+                    @Override
+                    public void onRemoval(Integer key, Integer value, RemovalCause cause) {
+                        causes.add(cause);
+                    }
+                });
+
+        store.put(1, 10);
+        store.put(1, 20);
+        assertTrue(store.replace(1, 20, 30));
+        assertTrue(store.remove(1, 30));
+        store.put(2, 200);
+
+        assertEquals(Arrays.asList(RemovalCause.REPLACED, RemovalCause.REPLACED,
+                RemovalCause.EXPLICIT, RemovalCause.EVICTED), causes);
+    }
+
+    @Test
+    public void concurrentWritesStayWithinMaximum() throws Exception {
+        final TinyLfuCacheStore<Integer, Integer> store = new TinyLfuCacheStore<>(5000, VALUE_WEIGHER);
+        runConcurrently(new Callable<Void>() {
+            @Override
+            public Void call() {
+                Random random = new Random();
+                for (int i = 0; i < 20000; i++) {
+                    int key = random.nextInt(2000);
+                    switch (random.nextInt(4)) {
+                        case 0:
+                            store.remove(key);
+                            break;
+                        case 1:
+                            Integer current = store.get(key);
+                            if (current != null) {
+                                store.replace(key, current, 1 + random.nextInt(50));
+                            }
+                            break;
+                        default:
+                            store.put(key, 1 + random.nextInt(50));
+                    }
+                }
+                return null;
+            }
+        });
+
+        assertTrue(store.weightedSize() <= store.maximumWeight());
+        assertEquals(weightOf(store, 2000), store.weightedSize());
+    }
+
+    /**
+     * A replace racing a remove either lands before it, and the remove takes the new value, or fails. It never swaps
+     * the value of an entry that already left the store.
+     */
+    @Test
+    public void replaceRacingRemoveNeverResurrectsTheEntry() throws Exception {
+        final TinyLfuCacheStore<Integer, Integer> store = new TinyLfuCacheStore<>(1000, VALUE_WEIGHER);
+        final AtomicInteger replacedAfterRemoval = new AtomicInteger();
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            for (int i = 0; i < 2000; i++) {
+                store.put(i, 1);
+                final int key = i;
+                final CountDownLatch start = new CountDownLatch(1);
+                Future<Boolean> replaced = executor.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws Exception {
+                        start.await();
+                        return store.replace(key, 1, 2);
+                    }
+                });
+                Future<Integer> removed = executor.submit(new Callable<Integer>() {
+                    @Override
+                    public Integer call() throws Exception {
+                        start.await();
+                        return store.remove(key);
+                    }
+                });
+                start.countDown();
+
+                if (replaced.get() != Integer.valueOf(2).equals(removed.get())) {
+                    replacedAfterRemoval.incrementAndGet();
+                }
+                assertNull(store.get(key));
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        assertEquals(0, replacedAfterRemoval.get());
+        assertEquals(0, store.size());
+        assertEquals(0, store.weightedSize());
+    }
+
+    @Test
+    public void putIfAbsentKeepsTheFirstValue() {
+        TinyLfuCacheStore<Integer, Integer> store = new TinyLfuCacheStore<>(100, VALUE_WEIGHER);
+        Integer first = 10;
+
+        assertNull(store.putIfAbsent(1, first));
+        assertSame(first, store.putIfAbsent(1, 20));
+        assertEquals(10, store.weightedSize());
+    }
+
+    /**
+     * The combined weight of the entries of keys below the bound.
+     */
+    private static long weightOf(TinyLfuCacheStore<Integer, Integer> store, int keys) {
+        long weight = 0;
+        for (int key = 0; key < keys; key++) {
+            Integer value = store.get(key);
+            if (value != null) {
+                weight += value;
+            }
+        }
+
+        return weight;
+    }
+
+    private static void runConcurrently(Callable<Void> task) throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Future<Void>> futures = new ArrayList<>();
+            for (int i = 0; i < THREADS; i++) {
+                futures.add(executor.submit(task));
+            }
+            for (Future<Void> future : futures) {
+                future.get(1, TimeUnit.MINUTES);
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+}
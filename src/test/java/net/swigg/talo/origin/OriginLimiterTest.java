@@ -0,0 +1,190 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Dustin Sweigart
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.swigg.talo.origin;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Dustin Sweigart <dustin@swigg.net>
+ */
+public class OriginLimiterTest {
+    static private final long FAST = TimeUnit.MILLISECONDS.toNanos(10);
+    static private final long SLOW = TimeUnit.SECONDS.toNanos(1);
+
+    @Test
+    public void permitsUpToTheLimit() {
+        OriginLimiter limiter = new OriginLimiter(2, 1, 10, 2, 10);
+
+        assertTrue(limiter.tryAcquire());
+        assertFalse(limiter.isSaturated());
+        assertTrue(limiter.tryAcquire());
+        assertTrue(limiter.isSaturated());
+        assertFalse(limiter.tryAcquire());
+        assertEquals(2, limiter.getInFlight());
+
+        limiter.release();
+        assertTrue(limiter.tryAcquire());
+    }
+
+    @Test
+    public void waitersAreGrantedFreedPermitsByPriority() {
+        OriginLimiter limiter = new OriginLimiter(1, 1, 10, 2, 10);
+        List<String> granted = new ArrayList<>();
+        assertTrue(limiter.tryAcquire());
+
+        assertTrue(limiter.enqueue(waiter(granted, "low"), OriginLimiter.Priority.LOW));
+        assertTrue(limiter.enqueue(waiter(granted, "high"), OriginLimiter.Priority.HIGH));
+        assertEquals(2, limiter.getQueued());
+        assertTrue(granted.isEmpty());
+
+        limiter.release();
+        assertEquals(1, granted.size());
+        assertEquals("high", granted.get(0));
+        assertEquals(1, limiter.getInFlight());
+
+        limiter.release();
+        assertEquals("low", granted.get(1));
+        assertEquals(0, limiter.getQueued());
+    }
+
+    @Test
+    public void waitersDontJumpTheQueue() {
+        OriginLimiter limiter = new OriginLimiter(1, 1, 10, 2, 10);
+        List<String> granted = new ArrayList<>();
+        assertTrue(limiter.tryAcquire());
+        assertTrue(limiter.enqueue(waiter(granted, "waiting"), OriginLimiter.Priority.LOW));
+
+        assertFalse(limiter.tryAcquire());
+    }
+
+    @Test
+    public void enqueueGrantsRightAwayIfAPermitIsFree() {
+        OriginLimiter limiter = new OriginLimiter(1, 1, 10, 2, 10);
+        List<String> granted = new ArrayList<>();
+
+        assertTrue(limiter.enqueue(waiter(granted, "first"), OriginLimiter.Priority.HIGH));
+        assertEquals(1, granted.size());
+        assertEquals(1, limiter.getInFlight());
+    }
+
+    @Test
+    public void fullQueueTurnsWaitersAway() {
+        OriginLimiter limiter = new OriginLimiter(1, 1, 10, 2, 1);
+        List<String> granted = new ArrayList<>();
+        assertTrue(limiter.tryAcquire());
+
+        assertTrue(limiter.enqueue(waiter(granted, "first"), OriginLimiter.Priority.LOW));
+        assertFalse(limiter.enqueue(waiter(granted, "second"), OriginLimiter.Priority.HIGH));
+    }
+
+    @Test
+    public void permitsDeclinedByWaitersGoToTheNext() {
+        OriginLimiter limiter = new OriginLimiter(1, 1, 10, 2, 10);
+        List<String> granted = new ArrayList<>();
+        assertTrue(limiter.tryAcquire());
+
+        assertTrue(limiter.enqueue(new OriginLimiter.Waiter() {
+            @Override
+            public boolean grant() {
+                return false;
+            }
+        }, OriginLimiter.Priority.HIGH));
+        OriginLimiter.Waiter removed = waiter(granted, "removed");
+        assertTrue(limiter.enqueue(removed, OriginLimiter.Priority.HIGH));
+        limiter.remove(removed);
+        assertTrue(limiter.enqueue(waiter(granted, "next"), OriginLimiter.Priority.LOW));
+
+        limiter.release();
+        assertEquals(1, granted.size());
+        assertEquals("next", granted.get(0));
+        assertEquals(1, limiter.getInFlight());
+    }
+
+    @Test
+    public void failuresBackOffDownToTheMinimum() {
+        OriginLimiter limiter = new OriginLimiter(10, 5, 20, 2, 10);
+        for (int i = 0; i < 20; i++) {
+            assertTrue(limiter.tryAcquire());
+            limiter.release(FAST, true);
+        }
+
+        assertEquals(5, limiter.getLimit());
+    }
+
+    @Test
+    public void slowRequestsBackOff() {
+        OriginLimiter limiter = new OriginLimiter(10, 1, 20, 2, 10);
+        assertTrue(limiter.tryAcquire());
+        limiter.release(FAST, false);
+        assertEquals(10, limiter.getLimit());
+
+        assertTrue(limiter.tryAcquire());
+        limiter.release(SLOW, false);
+        assertEquals(9, limiter.getLimit());
+    }
+
+    @Test
+    public void growsOnlyWhileTheLimitIsUsedUpToTheMaximum() {
+        OriginLimiter limiter = new OriginLimiter(4, 1, 8, 2, 10);
+        for (int i = 0; i < 100; i++) {
+            assertTrue(limiter.tryAcquire());
+            limiter.release(FAST, false);
+        }
+        assertEquals(4, limiter.getLimit());
+
+        for (int i = 0; i < 100; i++) {
+            while (limiter.tryAcquire()) {
+                // take every permit there is
+            }
+            limiter.release(FAST, false);
+            while (limiter.getInFlight() > 0) {
+                limiter.release();
+            }
+        }
+        assertEquals(8, limiter.getLimit());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void initialLimitWithinBounds() {
+        new OriginLimiter(20, 1, 10, 2, 10);
+    }
+
+    private static OriginLimiter.Waiter waiter(final List<String> granted, final String name) {
+        return new OriginLimiter.Waiter() {
+            @Override
+            public boolean grant() {
+                granted.add(name);
+                return true;
+            }
+        };
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Dustin Sweigart
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.swigg.talo.proxy;
+
+import org.eclipse.jetty.http.HttpFields;
+import org.eclipse.jetty.http.HttpHeader;
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Dustin Sweigart <dustin@swigg.net>
+ */
+public class ByteRangesTest {
+    static private final long LENGTH = 1000;
+    static private final long LAST_MODIFIED = 1400000000000L;
+
+    @Test
+    public void wholeResponseWithoutRange() {
+        assertNull(ByteRanges.satisfiable(new MockHttpServletRequest("GET", "/"), 200, new HttpFields(), LENGTH));
+    }
+
+    @Test
+    public void onlyGetRequestsForCompleteResponses() {
+        MockHttpServletRequest post = request("bytes=0-9");
+        post.setMethod("POST");
+
+        assertNull(ByteRanges.satisfiable(post, 200, new HttpFields(), LENGTH));
+        assertNull(ByteRanges.satisfiable(request("bytes=0-9"), 404, new HttpFields(), LENGTH));
+    }
+
+    @Test
+    public void boundedOpenAndSuffixRanges() {
+        assertRanges(ByteRanges.satisfiable(request("bytes=10-19"), 200, new HttpFields(), LENGTH), 10, 19);
+        assertRanges(ByteRanges.satisfiable(request("bytes=990-"), 200, new HttpFields(), LENGTH), 990, 999);
+        assertRanges(ByteRanges.satisfiable(request("bytes=-10"), 200, new HttpFields(), LENGTH), 990, 999);
+        assertRanges(ByteRanges.satisfiable(request("bytes=-5000"), 200, new HttpFields(), LENGTH), 0, 999);
+        assertRanges(ByteRanges.satisfiable(request("bytes=900-5000"), 200, new HttpFields(), LENGTH), 900, 999);
+    }
+
+    @Test
+    public void rangesPastTheEndAreUnsatisfiable() {
+        assertTrue(ByteRanges.satisfiable(request("bytes=1000-1010"), 200, new HttpFields(), LENGTH).isEmpty());
+        assertTrue(ByteRanges.satisfiable(request("bytes=-0"), 200, new HttpFields(), LENGTH).isEmpty());
+    }
+
+    @Test
+    public void invalidRangesAreIgnored() {
+        assertNull(ByteRanges.satisfiable(request("items=0-9"), 200, new HttpFields(), LENGTH));
+        assertNull(ByteRanges.satisfiable(request("bytes=9-0"), 200, new HttpFields(), LENGTH));
+        assertNull(ByteRanges.satisfiable(request("bytes=a-b"), 200, new HttpFields(), LENGTH));
+        assertNull(ByteRanges.satisfiable(request("bytes=10"), 200, new HttpFields(), LENGTH));
+    }
+
+    @Test
+    public void tooManyRangesGetTheWholeResponse() {
+        StringBuilder header = new StringBuilder("bytes=0-0");
+        for (int i = 1; i <= 16; i++) {
+            header.append(',').append(i * 10).append('-').append(i * 10);
+        }
+
+        assertNull(ByteRanges.satisfiable(request(header.toString()), 200, new HttpFields(), LENGTH));
+    }
+
+    @Test
+    public void mergesOverlappingAndAdjacentRangesInOrder() {
+        List<ByteRanges.Range> ranges = ByteRanges.satisfiable(request("bytes=500-599, 0-9, 10-19, 550-649, 700-, 5-7"),
+                200, new HttpFields(), LENGTH);
+
+        assertRanges(ranges, 0, 19, 500, 649, 700, 999);
+    }
+
+    @Test
+    public void ifRangeHasToMatchStrongly() {
+        HttpFields headers = new HttpFields();
+        headers.put(HttpHeader.ETAG, "\"v1\"");
+        headers.putDateField(HttpHeader.LAST_MODIFIED, LAST_MODIFIED);
+
+        assertRanges(ByteRanges.satisfiable(request("bytes=0-9", "\"v1\""), 200, headers, LENGTH), 0, 9);
+        assertNull(ByteRanges.satisfiable(request("bytes=0-9", "\"v2\""), 200, headers, LENGTH));
+        assertNull(ByteRanges.satisfiable(request("bytes=0-9", "W/\"v1\""), 200, headers, LENGTH));
+
+        MockHttpServletRequest modified = request("bytes=0-9");
+        modified.addHeader(HttpHeader.IF_RANGE.asString(), LAST_MODIFIED);
+        assertRanges(ByteRanges.satisfiable(modified, 200, headers, LENGTH), 0, 9);
+
+        MockHttpServletRequest stale = request("bytes=0-9");
+        stale.addHeader(HttpHeader.IF_RANGE.asString(), LAST_MODIFIED - 1000);
+        assertNull(ByteRanges.satisfiable(stale, 200, headers, LENGTH));
+    }
+
+    private static MockHttpServletRequest request(String range) {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", "/");
+        request.addHeader(HttpHeader.RANGE.asString(), range);
+        return request;
+    }
+
+    private static MockHttpServletRequest request(String range, String ifRange) {
+        MockHttpServletRequest request = request(range);
+        request.addHeader(HttpHeader.IF_RANGE.asString(), ifRange);
+        return request;
+    }
+
+    /**
+     * @param bounds the first and last position of every expected range
+     */
+    private static void assertRanges(List<ByteRanges.Range> ranges, long... bounds) {
+        assertEquals(bounds.length / 2, ranges.size());
+        for (int i = 0; i < ranges.size(); i++) {
+            assertEquals(bounds[2 * i], ranges.get(i).getFirst());
+            assertEquals(bounds[2 * i + 1], ranges.get(i).getLast());
+        }
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Dustin Sweigart
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.swigg.talo.proxy;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSortedSet;
+import org.eclipse.jetty.http.HttpFields;
+import org.eclipse.jetty.http.HttpHeader;
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Dustin Sweigart <dustin@swigg.net>
+ */
+public class CacheKeyPolicyTest {
+    @Test
+    public void sortsQueryParametersByNameKeepingRepeatedOnesInOrder() {
+        CacheKeyPolicy policy = new CacheKeyPolicy();
+
+        assertEquals("a=1&b=2&b=1&c", policy.identify(request("/p", "b=2&c&a=1&b=1")).getQueryString());
+        assertEquals("", policy.identify(request("/p", null)).getQueryString());
+    }
+
+    @Test
+    public void keepsTheQueryOrderWhenTold() {
+        CacheKeyPolicy policy = new CacheKeyPolicy(Collections.<String>emptySet(), Collections.<String>emptySet(), false);
+
+        assertEquals("b=2&a=1", policy.identify(request("/p", "b=2&&a=1")).getQueryString());
+    }
+
+    @Test
+    public void leavesOutIgnoredQueryParameters() {
+        CacheKeyPolicy policy = new CacheKeyPolicy(Collections.<String>emptySet(), Arrays.asList("utm_*", "session"), true);
+
+        assertEquals("id=7&sessions=2", policy.identify(request("/p", "utm_source=x&id=7&session=abc&sessions=2&utm_medium")).getQueryString());
+    }
+
+    @Test
+    public void keysOnWhitelistedHeadersOnly() {
+        CacheKeyPolicy policy = new CacheKeyPolicy(Arrays.asList("Accept-Language", "Range"), Collections.<String>emptySet(), true);
+
+        MockHttpServletRequest english = request("/p", null);
+        english.addHeader("Accept-Language", "en");
+        english.addHeader("Range", "bytes=0-10");
+        english.addHeader("User-Agent", "a");
+        MockHttpServletRequest french = request("/p", null);
+        french.addHeader("Accept-Language", "fr");
+        MockHttpServletRequest alsoEnglish = request("/p", null);
+        alsoEnglish.addHeader("Accept-Language", " en ");
+        alsoEnglish.addHeader("User-Agent", "b");
+
+        assertEquals("accept-language:en\n", policy.identify(english).getKeyHeaders());
+        assertNotEquals(policy.identify(english), policy.identify(french));
+        assertEquals(policy.identify(english), policy.identify(alsoEnglish));
+    }
+
+    @Test
+    public void variedResponsesGetSecondaryKeys() {
+        CacheKeyPolicy policy = new CacheKeyPolicy();
+        MockHttpServletRequest gzip = request("/p", null);
+        gzip.addHeader("Accept-Encoding", "gzip");
+        MockHttpServletRequest plain = request("/p", null);
+
+        RequestIdentity primary = policy.identify(gzip);
+        assertTrue(primary.isPrimary());
+
+        HttpFields headers = new HttpFields();
+        headers.add(HttpHeader.VARY, "Accept-Encoding");
+        assertTrue(policy.learnVary(primary, headers));
+
+        RequestIdentity gzipVariant = policy.identify(gzip);
+        RequestIdentity plainVariant = policy.identify(plain);
+        assertFalse(gzipVariant.isPrimary());
+        assertEquals(primary, gzipVariant.primary());
+        assertNotEquals(gzipVariant, plainVariant);
+        assertFalse(policy.learnVary(gzipVariant, headers));
+
+        // the resource stopped varying
+        assertFalse(policy.learnVary(primary, new HttpFields()));
+        assertEquals(primary, policy.identify(gzip));
+    }
+
+    @Test
+    public void readsEveryVaryField() {
+        HttpFields headers = new HttpFields();
+        headers.add(HttpHeader.VARY, "Accept-Encoding");
+        assertFalse(CacheKeyPolicy.variesOnEverything(headers));
+
+        headers.add(HttpHeader.VARY, "Accept-Language, *");
+        assertTrue(CacheKeyPolicy.variesOnEverything(headers));
+    }
+
+    @Test
+    public void cookiesHaveToBeKeyedOn() {
+        MockHttpServletRequest request = request("/p", null);
+        request.addHeader("Cookie", "session=1");
+
+        assertTrue(new CacheKeyPolicy().hasUnkeyedCookies(request, ImmutableSortedSet.<String>of()));
+        assertFalse(new CacheKeyPolicy(ImmutableSet.of("Cookie"), Collections.<String>emptySet(), true)
+                .hasUnkeyedCookies(request, ImmutableSortedSet.<String>of()));
+        assertFalse(new CacheKeyPolicy().hasUnkeyedCookies(request("/p", null), ImmutableSortedSet.<String>of()));
+    }
+
+    @Test
+    public void identifiesLoggedRequestsLikeLiveOnes() {
+        CacheKeyPolicy policy = new CacheKeyPolicy(Arrays.asList("Accept-Language"), Collections.<String>emptySet(), true);
+
+        assertEquals(policy.identify(request("/p", "b=1&a=2")), policy.identify("/p", "b=1&a=2"));
+        assertEquals("accept-language:\n", policy.identify("/p", null).getKeyHeaders());
+    }
+
+    @Test
+    public void addsTheKeyHeadersOfRules() {
+        CacheKeyPolicy policy = new CacheKeyPolicy();
+        MockHttpServletRequest request = request("/p", null);
+        request.addHeader("X-Device", "mobile");
+        request.addHeader("Cookie", "session=1");
+
+        assertEquals("", policy.identify(request).getKeyHeaders());
+        assertEquals("x-device:mobile\n", policy.identify(request, ImmutableSortedSet.of("x-device")).getKeyHeaders());
+        assertFalse(policy.hasUnkeyedCookies(request, ImmutableSortedSet.of("cookie")));
+    }
+
+    private static MockHttpServletRequest request(String uri, String queryString) {
+        MockHttpServletRequest request = new MockHttpServletRequest("GET", uri);
+        request.setQueryString(queryString);
+        return request;
+    }
+}
@@ -0,0 +1,194 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Dustin Sweigart
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.swigg.talo.proxy;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.io.Files;
+import org.apache.commons.configuration.ConfigurationException;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Dustin Sweigart <dustin@swigg.net>
+ */
+public class CacheRulesTest {
+    static private final Collection<String> ANY = Collections.emptySet();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void defaultWithoutRules() {
+        CacheRules.Match match = new CacheRules().match("GET", "/products/1");
+
+        assertFalse(match.isBypassed());
+        assertTrue(match.getKeyHeaders().isEmpty());
+        assertEquals(-1, match.getAdmission());
+        assertTrue(match.isCached(200, "text/html"));
+        assertFalse(match.isCached(500, "text/html"));
+        assertFalse(match.isCached(304, null));
+        assertEquals(-1, match.ttl(200, "text/html"));
+    }
+
+    @Test
+    public void prefixRulesMatchEverythingBelowThem() {
+        CacheRules rules = new CacheRules(Arrays.asList(bypass(ANY, "/api/*")));
+
+        assertTrue(rules.match("GET", "/api/").isBypassed());
+        assertTrue(rules.match("GET", "/api/users/1").isBypassed());
+        assertFalse(rules.match("GET", "/api").isBypassed());
+        assertFalse(rules.match("GET", "/apis").isBypassed());
+        assertFalse(rules.match("GET", "/").isBypassed());
+    }
+
+    @Test
+    public void exactRulesOnlyMatchTheirPath() {
+        CacheRules rules = new CacheRules(Arrays.asList(bypass(ANY, "/login")));
+
+        assertTrue(rules.match("POST", "/login").isBypassed());
+        assertFalse(rules.match("POST", "/login/help").isBypassed());
+        assertFalse(rules.match("POST", "/log").isBypassed());
+    }
+
+    @Test
+    public void rulesWithoutPathMatchEverything() {
+        CacheRules rules = new CacheRules(Arrays.asList(bypass(ANY, null)));
+
+        assertTrue(rules.match("GET", "/").isBypassed());
+        assertTrue(rules.match("GET", "/anything/at/all").isBypassed());
+    }
+
+    @Test
+    public void rulesOnlyMatchTheirMethods() {
+        CacheRules rules = new CacheRules(Arrays.asList(bypass(Arrays.asList("post", "PUT"), "/*")));
+
+        assertTrue(rules.match("POST", "/orders").isBypassed());
+        assertTrue(rules.match("PUT", "/orders").isBypassed());
+        assertFalse(rules.match("GET", "/orders").isBypassed());
+        assertFalse(rules.match("DELETE", "/orders").isBypassed());
+    }
+
+    @Test
+    public void firstDecidingRuleWins() {
+        CacheRules rules = new CacheRules(Arrays.asList(
+                new CacheRule(ANY, "/api/public/*", ANY, null, null, -1, false, ANY, -1),
+                bypass(ANY, "/api/*"),
+                new CacheRule(ANY, "/api/*", ANY, null, null, -1, null, Arrays.asList("X-Device"), 3)));
+
+        CacheRules.Match publicMatch = rules.match("GET", "/api/public/products");
+        assertFalse(publicMatch.isBypassed());
+        assertEquals(ImmutableSortedSet.of("x-device"), publicMatch.getKeyHeaders());
+        assertEquals(3, publicMatch.getAdmission());
+
+        assertTrue(rules.match("GET", "/api/orders").isBypassed());
+        assertTrue(rules.isAdmissionRequired());
+    }
+
+    @Test
+    public void responseRulesDecideByStatusAndContentType() {
+        CacheRules rules = new CacheRules(Arrays.asList(
+                new CacheRule(ANY, "/products/*", Arrays.asList("404", "410"), null, null, 30000, null, ANY, -1),
+                new CacheRule(Arrays.asList("GET"), null, ANY, "image/*", null, 86400000, null, ANY, -1),
+                new CacheRule(ANY, "/products/*", Arrays.asList("200-299"), "text/html", false, -1, null, ANY, -1)));
+
+        CacheRules.Match products = rules.match("GET", "/products/1");
+        assertTrue(products.isCached(404, null));
+        assertEquals(30000, products.ttl(410, "text/html"));
+        assertTrue(products.isCached(200, "image/png"));
+        assertEquals(86400000, products.ttl(200, "IMAGE/PNG"));
+        assertFalse(products.isCached(200, "text/html; charset=utf-8"));
+        assertTrue(products.isCached(200, "text/htmlx"));
+        assertEquals(-1, products.ttl(200, "text/plain"));
+
+        // the image rule only matches GET
+        assertEquals(-1, rules.match("HEAD", "/products/1").ttl(200, "image/png"));
+        assertEquals(86400000, rules.match("GET", "/logo").ttl(200, "image/png"));
+    }
+
+    @Test
+    public void requestsMatchingTheSameRulesShareTheirMatch() {
+        CacheRules rules = new CacheRules(Arrays.asList(bypass(ANY, "/api/*")));
+
+        assertSame(rules.match("GET", "/api/a"), rules.match("GET", "/api/b"));
+        assertSame(rules.match("GET", "/other"), rules.match("GET", "/"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rulesHaveToDecideSomething() {
+        new CacheRule(ANY, "/products/*", ANY, null, null, -1, null, ANY, -1);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void wildcardsOnlyEndPatterns() {
+        bypass(ANY, "/products/*/reviews");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void requestRulesCantMatchResponses() {
+        new CacheRule(ANY, "/products/*", Arrays.asList("200"), null, null, -1, true, ANY, -1);
+    }
+
+    @Test
+    public void loadsRulesFromXml() throws Exception {
+        File file = folder.newFile("rules.xml");
+        Files.write("<rules>" +
+                "<rule><path>/api/*</path><bypass>true</bypass></rule>" +
+                "<rule><path>/products/*</path><status>404, 410</status><ttl>30</ttl></rule>" +
+                "<rule><method>GET</method><method>HEAD</method><keyHeader>Accept-Language,X-Device</keyHeader></rule>" +
+                "</rules>", file, Charsets.UTF_8);
+
+        CacheRules rules = CacheRules.load(file);
+        assertEquals(3, rules.getRules().size());
+        assertTrue(rules.match("GET", "/api/orders").isBypassed());
+        assertEquals(30000, rules.match("GET", "/products/1").ttl(404, null));
+        assertEquals(30000, rules.match("GET", "/products/1").ttl(410, null));
+        assertEquals(-1, rules.match("GET", "/products/1").ttl(200, null));
+        assertEquals(ImmutableSortedSet.of("accept-language", "x-device"), rules.match("HEAD", "/").getKeyHeaders());
+        assertTrue(rules.match("POST", "/").getKeyHeaders().isEmpty());
+    }
+
+    @Test(expected = ConfigurationException.class)
+    public void invalidRulesFailToLoad() throws Exception {
+        File file = folder.newFile("rules.xml");
+        Files.write("<rules><rule><path>products</path><bypass>true</bypass></rule></rules>", file, Charsets.UTF_8);
+
+        CacheRules.load(file);
+    }
+
+    private static CacheRule bypass(Collection<String> methods, String path) {
+        return new CacheRule(methods, path, ANY, null, null, -1, true, ANY, -1);
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Dustin Sweigart
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.swigg.talo.proxy;
+
+import org.eclipse.jetty.http.HttpFields;
+import org.eclipse.jetty.http.HttpHeader;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Dustin Sweigart <dustin@swigg.net>
+ */
+public class FreshnessPolicyTest {
+    static private final long NOW = 1400000000000L;
+    static private final long DEFAULT_TTL = TimeUnit.MINUTES.toMillis(5);
+
+    private final FreshnessPolicy policy = new FreshnessPolicy(DEFAULT_TTL);
+
+    @Test
+    public void parsesDirectives() {
+        FreshnessPolicy.CacheControl cacheControl = FreshnessPolicy.CacheControl.parse(
+                "Public, MAX-AGE=60, s-maxage=\"120\", stale-while-revalidate=30, stale-if-error=600, must-revalidate");
+
+        assertTrue(cacheControl.publicResponse);
+        assertTrue(cacheControl.mustRevalidate);
+        assertEquals(60, cacheControl.maxAge);
+        assertEquals(120, cacheControl.sharedMaxAge);
+        assertEquals(30, cacheControl.staleWhileRevalidate);
+        assertEquals(600, cacheControl.staleIfError);
+        assertFalse(cacheControl.noStore);
+    }
+
+    @Test
+    public void malformedAgesAreStale() {
+        assertEquals(0, FreshnessPolicy.CacheControl.parse("max-age=soon").maxAge);
+        assertEquals(0, FreshnessPolicy.CacheControl.parse("max-age").maxAge);
+        assertEquals(-1, FreshnessPolicy.CacheControl.parse((String) null).maxAge);
+    }
+
+    @Test
+    public void fieldListsOnlyRestrictTheirFields() {
+        FreshnessPolicy.CacheControl cacheControl = FreshnessPolicy.CacheControl.parse(
+                "no-cache=\"Set-Cookie\", private=\"X-User\"");
+
+        assertFalse(cacheControl.noCache);
+        assertFalse(cacheControl.privateResponse);
+    }
+
+    @Test
+    public void readsEveryCacheControlField() {
+        HttpFields headers = new HttpFields();
+        headers.add(HttpHeader.CACHE_CONTROL, "max-age=60");
+        headers.add(HttpHeader.CACHE_CONTROL, "private");
+
+        assertFalse(policy.isStorable(headers));
+        assertEquals(NOW + TimeUnit.SECONDS.toMillis(60), policy.freshness(headers, NOW).getFreshUntil());
+    }
+
+    @Test
+    public void noStoreIsNotStorable() {
+        assertFalse(policy.isStorable(headers("no-store")));
+        assertTrue(policy.isStorable(headers("max-age=60")));
+        assertTrue(policy.isStorable(new HttpFields()));
+    }
+
+    @Test
+    public void authorizedResponsesHaveToSayTheyAreShared() {
+        assertFalse(policy.isStorable(headers("max-age=60"), true));
+        assertTrue(policy.isStorable(headers("public, max-age=60"), true));
+        assertTrue(policy.isStorable(headers("s-maxage=60"), true));
+        assertTrue(policy.isStorable(headers("must-revalidate"), true));
+    }
+
+    @Test
+    public void sharedMaxAgeWinsOverMaxAge() {
+        Freshness freshness = policy.freshness(headers("max-age=60, s-maxage=10"), NOW);
+
+        assertEquals(NOW + TimeUnit.SECONDS.toMillis(10), freshness.getFreshUntil());
+    }
+
+    @Test
+    public void noCacheIsStaleRightAway() {
+        Freshness freshness = policy.freshness(headers("no-cache, max-age=60, stale-while-revalidate=30"), NOW);
+
+        assertEquals(NOW, freshness.getFreshUntil());
+        assertEquals(Freshness.State.EXPIRED, freshness.stateAt(NOW));
+    }
+
+    @Test
+    public void expiresCountsFromTheDateHeader() {
+        HttpFields headers = new HttpFields();
+        headers.putDateField(HttpHeader.DATE, NOW - TimeUnit.HOURS.toMillis(1));
+        headers.putDateField(HttpHeader.EXPIRES, NOW);
+
+        assertEquals(NOW + TimeUnit.HOURS.toMillis(1), policy.freshness(headers, NOW).getFreshUntil());
+    }
+
+    @Test
+    public void invalidExpiresIsAlreadyExpired() {
+        HttpFields headers = new HttpFields();
+        headers.put(HttpHeader.EXPIRES, "0");
+
+        assertEquals(NOW, policy.freshness(headers, NOW).getFreshUntil());
+    }
+
+    @Test
+    public void defaultTtlWithoutHeaders() {
+        assertEquals(NOW + DEFAULT_TTL, policy.freshness(new HttpFields(), NOW).getFreshUntil());
+    }
+
+    @Test
+    public void ageIsSubtracted() {
+        HttpFields headers = headers("max-age=60");
+        headers.put(HttpHeader.AGE, "20");
+
+        Freshness freshness = policy.freshness(headers, NOW);
+        assertEquals(NOW + TimeUnit.SECONDS.toMillis(40), freshness.getFreshUntil());
+        assertEquals(NOW - TimeUnit.SECONDS.toMillis(20), freshness.getStoredAt());
+    }
+
+    @Test
+    public void ruleTtlOverridesHeaders() {
+        assertEquals(NOW + 1000, policy.freshness(headers("no-cache"), NOW, 1000).getFreshUntil());
+    }
+
+    @Test
+    public void staleWindowsUnlessRevalidationIsRequired() {
+        Freshness freshness = policy.freshness(headers("max-age=60, stale-while-revalidate=30, stale-if-error=600"), NOW);
+        assertEquals(Freshness.State.STALE_WHILE_REVALIDATE, freshness.stateAt(NOW + TimeUnit.SECONDS.toMillis(70)));
+        assertEquals(Freshness.State.STALE_IF_ERROR, freshness.stateAt(NOW + TimeUnit.SECONDS.toMillis(100)));
+
+        HttpFields mustRevalidate = headers("max-age=60, stale-while-revalidate=30, must-revalidate");
+        assertEquals(Freshness.State.EXPIRED, policy.freshness(mustRevalidate, NOW).stateAt(NOW + TimeUnit.SECONDS.toMillis(70)));
+    }
+
+    private static HttpFields headers(String cacheControl) {
+        HttpFields headers = new HttpFields();
+        headers.put(HttpHeader.CACHE_CONTROL, cacheControl);
+        return headers;
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * The MIT License (MIT)
+ *
+ * Copyright (c) 2014 Dustin Sweigart
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package net.swigg.talo.proxy;
+
+import com.google.common.cache.Weigher;
+import com.google.common.collect.ImmutableSet;
+import net.swigg.talo.cache.CacheStore;
+import net.swigg.talo.cache.TinyLfuCacheStore;
+import org.junit.Test;
+
+import java.util.HashSet;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * @author Dustin Sweigart <dustin@swigg.net>
+ */
+public class UriIndexTest {
+    private final CacheStore<RequestIdentity, String> cache = new TinyLfuCacheStore<>(1000, new Weigher<RequestIdentity, String>() {
+        @Override
+        public int weigh(RequestIdentity key, String value) {
+            return 1;
+        }
+    });
+    private final UriIndex index = new UriIndex(cache);
+
+    @Test
+    public void indexesKeysInTheCache() {
+        RequestIdentity plain = add("/products/1", "");
+        RequestIdentity query = add("/products/1", "color=red");
+        RequestIdentity variant = plain.withVariant("accept-encoding:gzip\n");
+        cache.put(variant, "");
+        index.sync(variant);
+        add("/products/10", "");
+
+        assertEquals(ImmutableSet.of(plain, query, variant), index.get("/products/1"));
+        assertTrue(index.get("/products").isEmpty());
+        assertTrue(index.get("/nothing").isEmpty());
+        assertEquals(4, index.size());
+    }
+
+    @Test
+    public void findsKeysByPrefix() {
+        RequestIdentity one = add("/products/1", "");
+        RequestIdentity ten = add("/products/10", "");
+        RequestIdentity shoes = add("/products/shoes", "");
+        RequestIdentity about = add("/about", "");
+
+        assertEquals(ImmutableSet.of(one, ten, shoes), new HashSet<>(index.withPrefix("/products/")));
+        assertEquals(ImmutableSet.of(one, ten), new HashSet<>(index.withPrefix("/products/1")));
+        // the prefix ends within an edge of the trie
+        assertEquals(ImmutableSet.of(shoes), new HashSet<>(index.withPrefix("/products/sh")));
+        assertEquals(ImmutableSet.of(one, ten, shoes, about), new HashSet<>(index.withPrefix("")));
+        assertTrue(index.withPrefix("/products/2").isEmpty());
+        assertTrue(index.withPrefix("/products/shoes/left").isEmpty());
+    }
+
+    @Test
+    public void dropsKeysNoLongerInTheCache() {
+        RequestIdentity one = add("/products/1", "");
+        RequestIdentity ten = add("/products/10", "");
+
+        cache.remove(one);
+        index.sync(one);
+
+        assertEquals(ImmutableSet.of(ten), new HashSet<>(index.withPrefix("/products/")));
+        assertEquals(1, index.size());
+    }
+
+    /**
+     * Notifications only tell the index to look at the cache, so one that arrives late can't undo a later change.
+     */
+    @Test
+    public void notificationsOutOfOrderAgreeWithTheCache() {
+        RequestIdentity key = new RequestIdentity("/products/1", "", "", "");
+        cache.put(key, "");
+        cache.remove(key);
+        index.sync(key);
+        // the notification of the add arrives after the one of the removal
+        index.sync(key);
+
+        assertEquals(0, index.size());
+    }
+
+    @Test
+    public void deferredNotificationsApplyOnTheNextLookup() {
+        RequestIdentity one = new RequestIdentity("/products/1", "", "", "");
+        cache.put(one, "");
+        index.syncLater(one);
+
+        assertEquals(ImmutableSet.of(one), index.get("/products/1"));
+
+        cache.remove(one);
+        index.syncLater(one);
+
+        assertTrue(index.withPrefix("/").isEmpty());
+    }
+
+    private RequestIdentity add(String requestUri, String queryString) {
+        RequestIdentity key = new RequestIdentity(requestUri, queryString, "", "");
+        cache.put(key, "");
+        index.sync(key);
+        return key;
+    }
+}